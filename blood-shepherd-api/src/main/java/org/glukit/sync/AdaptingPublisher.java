@@ -0,0 +1,69 @@
+package org.glukit.sync;
+
+import org.glukit.sync.api.Publisher;
+import org.glukit.sync.api.ReceiverSyncData;
+import org.glukit.sync.api.Subscriber;
+import org.glukit.sync.api.Subscription;
+import org.glukit.sync.api.SyncData;
+
+/**
+ * {@link Publisher} of the {@link SyncData} converted by an {@link AdapterService} from what a receiver publishes.
+ * Each item is converted as it goes through and requests are passed on as is, so the receiver is read no faster
+ * than the subscriber asks for.
+ *
+ * @author alexandre.normand
+ */
+public class AdaptingPublisher<T extends ReceiverSyncData> implements Publisher<SyncData> {
+  private final Publisher<T> source;
+  private final AdapterService<T> adapterService;
+
+  public AdaptingPublisher(Publisher<T> source, AdapterService<T> adapterService) {
+    this.source = source;
+    this.adapterService = adapterService;
+  }
+
+  @Override
+  public void subscribe(final Subscriber<? super SyncData> subscriber) {
+    this.source.subscribe(new Subscriber<T>() {
+      private Subscription subscription;
+      private boolean failed = false;
+
+      @Override
+      public void onSubscribe(Subscription subscription) {
+        this.subscription = subscription;
+        subscriber.onSubscribe(subscription);
+      }
+
+      @Override
+      public void onNext(T item) {
+        if (this.failed) {
+          return;
+        }
+        SyncData syncData;
+        try {
+          syncData = adapterService.convertData(item);
+        } catch (RuntimeException e) {
+          this.failed = true;
+          this.subscription.cancel();
+          subscriber.onError(e);
+          return;
+        }
+        subscriber.onNext(syncData);
+      }
+
+      @Override
+      public void onError(Throwable throwable) {
+        if (!this.failed) {
+          subscriber.onError(throwable);
+        }
+      }
+
+      @Override
+      public void onComplete() {
+        if (!this.failed) {
+          subscriber.onComplete();
+        }
+      }
+    });
+  }
+}
@@ -2,18 +2,87 @@ package org.glukit.sync.api;
 
 import org.threeten.bp.Instant;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.prefs.BackingStoreException;
 import java.util.prefs.Preferences;
 
 /**
- * Wraps {@link Preferences} for blood-shepherd with domain getter.
+ * Wraps {@link Preferences} for blood-shepherd with domain getter. Each receiver has its own sync state under
+ * {@link #forReceiver(String)} so that several receivers can be synced side by side.
  *
  * @author alexandre.normand
  */
 public class BloodShepherdPreferences {
   public static final String LAST_SYNC = "last.sync";
-  private final Preferences preferences = Preferences.userNodeForPackage(this.getClass());
+  public static final String PAGE_CHECKPOINT_PREFIX = "page.checkpoint.";
+  public static final String RECEIVERS_NODE = "receivers";
+  public static final String PAGES_PER_READ_NODE = "pages.per.read";
+  public static final String DEVICES_NODE = "devices";
+  private final Preferences preferences;
 
   public BloodShepherdPreferences() {
+    this(Preferences.userNodeForPackage(BloodShepherdPreferences.class));
+  }
+
+  private BloodShepherdPreferences(Preferences preferences) {
+    this.preferences = preferences;
+  }
+
+  /**
+   * @return the preferences of the receiver with that serial number. Receivers syncing for the first time start from
+   * the last sync time saved before it was kept per receiver. The page checkpoints saved back then are dropped, there's
+   * no telling which receiver they were for.
+   */
+  public BloodShepherdPreferences forReceiver(String serialNumber) {
+    if (serialNumber == null || serialNumber.isEmpty() || serialNumber.contains("/")) {
+      throw new IllegalArgumentException(String.format("Invalid receiver serial number [%s]", serialNumber));
+    }
+
+    synchronized (BloodShepherdPreferences.class) {
+      try {
+        Preferences receivers = this.preferences.node(RECEIVERS_NODE);
+        boolean known = receivers.nodeExists(serialNumber);
+        Preferences receiver = receivers.node(serialNumber);
+        if (!known) {
+          copySyncState(this.preferences, receiver);
+        }
+        return new BloodShepherdPreferences(receiver);
+      } catch (BackingStoreException e) {
+        throw new IllegalStateException(String.format("Can't load preferences of receiver %s", serialNumber), e);
+      }
+    }
+  }
+
+  /**
+   * Resets the last sync time of every receiver and forgets their page checkpoints. Receivers that haven't synced yet
+   * get that time when they first sync.
+   */
+  public void resetLastSyncTime(Instant lastSyncTime) {
+    saveLastSyncTime(lastSyncTime);
+    clearPageCheckpoints();
+    synchronized (BloodShepherdPreferences.class) {
+      try {
+        Preferences receivers = this.preferences.node(RECEIVERS_NODE);
+        for (String serialNumber : receivers.childrenNames()) {
+          BloodShepherdPreferences receiver = new BloodShepherdPreferences(receivers.node(serialNumber));
+          receiver.saveLastSyncTime(lastSyncTime);
+          receiver.clearPageCheckpoints();
+        }
+      } catch (BackingStoreException e) {
+        throw new IllegalStateException("Can't reset the receivers' last sync time", e);
+      }
+    }
+  }
+
+  private static void copySyncState(Preferences from, Preferences to) throws BackingStoreException {
+    for (String key : from.keys()) {
+      if (key.equals(LAST_SYNC)) {
+        to.putLong(key, from.getLong(key, 0L));
+      } else if (key.startsWith(PAGE_CHECKPOINT_PREFIX)) {
+        from.remove(key);
+      }
+    }
   }
 
   public Instant getLastSyncTime() {
@@ -24,4 +93,89 @@ public class BloodShepherdPreferences {
   public void saveLastSyncTime(Instant lastSyncTime) {
     this.preferences.putLong(LAST_SYNC, lastSyncTime.toEpochMilli());
   }
+
+  /**
+   * @return the last page read of the given record type at the last sync or {@code null} if there's none.
+   */
+  public Long getPageCheckpoint(String recordType) {
+    long value = this.preferences.getLong(PAGE_CHECKPOINT_PREFIX + recordType, -1L);
+    return value < 0 ? null : value;
+  }
+
+  public void savePageCheckpoint(String recordType, long page) {
+    this.preferences.putLong(PAGE_CHECKPOINT_PREFIX + recordType, page);
+  }
+
+  /**
+   * @return the most pages a receiver with that firmware version was found to read in a single command or
+   * {@code null} if it hasn't been probed yet. Shared by all receivers.
+   */
+  public Integer getPagesPerRead(String firmwareVersion) {
+    int value = this.preferences.node(PAGES_PER_READ_NODE).getInt(firmwareVersion, -1);
+    return value < 0 ? null : value;
+  }
+
+  public void savePagesPerRead(String firmwareVersion, int pagesPerRead) {
+    this.preferences.node(PAGES_PER_READ_NODE).putInt(firmwareVersion, pagesPerRead);
+  }
+
+  /**
+   * @return what's known of the USB device with that serial number, empty if nothing is. Shared by all receivers.
+   */
+  public Map<String, String> getDeviceMetadata(String deviceSerialNumber) {
+    synchronized (BloodShepherdPreferences.class) {
+      try {
+        Map<String, String> metadata = new HashMap<String, String>();
+        Preferences devices = this.preferences.node(DEVICES_NODE);
+        if (devices.nodeExists(checkNodeName(deviceSerialNumber))) {
+          Preferences device = devices.node(deviceSerialNumber);
+          for (String key : device.keys()) {
+            metadata.put(key, device.get(key, null));
+          }
+        }
+        return metadata;
+      } catch (BackingStoreException e) {
+        throw new IllegalStateException(String.format("Can't load metadata of device %s", deviceSerialNumber), e);
+      }
+    }
+  }
+
+  /**
+   * Replaces what's known of the USB device with that serial number.
+   */
+  public void saveDeviceMetadata(String deviceSerialNumber, Map<String, String> metadata) {
+    synchronized (BloodShepherdPreferences.class) {
+      try {
+        Preferences device = this.preferences.node(DEVICES_NODE).node(checkNodeName(deviceSerialNumber));
+        device.clear();
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+          device.put(entry.getKey(), entry.getValue());
+        }
+      } catch (BackingStoreException e) {
+        throw new IllegalStateException(String.format("Can't save metadata of device %s", deviceSerialNumber), e);
+      }
+    }
+  }
+
+  private static String checkNodeName(String name) {
+    if (name == null || name.isEmpty() || name.contains("/")) {
+      throw new IllegalArgumentException(String.format("Invalid serial number [%s]", name));
+    }
+    return name;
+  }
+
+  /**
+   * Forgets all page checkpoints so that the next sync reads every page again.
+   */
+  public void clearPageCheckpoints() {
+    try {
+      for (String key : this.preferences.keys()) {
+        if (key.startsWith(PAGE_CHECKPOINT_PREFIX)) {
+          this.preferences.remove(key);
+        }
+      }
+    } catch (BackingStoreException e) {
+      throw new IllegalStateException("Can't clear page checkpoints", e);
+    }
+  }
 }
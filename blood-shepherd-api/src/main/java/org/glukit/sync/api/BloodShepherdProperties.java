@@ -9,4 +9,36 @@ import java.util.Properties;
  */
 public class BloodShepherdProperties extends Properties {
   public static final String OUTPUT_PATH = "OUTPUT_PATH";
+  public static final String EXPORT_COMPRESSION = "EXPORT_COMPRESSION";
+  public static final String EXPORT_PARTITIONING = "EXPORT_PARTITIONING";
+  public static final String EXPORTERS = "EXPORTERS";
+  public static final String EXPORT_QUEUE_CAPACITY = "EXPORT_QUEUE_CAPACITY";
+  public static final String EXPORT_TIMEOUT_SECONDS = "EXPORT_TIMEOUT_SECONDS";
+  public static final String EXPORT_JOURNAL_PATH = "EXPORT_JOURNAL_PATH";
+  public static final String SERIAL_TRANSPORT = "SERIAL_TRANSPORT";
+  public static final String SYNC_DRY_RUN = "SYNC_DRY_RUN";
+  public static final String BACKFILL_AFTER_HOURS = "BACKFILL_AFTER_HOURS";
+  public static final String LIVE_TAIL = "LIVE_TAIL";
+  public static final String SESSION_IDLE_TIMEOUT_SECONDS = "SESSION_IDLE_TIMEOUT_SECONDS";
+  public static final String SYNC_DEBOUNCE_MILLIS = "SYNC_DEBOUNCE_MILLIS";
+  public static final String SYNC_MIN_INTERVAL_SECONDS = "SYNC_MIN_INTERVAL_SECONDS";
+  public static final String SYNC_TIMEOUT_SECONDS = "SYNC_TIMEOUT_SECONDS";
+  public static final String THREAD_MODEL = "THREAD_MODEL";
+  public static final String PAGE_CACHE_MAX_KILOBYTES = "PAGE_CACHE_MAX_KILOBYTES";
+  public static final String HTTP_PUSH_URL = "HTTP_PUSH_URL";
+  public static final String HTTP_PUSH_API_SECRET = "HTTP_PUSH_API_SECRET";
+  public static final String HTTP_PUSH_BATCH_SIZE = "HTTP_PUSH_BATCH_SIZE";
+  public static final String HTTP_PUSH_MAX_PENDING = "HTTP_PUSH_MAX_PENDING";
+  public static final String HTTP_PUSH_STATE_PATH = "HTTP_PUSH_STATE_PATH";
+
+  /**
+   * @return the integer value of the given property or {@code defaultValue} when it's not set.
+   */
+  public static int getIntProperty(Properties properties, String name, int defaultValue) {
+    String value = properties.getProperty(name);
+    if (value == null || value.trim().isEmpty()) {
+      return defaultValue;
+    }
+    return Integer.parseInt(value.trim());
+  }
 }
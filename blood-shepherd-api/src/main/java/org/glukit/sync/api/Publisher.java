@@ -0,0 +1,15 @@
+package org.glukit.sync.api;
+
+/**
+ * Streams items to a {@link Subscriber}, no faster than it {@link Subscription#request requests} them. This follows
+ * the contract of {@code java.util.concurrent.Flow.Publisher}, which we can't use while we build for Java 7.
+ *
+ * @author alexandre.normand
+ */
+public interface Publisher<T> {
+  /**
+   * Calls {@link Subscriber#onSubscribe} and then, as the subscriber asks for them, {@link Subscriber#onNext} until
+   * it's done with {@link Subscriber#onComplete} or {@link Subscriber#onError}.
+   */
+  void subscribe(Subscriber<? super T> subscriber);
+}
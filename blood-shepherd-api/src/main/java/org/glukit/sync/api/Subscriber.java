@@ -0,0 +1,25 @@
+package org.glukit.sync.api;
+
+/**
+ * Receives the items of a {@link Publisher}. The calls are made one at a time, never concurrently.
+ *
+ * @author alexandre.normand
+ */
+public interface Subscriber<T> {
+  /**
+   * Called first. Nothing is sent until items are requested with the subscription.
+   */
+  void onSubscribe(Subscription subscription);
+
+  void onNext(T item);
+
+  /**
+   * Called once if the publisher fails, nothing is sent after that.
+   */
+  void onError(Throwable throwable);
+
+  /**
+   * Called once all items were sent.
+   */
+  void onComplete();
+}
@@ -0,0 +1,18 @@
+package org.glukit.sync.api;
+
+/**
+ * Ties a {@link Subscriber} to its {@link Publisher}.
+ *
+ * @author alexandre.normand
+ */
+public interface Subscription {
+  /**
+   * Asks for {@code count} more items.
+   */
+  void request(long count);
+
+  /**
+   * Asks the publisher to stop sending items. Some might still arrive.
+   */
+  void cancel();
+}
@@ -20,6 +20,7 @@ public class SyncData {
   private List<ExerciseSession> exerciseSessions;
   private DeviceInfo deviceInfo;
   private Instant updateTime;
+  private Instant since;
 
   public SyncData(List<GlucoseRead> glucoseReads,
                   List<InsulinInjection> insulinInjections,
@@ -27,12 +28,27 @@ public class SyncData {
                   List<ExerciseSession> exerciseSessions,
                   DeviceInfo deviceInfo,
                   Instant updateTime) {
+    this(glucoseReads, insulinInjections, foodEvents, exerciseSessions, deviceInfo, updateTime, null);
+  }
+
+  /**
+   * @param since the start of the sync this data is a chunk of, when the sync exports its records in several
+   *              chunks that might not come oldest first.
+   */
+  public SyncData(List<GlucoseRead> glucoseReads,
+                  List<InsulinInjection> insulinInjections,
+                  List<FoodEvent> foodEvents,
+                  List<ExerciseSession> exerciseSessions,
+                  DeviceInfo deviceInfo,
+                  Instant updateTime,
+                  Instant since) {
     this.glucoseReads = glucoseReads;
     this.insulinInjections = insulinInjections;
     this.foodEvents = foodEvents;
     this.exerciseSessions = exerciseSessions;
     this.deviceInfo = deviceInfo;
     this.updateTime = updateTime;
+    this.since = since;
   }
 
   public List<GlucoseRead> getGlucoseReads() {
@@ -58,5 +74,13 @@ public class SyncData {
   public Instant getUpdateTime() {
     return updateTime;
   }
+
+  /**
+   * @return the start of the sync this data is a chunk of or {@code null} if it's not part of a chunked sync. The
+   * chunks of a sync together hold every record newer than that but an older chunk can come after a newer one.
+   */
+  public Instant getSince() {
+    return since;
+  }
 }
 
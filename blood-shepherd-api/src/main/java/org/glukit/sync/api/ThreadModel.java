@@ -0,0 +1,121 @@
+package org.glukit.sync.api;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.String.format;
+import static org.glukit.sync.api.BloodShepherdProperties.THREAD_MODEL;
+
+/**
+ * The kind of threads the receiver I/O and the export workers run on. Most of their time is spent blocked on a
+ * serial port or a socket so, on JDK 21+, {@link #VIRTUAL} threads let many receivers sync at once without as many
+ * platform threads. Virtual threads are looked up by reflection since we still build for older JDKs.
+ *
+ * @author alexandre.normand
+ */
+public enum ThreadModel {
+  /**
+   * Daemon platform threads in bounded pools.
+   */
+  PLATFORM {
+    @Override
+    public ThreadFactory newThreadFactory(String nameFormat) {
+      return new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build();
+    }
+
+    @Override
+    public ExecutorService newExecutor(String nameFormat, int maxThreads) {
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 30L, TimeUnit.SECONDS,
+              new LinkedBlockingQueue<Runnable>(), newThreadFactory(nameFormat));
+      executor.allowCoreThreadTimeOut(true);
+      return executor;
+    }
+  },
+  /**
+   * A new virtual thread per task, tasks aren't bounded by a pool.
+   */
+  VIRTUAL {
+    @Override
+    public ThreadFactory newThreadFactory(String nameFormat) {
+      try {
+        Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+        Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+        builder = builderClass.getMethod("name", String.class, long.class)
+                .invoke(builder, nameFormat.replace("%d", ""), 0L);
+        return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+      } catch (ReflectiveOperationException e) {
+        throw new IllegalStateException("Virtual threads aren't available on this JDK", e);
+      }
+    }
+
+    @Override
+    public ExecutorService newExecutor(String nameFormat, int maxThreads) {
+      try {
+        Method newThreadPerTaskExecutor = Executors.class.getMethod(
+                "newThreadPerTaskExecutor", ThreadFactory.class);
+        return (ExecutorService) newThreadPerTaskExecutor.invoke(null, newThreadFactory(nameFormat));
+      } catch (ReflectiveOperationException e) {
+        throw new IllegalStateException("Virtual threads aren't available on this JDK", e);
+      }
+    }
+  };
+
+  private static Logger LOGGER = LoggerFactory.getLogger(ThreadModel.class);
+
+  /**
+   * @param nameFormat the thread names, with {@code %d} for the thread number.
+   */
+  public abstract ThreadFactory newThreadFactory(String nameFormat);
+
+  /**
+   * @param maxThreads the most threads running tasks at once, ignored by {@link #VIRTUAL}.
+   */
+  public abstract ExecutorService newExecutor(String nameFormat, int maxThreads);
+
+  /**
+   * @return {@code true} if this JDK has virtual threads.
+   */
+  public static boolean isVirtualAvailable() {
+    try {
+      Thread.class.getMethod("ofVirtual");
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Reads the model from the {@link BloodShepherdProperties#THREAD_MODEL} property. Defaults to {@link #PLATFORM}
+   * when the property isn't set or when virtual threads aren't available.
+   */
+  public static ThreadModel fromProperties(Properties properties) {
+    String value = properties.getProperty(THREAD_MODEL);
+    if (value == null || value.trim().isEmpty()) {
+      return PLATFORM;
+    }
+
+    for (ThreadModel threadModel : values()) {
+      if (threadModel.name().equalsIgnoreCase(value.trim())) {
+        if (threadModel == VIRTUAL && !isVirtualAvailable()) {
+          LOGGER.warn(format("Virtual threads need JDK 21+ but this is %s, using platform threads",
+                  System.getProperty("java.version")));
+          return PLATFORM;
+        }
+        return threadModel;
+      }
+    }
+    throw new IllegalArgumentException(format("Invalid %s [%s], must be one of %s", THREAD_MODEL, value,
+            Arrays.toString(values())));
+  }
+}
@@ -45,12 +45,15 @@ import org.eclipse.swt.widgets.TrayItem;
 import org.glukit.dexcom.sync.DexcomDaemon;
 import org.glukit.sync.api.BloodShepherdPreferences;
 import org.glukit.sync.api.BloodShepherdProperties;
+import org.glukit.sync.api.DataExporter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.threeten.bp.Instant;
 
 import javax.usb.UsbException;
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
 
 import static java.lang.String.format;
 
@@ -82,17 +85,26 @@ public class BloodShepherdTray {
     BloodShepherdPreferences preferences = new BloodShepherdPreferences();
     if (this.since != null) {
       LOGGER.info("Overriding last sync time to {}.", this.since);
-      preferences.saveLastSyncTime(Instant.ofEpochMilli(this.since));
+      // The records since then may be on pages before the checkpoints, every page gets read again
+      preferences.resetLastSyncTime(Instant.ofEpochMilli(this.since));
     }
 
     Injector injector = Guice.createInjector(new DexcomModule(properties));
     final DexcomDaemon dexcomDaemon = injector.getInstance(DexcomDaemon.class);
+    final DataExporter dataExporter = injector.getInstance(DataExporter.class);
 
     dexcomDaemon.start();
     Runtime.getRuntime().addShutdownHook(new Thread() {
       @Override
       public void run() {
         dexcomDaemon.stop();
+        if (dataExporter instanceof Closeable) {
+          try {
+            ((Closeable) dataExporter).close();
+          } catch (IOException e) {
+            LOGGER.warn("Error closing exporters, ignoring.", e);
+          }
+        }
       }
     });
 
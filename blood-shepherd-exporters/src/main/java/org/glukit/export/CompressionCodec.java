@@ -0,0 +1,144 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.export;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static java.lang.String.format;
+import static org.glukit.sync.api.BloodShepherdProperties.EXPORT_COMPRESSION;
+
+/**
+ * Compression applied to the exported files. Each codec wraps the raw file stream for writing and provides the
+ * matching reader so that tools consuming the exports don't have to guess how they were written.
+ *
+ * @author alexandre.normand
+ */
+public enum CompressionCodec {
+  NONE("") {
+    @Override
+    public OutputStream wrap(OutputStream outputStream) {
+      return outputStream;
+    }
+
+    @Override
+    public InputStream wrap(InputStream inputStream) {
+      return inputStream;
+    }
+  },
+  GZIP(".gz") {
+    @Override
+    public OutputStream wrap(OutputStream outputStream) throws IOException {
+      return new GZIPOutputStream(outputStream, BUFFER_SIZE);
+    }
+
+    @Override
+    public InputStream wrap(InputStream inputStream) throws IOException {
+      return new GZIPInputStream(inputStream, BUFFER_SIZE);
+    }
+  };
+
+  static final int BUFFER_SIZE = 64 * 1024;
+
+  private final String fileExtension;
+
+  private CompressionCodec(String fileExtension) {
+    this.fileExtension = fileExtension;
+  }
+
+  /**
+   * Wraps a raw stream so that everything written to it gets compressed. Closing the returned stream closes the
+   * raw one.
+   */
+  public abstract OutputStream wrap(OutputStream outputStream) throws IOException;
+
+  /**
+   * Wraps a raw stream of data written by this codec so that reading from it returns the uncompressed bytes.
+   */
+  public abstract InputStream wrap(InputStream inputStream) throws IOException;
+
+  /**
+   * @return the extension appended to the exported file names (i.e. ".gz"), empty for {@link #NONE}.
+   */
+  public String getFileExtension() {
+    return fileExtension;
+  }
+
+  /**
+   * Opens a buffered, compressing stream to a new file. Any existing file is overwritten.
+   */
+  public OutputStream openForWriting(File file) throws IOException {
+    return wrap(new BufferedOutputStream(new FileOutputStream(file, false), BUFFER_SIZE));
+  }
+
+  /**
+   * Opens a file written by any of the codecs, picking the codec from the file extension.
+   */
+  public static InputStream openForReading(File file) throws IOException {
+    CompressionCodec codec = forFileName(file.getName());
+    return codec.wrap(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+  }
+
+  public static CompressionCodec forFileName(String fileName) {
+    for (CompressionCodec codec : values()) {
+      if (codec != NONE && fileName.endsWith(codec.getFileExtension())) {
+        return codec;
+      }
+    }
+    return NONE;
+  }
+
+  /**
+   * Reads the codec from the {@link org.glukit.sync.api.BloodShepherdProperties#EXPORT_COMPRESSION} property.
+   * Defaults to {@link #NONE} when the property isn't set.
+   */
+  public static CompressionCodec fromProperties(Properties properties) {
+    String value = properties.getProperty(EXPORT_COMPRESSION);
+    if (StringUtils.isBlank(value)) {
+      return NONE;
+    }
+
+    for (CompressionCodec codec : values()) {
+      if (codec.name().equalsIgnoreCase(value.trim())) {
+        return codec;
+      }
+    }
+
+    throw new IllegalArgumentException(format("Invalid %s value [%s], expected one of %s", EXPORT_COMPRESSION,
+            value, Arrays.toString(values())));
+  }
+}
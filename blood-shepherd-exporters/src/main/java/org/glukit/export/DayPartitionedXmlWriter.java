@@ -0,0 +1,235 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.export;
+
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlElementWrapper;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlProperty;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlRootElement;
+import com.google.common.collect.Maps;
+import org.glukit.sync.api.ExerciseSession;
+import org.glukit.sync.api.FoodEvent;
+import org.glukit.sync.api.GlucoseRead;
+import org.glukit.sync.api.InsulinInjection;
+import org.glukit.sync.api.SyncData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.threeten.bp.LocalDate;
+import org.threeten.bp.LocalDateTime;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static java.lang.String.format;
+
+/**
+ * Writes {@link SyncData} as one {@link XmlDataExporter} file per local calendar day, plus a manifest listing each
+ * day's file, record count and time range. Days get serialized in parallel on a fork-join pool.
+ *
+ * @author alexandre.normand
+ */
+class DayPartitionedXmlWriter {
+  private static Logger LOGGER = LoggerFactory.getLogger(DayPartitionedXmlWriter.class);
+
+  private final XmlDataExporter xmlDataExporter;
+  private final ForkJoinPool pool;
+
+  DayPartitionedXmlWriter(XmlDataExporter xmlDataExporter) {
+    this(xmlDataExporter, new ForkJoinPool());
+  }
+
+  DayPartitionedXmlWriter(XmlDataExporter xmlDataExporter, ForkJoinPool pool) {
+    this.xmlDataExporter = xmlDataExporter;
+    this.pool = pool;
+  }
+
+  /**
+   * Writes the partitions and then the manifest so that a manifest only ever lists complete files.
+   *
+   * @return the manifest that was written.
+   */
+  Manifest write(SyncData syncData, File outputDirectory, String baseName, CompressionCodec codec) {
+    List<DayPartition> partitions = partition(syncData);
+    Manifest manifest = new Manifest();
+    manifest.SerialNumber = syncData.getDeviceInfo().getSerialNumber();
+    manifest.UpdateTime = XmlDataExporter.dateTimeFormatter.format(syncData.getUpdateTime());
+
+    for (DayPartition partition : partitions) {
+      partition.file = new File(outputDirectory, format("%s-%s.xml%s", baseName, partition.day,
+              codec.getFileExtension()));
+      manifest.Partition.add(partition.toManifestEntry());
+    }
+
+    if (!partitions.isEmpty()) {
+      this.pool.invoke(new WritePartitionsTask(partitions, codec));
+    }
+    XmlDataExporter.writeXml(manifest, new File(outputDirectory, format("%s-manifest.xml", baseName)),
+            CompressionCodec.NONE);
+
+    LOGGER.info(format("Exported %d daily partitions to [%s]", partitions.size(), outputDirectory));
+    return manifest;
+  }
+
+  static List<DayPartition> partition(SyncData syncData) {
+    SortedMap<LocalDate, DayPartition> partitionsByDay = Maps.newTreeMap();
+    for (GlucoseRead glucoseRead : syncData.getGlucoseReads()) {
+      DayPartition partition = getPartition(partitionsByDay, glucoseRead.getLocalTime());
+      partition.glucoseReads.add(glucoseRead);
+      partition.include(glucoseRead.getLocalTime());
+    }
+    for (InsulinInjection injection : syncData.getInsulinInjections()) {
+      DayPartition partition = getPartition(partitionsByDay, injection.getEventLocalTime());
+      partition.insulinInjections.add(injection);
+      partition.include(injection.getEventLocalTime());
+    }
+    for (FoodEvent foodEvent : syncData.getFoodEvents()) {
+      DayPartition partition = getPartition(partitionsByDay, foodEvent.getEventLocalTime());
+      partition.foodEvents.add(foodEvent);
+      partition.include(foodEvent.getEventLocalTime());
+    }
+    for (ExerciseSession exerciseSession : syncData.getExerciseSessions()) {
+      DayPartition partition = getPartition(partitionsByDay, exerciseSession.getEventLocalTime());
+      partition.exerciseSessions.add(exerciseSession);
+      partition.include(exerciseSession.getEventLocalTime());
+    }
+
+    List<DayPartition> partitions = newArrayList(partitionsByDay.values());
+    for (DayPartition partition : partitions) {
+      partition.syncData = new SyncData(partition.glucoseReads, partition.insulinInjections, partition.foodEvents,
+              partition.exerciseSessions, syncData.getDeviceInfo(), syncData.getUpdateTime(), syncData.getSince());
+    }
+    return partitions;
+  }
+
+  private static DayPartition getPartition(Map<LocalDate, DayPartition> partitionsByDay, LocalDateTime localTime) {
+    LocalDate day = localTime.toLocalDate();
+    DayPartition partition = partitionsByDay.get(day);
+    if (partition == null) {
+      partition = new DayPartition(day);
+      partitionsByDay.put(day, partition);
+    }
+    return partition;
+  }
+
+  /**
+   * Splits the partitions in halves until each task has a single day to serialize.
+   */
+  private class WritePartitionsTask extends RecursiveAction {
+    private final List<DayPartition> partitions;
+    private final CompressionCodec codec;
+
+    private WritePartitionsTask(List<DayPartition> partitions, CompressionCodec codec) {
+      this.partitions = partitions;
+      this.codec = codec;
+    }
+
+    @Override
+    protected void compute() {
+      if (this.partitions.size() == 1) {
+        DayPartition partition = this.partitions.get(0);
+        XmlDataExporter.writeXml(xmlDataExporter.toPatient(partition.syncData), partition.file, this.codec);
+        return;
+      }
+
+      int middle = this.partitions.size() / 2;
+      invokeAll(new WritePartitionsTask(this.partitions.subList(0, middle), this.codec),
+              new WritePartitionsTask(this.partitions.subList(middle, this.partitions.size()), this.codec));
+    }
+  }
+
+  static class DayPartition {
+    private final LocalDate day;
+    private final List<GlucoseRead> glucoseReads = newArrayList();
+    private final List<InsulinInjection> insulinInjections = newArrayList();
+    private final List<FoodEvent> foodEvents = newArrayList();
+    private final List<ExerciseSession> exerciseSessions = newArrayList();
+    private LocalDateTime firstRecordTime;
+    private LocalDateTime lastRecordTime;
+    private SyncData syncData;
+    private File file;
+
+    private DayPartition(LocalDate day) {
+      this.day = day;
+    }
+
+    private void include(LocalDateTime localTime) {
+      if (this.firstRecordTime == null || localTime.isBefore(this.firstRecordTime)) {
+        this.firstRecordTime = localTime;
+      }
+      if (this.lastRecordTime == null || localTime.isAfter(this.lastRecordTime)) {
+        this.lastRecordTime = localTime;
+      }
+    }
+
+    LocalDate getDay() {
+      return day;
+    }
+
+    SyncData getSyncData() {
+      return syncData;
+    }
+
+    private Manifest.Entry toManifestEntry() {
+      Manifest.Entry entry = new Manifest.Entry();
+      entry.Day = this.day.toString();
+      entry.FileName = this.file.getName();
+      entry.GlucoseReadCount = this.glucoseReads.size();
+      entry.EventCount = this.insulinInjections.size() + this.foodEvents.size() + this.exerciseSessions.size();
+      entry.FirstRecordTime = XmlDataExporter.dateTimeFormatter.format(this.firstRecordTime);
+      entry.LastRecordTime = XmlDataExporter.dateTimeFormatter.format(this.lastRecordTime);
+      return entry;
+    }
+  }
+
+  @JacksonXmlRootElement(localName = "Manifest")
+  public static final class Manifest {
+    @JacksonXmlProperty(isAttribute = true)
+    public String SerialNumber = "";
+    @JacksonXmlProperty(isAttribute = true)
+    public String UpdateTime = "";
+
+    @JacksonXmlElementWrapper(localName = "Partitions")
+    public List<Entry> Partition = newArrayList();
+
+    public static final class Entry {
+      @JacksonXmlProperty(isAttribute = true)
+      public String Day = "";
+      @JacksonXmlProperty(isAttribute = true)
+      public String FileName = "";
+      @JacksonXmlProperty(isAttribute = true)
+      public int GlucoseReadCount;
+      @JacksonXmlProperty(isAttribute = true)
+      public int EventCount;
+      @JacksonXmlProperty(isAttribute = true)
+      public String FirstRecordTime = "";
+      @JacksonXmlProperty(isAttribute = true)
+      public String LastRecordTime = "";
+    }
+  }
+}
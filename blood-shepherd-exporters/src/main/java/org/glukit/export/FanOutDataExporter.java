@@ -0,0 +1,292 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.export;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Function;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Ordering;
+import com.google.common.util.concurrent.SimpleTimeLimiter;
+import com.google.common.util.concurrent.TimeLimiter;
+import org.glukit.sync.api.BloodShepherdProperties;
+import org.glukit.sync.api.DataExporter;
+import org.glukit.sync.api.SyncData;
+import org.glukit.sync.api.ThreadModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Lists.transform;
+import static java.lang.String.format;
+import static org.glukit.sync.api.BloodShepherdProperties.EXPORT_QUEUE_CAPACITY;
+import static org.glukit.sync.api.BloodShepherdProperties.EXPORT_TIMEOUT_SECONDS;
+import static org.glukit.sync.api.BloodShepherdProperties.getIntProperty;
+
+/**
+ * {@link DataExporter} that hands the same {@link SyncData} to several exporters. Each exporter gets its own bounded
+ * queue and worker thread so a slow or failing exporter never delays the others or the caller: {@link #exportData}
+ * only enqueues and returns. When an exporter's queue is full, {@link #exportData} waits for room up to the export
+ * timeout and then fails so that the sync isn't checkpointed past data that was never handed to that exporter.
+ *
+ * @author alexandre.normand
+ */
+public class FanOutDataExporter implements DataExporter, Closeable {
+  private static Logger LOGGER = LoggerFactory.getLogger(FanOutDataExporter.class);
+
+  static final int DEFAULT_QUEUE_CAPACITY = 4;
+  static final long DEFAULT_TIMEOUT_SECONDS = 300;
+
+  private final List<ExportLane> lanes;
+  private final ExecutorService timeLimiterExecutor;
+  private final TimeLimiter timeLimiter;
+  private final long timeoutInSeconds;
+  private final long queueTimeoutMillis;
+  private final ThreadModel threadModel;
+
+  public FanOutDataExporter(List<DataExporter> exporters, Properties properties) {
+    this(exporters, getIntProperty(properties, EXPORT_QUEUE_CAPACITY, DEFAULT_QUEUE_CAPACITY),
+            getIntProperty(properties, EXPORT_TIMEOUT_SECONDS, (int) DEFAULT_TIMEOUT_SECONDS),
+            ThreadModel.fromProperties(properties));
+  }
+
+  public FanOutDataExporter(List<DataExporter> exporters, int queueCapacity, long timeoutInSeconds) {
+    this(exporters, queueCapacity, timeoutInSeconds, ThreadModel.PLATFORM);
+  }
+
+  public FanOutDataExporter(List<DataExporter> exporters, int queueCapacity, long timeoutInSeconds,
+                            ThreadModel threadModel) {
+    this(exporters, queueCapacity, timeoutInSeconds, threadModel, TimeUnit.SECONDS.toMillis(timeoutInSeconds));
+  }
+
+  @VisibleForTesting
+  FanOutDataExporter(List<DataExporter> exporters, int queueCapacity, long timeoutInSeconds, ThreadModel threadModel,
+                     long queueTimeoutMillis) {
+    checkArgument(!exporters.isEmpty(), "At least one exporter is required");
+    checkArgument(queueCapacity > 0, "queueCapacity must be positive, was [%s]", queueCapacity);
+
+    this.timeoutInSeconds = timeoutInSeconds;
+    this.queueTimeoutMillis = queueTimeoutMillis;
+    this.threadModel = threadModel;
+    this.timeLimiterExecutor = Executors.newCachedThreadPool(threadModel.newThreadFactory("export-timed-%d"));
+    this.timeLimiter = new SimpleTimeLimiter(this.timeLimiterExecutor);
+
+    this.lanes = newArrayList();
+    List<String> exporterNames = exporterNamesOf(exporters);
+    for (int i = 0; i < exporters.size(); i++) {
+      this.lanes.add(new ExportLane(exporters.get(i), exporterNames.get(i), queueCapacity));
+    }
+  }
+
+  /**
+   * @throws IllegalStateException if an exporter's queue stayed full, the other exporters might still export the
+   * data.
+   */
+  @Override
+  public void exportData(SyncData syncData) {
+    SyncData snapshot = snapshotOf(syncData);
+    List<String> rejectingExporters = newArrayList();
+    for (ExportLane lane : this.lanes) {
+      if (!lane.submit(snapshot)) {
+        rejectingExporters.add(lane.name);
+      }
+    }
+
+    if (!rejectingExporters.isEmpty()) {
+      throw new IllegalStateException(format("Export queue of %s still full after %d ms, data updated at %s "
+              + "wasn't exported", rejectingExporters, this.queueTimeoutMillis, syncData.getUpdateTime()));
+    }
+  }
+
+  /**
+   * Stops accepting new exports and waits for the queued ones to complete, giving each lane at most the export
+   * timeout to drain.
+   */
+  @Override
+  public void close() {
+    for (ExportLane lane : this.lanes) {
+      lane.executor.shutdown();
+    }
+
+    for (ExportLane lane : this.lanes) {
+      try {
+        if (!lane.executor.awaitTermination(this.timeoutInSeconds, TimeUnit.SECONDS)) {
+          LOGGER.warn(format("Exporter [%s] still busy after %d seconds, abandoning its queued exports",
+                  lane.name, this.timeoutInSeconds));
+          lane.executor.shutdownNow();
+          lane.executor.awaitTermination(1, TimeUnit.SECONDS);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        lane.executor.shutdownNow();
+      }
+    }
+    this.timeLimiterExecutor.shutdownNow();
+  }
+
+  public List<String> getExporterNames() {
+    return transform(this.lanes, new Function<ExportLane, String>() {
+      @Override
+      public String apply(ExportLane lane) {
+        return lane.name;
+      }
+    });
+  }
+
+  /**
+   * @return the number of exports the given exporter didn't get because its queue stayed full.
+   */
+  public long getDroppedCount(String exporterName) {
+    return getLane(exporterName).dropped.get();
+  }
+
+  /**
+   * @return the number of exports that failed or timed out for the given exporter.
+   */
+  public long getFailedCount(String exporterName) {
+    return getLane(exporterName).failed.get();
+  }
+
+  /**
+   * @return the number of exports that completed successfully for the given exporter.
+   */
+  public long getCompletedCount(String exporterName) {
+    return getLane(exporterName).completed.get();
+  }
+
+  /**
+   * @return the name of each exporter: its class name, followed by its position in the list when several exporters
+   * are of the same class (two HTTP endpoints, for example) so that each can be told apart.
+   */
+  public static List<String> exporterNamesOf(List<DataExporter> exporters) {
+    Multiset<String> classNames = HashMultiset.create();
+    for (DataExporter exporter : exporters) {
+      classNames.add(exporter.getClass().getSimpleName());
+    }
+
+    List<String> exporterNames = newArrayList();
+    for (int i = 0; i < exporters.size(); i++) {
+      String className = exporters.get(i).getClass().getSimpleName();
+      exporterNames.add(classNames.count(className) > 1 ? format("%s-%d", className, i) : className);
+    }
+    return exporterNames;
+  }
+
+  private ExportLane getLane(String exporterName) {
+    for (ExportLane lane : this.lanes) {
+      if (lane.name.equals(exporterName)) {
+        return lane;
+      }
+    }
+    throw new IllegalArgumentException(format("No exporter named [%s]", exporterName));
+  }
+
+  /**
+   * Prepares the data once for all exporters: the lists get sorted and frozen so that exporters running concurrently
+   * can share them safely.
+   */
+  static SyncData snapshotOf(SyncData syncData) {
+    return new SyncData(ImmutableList.copyOf(Ordering.natural().sortedCopy(syncData.getGlucoseReads())),
+            ImmutableList.copyOf(Ordering.natural().sortedCopy(syncData.getInsulinInjections())),
+            ImmutableList.copyOf(Ordering.natural().sortedCopy(syncData.getFoodEvents())),
+            ImmutableList.copyOf(Ordering.natural().sortedCopy(syncData.getExerciseSessions())),
+            syncData.getDeviceInfo(), syncData.getUpdateTime(), syncData.getSince());
+  }
+
+  private class ExportLane {
+    private final DataExporter exporter;
+    private final String name;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+
+    private ExportLane(DataExporter exporter, String name, int queueCapacity) {
+      this.exporter = exporter;
+      this.name = name;
+      this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+              new ArrayBlockingQueue<Runnable>(queueCapacity),
+              threadModel.newThreadFactory("export-" + this.name + "-%d"));
+      // Exports are put on the queue directly to wait for room, the worker has to be there to take them
+      this.executor.prestartAllCoreThreads();
+    }
+
+    /**
+     * @return {@code false} if the queue stayed full or the lane is closed.
+     */
+    private boolean submit(final SyncData syncData) {
+      Runnable export = new Runnable() {
+        @Override
+        public void run() {
+          export(syncData);
+        }
+      };
+
+      boolean queued = false;
+      try {
+        queued = !this.executor.isShutdown()
+                && this.executor.getQueue().offer(export, queueTimeoutMillis, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (!queued) {
+        this.dropped.incrementAndGet();
+        LOGGER.warn(format("Export queue of [%s] still full, data updated at %s wasn't exported", this.name,
+                syncData.getUpdateTime()));
+      }
+      return queued;
+    }
+
+    private void export(final SyncData syncData) {
+      try {
+        timeLimiter.callWithTimeout(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            exporter.exportData(syncData);
+            return null;
+          }
+        }, timeoutInSeconds, TimeUnit.SECONDS, true);
+        this.completed.incrementAndGet();
+      } catch (Exception e) {
+        this.failed.incrementAndGet();
+        LOGGER.error(format("Exporter [%s] failed to export data updated at %s", this.name,
+                syncData.getUpdateTime()), e);
+      }
+    }
+  }
+}
@@ -0,0 +1,617 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.export;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
+import com.google.common.base.Strings;
+import com.google.common.collect.ComparisonChain;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.Table;
+import com.google.common.collect.TreeRangeSet;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.inject.Inject;
+import org.apache.commons.lang3.StringUtils;
+import org.glukit.sync.api.BloodShepherdProperties;
+import org.glukit.sync.api.DataExporter;
+import org.glukit.sync.api.ExerciseSession;
+import org.glukit.sync.api.FoodEvent;
+import org.glukit.sync.api.GlucoseRead;
+import org.glukit.sync.api.InsulinInjection;
+import org.glukit.sync.api.SyncData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.threeten.bp.Instant;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Sets.newTreeSet;
+import static java.lang.String.format;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static org.glukit.sync.api.BloodShepherdProperties.HTTP_PUSH_API_SECRET;
+import static org.glukit.sync.api.BloodShepherdProperties.HTTP_PUSH_BATCH_SIZE;
+import static org.glukit.sync.api.BloodShepherdProperties.HTTP_PUSH_MAX_PENDING;
+import static org.glukit.sync.api.BloodShepherdProperties.HTTP_PUSH_STATE_PATH;
+import static org.glukit.sync.api.BloodShepherdProperties.HTTP_PUSH_URL;
+import static org.glukit.sync.api.BloodShepherdProperties.getIntProperty;
+
+/**
+ * Exports the data by POSTing it as gzipped JSON batches to an HTTP endpoint (a Nightscout-style API, for example).
+ * <p/>
+ * The exporter remembers the time of the latest record acknowledged by the server for each kind of record (its
+ * high-water mark) and never sends older records again. Marks are kept per receiver serial number so that several
+ * receivers can be exported without one hiding the older records of another. The chunks of a sync that has a
+ * {@link SyncData#getSince() start} (a backfill, most recent first) are checked against that start instead so that
+ * the older chunks aren't hidden by the newer ones sent before them. The time ranges acknowledged during a backfill
+ * are remembered as well so that a chunk exported again, or a backfill run again after being interrupted, doesn't
+ * send the same records twice. Records that couldn't be delivered stay in a bounded retry buffer and go out with the
+ * next export. Once the buffer is full, the oldest records are dropped first.
+ *
+ * @author alexandre.normand
+ */
+public class HttpPushDataExporter implements DataExporter {
+  private static Logger LOGGER = LoggerFactory.getLogger(HttpPushDataExporter.class);
+
+  static final int DEFAULT_BATCH_SIZE = 500;
+  static final int DEFAULT_MAX_PENDING = 20000;
+  static final int MAX_ATTEMPTS = 4;
+  static final long INITIAL_RETRY_DELAY_MILLIS = 1000;
+  static final long MAX_RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+  private static final int CONNECT_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(15);
+  private static final int READ_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(60);
+  private static final String NO_DEVICE = "";
+  private static final String BACKFILL_SUFFIX = ".backfill";
+  private static final String DEFAULT_STATE_PATH =
+          new File(System.getProperty("user.home"), ".blood-shepherd/http-push.properties").getPath();
+
+  private final URL endpoint;
+  private final String hashedApiSecret;
+  private final int batchSize;
+  private final int maxPending;
+  private final long initialRetryDelayMillis;
+  private final File stateFile;
+  private final ObjectMapper objectMapper = new ObjectMapper();
+  /**
+   * High-water marks by device serial number, {@link #NO_DEVICE} for records of unknown devices and for the marks
+   * saved before they were kept per device.
+   */
+  private final Table<String, RecordType, Instant> highWaterMarks = HashBasedTable.create();
+  /**
+   * What was acknowledged of the backfill each device is going through, by device serial number like the marks.
+   */
+  private final Table<String, RecordType, BackfillProgress> backfills = HashBasedTable.create();
+  private final NavigableSet<PushRecord> pendingRecords = newTreeSet();
+  private long droppedCount = 0;
+  private long rejectedCount = 0;
+
+  @Inject
+  public HttpPushDataExporter(BloodShepherdProperties properties) {
+    this(properties, INITIAL_RETRY_DELAY_MILLIS);
+  }
+
+  @VisibleForTesting
+  HttpPushDataExporter(Properties properties, long initialRetryDelayMillis) {
+    String url = properties.getProperty(HTTP_PUSH_URL);
+    checkArgument(StringUtils.isNotBlank(url), "Missing %s in properties", HTTP_PUSH_URL);
+    try {
+      this.endpoint = new URL(url);
+    } catch (MalformedURLException e) {
+      throw new IllegalArgumentException(format("Invalid %s [%s]", HTTP_PUSH_URL, url), e);
+    }
+
+    String apiSecret = properties.getProperty(HTTP_PUSH_API_SECRET);
+    this.hashedApiSecret = StringUtils.isBlank(apiSecret) ? null :
+            Hashing.sha1().hashString(apiSecret, Charsets.UTF_8).toString();
+    this.batchSize = getIntProperty(properties, HTTP_PUSH_BATCH_SIZE, DEFAULT_BATCH_SIZE);
+    this.maxPending = getIntProperty(properties, HTTP_PUSH_MAX_PENDING, DEFAULT_MAX_PENDING);
+    checkArgument(this.batchSize > 0, "%s must be positive, was [%s]", HTTP_PUSH_BATCH_SIZE, this.batchSize);
+    checkArgument(this.maxPending >= this.batchSize, "%s must be at least %s", HTTP_PUSH_MAX_PENDING,
+            HTTP_PUSH_BATCH_SIZE);
+    this.initialRetryDelayMillis = initialRetryDelayMillis;
+    this.stateFile = new File(properties.getProperty(HTTP_PUSH_STATE_PATH, DEFAULT_STATE_PATH));
+    loadHighWaterMarks();
+  }
+
+  /**
+   * Sends every record newer than its high-water mark, or newer than the start of the backfill it's a chunk of and not
+   * yet acknowledged during that backfill. Throws if some records couldn't be delivered after all
+   * retries, in which case they stay buffered for the next export. Records the server rejects for good aren't kept:
+   * a rejected batch is sent again in halves, down to a record at a time, so that only the rejected records are
+   * dropped.
+   */
+  @Override
+  public synchronized void exportData(SyncData syncData) {
+    enqueue(syncData);
+
+    while (!this.pendingRecords.isEmpty()) {
+      List<PushRecord> batch = newArrayList();
+      Iterator<PushRecord> iterator = this.pendingRecords.iterator();
+      while (iterator.hasNext() && batch.size() < this.batchSize) {
+        batch.add(iterator.next());
+      }
+
+      try {
+        push(batch);
+      } catch (IOException e) {
+        throw new IllegalStateException(format("Could not push %d records to [%s], %d records still pending",
+                batch.size(), this.endpoint, this.pendingRecords.size()), e);
+      }
+    }
+  }
+
+  /**
+   * @return the time of the latest acknowledged record of the given type from any device or {@code null} if none was
+   * sent yet.
+   */
+  public synchronized Instant getHighWaterMark(RecordType recordType) {
+    Instant latest = null;
+    for (Instant highWaterMark : this.highWaterMarks.column(recordType).values()) {
+      if (latest == null || highWaterMark.isAfter(latest)) {
+        latest = highWaterMark;
+      }
+    }
+    return latest;
+  }
+
+  /**
+   * @return the time of the latest acknowledged record of the given type from that device or {@code null} if none
+   * was sent yet. Devices that haven't had any record of that type acknowledged get the mark saved before marks were
+   * kept per device.
+   */
+  public synchronized Instant getHighWaterMark(@Nullable String serialNumber, RecordType recordType) {
+    Instant highWaterMark = this.highWaterMarks.get(Strings.nullToEmpty(serialNumber), recordType);
+    return highWaterMark != null ? highWaterMark : this.highWaterMarks.get(NO_DEVICE, recordType);
+  }
+
+  public synchronized int getPendingCount() {
+    return this.pendingRecords.size();
+  }
+
+  /**
+   * @return the number of records dropped because the retry buffer was full.
+   */
+  public synchronized long getDroppedCount() {
+    return this.droppedCount;
+  }
+
+  /**
+   * @return the number of records dropped because the server rejected them.
+   */
+  public synchronized long getRejectedCount() {
+    return this.rejectedCount;
+  }
+
+  private void enqueue(SyncData syncData) {
+    String device = syncData.getDeviceInfo() == null ? NO_DEVICE
+            : Strings.nullToEmpty(syncData.getDeviceInfo().getSerialNumber());
+    if (syncData.getSince() == null && !this.backfills.row(device).isEmpty()) {
+      // Syncs only go back to exporting everything since their start once the backfill is over
+      this.backfills.row(device).clear();
+      saveHighWaterMarks();
+    }
+    for (GlucoseRead glucoseRead : syncData.getGlucoseReads()) {
+      Map<String, Object> document = newDocument(RecordType.GLUCOSE, glucoseRead.getInternalTime(), syncData);
+      document.put("localTime", glucoseRead.getLocalTime().toString());
+      document.put("value", glucoseRead.getValue());
+      document.put("unit", glucoseRead.getUnit().name());
+      enqueue(new PushRecord(device, RecordType.GLUCOSE, glucoseRead.getInternalTime(), document), syncData.getSince());
+    }
+
+    for (InsulinInjection injection : syncData.getInsulinInjections()) {
+      Map<String, Object> document = newDocument(RecordType.INSULIN, injection.getInternalTime(), syncData);
+      document.put("localTime", injection.getEventLocalTime().toString());
+      document.put("insulin", injection.getUnitValue());
+      document.put("insulinType", injection.getInsulinType().name());
+      document.put("insulinName", injection.getInsulinName());
+      enqueue(new PushRecord(device, RecordType.INSULIN, injection.getInternalTime(), document), syncData.getSince());
+    }
+
+    for (FoodEvent foodEvent : syncData.getFoodEvents()) {
+      Map<String, Object> document = newDocument(RecordType.FOOD, foodEvent.getInternalTime(), syncData);
+      document.put("localTime", foodEvent.getEventLocalTime().toString());
+      document.put("carbs", foodEvent.getCarbohydrates());
+      document.put("proteins", foodEvent.getProteins());
+      enqueue(new PushRecord(device, RecordType.FOOD, foodEvent.getInternalTime(), document), syncData.getSince());
+    }
+
+    for (ExerciseSession exerciseSession : syncData.getExerciseSessions()) {
+      Map<String, Object> document = newDocument(RecordType.EXERCISE, exerciseSession.getInternalTime(), syncData);
+      document.put("localTime", exerciseSession.getEventLocalTime().toString());
+      document.put("intensity", exerciseSession.getIntensity() == null ? null :
+              exerciseSession.getIntensity().name());
+      document.put("durationMinutes", exerciseSession.getDuration().toMinutes());
+      document.put("description", exerciseSession.getDescription());
+      enqueue(new PushRecord(device, RecordType.EXERCISE, exerciseSession.getInternalTime(), document),
+              syncData.getSince());
+    }
+
+    while (this.pendingRecords.size() > this.maxPending) {
+      PushRecord dropped = this.pendingRecords.pollFirst();
+      this.droppedCount++;
+      LOGGER.warn(format("Retry buffer full, dropping %s record from %s", dropped.recordType, dropped.time));
+    }
+  }
+
+  private void enqueue(PushRecord record, @Nullable Instant since) {
+    if (since == null) {
+      Instant highWaterMark = getHighWaterMark(record.device, record.recordType);
+      if (highWaterMark == null || record.time.isAfter(highWaterMark)) {
+        this.pendingRecords.add(record);
+      }
+      return;
+    }
+
+    record.since = since;
+    BackfillProgress backfill = this.backfills.get(record.device, record.recordType);
+    boolean acknowledged = backfill != null && backfill.since.equals(since)
+            && backfill.acknowledged.contains(record.time);
+    if (record.time.isAfter(since) && !acknowledged) {
+      this.pendingRecords.add(record);
+    }
+  }
+
+  private Map<String, Object> newDocument(RecordType recordType, Instant time, SyncData syncData) {
+    Map<String, Object> document = Maps.newLinkedHashMap();
+    document.put("type", recordType.getJsonName());
+    document.put("date", time.toEpochMilli());
+    document.put("dateString", time.toString());
+    if (syncData.getDeviceInfo() != null) {
+      document.put("device", syncData.getDeviceInfo().getSerialNumber());
+    }
+    return document;
+  }
+
+  /**
+   * Pushes the batch and acknowledges its records. When the server rejects it, its halves are pushed on their own
+   * and a single record that's rejected is dropped. It's acknowledged all the same so that it's not sent again.
+   */
+  private void push(List<PushRecord> batch) throws IOException {
+    try {
+      pushWithRetries(batch);
+    } catch (RejectedException e) {
+      if (batch.size() > 1) {
+        int half = batch.size() / 2;
+        push(newArrayList(batch.subList(0, half)));
+        push(newArrayList(batch.subList(half, batch.size())));
+        return;
+      }
+      PushRecord rejected = batch.get(0);
+      this.rejectedCount++;
+      LOGGER.error(format("[%s] rejected the %s record from %s of device [%s], dropping it: %s", this.endpoint,
+              rejected.recordType, rejected.time, rejected.device, rejected.document), e);
+    }
+    acknowledge(batch);
+  }
+
+  private void pushWithRetries(List<PushRecord> batch) throws IOException {
+    List<Map<String, Object>> documents = newArrayList();
+    for (PushRecord record : batch) {
+      documents.add(record.document);
+    }
+    byte[] payload = gzip(this.objectMapper.writeValueAsBytes(documents));
+
+    long retryDelay = this.initialRetryDelayMillis;
+    for (int attempt = 1; ; attempt++) {
+      try {
+        post(payload);
+        LOGGER.info(format("Pushed %d records (%d compressed bytes) to [%s]", batch.size(), payload.length,
+                this.endpoint));
+        return;
+      } catch (RetryableException e) {
+        if (attempt >= MAX_ATTEMPTS) {
+          throw e;
+        }
+        LOGGER.warn(format("Attempt %d to push to [%s] failed, retrying in %d ms: %s", attempt, this.endpoint,
+                retryDelay, e.getMessage()));
+        sleep(retryDelay);
+        retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY_MILLIS);
+      }
+    }
+  }
+
+  /**
+   * Posts the payload and reads the whole response so that the connection goes back to the keep-alive pool.
+   */
+  private void post(byte[] payload) throws IOException {
+    HttpURLConnection connection;
+    int responseCode;
+    try {
+      connection = (HttpURLConnection) this.endpoint.openConnection();
+      connection.setRequestMethod("POST");
+      connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+      connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+      connection.setDoOutput(true);
+      connection.setFixedLengthStreamingMode(payload.length);
+      connection.setRequestProperty("Content-Type", "application/json");
+      connection.setRequestProperty("Content-Encoding", "gzip");
+      if (this.hashedApiSecret != null) {
+        connection.setRequestProperty("api-secret", this.hashedApiSecret);
+      }
+
+      OutputStream outputStream = connection.getOutputStream();
+      try {
+        outputStream.write(payload);
+      } finally {
+        outputStream.close();
+      }
+      responseCode = connection.getResponseCode();
+    } catch (IOException e) {
+      throw new RetryableException(e.getMessage(), e);
+    }
+
+    InputStream responseStream = responseCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
+    if (responseStream != null) {
+      try {
+        ByteStreams.toByteArray(responseStream);
+      } finally {
+        responseStream.close();
+      }
+    }
+
+    if (responseCode >= 200 && responseCode < 300) {
+      return;
+    }
+    if (responseCode >= 500 || responseCode == 408 || responseCode == 429) {
+      throw new RetryableException(format("Server responded with %d", responseCode), null);
+    }
+    throw new RejectedException(format("Server rejected the records with %d", responseCode));
+  }
+
+  private void acknowledge(List<PushRecord> batch) {
+    Table<String, RecordType, Range<Instant>> backfillRanges = HashBasedTable.create();
+    for (PushRecord record : batch) {
+      this.pendingRecords.remove(record);
+      Instant highWaterMark = this.highWaterMarks.get(record.device, record.recordType);
+      if (highWaterMark == null || record.time.isAfter(highWaterMark)) {
+        this.highWaterMarks.put(record.device, record.recordType, record.time);
+      }
+
+      if (record.since != null) {
+        BackfillProgress backfill = this.backfills.get(record.device, record.recordType);
+        if (backfill == null || !backfill.since.equals(record.since)) {
+          this.backfills.put(record.device, record.recordType, new BackfillProgress(record.since));
+        }
+        // The batch holds every pending record between its first and last ones
+        Range<Instant> range = backfillRanges.get(record.device, record.recordType);
+        backfillRanges.put(record.device, record.recordType,
+                range == null ? Range.singleton(record.time) : range.span(Range.singleton(record.time)));
+      }
+    }
+
+    for (Table.Cell<String, RecordType, Range<Instant>> cell : backfillRanges.cellSet()) {
+      this.backfills.get(cell.getRowKey(), cell.getColumnKey()).acknowledged.add(cell.getValue());
+    }
+    saveHighWaterMarks();
+  }
+
+  private void loadHighWaterMarks() {
+    if (!this.stateFile.exists()) {
+      return;
+    }
+
+    Properties state = new Properties();
+    try {
+      InputStream inputStream = new FileInputStream(this.stateFile);
+      try {
+        state.load(inputStream);
+      } finally {
+        inputStream.close();
+      }
+    } catch (IOException e) {
+      throw Throwables.propagate(e);
+    }
+
+    // Keys are <serial number>.<record type>, or only the record type for marks not tied to a device, followed by
+    // .backfill for the progress of a backfill
+    for (String key : state.stringPropertyNames()) {
+      boolean backfill = key.endsWith(BACKFILL_SUFFIX);
+      String markKey = backfill ? key.substring(0, key.length() - BACKFILL_SUFFIX.length()) : key;
+      int separator = markKey.lastIndexOf('.');
+      String device = separator < 0 ? NO_DEVICE : markKey.substring(0, separator);
+      try {
+        RecordType recordType = RecordType.valueOf(markKey.substring(separator + 1));
+        if (backfill) {
+          this.backfills.put(device, recordType, BackfillProgress.fromProperty(state.getProperty(key)));
+        } else {
+          this.highWaterMarks.put(device, recordType, Instant.parse(state.getProperty(key)));
+        }
+      } catch (RuntimeException e) {
+        LOGGER.warn(format("Ignoring unknown high-water mark [%s]", key));
+      }
+    }
+  }
+
+  private void saveHighWaterMarks() {
+    Properties state = new Properties();
+    for (Table.Cell<String, RecordType, Instant> cell : this.highWaterMarks.cellSet()) {
+      String key = NO_DEVICE.equals(cell.getRowKey()) ? cell.getColumnKey().name()
+              : format("%s.%s", cell.getRowKey(), cell.getColumnKey().name());
+      state.setProperty(key, cell.getValue().toString());
+    }
+    for (Table.Cell<String, RecordType, BackfillProgress> cell : this.backfills.cellSet()) {
+      String key = NO_DEVICE.equals(cell.getRowKey()) ? cell.getColumnKey().name()
+              : format("%s.%s", cell.getRowKey(), cell.getColumnKey().name());
+      state.setProperty(key + BACKFILL_SUFFIX, cell.getValue().toProperty());
+    }
+
+    File parent = this.stateFile.getAbsoluteFile().getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      throw new IllegalStateException(format("Can't create directory [%s]", parent));
+    }
+    File temporaryFile = new File(this.stateFile.getPath() + ".tmp");
+    try {
+      OutputStream outputStream = new FileOutputStream(temporaryFile);
+      try {
+        state.store(outputStream, "blood-shepherd http push high-water marks");
+      } finally {
+        outputStream.close();
+      }
+      java.nio.file.Files.move(temporaryFile.toPath(), this.stateFile.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  private static byte[] gzip(byte[] data) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4);
+    GZIPOutputStream gzipOutputStream = new GZIPOutputStream(bytes);
+    try {
+      gzipOutputStream.write(data);
+    } finally {
+      gzipOutputStream.close();
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void sleep(long millis) throws IOException {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting to retry", e);
+    }
+  }
+
+  public static enum RecordType {
+    GLUCOSE("sgv"), INSULIN("insulin"), FOOD("food"), EXERCISE("exercise");
+
+    private final String jsonName;
+
+    RecordType(String jsonName) {
+      this.jsonName = jsonName;
+    }
+
+    public String getJsonName() {
+      return jsonName;
+    }
+  }
+
+  private static class PushRecord implements Comparable<PushRecord> {
+    private final String device;
+    private final RecordType recordType;
+    private final Instant time;
+    private final Map<String, Object> document;
+    /**
+     * Tells apart records of the same type and device recorded in the same second, like two user events.
+     */
+    private final String contents;
+    /**
+     * The start of the backfill the record is part of, if any.
+     */
+    private Instant since;
+
+    private PushRecord(String device, RecordType recordType, Instant time, Map<String, Object> document) {
+      this.device = checkNotNull(device);
+      this.recordType = checkNotNull(recordType);
+      this.time = checkNotNull(time);
+      this.document = document;
+      this.contents = document.toString();
+    }
+
+    @Override
+    public int compareTo(PushRecord other) {
+      return ComparisonChain.start()
+              .compare(this.time, other.time)
+              .compare(this.recordType, other.recordType)
+              .compare(this.device, other.device)
+              .compare(this.contents, other.contents)
+              .result();
+    }
+  }
+
+  /**
+   * The start of a backfill and the time ranges of the records acknowledged since it started.
+   */
+  private static class BackfillProgress {
+    private final Instant since;
+    private final RangeSet<Instant> acknowledged = TreeRangeSet.create();
+
+    private BackfillProgress(Instant since) {
+      this.since = checkNotNull(since);
+    }
+
+    /**
+     * @return the progress as {@code <since> <first>/<last> <first>/<last>...}
+     */
+    private String toProperty() {
+      List<String> fields = newArrayList(this.since.toString());
+      for (Range<Instant> range : this.acknowledged.asRanges()) {
+        fields.add(range.lowerEndpoint() + "/" + range.upperEndpoint());
+      }
+      return Joiner.on(' ').join(fields);
+    }
+
+    private static BackfillProgress fromProperty(String value) {
+      Iterator<String> fields = Splitter.on(' ').omitEmptyStrings().split(value).iterator();
+      BackfillProgress progress = new BackfillProgress(Instant.parse(fields.next()));
+      while (fields.hasNext()) {
+        List<String> endpoints = Splitter.on('/').splitToList(fields.next());
+        progress.acknowledged.add(Range.closed(Instant.parse(endpoints.get(0)), Instant.parse(endpoints.get(1))));
+      }
+      return progress;
+    }
+  }
+
+  private static class RetryableException extends IOException {
+    private RetryableException(String message, Throwable cause) {
+      super(message, cause);
+    }
+  }
+
+  private static class RejectedException extends IOException {
+    private RejectedException(String message) {
+      super(message);
+    }
+  }
+}
@@ -8,6 +8,7 @@ import com.fasterxml.jackson.dataformat.xml.ser.ToXmlGenerator;
 import com.google.common.base.Function;
 import com.google.common.base.Throwables;
 import com.google.common.collect.Collections2;
+import com.google.common.collect.Ordering;
 import org.apache.commons.lang3.StringUtils;
 import org.glukit.sync.api.*;
 import org.threeten.bp.ZoneId;
@@ -19,11 +20,13 @@ import javax.inject.Inject;
 import java.io.*;
 import java.util.List;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.collect.Lists.newArrayList;
 import static java.lang.String.format;
 import static java.util.Collections.sort;
+import static org.glukit.sync.api.BloodShepherdProperties.EXPORT_PARTITIONING;
 import static org.glukit.sync.api.BloodShepherdProperties.OUTPUT_PATH;
 
 /**
@@ -32,9 +35,14 @@ import static org.glukit.sync.api.BloodShepherdProperties.OUTPUT_PATH;
  * @author alexandre.normand
  */
 public class XmlDataExporter implements DataExporter {
-  private static DateTimeFormatter dateTimeFormatter;
+  static DateTimeFormatter dateTimeFormatter;
+
+  static final String PARTITION_NONE = "none";
+  static final String PARTITION_BY_DAY = "day";
+  private static final ObjectWriter XML_WRITER = new XmlMapper().writerWithDefaultPrettyPrinter();
 
   private BloodShepherdProperties properties;
+  private DayPartitionedXmlWriter partitionWriter;
 
   @Inject
   public XmlDataExporter(BloodShepherdProperties properties) {
@@ -126,13 +134,44 @@ public class XmlDataExporter implements DataExporter {
     checkState(outputDirectory.exists(), "Invalid destination: %s doesn't exist", outputPath);
     checkState(outputDirectory.isDirectory(), "Invalid destination: %s is not a directory", outputPath);
 
-    XmlMapper xmlMapper = new XmlMapper();
-    ObjectWriter objectWriter = xmlMapper.writerWithDefaultPrettyPrinter();
+    CompressionCodec codec = CompressionCodec.fromProperties(this.properties);
+    String baseName = claimBaseName(outputDirectory, syncData.getUpdateTime().toEpochMilli(), codec);
+    if (isPartitionedByDay()) {
+      getPartitionWriter().write(syncData, outputDirectory, baseName, codec);
+    } else {
+      writeXml(toPatient(syncData), new File(outputDirectory, format("%s.xml%s", baseName,
+              codec.getFileExtension())), codec);
+    }
+  }
+
+  /**
+   * Finds a base name that no other export uses yet by creating its file. Exports updated in the same millisecond, like the
+   * chunks of a backfill, get a sequence number after the update time.
+   */
+  private String claimBaseName(File outputDirectory, long updateTimeMillis, CompressionCodec codec) {
+    String timeBaseName = format("blood-shepherd-export-%s", updateTimeMillis);
+    String baseName = timeBaseName;
+    try {
+      for (int sequence = 1; !claimedFile(outputDirectory, baseName, codec).createNewFile(); sequence++) {
+        baseName = format("%s-%d", timeBaseName, sequence);
+      }
+    } catch (IOException e) {
+      throw Throwables.propagate(e);
+    }
+    return baseName;
+  }
 
+  private File claimedFile(File outputDirectory, String baseName, CompressionCodec codec) {
+    if (isPartitionedByDay()) {
+      return new File(outputDirectory, format("%s-manifest.xml", baseName));
+    }
+    return new File(outputDirectory, format("%s.xml%s", baseName, codec.getFileExtension()));
+  }
+
+  Patient toPatient(SyncData syncData) {
     Patient patient = new Patient();
     patient.SerialNumber = syncData.getDeviceInfo().getSerialNumber();
-    sort(syncData.getGlucoseReads());
-    patient.Glucose = newArrayList(Collections2.transform(syncData.getGlucoseReads(),
+    patient.Glucose = newArrayList(Collections2.transform(Ordering.natural().sortedCopy(syncData.getGlucoseReads()),
             GLUCOSE_READ_TO_TIMESTAMPED_VALUE));
     List<EventMarker> eventMarkers = newArrayList(
             Collections2.transform(syncData.getExerciseSessions(), EXERCISE_SESSION_TO_EVENT_MARKER));
@@ -140,19 +179,37 @@ public class XmlDataExporter implements DataExporter {
     eventMarkers.addAll(Collections2.transform(syncData.getInsulinInjections(), INSULIN_INJECTION_TO_EVENT_MARKER));
     sort(eventMarkers);
     patient.Event = eventMarkers;
+    return patient;
+  }
 
+  static void writeXml(Object value, File file, CompressionCodec codec) {
     try {
-      OutputStream outputStream = getOutputStream(outputDirectory, syncData);
-      objectWriter.writeValue(outputStream, patient);
-      outputStream.close();
+      OutputStream outputStream = codec.openForWriting(file);
+      try {
+        XML_WRITER.writeValue(outputStream, value);
+      } finally {
+        outputStream.close();
+      }
     } catch (IOException e) {
       throw Throwables.propagate(e);
     }
   }
 
-  private OutputStream getOutputStream(File destinationDirectory, SyncData syncData) throws FileNotFoundException {
-    String fileName = format("blood-shepherd-export-%s.xml", syncData.getUpdateTime().toEpochMilli());
-    return new FileOutputStream(new File(destinationDirectory, fileName), false);
+  private boolean isPartitionedByDay() {
+    String partitioning = this.properties.getProperty(EXPORT_PARTITIONING, PARTITION_NONE);
+    if (PARTITION_BY_DAY.equalsIgnoreCase(partitioning.trim())) {
+      return true;
+    }
+    checkArgument(PARTITION_NONE.equalsIgnoreCase(partitioning.trim()), "Invalid %s [%s], should be one of %s, %s",
+            EXPORT_PARTITIONING, partitioning, PARTITION_NONE, PARTITION_BY_DAY);
+    return false;
+  }
+
+  private synchronized DayPartitionedXmlWriter getPartitionWriter() {
+    if (this.partitionWriter == null) {
+      this.partitionWriter = new DayPartitionedXmlWriter(this);
+    }
+    return this.partitionWriter;
   }
 
   public static final class Patient {
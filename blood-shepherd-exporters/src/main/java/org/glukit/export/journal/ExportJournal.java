@@ -0,0 +1,386 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.export.journal;
+
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static java.lang.String.format;
+
+/**
+ * Append-only log of records split in segment files. Each segment is named after the offset of its first record and
+ * each record is written as {@code [length][crc32][bytes]}. Offsets are global byte positions so a record's offset
+ * never changes, even after older segments get deleted.
+ * <p/>
+ * {@link #append(byte[])} only returns once the record is on disk. Appenders that arrive while an fsync is in
+ * progress get covered by a single fsync afterwards (group commit) rather than one each.
+ *
+ * @author alexandre.normand
+ */
+public class ExportJournal implements Closeable {
+  private static Logger LOGGER = LoggerFactory.getLogger(ExportJournal.class);
+
+  public static final long DEFAULT_MAX_SEGMENT_BYTES = 16 * 1024 * 1024;
+  static final int RECORD_HEADER_SIZE = 8;
+  private static final String SEGMENT_SUFFIX = ".log";
+
+  private final File directory;
+  private final long maxSegmentBytes;
+  private final NavigableMap<Long, File> segments = Maps.newTreeMap();
+  private final Object syncLock = new Object();
+
+  private FileChannel activeChannel;
+  private long activeBaseOffset;
+  private long writeOffset;
+  private volatile long syncedOffset;
+  private boolean closed = false;
+
+  public ExportJournal(File directory) throws IOException {
+    this(directory, DEFAULT_MAX_SEGMENT_BYTES);
+  }
+
+  public ExportJournal(File directory, long maxSegmentBytes) throws IOException {
+    checkArgument(maxSegmentBytes > RECORD_HEADER_SIZE, "maxSegmentBytes too small: [%s]", maxSegmentBytes);
+    this.directory = checkNotNull(directory, "directory");
+    this.maxSegmentBytes = maxSegmentBytes;
+
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException(format("Can't create journal directory [%s]", directory.getAbsolutePath()));
+    }
+
+    File[] segmentFiles = directory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+    for (File segmentFile : segmentFiles) {
+      String name = segmentFile.getName();
+      this.segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), segmentFile);
+    }
+
+    if (this.segments.isEmpty()) {
+      openSegment(0L);
+    } else {
+      recoverLastSegment();
+    }
+    this.syncedOffset = this.writeOffset;
+  }
+
+  /**
+   * Appends a record and waits until it's durably written.
+   *
+   * @return the offset of the appended record.
+   */
+  public long append(byte[] data) throws IOException {
+    long offset;
+    long endOffset;
+    synchronized (this) {
+      checkState(!this.closed, "Journal is closed");
+      int recordSize = RECORD_HEADER_SIZE + data.length;
+      long segmentSize = this.writeOffset - this.activeBaseOffset;
+      if (segmentSize > 0 && segmentSize + recordSize > this.maxSegmentBytes) {
+        rollSegment();
+      }
+
+      CRC32 crc = new CRC32();
+      crc.update(data);
+      ByteBuffer buffer = ByteBuffer.allocate(recordSize);
+      buffer.putInt(data.length);
+      buffer.putInt((int) crc.getValue());
+      buffer.put(data);
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        this.activeChannel.write(buffer);
+      }
+
+      offset = this.writeOffset;
+      this.writeOffset += recordSize;
+      endOffset = this.writeOffset;
+    }
+
+    sync(endOffset);
+    return offset;
+  }
+
+  /**
+   * Reads the record at the given offset.
+   *
+   * @return the record or {@code null} if there's no durable record at that offset yet.
+   */
+  public JournalEntry read(long offset) throws IOException {
+    File segmentFile;
+    long baseOffset;
+    synchronized (this) {
+      long startOffset = this.segments.firstKey();
+      checkArgument(offset >= startOffset, "Offset [%s] was already deleted, journal starts at [%s]", offset,
+              startOffset);
+      if (offset >= this.syncedOffset) {
+        return null;
+      }
+      Map.Entry<Long, File> segment = this.segments.floorEntry(offset);
+      baseOffset = segment.getKey();
+      segmentFile = segment.getValue();
+    }
+
+    RandomAccessFile file = new RandomAccessFile(segmentFile, "r");
+    try {
+      file.seek(offset - baseOffset);
+      int length = file.readInt();
+      int expectedCrc = file.readInt();
+      byte[] data = new byte[length];
+      file.readFully(data);
+
+      CRC32 crc = new CRC32();
+      crc.update(data);
+      if ((int) crc.getValue() != expectedCrc) {
+        throw new IOException(format("Corrupt journal record at offset [%d] in [%s]", offset, segmentFile));
+      }
+      return new JournalEntry(offset, offset + RECORD_HEADER_SIZE + length, data);
+    } finally {
+      file.close();
+    }
+  }
+
+  /**
+   * Reads the record at the given offset as it was written, without checking its crc32, to set aside a record that
+   * {@link #read(long)} fails on.
+   *
+   * @return the record or, if even its length can't be read, an entry without data that ends where the next segment
+   * starts.
+   */
+  public JournalEntry readUnchecked(long offset) throws IOException {
+    File segmentFile;
+    long baseOffset;
+    long endOffset;
+    synchronized (this) {
+      checkArgument(offset >= this.segments.firstKey() && offset < this.syncedOffset,
+              "No durable record at offset [%s]", offset);
+      Map.Entry<Long, File> segment = this.segments.floorEntry(offset);
+      baseOffset = segment.getKey();
+      segmentFile = segment.getValue();
+      Long nextBaseOffset = this.segments.higherKey(offset);
+      endOffset = nextBaseOffset != null ? nextBaseOffset : this.syncedOffset;
+    }
+
+    RandomAccessFile file = new RandomAccessFile(segmentFile, "r");
+    try {
+      long position = offset - baseOffset;
+      long segmentEnd = Math.min(file.length(), endOffset - baseOffset);
+      if (position + RECORD_HEADER_SIZE <= segmentEnd) {
+        file.seek(position);
+        int length = file.readInt();
+        if (length >= 0 && position + RECORD_HEADER_SIZE + length <= segmentEnd) {
+          file.readInt();
+          byte[] data = new byte[length];
+          file.readFully(data);
+          return new JournalEntry(offset, offset + RECORD_HEADER_SIZE + length, data);
+        }
+      }
+      return new JournalEntry(offset, endOffset, null);
+    } finally {
+      file.close();
+    }
+  }
+
+  /**
+   * @return the offset of the oldest record still in the journal.
+   */
+  public synchronized long getStartOffset() {
+    return this.segments.firstKey();
+  }
+
+  /**
+   * @return the offset right after the last durable record.
+   */
+  public long getEndOffset() {
+    return this.syncedOffset;
+  }
+
+  /**
+   * Deletes the segments whose records are all before the given offset. The active segment is always kept.
+   */
+  public synchronized void deleteBefore(long offset) {
+    while (this.segments.size() > 1) {
+      Map.Entry<Long, File> oldest = this.segments.firstEntry();
+      long nextBaseOffset = this.segments.higherKey(oldest.getKey());
+      if (nextBaseOffset > offset) {
+        break;
+      }
+      if (!oldest.getValue().delete()) {
+        LOGGER.warn(format("Could not delete consumed journal segment [%s]", oldest.getValue()));
+        break;
+      }
+      this.segments.remove(oldest.getKey());
+      LOGGER.debug(format("Deleted consumed journal segment [%s]", oldest.getValue()));
+    }
+  }
+
+  public File getDirectory() {
+    return directory;
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (syncLock) {
+      synchronized (this) {
+        if (!this.closed) {
+          this.closed = true;
+          this.activeChannel.force(false);
+          this.activeChannel.close();
+        }
+      }
+    }
+  }
+
+  private void sync(long endOffset) throws IOException {
+    synchronized (syncLock) {
+      if (this.syncedOffset >= endOffset) {
+        // Someone else's fsync already covered this record
+        return;
+      }
+      FileChannel channel;
+      long targetOffset;
+      synchronized (this) {
+        channel = this.activeChannel;
+        targetOffset = this.writeOffset;
+      }
+
+      // Appenders keep writing while this fsync runs and get covered together by the next one
+      try {
+        channel.force(false);
+      } catch (ClosedChannelException e) {
+        synchronized (this) {
+          if (channel == this.activeChannel) {
+            throw e;
+          }
+        }
+        // The segment was rolled meanwhile, which forced it before closing it
+      }
+      this.syncedOffset = targetOffset;
+    }
+  }
+
+  private void rollSegment() throws IOException {
+    this.activeChannel.force(false);
+    this.activeChannel.close();
+    openSegment(this.writeOffset);
+  }
+
+  private void openSegment(long baseOffset) throws IOException {
+    File segmentFile = new File(this.directory, format("%020d%s", baseOffset, SEGMENT_SUFFIX));
+    this.activeChannel = new RandomAccessFile(segmentFile, "rw").getChannel();
+    this.activeBaseOffset = baseOffset;
+    this.writeOffset = baseOffset;
+    this.segments.put(baseOffset, segmentFile);
+  }
+
+  /**
+   * Reopens the last segment for appending and cuts off any record that didn't make it completely to disk.
+   */
+  private void recoverLastSegment() throws IOException {
+    Map.Entry<Long, File> lastSegment = this.segments.lastEntry();
+    this.activeChannel = new RandomAccessFile(lastSegment.getValue(), "rw").getChannel();
+    this.activeBaseOffset = lastSegment.getKey();
+
+    long size = this.activeChannel.size();
+    long position = 0;
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+    while (position + RECORD_HEADER_SIZE <= size) {
+      header.clear();
+      this.activeChannel.read(header, position);
+      header.flip();
+      int length = header.getInt();
+      int expectedCrc = header.getInt();
+      if (length < 0 || position + RECORD_HEADER_SIZE + length > size) {
+        break;
+      }
+
+      ByteBuffer data = ByteBuffer.allocate(length);
+      this.activeChannel.read(data, position + RECORD_HEADER_SIZE);
+      CRC32 crc = new CRC32();
+      crc.update(data.array());
+      if ((int) crc.getValue() != expectedCrc) {
+        break;
+      }
+      position += RECORD_HEADER_SIZE + length;
+    }
+
+    if (position < size) {
+      LOGGER.warn(format("Truncating %d bytes of incomplete records at the end of journal segment [%s]",
+              size - position, lastSegment.getValue()));
+      this.activeChannel.truncate(position);
+      this.activeChannel.force(false);
+    }
+    this.activeChannel.position(position);
+    this.writeOffset = this.activeBaseOffset + position;
+  }
+
+  /**
+   * A record read from the journal along with the offset of the record that follows it.
+   */
+  public static class JournalEntry {
+    private final long offset;
+    private final long nextOffset;
+    private final byte[] data;
+
+    JournalEntry(long offset, long nextOffset, byte[] data) {
+      this.offset = offset;
+      this.nextOffset = nextOffset;
+      this.data = data;
+    }
+
+    public long getOffset() {
+      return offset;
+    }
+
+    public long getNextOffset() {
+      return nextOffset;
+    }
+
+    /**
+     * @return the record or {@code null} for an entry of {@link #readUnchecked(long)} whose record couldn't be read.
+     */
+    public byte[] getData() {
+      return data;
+    }
+  }
+}
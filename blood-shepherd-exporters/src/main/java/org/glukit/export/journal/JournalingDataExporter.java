@@ -0,0 +1,327 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.export.journal;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.base.Throwables;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.SimpleTimeLimiter;
+import com.google.common.util.concurrent.TimeLimiter;
+import org.glukit.export.FanOutDataExporter;
+import org.glukit.sync.api.DataExporter;
+import org.glukit.sync.api.SyncData;
+import org.glukit.sync.api.ThreadModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Lists.transform;
+import static java.lang.String.format;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static org.glukit.sync.api.BloodShepherdProperties.EXPORT_TIMEOUT_SECONDS;
+import static org.glukit.sync.api.BloodShepherdProperties.getIntProperty;
+
+/**
+ * {@link DataExporter} that durably appends the {@link SyncData} to an {@link ExportJournal} and returns. Each
+ * exporter then drains the journal on its own thread, tracking its position in its own offset file so that a slow,
+ * failing or interrupted exporter picks up where it left off, even after a restart. Failed exports are retried with
+ * an exponential backoff so every exporter sees every record at least once. A record that still fails after
+ * {@link #MAX_EXPORT_ATTEMPTS} attempts is set aside in a {@code .failed} file of the journal directory so that it
+ * doesn't hold back the records after it.
+ *
+ * @author alexandre.normand
+ */
+public class JournalingDataExporter implements DataExporter, Closeable {
+  private static Logger LOGGER = LoggerFactory.getLogger(JournalingDataExporter.class);
+
+  static final long DEFAULT_TIMEOUT_SECONDS = 300;
+  static final long INITIAL_RETRY_DELAY_MILLIS = 1000;
+  static final long MAX_RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(5);
+  static final int MAX_EXPORT_ATTEMPTS = 10;
+  private static final String OFFSET_SUFFIX = ".offset";
+  private static final String FAILED_SUFFIX = ".failed";
+
+  private final ExportJournal journal;
+  private final SyncDataCodec codec = new SyncDataCodec();
+  private final List<JournalConsumer> consumers;
+  private final ExecutorService timeLimiterExecutor;
+  private final TimeLimiter timeLimiter;
+  private final long timeoutInSeconds;
+  private final ThreadModel threadModel;
+  private final long initialRetryDelayMillis;
+  private final Object newRecordSignal = new Object();
+  private volatile boolean running = true;
+
+  public JournalingDataExporter(ExportJournal journal, List<DataExporter> exporters, Properties properties)
+          throws IOException {
+    this(journal, exporters, getIntProperty(properties, EXPORT_TIMEOUT_SECONDS, (int) DEFAULT_TIMEOUT_SECONDS),
+            ThreadModel.fromProperties(properties));
+  }
+
+  public JournalingDataExporter(ExportJournal journal, List<DataExporter> exporters, long timeoutInSeconds)
+          throws IOException {
+    this(journal, exporters, timeoutInSeconds, ThreadModel.PLATFORM);
+  }
+
+  public JournalingDataExporter(ExportJournal journal, List<DataExporter> exporters, long timeoutInSeconds,
+                                ThreadModel threadModel) throws IOException {
+    this(journal, exporters, timeoutInSeconds, threadModel, INITIAL_RETRY_DELAY_MILLIS);
+  }
+
+  @VisibleForTesting
+  JournalingDataExporter(ExportJournal journal, List<DataExporter> exporters, long timeoutInSeconds,
+                         ThreadModel threadModel, long initialRetryDelayMillis) throws IOException {
+    checkArgument(!exporters.isEmpty(), "At least one exporter is required");
+
+    this.journal = journal;
+    this.timeoutInSeconds = timeoutInSeconds;
+    this.threadModel = threadModel;
+    this.initialRetryDelayMillis = initialRetryDelayMillis;
+    this.timeLimiterExecutor = Executors.newCachedThreadPool(threadModel.newThreadFactory("journal-timed-%d"));
+    this.timeLimiter = new SimpleTimeLimiter(this.timeLimiterExecutor);
+
+    this.consumers = newArrayList();
+    List<String> exporterNames = FanOutDataExporter.exporterNamesOf(exporters);
+    for (int i = 0; i < exporters.size(); i++) {
+      this.consumers.add(new JournalConsumer(exporters.get(i), exporterNames.get(i)));
+    }
+    for (JournalConsumer consumer : this.consumers) {
+      consumer.thread.start();
+    }
+  }
+
+  /**
+   * Appends the data to the journal. Once this returns, the data is on disk and will eventually reach every exporter.
+   */
+  @Override
+  public void exportData(SyncData syncData) {
+    try {
+      long offset = this.journal.append(this.codec.encode(syncData));
+      LOGGER.debug(format("Journaled data updated at %s at offset [%d]", syncData.getUpdateTime(), offset));
+    } catch (IOException e) {
+      throw Throwables.propagate(e);
+    }
+
+    synchronized (this.newRecordSignal) {
+      this.newRecordSignal.notifyAll();
+    }
+  }
+
+  /**
+   * Stops the exporter threads, giving each at most the export timeout to finish the record it's working on.
+   * Records left in the journal are exported on the next start.
+   */
+  @Override
+  public void close() throws IOException {
+    this.running = false;
+    synchronized (this.newRecordSignal) {
+      this.newRecordSignal.notifyAll();
+    }
+    for (JournalConsumer consumer : this.consumers) {
+      try {
+        consumer.thread.join(TimeUnit.SECONDS.toMillis(this.timeoutInSeconds));
+        if (consumer.thread.isAlive()) {
+          LOGGER.warn(format("Exporter [%s] still busy after %d seconds, interrupting it", consumer.name,
+                  this.timeoutInSeconds));
+          consumer.thread.interrupt();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    this.timeLimiterExecutor.shutdownNow();
+    this.journal.close();
+  }
+
+  public List<String> getExporterNames() {
+    return transform(this.consumers, new Function<JournalConsumer, String>() {
+      @Override
+      public String apply(JournalConsumer consumer) {
+        return consumer.name;
+      }
+    });
+  }
+
+  /**
+   * @return the offset of the next journal record the given exporter will export.
+   */
+  public long getOffset(String exporterName) {
+    for (JournalConsumer consumer : this.consumers) {
+      if (consumer.name.equals(exporterName)) {
+        return consumer.offset;
+      }
+    }
+    throw new IllegalArgumentException(format("No exporter named [%s]", exporterName));
+  }
+
+  private synchronized void deleteConsumedSegments() {
+    long lowestOffset = Long.MAX_VALUE;
+    for (JournalConsumer consumer : this.consumers) {
+      lowestOffset = Math.min(lowestOffset, consumer.offset);
+    }
+    this.journal.deleteBefore(lowestOffset);
+  }
+
+  private class JournalConsumer implements Runnable {
+    private final DataExporter exporter;
+    private final String name;
+    private final File offsetFile;
+    private final Thread thread;
+    private volatile long offset;
+
+    private JournalConsumer(DataExporter exporter, String name) throws IOException {
+      this.exporter = exporter;
+      this.name = name;
+      this.offsetFile = new File(journal.getDirectory(), this.name + OFFSET_SUFFIX);
+      this.offset = Math.max(readOffset(), journal.getStartOffset());
+      this.thread = threadModel.newThreadFactory("journal-" + this.name + "-%d").newThread(this);
+    }
+
+    @Override
+    public void run() {
+      long retryDelay = initialRetryDelayMillis;
+      int attempts = 0;
+      while (running) {
+        ExportJournal.JournalEntry entry = null;
+        try {
+          entry = journal.read(this.offset);
+          if (entry == null) {
+            waitForNewRecord();
+            continue;
+          }
+
+          export(codec.decode(entry.getData()));
+          commitOffset(entry.getNextOffset());
+          retryDelay = initialRetryDelayMillis;
+          attempts = 0;
+        } catch (InterruptedException e) {
+          return;
+        } catch (Exception e) {
+          // Reads and decoding count too, a corrupt record would otherwise hold back the ones after it for good
+          attempts++;
+          if (attempts >= MAX_EXPORT_ATTEMPTS && setAside(entry, e)) {
+            retryDelay = initialRetryDelayMillis;
+            attempts = 0;
+            continue;
+          }
+          LOGGER.error(format("Exporter [%s] failed to export journal record at offset [%d], retrying in %d ms",
+                  this.name, this.offset, retryDelay), e);
+          try {
+            synchronized (newRecordSignal) {
+              if (running) {
+                newRecordSignal.wait(retryDelay);
+              }
+            }
+          } catch (InterruptedException interrupted) {
+            return;
+          }
+          retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY_MILLIS);
+        }
+      }
+    }
+
+    /**
+     * Writes a record that keeps failing to its own file and moves on to the next one. A record that can't be read
+     * is set aside as it was written, or skipped along with the rest of its segment if even its length is corrupt.
+     *
+     * @param entry the record or {@code null} if it couldn't be read
+     * @return {@code true} if the record was set aside, {@code false} if it should be retried.
+     */
+    private boolean setAside(@Nullable ExportJournal.JournalEntry entry, Exception cause) {
+      File failedFile = new File(journal.getDirectory(), format("%s-%020d%s", this.name, this.offset,
+              FAILED_SUFFIX));
+      try {
+        if (entry == null) {
+          entry = journal.readUnchecked(this.offset);
+        }
+        if (entry.getData() != null) {
+          Files.write(entry.getData(), failedFile);
+        }
+        commitOffset(entry.getNextOffset());
+      } catch (IOException | RuntimeException e) {
+        LOGGER.error(format("Exporter [%s] failed to set aside journal record at offset [%d]", this.name,
+                this.offset), e);
+        return false;
+      }
+
+      if (entry.getData() != null) {
+        LOGGER.error(format("Exporter [%s] gave up on journal record at offset [%d] after %d attempts, skipping it "
+                + "and keeping it in [%s]", this.name, entry.getOffset(), MAX_EXPORT_ATTEMPTS, failedFile), cause);
+      } else {
+        LOGGER.error(format("Exporter [%s] can't read journal record at offset [%d], skipping to offset [%d]",
+                this.name, entry.getOffset(), entry.getNextOffset()), cause);
+      }
+      return true;
+    }
+
+    private void waitForNewRecord() throws InterruptedException {
+      synchronized (newRecordSignal) {
+        if (running && journal.getEndOffset() <= this.offset) {
+          newRecordSignal.wait(TimeUnit.SECONDS.toMillis(1));
+        }
+      }
+    }
+
+    private void export(final SyncData syncData) throws Exception {
+      timeLimiter.callWithTimeout(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          exporter.exportData(syncData);
+          return null;
+        }
+      }, timeoutInSeconds, TimeUnit.SECONDS, true);
+    }
+
+    private void commitOffset(long nextOffset) throws IOException {
+      File temporaryFile = new File(this.offsetFile.getPath() + ".tmp");
+      Files.write(Long.toString(nextOffset), temporaryFile, Charsets.UTF_8);
+      java.nio.file.Files.move(temporaryFile.toPath(), this.offsetFile.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+      this.offset = nextOffset;
+      deleteConsumedSegments();
+    }
+
+    private long readOffset() throws IOException {
+      if (!this.offsetFile.exists()) {
+        return 0L;
+      }
+      return Long.parseLong(Files.toString(this.offsetFile, Charsets.UTF_8).trim());
+    }
+  }
+}
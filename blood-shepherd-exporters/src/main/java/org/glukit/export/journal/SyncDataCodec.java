@@ -0,0 +1,236 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.export.journal;
+
+import com.google.common.base.Throwables;
+import org.glukit.sync.api.DeviceInfo;
+import org.glukit.sync.api.ExerciseSession;
+import org.glukit.sync.api.FoodEvent;
+import org.glukit.sync.api.GlucoseRead;
+import org.glukit.sync.api.InsulinInjection;
+import org.glukit.sync.api.SyncData;
+import org.threeten.bp.Duration;
+import org.threeten.bp.Instant;
+import org.threeten.bp.LocalDateTime;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static com.google.common.collect.Lists.newArrayListWithCapacity;
+import static java.lang.String.format;
+
+/**
+ * Compact binary form of {@link SyncData} used for the records of the {@link ExportJournal}. Records written before
+ * {@link SyncData#getSince()} was added still decode, without it.
+ *
+ * @author alexandre.normand
+ */
+public class SyncDataCodec {
+  private static final byte FORMAT_VERSION = 2;
+  private static final byte FORMAT_VERSION_WITHOUT_SINCE = 1;
+
+  public byte[] encode(SyncData syncData) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(bytes);
+    try {
+      output.writeByte(FORMAT_VERSION);
+      writeDeviceInfo(output, syncData.getDeviceInfo());
+      writeInstant(output, syncData.getUpdateTime());
+      writeInstant(output, syncData.getSince());
+
+      output.writeInt(syncData.getGlucoseReads().size());
+      for (GlucoseRead glucoseRead : syncData.getGlucoseReads()) {
+        writeInstant(output, glucoseRead.getInternalTime());
+        writeLocalDateTime(output, glucoseRead.getLocalTime());
+        output.writeFloat(glucoseRead.getValue());
+        writeEnum(output, glucoseRead.getUnit());
+      }
+
+      output.writeInt(syncData.getInsulinInjections().size());
+      for (InsulinInjection injection : syncData.getInsulinInjections()) {
+        writeInstant(output, injection.getInternalTime());
+        writeLocalDateTime(output, injection.getLocalTime());
+        writeLocalDateTime(output, injection.getEventLocalTime());
+        output.writeFloat(injection.getUnitValue());
+        writeEnum(output, injection.getInsulinType());
+        writeString(output, injection.getInsulinName());
+      }
+
+      output.writeInt(syncData.getFoodEvents().size());
+      for (FoodEvent foodEvent : syncData.getFoodEvents()) {
+        writeInstant(output, foodEvent.getInternalTime());
+        writeLocalDateTime(output, foodEvent.getLocalTime());
+        writeLocalDateTime(output, foodEvent.getEventLocalTime());
+        output.writeFloat(foodEvent.getCarbohydrates());
+        output.writeFloat(foodEvent.getProteins());
+      }
+
+      output.writeInt(syncData.getExerciseSessions().size());
+      for (ExerciseSession exerciseSession : syncData.getExerciseSessions()) {
+        writeInstant(output, exerciseSession.getInternalTime());
+        writeLocalDateTime(output, exerciseSession.getLocalTime());
+        writeLocalDateTime(output, exerciseSession.getEventLocalTime());
+        writeEnum(output, exerciseSession.getIntensity());
+        writeDuration(output, exerciseSession.getDuration());
+        writeString(output, exerciseSession.getDescription());
+      }
+      output.flush();
+    } catch (IOException e) {
+      throw Throwables.propagate(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  public SyncData decode(byte[] data) {
+    DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+    try {
+      byte version = input.readByte();
+      if (version != FORMAT_VERSION && version != FORMAT_VERSION_WITHOUT_SINCE) {
+        throw new IllegalArgumentException(format("Unsupported journal record version [%d]", version));
+      }
+      DeviceInfo deviceInfo = readDeviceInfo(input);
+      Instant updateTime = readInstant(input);
+      Instant since = version == FORMAT_VERSION ? readInstant(input) : null;
+
+      int glucoseReadCount = input.readInt();
+      List<GlucoseRead> glucoseReads = newArrayListWithCapacity(glucoseReadCount);
+      for (int i = 0; i < glucoseReadCount; i++) {
+        glucoseReads.add(new GlucoseRead(readInstant(input), readLocalDateTime(input), input.readFloat(),
+                readEnum(input, GlucoseRead.Unit.class)));
+      }
+
+      int injectionCount = input.readInt();
+      List<InsulinInjection> injections = newArrayListWithCapacity(injectionCount);
+      for (int i = 0; i < injectionCount; i++) {
+        injections.add(new InsulinInjection(readInstant(input), readLocalDateTime(input), readLocalDateTime(input),
+                input.readFloat(), readEnum(input, InsulinInjection.InsulinType.class), readString(input)));
+      }
+
+      int foodEventCount = input.readInt();
+      List<FoodEvent> foodEvents = newArrayListWithCapacity(foodEventCount);
+      for (int i = 0; i < foodEventCount; i++) {
+        foodEvents.add(new FoodEvent(readInstant(input), readLocalDateTime(input), readLocalDateTime(input),
+                input.readFloat(), input.readFloat()));
+      }
+
+      int exerciseSessionCount = input.readInt();
+      List<ExerciseSession> exerciseSessions = newArrayListWithCapacity(exerciseSessionCount);
+      for (int i = 0; i < exerciseSessionCount; i++) {
+        exerciseSessions.add(new ExerciseSession(readInstant(input), readLocalDateTime(input),
+                readLocalDateTime(input), readEnum(input, ExerciseSession.Intensity.class), readDuration(input),
+                readString(input)));
+      }
+
+      return new SyncData(glucoseReads, injections, foodEvents, exerciseSessions, deviceInfo, updateTime,
+              since);
+    } catch (IOException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  private static void writeDeviceInfo(DataOutput output, DeviceInfo deviceInfo) throws IOException {
+    output.writeBoolean(deviceInfo != null);
+    if (deviceInfo != null) {
+      writeString(output, deviceInfo.getSerialNumber());
+      writeString(output, deviceInfo.getHardwareId());
+      writeString(output, deviceInfo.getHardwareRevision());
+    }
+  }
+
+  private static DeviceInfo readDeviceInfo(DataInput input) throws IOException {
+    if (!input.readBoolean()) {
+      return null;
+    }
+    return new DeviceInfo(readString(input), readString(input), readString(input));
+  }
+
+  private static void writeInstant(DataOutput output, Instant instant) throws IOException {
+    output.writeBoolean(instant != null);
+    if (instant != null) {
+      output.writeLong(instant.getEpochSecond());
+      output.writeInt(instant.getNano());
+    }
+  }
+
+  private static Instant readInstant(DataInput input) throws IOException {
+    if (!input.readBoolean()) {
+      return null;
+    }
+    return Instant.ofEpochSecond(input.readLong(), input.readInt());
+  }
+
+  private static void writeLocalDateTime(DataOutput output, LocalDateTime localDateTime) throws IOException {
+    writeString(output, localDateTime == null ? null : localDateTime.toString());
+  }
+
+  private static LocalDateTime readLocalDateTime(DataInput input) throws IOException {
+    String value = readString(input);
+    return value == null ? null : LocalDateTime.parse(value);
+  }
+
+  private static void writeDuration(DataOutput output, Duration duration) throws IOException {
+    output.writeBoolean(duration != null);
+    if (duration != null) {
+      output.writeLong(duration.getSeconds());
+      output.writeInt(duration.getNano());
+    }
+  }
+
+  private static Duration readDuration(DataInput input) throws IOException {
+    if (!input.readBoolean()) {
+      return null;
+    }
+    return Duration.ofSeconds(input.readLong(), input.readInt());
+  }
+
+  private static void writeEnum(DataOutput output, Enum<?> value) throws IOException {
+    writeString(output, value == null ? null : value.name());
+  }
+
+  private static <E extends Enum<E>> E readEnum(DataInput input, Class<E> enumType) throws IOException {
+    String name = readString(input);
+    return name == null ? null : Enum.valueOf(enumType, name);
+  }
+
+  private static void writeString(DataOutput output, String value) throws IOException {
+    output.writeBoolean(value != null);
+    if (value != null) {
+      output.writeUTF(value);
+    }
+  }
+
+  private static String readString(DataInput input) throws IOException {
+    if (!input.readBoolean()) {
+      return null;
+    }
+    return input.readUTF();
+  }
+}
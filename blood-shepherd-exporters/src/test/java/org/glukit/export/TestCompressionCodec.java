@@ -0,0 +1,84 @@
+package org.glukit.export;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import org.glukit.sync.api.BloodShepherdProperties;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Unit test of {@link CompressionCodec}.
+ *
+ * @author alexandre.normand
+ */
+public class TestCompressionCodec {
+  private static final String CONTENT = "<Patient><GlucoseReadings><Glucose Value=\"83\"/><Glucose Value=\"83\"/>" +
+          "</GlucoseReadings></Patient>";
+
+  private File tempDirectory;
+
+  @Before
+  public void setup() throws Exception {
+    this.tempDirectory = Files.createTempDir();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    for (File file : this.tempDirectory.listFiles()) {
+      file.delete();
+    }
+    this.tempDirectory.delete();
+  }
+
+  @Test
+  public void everyCodecShouldReadBackWhatItWrote() throws Exception {
+    for (CompressionCodec codec : CompressionCodec.values()) {
+      File file = new File(this.tempDirectory, "export.xml" + codec.getFileExtension());
+      OutputStream outputStream = codec.openForWriting(file);
+      outputStream.write(CONTENT.getBytes("UTF-8"));
+      outputStream.close();
+
+      InputStream inputStream = CompressionCodec.openForReading(file);
+      String content = new String(ByteStreams.toByteArray(inputStream), "UTF-8");
+      inputStream.close();
+
+      assertThat(codec.name(), content, is(equalTo(CONTENT)));
+    }
+  }
+
+  @Test
+  public void missingPropertyShouldDefaultToNoCompression() throws Exception {
+    assertThat(CompressionCodec.fromProperties(new BloodShepherdProperties()), is(CompressionCodec.NONE));
+  }
+
+  @Test
+  public void propertyShouldBeCaseInsensitive() throws Exception {
+    BloodShepherdProperties properties = new BloodShepherdProperties();
+    properties.put(BloodShepherdProperties.EXPORT_COMPRESSION, "gzip");
+
+    assertThat(CompressionCodec.fromProperties(properties), is(CompressionCodec.GZIP));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void unknownCodecShouldBeRejected() throws Exception {
+    BloodShepherdProperties properties = new BloodShepherdProperties();
+    properties.put(BloodShepherdProperties.EXPORT_COMPRESSION, "rar");
+
+    CompressionCodec.fromProperties(properties);
+  }
+
+  @Test
+  public void codecShouldBeDetectedFromFileName() throws Exception {
+    assertThat(CompressionCodec.forFileName("blood-shepherd-export-1.xml.gz"), is(CompressionCodec.GZIP));
+    assertThat(CompressionCodec.forFileName("blood-shepherd-export-1.xml"), is(CompressionCodec.NONE));
+  }
+}
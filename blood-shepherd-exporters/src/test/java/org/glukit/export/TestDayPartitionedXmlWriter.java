@@ -0,0 +1,100 @@
+package org.glukit.export;
+
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+import com.google.common.io.Files;
+import org.glukit.sync.api.*;
+import org.junit.Before;
+import org.junit.Test;
+import org.threeten.bp.Instant;
+import org.threeten.bp.LocalDateTime;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Unit test of {@link DayPartitionedXmlWriter} through the day partitioning mode of {@link XmlDataExporter}.
+ *
+ * @author alexandre.normand
+ */
+public class TestDayPartitionedXmlWriter {
+  private BloodShepherdProperties bloodShepherdProperties = new BloodShepherdProperties();
+  private File tempDirectory;
+
+  @Before
+  public void setup() throws Exception {
+    this.tempDirectory = Files.createTempDir();
+    this.bloodShepherdProperties.put(BloodShepherdProperties.OUTPUT_PATH, this.tempDirectory.getAbsolutePath());
+    this.bloodShepherdProperties.put(BloodShepherdProperties.EXPORT_PARTITIONING, "day");
+  }
+
+  @Test
+  public void dataShouldBeSplitByLocalDay() throws Exception {
+    new XmlDataExporter(this.bloodShepherdProperties).exportData(syncData());
+
+    assertThat(new File(this.tempDirectory, "blood-shepherd-export-5000-2013-10-09.xml").exists(), is(true));
+    assertThat(new File(this.tempDirectory, "blood-shepherd-export-5000-2013-10-10.xml").exists(), is(true));
+    assertThat(new File(this.tempDirectory, "blood-shepherd-export-5000-2013-10-11.xml").exists(), is(true));
+
+    DayPartitionedXmlWriter.Manifest manifest = new XmlMapper().readValue(
+            new File(this.tempDirectory, "blood-shepherd-export-5000-manifest.xml"),
+            DayPartitionedXmlWriter.Manifest.class);
+    assertThat(manifest.SerialNumber, is("serialNumber"));
+    assertThat(manifest.Partition.size(), is(3));
+
+    DayPartitionedXmlWriter.Manifest.Entry secondDay = manifest.Partition.get(1);
+    assertThat(secondDay.Day, is("2013-10-10"));
+    assertThat(secondDay.FileName, is("blood-shepherd-export-5000-2013-10-10.xml"));
+    assertThat(secondDay.GlucoseReadCount, is(2));
+    assertThat(secondDay.EventCount, is(1));
+    assertThat(secondDay.FirstRecordTime, is("2013-10-10 00:05:00"));
+    assertThat(secondDay.LastRecordTime, is("2013-10-10 23:55:00"));
+  }
+
+  @Test
+  public void partitionsShouldUseTheCompressionCodec() throws Exception {
+    this.bloodShepherdProperties.put(BloodShepherdProperties.EXPORT_COMPRESSION, "gzip");
+    new XmlDataExporter(this.bloodShepherdProperties).exportData(syncData());
+
+    assertThat(new File(this.tempDirectory, "blood-shepherd-export-5000-2013-10-10.xml.gz").exists(), is(true));
+    assertThat(new File(this.tempDirectory, "blood-shepherd-export-5000-manifest.xml").exists(), is(true));
+  }
+
+  @Test
+  public void partitionsShouldKeepAllRecords() throws Exception {
+    List<DayPartitionedXmlWriter.DayPartition> partitions = DayPartitionedXmlWriter.partition(syncData());
+
+    assertThat(partitions.size(), is(3));
+    assertThat(partitions.get(0).getSyncData().getGlucoseReads().size(), is(1));
+    assertThat(partitions.get(1).getSyncData().getFoodEvents().size(), is(1));
+    assertThat(partitions.get(2).getSyncData().getGlucoseReads().size(), is(1));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidPartitioningShouldBeRejected() throws Exception {
+    this.bloodShepherdProperties.put(BloodShepherdProperties.EXPORT_PARTITIONING, "weekly");
+    new XmlDataExporter(this.bloodShepherdProperties).exportData(syncData());
+  }
+
+  private static SyncData syncData() {
+    List<GlucoseRead> glucoseReads = Arrays.asList(
+            glucoseRead(1, LocalDateTime.of(2013, 10, 9, 23, 55)),
+            glucoseRead(2, LocalDateTime.of(2013, 10, 10, 0, 5)),
+            glucoseRead(3, LocalDateTime.of(2013, 10, 10, 12, 0)),
+            glucoseRead(4, LocalDateTime.of(2013, 10, 11, 0, 0)));
+    List<FoodEvent> foodEvents = Arrays.asList(new FoodEvent(Instant.ofEpochSecond(3),
+            LocalDateTime.of(2013, 10, 11, 0, 1), LocalDateTime.of(2013, 10, 10, 23, 55), 30f, 0f));
+    List<InsulinInjection> injections = Collections.emptyList();
+    List<ExerciseSession> exerciseSessions = Collections.emptyList();
+    return new SyncData(glucoseReads, injections, foodEvents, exerciseSessions,
+            new DeviceInfo("serialNumber", "hId", "hRv"), Instant.ofEpochSecond(5));
+  }
+
+  private static GlucoseRead glucoseRead(long internalSeconds, LocalDateTime localTime) {
+    return new GlucoseRead(Instant.ofEpochSecond(internalSeconds), localTime, 100f, GlucoseRead.Unit.MG_PER_DL);
+  }
+}
@@ -0,0 +1,195 @@
+package org.glukit.export;
+
+import com.google.common.collect.ImmutableList;
+import org.glukit.sync.api.*;
+import org.junit.Test;
+import org.threeten.bp.Instant;
+import org.threeten.bp.LocalDateTime;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Unit test of {@link FanOutDataExporter}.
+ *
+ * @author alexandre.normand
+ */
+public class TestFanOutDataExporter {
+  private static final List<InsulinInjection> EMPTY_INJECTIONS = Collections.emptyList();
+  private static final List<FoodEvent> EMPTY_FOOD_EVENTS = Collections.emptyList();
+  private static final List<ExerciseSession> EMPTY_EXERCISE_SESSIONS = Collections.emptyList();
+
+  @Test
+  public void slowExporterShouldNotDelayOthers() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    BlockingExporter slowExporter = new BlockingExporter(release);
+    CountingExporter fastExporter = new CountingExporter(1);
+
+    FanOutDataExporter fanOut = new FanOutDataExporter(Arrays.<DataExporter>asList(slowExporter, fastExporter), 2, 60);
+    fanOut.exportData(syncData(Instant.ofEpochSecond(1)));
+
+    assertThat(fastExporter.latch.await(5, TimeUnit.SECONDS), is(true));
+    release.countDown();
+    fanOut.close();
+
+    assertThat(fanOut.getCompletedCount("BlockingExporter"), is(1L));
+    assertThat(fanOut.getCompletedCount("CountingExporter"), is(1L));
+  }
+
+  @Test
+  public void failingExporterShouldBeIsolated() throws Exception {
+    CountingExporter countingExporter = new CountingExporter(2);
+    FanOutDataExporter fanOut = new FanOutDataExporter(Arrays.<DataExporter>asList(new FailingExporter(),
+            countingExporter), 2, 60);
+
+    fanOut.exportData(syncData(Instant.ofEpochSecond(1)));
+    fanOut.exportData(syncData(Instant.ofEpochSecond(2)));
+    fanOut.close();
+
+    assertThat(fanOut.getFailedCount("FailingExporter"), is(2L));
+    assertThat(fanOut.getCompletedCount("CountingExporter"), is(2L));
+  }
+
+  @Test
+  public void queueStayingFullShouldFailTheExport() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    BlockingExporter blockingExporter = new BlockingExporter(release);
+    CountingExporter countingExporter = new CountingExporter(3);
+    FanOutDataExporter fanOut = new FanOutDataExporter(Arrays.<DataExporter>asList(blockingExporter,
+            countingExporter), 1, 60, ThreadModel.PLATFORM, 100);
+
+    fanOut.exportData(syncData(Instant.ofEpochSecond(1)));
+    assertThat(blockingExporter.started.await(5, TimeUnit.SECONDS), is(true));
+    // One export is running and one fits in the queue, the third one has nowhere to go
+    fanOut.exportData(syncData(Instant.ofEpochSecond(2)));
+    try {
+      fanOut.exportData(syncData(Instant.ofEpochSecond(3)));
+      throw new AssertionError("Export should have failed");
+    } catch (IllegalStateException e) {
+      assertThat(e.getMessage().contains("BlockingExporter"), is(true));
+    }
+    release.countDown();
+    fanOut.close();
+
+    assertThat(fanOut.getDroppedCount("BlockingExporter"), is(1L));
+    assertThat(fanOut.getCompletedCount("BlockingExporter"), is(2L));
+    assertThat(fanOut.getCompletedCount("CountingExporter"), is(3L));
+  }
+
+  @Test
+  public void fullQueueShouldWaitForRoom() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    BlockingExporter blockingExporter = new BlockingExporter(release);
+    FanOutDataExporter fanOut = new FanOutDataExporter(Arrays.<DataExporter>asList(blockingExporter), 1, 60);
+
+    fanOut.exportData(syncData(Instant.ofEpochSecond(1)));
+    assertThat(blockingExporter.started.await(5, TimeUnit.SECONDS), is(true));
+    fanOut.exportData(syncData(Instant.ofEpochSecond(2)));
+    new Timer(true).schedule(new TimerTask() {
+      @Override
+      public void run() {
+        release.countDown();
+      }
+    }, 100);
+    fanOut.exportData(syncData(Instant.ofEpochSecond(3)));
+    fanOut.close();
+
+    assertThat(fanOut.getDroppedCount("BlockingExporter"), is(0L));
+    assertThat(fanOut.getCompletedCount("BlockingExporter"), is(3L));
+  }
+
+  @Test
+  public void exportExceedingTimeoutShouldBeInterrupted() throws Exception {
+    BlockingExporter blockingExporter = new BlockingExporter(new CountDownLatch(1));
+    FanOutDataExporter fanOut = new FanOutDataExporter(Arrays.<DataExporter>asList(blockingExporter), 1, 1);
+
+    fanOut.exportData(syncData(Instant.ofEpochSecond(1)));
+    fanOut.close();
+
+    assertThat(fanOut.getFailedCount("BlockingExporter"), is(1L));
+  }
+
+  @Test
+  public void exportersOfTheSameClassShouldEachHaveTheirOwnName() throws Exception {
+    CountingExporter firstExporter = new CountingExporter(1);
+    CountingExporter secondExporter = new CountingExporter(2);
+    FanOutDataExporter fanOut = new FanOutDataExporter(Arrays.<DataExporter>asList(firstExporter,
+            new FailingExporter(), secondExporter), 2, 60);
+
+    fanOut.exportData(syncData(Instant.ofEpochSecond(1)));
+    fanOut.close();
+
+    assertThat(fanOut.getExporterNames(), is(equalTo((List<String>) ImmutableList.of("CountingExporter-0",
+            "FailingExporter", "CountingExporter-2"))));
+    assertThat(fanOut.getCompletedCount("CountingExporter-0"), is(1L));
+    assertThat(fanOut.getCompletedCount("CountingExporter-2"), is(1L));
+  }
+
+  @Test
+  public void snapshotShouldBeSorted() throws Exception {
+    GlucoseRead later = new GlucoseRead(Instant.ofEpochSecond(200), LocalDateTime.of(2013, 10, 10, 12, 5), 90f,
+            GlucoseRead.Unit.MG_PER_DL);
+    GlucoseRead earlier = new GlucoseRead(Instant.ofEpochSecond(100), LocalDateTime.of(2013, 10, 10, 12, 0), 83f,
+            GlucoseRead.Unit.MG_PER_DL);
+
+    SyncData snapshot = FanOutDataExporter.snapshotOf(new SyncData(Arrays.asList(later, earlier), EMPTY_INJECTIONS,
+            EMPTY_FOOD_EVENTS, EMPTY_EXERCISE_SESSIONS, new DeviceInfo("serial", "hId", "hRv"), Instant.EPOCH));
+
+    assertThat(snapshot.getGlucoseReads(), is(equalTo((List<GlucoseRead>) ImmutableList.of(earlier, later))));
+  }
+
+  private static SyncData syncData(Instant updateTime) {
+    List<GlucoseRead> glucoseReads = Arrays.asList(new GlucoseRead(Instant.EPOCH, LocalDateTime.of(2013, 10, 10, 12, 0),
+            83f, GlucoseRead.Unit.MG_PER_DL));
+    return new SyncData(glucoseReads, EMPTY_INJECTIONS, EMPTY_FOOD_EVENTS, EMPTY_EXERCISE_SESSIONS,
+            new DeviceInfo("serial", "hId", "hRv"), updateTime);
+  }
+
+  private static class BlockingExporter implements DataExporter {
+    private final CountDownLatch release;
+    private final CountDownLatch started = new CountDownLatch(1);
+
+    private BlockingExporter(CountDownLatch release) {
+      this.release = release;
+    }
+
+    @Override
+    public void exportData(SyncData syncData) {
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  private static class CountingExporter implements DataExporter {
+    private final CountDownLatch latch;
+
+    private CountingExporter(int expectedExports) {
+      this.latch = new CountDownLatch(expectedExports);
+    }
+
+    @Override
+    public void exportData(SyncData syncData) {
+      latch.countDown();
+    }
+  }
+
+  private static class FailingExporter implements DataExporter {
+    @Override
+    public void exportData(SyncData syncData) {
+      throw new IllegalStateException("Export destination unavailable");
+    }
+  }
+}
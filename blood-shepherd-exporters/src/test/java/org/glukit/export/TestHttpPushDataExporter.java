@@ -0,0 +1,320 @@
+package org.glukit.export;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.glukit.sync.api.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.threeten.bp.Instant;
+import org.threeten.bp.LocalDateTime;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.zip.GZIPInputStream;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.glukit.sync.api.BloodShepherdProperties.*;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Unit test of {@link HttpPushDataExporter} against an embedded HTTP server.
+ *
+ * @author alexandre.normand
+ */
+public class TestHttpPushDataExporter {
+  private static final List<InsulinInjection> EMPTY_INJECTIONS = Collections.emptyList();
+  private static final List<FoodEvent> EMPTY_FOOD_EVENTS = Collections.emptyList();
+  private static final List<ExerciseSession> EMPTY_EXERCISE_SESSIONS = Collections.emptyList();
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private HttpServer server;
+  private final List<List<Map<String, Object>>> receivedBatches = new CopyOnWriteArrayList<List<Map<String, Object>>>();
+  private final List<Integer> remotePorts = new CopyOnWriteArrayList<Integer>();
+  private final List<String> apiSecrets = new CopyOnWriteArrayList<String>();
+  private final Queue<Integer> responseCodes = new ConcurrentLinkedQueue<Integer>();
+  private final Set<Object> rejectedDates = new CopyOnWriteArraySet<Object>();
+
+  @Before
+  public void startServer() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/api/v1/records", new HttpHandler() {
+      @Override
+      @SuppressWarnings("unchecked")
+      public void handle(HttpExchange exchange) throws IOException {
+        remotePorts.add(exchange.getRemoteAddress().getPort());
+        apiSecrets.add(exchange.getRequestHeaders().getFirst("api-secret"));
+        byte[] compressedBody = ByteStreams.toByteArray(exchange.getRequestBody());
+        byte[] body = ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressedBody)));
+        List<Map<String, Object>> batch = new ObjectMapper().readValue(body, List.class);
+        Integer responseCode = responseCodes.poll();
+        for (Map<String, Object> record : batch) {
+          if (rejectedDates.contains(record.get("date"))) {
+            responseCode = 400;
+          }
+        }
+        if (responseCode == null || responseCode == 200) {
+          receivedBatches.add(batch);
+          responseCode = 200;
+        }
+        exchange.sendResponseHeaders(responseCode, -1);
+        exchange.close();
+      }
+    });
+    server.start();
+  }
+
+  @After
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  @Test
+  public void recordsShouldBeSentInBatchesOverOneConnection() throws Exception {
+    HttpPushDataExporter exporter = newExporter(2, 100, null);
+    exporter.exportData(syncData(1, 2, 3, 4, 5));
+
+    assertThat(receivedBatches.size(), is(3));
+    assertThat(receivedBatches.get(0).size(), is(2));
+    assertThat(receivedBatches.get(2).size(), is(1));
+    assertThat(receivedBatches.get(0).get(0).get("type"), equalTo((Object) "sgv"));
+    assertThat(receivedBatches.get(2).get(0).get("date"), equalTo((Object) 5000));
+    assertThat(remotePorts.get(2), equalTo(remotePorts.get(0)));
+    assertThat(exporter.getHighWaterMark(HttpPushDataExporter.RecordType.GLUCOSE), is(Instant.ofEpochSecond(5)));
+  }
+
+  @Test
+  public void acknowledgedRecordsShouldNotBeSentAgain() throws Exception {
+    newExporter(10, 100, null).exportData(syncData(1, 2));
+
+    HttpPushDataExporter restarted = newExporter(10, 100, null);
+    restarted.exportData(syncData(1, 2));
+    assertThat(receivedBatches.size(), is(1));
+
+    restarted.exportData(syncData(2, 3));
+    assertThat(receivedBatches.size(), is(2));
+    assertThat(receivedBatches.get(1).size(), is(1));
+    assertThat(receivedBatches.get(1).get(0).get("date"), equalTo((Object) 3000));
+  }
+
+  @Test
+  public void serverErrorsShouldBeRetried() throws Exception {
+    responseCodes.add(503);
+    responseCodes.add(500);
+    HttpPushDataExporter exporter = newExporter(10, 100, null);
+    exporter.exportData(syncData(1));
+
+    assertThat(receivedBatches.size(), is(1));
+    assertThat(exporter.getPendingCount(), is(0));
+  }
+
+  @Test
+  public void undeliveredRecordsShouldStayPendingUntilNextExport() throws Exception {
+    for (int i = 0; i < HttpPushDataExporter.MAX_ATTEMPTS; i++) {
+      responseCodes.add(503);
+    }
+    HttpPushDataExporter exporter = newExporter(10, 100, null);
+    try {
+      exporter.exportData(syncData(1, 2));
+    } catch (IllegalStateException e) {
+      // Expected, the server stayed down for all attempts
+    }
+    assertThat(exporter.getPendingCount(), is(2));
+    assertThat(receivedBatches.size(), is(0));
+
+    exporter.exportData(syncData(3));
+    assertThat(receivedBatches.size(), is(1));
+    assertThat(receivedBatches.get(0).size(), is(3));
+    assertThat(exporter.getPendingCount(), is(0));
+  }
+
+  @Test
+  public void onlyRecordsRejectedByTheServerShouldBeDropped() throws Exception {
+    rejectedDates.add(3000);
+    HttpPushDataExporter exporter = newExporter(4, 100, null);
+    exporter.exportData(syncData(1, 2, 3, 4, 5));
+
+    List<Object> receivedDates = newArrayList();
+    for (List<Map<String, Object>> batch : receivedBatches) {
+      for (Map<String, Object> record : batch) {
+        receivedDates.add(record.get("date"));
+      }
+    }
+    assertThat(receivedDates, equalTo(Arrays.<Object>asList(1000, 2000, 4000, 5000)));
+    assertThat(exporter.getRejectedCount(), is(1L));
+    assertThat(exporter.getPendingCount(), is(0));
+
+    // The rejected record doesn't hold back the next exports
+    exporter.exportData(syncData(6));
+    assertThat(receivedBatches.get(receivedBatches.size() - 1).get(0).get("date"), equalTo((Object) 6000));
+  }
+
+  @Test
+  public void fullRetryBufferShouldDropOldestRecords() throws Exception {
+    for (int i = 0; i < HttpPushDataExporter.MAX_ATTEMPTS; i++) {
+      responseCodes.add(503);
+    }
+    HttpPushDataExporter exporter = newExporter(2, 2, null);
+    try {
+      exporter.exportData(syncData(1, 2, 3));
+    } catch (IllegalStateException e) {
+      // Expected, the server stayed down for all attempts
+    }
+
+    assertThat(exporter.getDroppedCount(), is(1L));
+    exporter.exportData(syncData());
+    assertThat(receivedBatches.get(0).get(0).get("date"), equalTo((Object) 2000));
+  }
+
+  @Test
+  public void recordsOfTheSameSecondShouldAllBeSent() throws Exception {
+    LocalDateTime localTime = LocalDateTime.of(2013, 10, 10, 12, 0);
+    List<InsulinInjection> injections = Arrays.asList(
+            new InsulinInjection(Instant.ofEpochSecond(1), localTime, localTime, 2f,
+                    InsulinInjection.InsulinType.FAST_ACTING, InsulinInjection.UNAVAILABLE_INSULIN_NAME),
+            new InsulinInjection(Instant.ofEpochSecond(1), localTime, localTime, 10f,
+                    InsulinInjection.InsulinType.SLOW_ACTING, InsulinInjection.UNAVAILABLE_INSULIN_NAME));
+    newExporter(10, 100, null).exportData(new SyncData(Collections.<GlucoseRead>emptyList(), injections,
+            EMPTY_FOOD_EVENTS, EMPTY_EXERCISE_SESSIONS, new DeviceInfo("serial", "hId", "hRv"),
+            Instant.ofEpochSecond(10)));
+
+    assertThat(receivedBatches.size(), is(1));
+    assertThat(receivedBatches.get(0).size(), is(2));
+  }
+
+  @Test
+  public void apiSecretShouldBeSentHashed() throws Exception {
+    newExporter(10, 100, "secret").exportData(syncData(1));
+    assertThat(apiSecrets.get(0), is("e5e9fa1ba31ecd1ae84f75caaa474f3a663f05f4"));
+  }
+
+  @Test
+  public void eachReceiverShouldHaveItsOwnHighWaterMark() throws Exception {
+    newExporter(10, 100, null).exportData(syncData("first", 5, 6));
+
+    HttpPushDataExporter restarted = newExporter(10, 100, null);
+    restarted.exportData(syncData("second", 1, 2));
+    assertThat(receivedBatches.size(), is(2));
+    assertThat(receivedBatches.get(1).size(), is(2));
+    assertThat(receivedBatches.get(1).get(0).get("device"), equalTo((Object) "second"));
+    assertThat(restarted.getHighWaterMark("first", HttpPushDataExporter.RecordType.GLUCOSE),
+            is(Instant.ofEpochSecond(6)));
+    assertThat(restarted.getHighWaterMark("second", HttpPushDataExporter.RecordType.GLUCOSE),
+            is(Instant.ofEpochSecond(2)));
+  }
+
+  @Test
+  public void everyChunkOfABackfillShouldBeSentEvenWhenTheMostRecentComesFirst() throws Exception {
+    HttpPushDataExporter exporter = newExporter(10, 100, null);
+    exporter.exportData(syncData(1));
+    Instant since = Instant.ofEpochSecond(1);
+    exporter.exportData(backfillChunk(since, 5, 6));
+    exporter.exportData(backfillChunk(since, 3, 4));
+    exporter.exportData(backfillChunk(since, 1, 2));
+
+    assertThat(datesOf(receivedBatches), is((List<Object>) ImmutableList.<Object>of(1000, 5000, 6000, 3000, 4000, 2000)));
+    assertThat(exporter.getHighWaterMark(HttpPushDataExporter.RecordType.GLUCOSE), is(Instant.ofEpochSecond(6)));
+  }
+
+  @Test
+  public void backfillChunkExportedAgainShouldOnlySendWhatWasNotAcknowledged() throws Exception {
+    Instant since = Instant.ofEpochSecond(0);
+    responseCodes.add(200);
+    for (int attempt = 0; attempt < HttpPushDataExporter.MAX_ATTEMPTS; attempt++) {
+      responseCodes.add(503);
+    }
+    try {
+      newExporter(2, 100, null).exportData(backfillChunk(since, 1, 2, 3, 4));
+      throw new AssertionError("Export should have failed");
+    } catch (IllegalStateException e) {
+      // The second batch never went through
+    }
+    responseCodes.clear();
+
+    newExporter(2, 100, null).exportData(backfillChunk(since, 1, 2, 3, 4));
+    assertThat(datesOf(receivedBatches), is((List<Object>) ImmutableList.<Object>of(1000, 2000, 3000, 4000)));
+  }
+
+  @Test
+  public void backfillRunAgainAfterAnInterruptionShouldOnlySendWhatWasNotAcknowledged() throws Exception {
+    Instant since = Instant.ofEpochSecond(0);
+    HttpPushDataExporter exporter = newExporter(10, 100, null);
+    exporter.exportData(backfillChunk(since, 5, 6));
+    exporter.exportData(backfillChunk(since, 3, 4));
+
+    HttpPushDataExporter restarted = newExporter(10, 100, null);
+    restarted.exportData(backfillChunk(since, 5, 6));
+    restarted.exportData(backfillChunk(since, 3, 4));
+    restarted.exportData(backfillChunk(since, 1, 2));
+    assertThat(datesOf(receivedBatches), is((List<Object>) ImmutableList.<Object>of(5000, 6000, 3000, 4000, 1000,
+            2000)));
+
+    // Once the backfill is over, new records go by the high-water mark again
+    restarted.exportData(syncData(6, 7));
+    assertThat(receivedBatches.size(), is(4));
+    assertThat(datesOf(receivedBatches.subList(3, 4)), is((List<Object>) ImmutableList.<Object>of(7000)));
+  }
+
+  private HttpPushDataExporter newExporter(int batchSize, int maxPending, String apiSecret) {
+    Properties properties = new Properties();
+    properties.setProperty(HTTP_PUSH_URL, "http://127.0.0.1:" + server.getAddress().getPort() + "/api/v1/records");
+    properties.setProperty(HTTP_PUSH_BATCH_SIZE, Integer.toString(batchSize));
+    properties.setProperty(HTTP_PUSH_MAX_PENDING, Integer.toString(maxPending));
+    properties.setProperty(HTTP_PUSH_STATE_PATH, folder.getRoot().getPath() + "/state.properties");
+    if (apiSecret != null) {
+      properties.setProperty(HTTP_PUSH_API_SECRET, apiSecret);
+    }
+    return new HttpPushDataExporter(properties, 10);
+  }
+
+  private static SyncData syncData(int... seconds) {
+    return syncData("serial", seconds);
+  }
+
+  private static List<Object> datesOf(List<List<Map<String, Object>>> batches) {
+    List<Object> dates = newArrayList();
+    for (List<Map<String, Object>> batch : batches) {
+      for (Map<String, Object> record : batch) {
+        dates.add(record.get("date"));
+      }
+    }
+    return dates;
+  }
+
+  private static SyncData backfillChunk(Instant since, int... seconds) {
+    SyncData syncData = syncData(seconds);
+    return new SyncData(syncData.getGlucoseReads(), EMPTY_INJECTIONS, EMPTY_FOOD_EVENTS, EMPTY_EXERCISE_SESSIONS,
+            syncData.getDeviceInfo(), syncData.getUpdateTime(), since);
+  }
+
+  private static SyncData syncData(String serialNumber, int... seconds) {
+    List<GlucoseRead> glucoseReads = newArrayList();
+    for (int second : seconds) {
+      glucoseReads.add(new GlucoseRead(Instant.ofEpochSecond(second), LocalDateTime.of(2013, 10, 10, 12, 0, second),
+              83f + second, GlucoseRead.Unit.MG_PER_DL));
+    }
+    return new SyncData(glucoseReads, EMPTY_INJECTIONS, EMPTY_FOOD_EVENTS, EMPTY_EXERCISE_SESSIONS,
+            new DeviceInfo(serialNumber, "hId", "hRv"), Instant.ofEpochSecond(10));
+  }
+}
@@ -14,6 +14,8 @@ import java.util.Collections;
 import java.util.List;
 
 import static com.google.common.collect.Lists.newArrayList;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
 
 /**
  * Unit test of {@link XmlDataExporter}.
@@ -64,4 +66,22 @@ public class TestXmlDataExporter {
     xmlDataExporter.exportData(new SyncData(emptyGlucoseReads, injections,
             foods, exerciseSessions, new DeviceInfo("serialNumber", "hId", "hRv"), Instant.now()));
   }
+
+  @Test
+  public void exportsOfTheSameTimeShouldNotOverwriteEachOther() throws Exception {
+    XmlDataExporter xmlDataExporter = new XmlDataExporter(this.bloodShepherdProperties);
+    Instant updateTime = Instant.ofEpochMilli(1385000000000L);
+
+    for (int i = 0; i < 3; i++) {
+      List<GlucoseRead> glucoseReads = Arrays.asList(new GlucoseRead(Instant.ofEpochSecond(i),
+              LocalDateTime.of(2013, 10, 10, 12, i), 83f, GlucoseRead.Unit.MG_PER_DL));
+      xmlDataExporter.exportData(new SyncData(glucoseReads, Collections.<InsulinInjection>emptyList(),
+              Collections.<FoodEvent>emptyList(), Collections.<ExerciseSession>emptyList(),
+              new DeviceInfo("serialNumber", "hId", "hRv"), updateTime));
+    }
+
+    assertThat(new File(this.tempDirectory, "blood-shepherd-export-1385000000000.xml").length() > 0, is(true));
+    assertThat(new File(this.tempDirectory, "blood-shepherd-export-1385000000000-1.xml").length() > 0, is(true));
+    assertThat(new File(this.tempDirectory, "blood-shepherd-export-1385000000000-2.xml").length() > 0, is(true));
+  }
 }
@@ -0,0 +1,128 @@
+package org.glukit.export.journal;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Unit test of {@link ExportJournal}.
+ *
+ * @author alexandre.normand
+ */
+public class TestExportJournal {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void appendedRecordsShouldBeReadBackInOrder() throws Exception {
+    ExportJournal journal = new ExportJournal(folder.getRoot());
+    long first = journal.append(new byte[]{1, 2, 3});
+    long second = journal.append(new byte[]{4});
+
+    ExportJournal.JournalEntry firstEntry = journal.read(first);
+    assertThat(firstEntry.getData(), equalTo(new byte[]{1, 2, 3}));
+    assertThat(firstEntry.getNextOffset(), is(second));
+    ExportJournal.JournalEntry secondEntry = journal.read(second);
+    assertThat(secondEntry.getData(), equalTo(new byte[]{4}));
+    assertThat(journal.read(secondEntry.getNextOffset()), is(nullValue()));
+    journal.close();
+  }
+
+  @Test
+  public void recordsShouldSurviveReopening() throws Exception {
+    ExportJournal journal = new ExportJournal(folder.getRoot(), 32);
+    for (byte i = 0; i < 10; i++) {
+      journal.append(new byte[]{i, i, i, i, i, i, i, i});
+    }
+    journal.close();
+
+    ExportJournal reopened = new ExportJournal(folder.getRoot(), 32);
+    List<Byte> values = newArrayList();
+    ExportJournal.JournalEntry entry = reopened.read(reopened.getStartOffset());
+    while (entry != null) {
+      values.add(entry.getData()[0]);
+      entry = reopened.read(entry.getNextOffset());
+    }
+    assertThat(values.size(), is(10));
+    assertThat(values.get(9), is((byte) 9));
+    assertThat(folder.getRoot().listFiles().length, is(5));
+    reopened.close();
+  }
+
+  @Test
+  public void incompleteTailShouldBeTruncatedOnRecovery() throws Exception {
+    ExportJournal journal = new ExportJournal(folder.getRoot());
+    journal.append(new byte[]{1, 2, 3});
+    long end = journal.getEndOffset();
+    journal.close();
+
+    // Simulates a crash in the middle of writing a second record
+    File segment = folder.getRoot().listFiles()[0];
+    RandomAccessFile file = new RandomAccessFile(segment, "rw");
+    file.seek(end);
+    file.writeInt(100);
+    file.writeInt(42);
+    file.write(new byte[]{9, 9});
+    file.close();
+
+    ExportJournal recovered = new ExportJournal(folder.getRoot());
+    assertThat(recovered.getEndOffset(), is(end));
+    assertThat(segment.length(), is(end));
+    long offset = recovered.append(new byte[]{5});
+    assertThat(offset, is(end));
+    assertThat(recovered.read(offset).getData(), equalTo(new byte[]{5}));
+    recovered.close();
+  }
+
+  @Test
+  public void consumedSegmentsShouldBeDeleted() throws Exception {
+    ExportJournal journal = new ExportJournal(folder.getRoot(), 32);
+    long lastOffset = 0;
+    for (byte i = 0; i < 4; i++) {
+      lastOffset = journal.append(new byte[]{i, i, i, i, i, i, i, i});
+    }
+    assertThat(folder.getRoot().listFiles().length, is(2));
+
+    journal.deleteBefore(lastOffset);
+    assertThat(folder.getRoot().listFiles().length, is(1));
+    assertThat(journal.getStartOffset(), is(lastOffset - 16));
+    assertThat(journal.read(lastOffset).getData()[0], is((byte) 3));
+    journal.close();
+  }
+
+  @Test
+  public void concurrentAppendsShouldAllBeReadable() throws Exception {
+    final ExportJournal journal = new ExportJournal(folder.getRoot(), 1024);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<Long>> offsets = newArrayList();
+    for (int i = 0; i < 200; i++) {
+      final byte value = (byte) i;
+      offsets.add(executor.submit(new Callable<Long>() {
+        @Override
+        public Long call() throws Exception {
+          return journal.append(new byte[]{value});
+        }
+      }));
+    }
+
+    for (int i = 0; i < offsets.size(); i++) {
+      assertThat(journal.read(offsets.get(i).get()).getData()[0], is((byte) i));
+    }
+    executor.shutdown();
+    journal.close();
+  }
+}
@@ -0,0 +1,249 @@
+package org.glukit.export.journal;
+
+import org.glukit.sync.api.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.threeten.bp.Duration;
+import org.threeten.bp.Instant;
+import org.threeten.bp.LocalDateTime;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Unit test of {@link JournalingDataExporter} and {@link SyncDataCodec}.
+ *
+ * @author alexandre.normand
+ */
+public class TestJournalingDataExporter {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void codecShouldRoundTripSyncData() throws Exception {
+    SyncData syncData = new SyncData(
+            Arrays.asList(new GlucoseRead(Instant.ofEpochSecond(10), LocalDateTime.of(2013, 10, 1, 8, 0), 95f,
+                    GlucoseRead.Unit.MG_PER_DL)),
+            Arrays.asList(new InsulinInjection(Instant.ofEpochSecond(20), LocalDateTime.of(2013, 10, 1, 8, 5),
+                    LocalDateTime.of(2013, 10, 1, 8, 4), 2.5f, InsulinInjection.InsulinType.FAST_ACTING,
+                    InsulinInjection.UNAVAILABLE_INSULIN_NAME)),
+            Arrays.asList(new FoodEvent(Instant.ofEpochSecond(30), LocalDateTime.of(2013, 10, 1, 8, 10),
+                    LocalDateTime.of(2013, 10, 1, 8, 9), 45f, 0f)),
+            Arrays.asList(new ExerciseSession(Instant.ofEpochSecond(40), LocalDateTime.of(2013, 10, 1, 9, 0),
+                    LocalDateTime.of(2013, 10, 1, 8, 30), null, Duration.ofMinutes(30), "run")),
+            new DeviceInfo("SM123", null, "2"), Instant.ofEpochSecond(50, 123));
+
+    SyncDataCodec codec = new SyncDataCodec();
+    assertThat(codec.decode(codec.encode(syncData)), equalTo(syncData));
+  }
+
+  @Test
+  public void codecShouldRoundTripTheStartOfABackfill() throws Exception {
+    SyncData syncData = new SyncData(Collections.<GlucoseRead>emptyList(), Collections.<InsulinInjection>emptyList(),
+            Collections.<FoodEvent>emptyList(), Collections.<ExerciseSession>emptyList(), null,
+            Instant.ofEpochSecond(50), Instant.ofEpochSecond(20));
+
+    SyncDataCodec codec = new SyncDataCodec();
+    assertThat(codec.decode(codec.encode(syncData)).getSince(), equalTo(Instant.ofEpochSecond(20)));
+  }
+
+  @Test
+  public void codecShouldDecodeRecordsWrittenBeforeTheStartOfABackfillWasKept() throws Exception {
+    // Version 1, no device info, no update time and four empty lists
+    byte[] record = new byte[] {1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+    SyncData syncData = new SyncDataCodec().decode(record);
+    assertThat(syncData.getSince(), nullValue());
+    assertThat(syncData.getGlucoseReads().isEmpty(), is(true));
+  }
+
+  @Test
+  public void exportDataShouldReturnBeforeExportersRun() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    RecordingExporter exporter = new RecordingExporter(release, 1);
+    JournalingDataExporter journaling = newJournalingExporter(exporter);
+
+    journaling.exportData(syncData(Instant.ofEpochSecond(1)));
+    assertThat(exporter.exported.size(), is(0));
+
+    release.countDown();
+    assertThat(exporter.latch.await(5, TimeUnit.SECONDS), is(true));
+    assertThat(exporter.exported.get(0), is(Instant.ofEpochSecond(1)));
+    journaling.close();
+  }
+
+  @Test
+  public void failedExportsShouldBeRetried() throws Exception {
+    RecordingExporter exporter = new RecordingExporter(new CountDownLatch(0), 2);
+    exporter.failuresLeft.set(1);
+    JournalingDataExporter journaling = newJournalingExporter(exporter);
+
+    journaling.exportData(syncData(Instant.ofEpochSecond(1)));
+    journaling.exportData(syncData(Instant.ofEpochSecond(2)));
+
+    assertThat(exporter.latch.await(10, TimeUnit.SECONDS), is(true));
+    assertThat(exporter.exported, equalTo(Arrays.asList(Instant.ofEpochSecond(1), Instant.ofEpochSecond(2))));
+    journaling.close();
+  }
+
+  @Test
+  public void recordThatKeepsFailingShouldBeSetAside() throws Exception {
+    RecordingExporter exporter = new RecordingExporter(new CountDownLatch(0), 1);
+    exporter.failuresLeft.set(JournalingDataExporter.MAX_EXPORT_ATTEMPTS);
+    JournalingDataExporter journaling = new JournalingDataExporter(new ExportJournal(folder.getRoot()),
+            Arrays.<DataExporter>asList(exporter), 1, ThreadModel.PLATFORM, 1L);
+
+    journaling.exportData(syncData(Instant.ofEpochSecond(1)));
+    journaling.exportData(syncData(Instant.ofEpochSecond(2)));
+
+    assertThat(exporter.latch.await(10, TimeUnit.SECONDS), is(true));
+    assertThat(exporter.exported, equalTo(Arrays.asList(Instant.ofEpochSecond(2))));
+    assertThat(folder.getRoot().list(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(".failed");
+      }
+    }).length, is(1));
+    journaling.close();
+  }
+
+  @Test
+  public void corruptRecordInAClosedSegmentShouldBeSetAside() throws Exception {
+    SyncDataCodec codec = new SyncDataCodec();
+    ExportJournal journal = new ExportJournal(folder.getRoot(), 64);
+    long corruptOffset = journal.append(codec.encode(syncData(Instant.ofEpochSecond(1))));
+    journal.append(codec.encode(syncData(Instant.ofEpochSecond(2))));
+    journal.close();
+
+    RandomAccessFile segment = new RandomAccessFile(new File(folder.getRoot(), String.format("%020d.log",
+            corruptOffset)), "rw");
+    try {
+      segment.seek(ExportJournal.RECORD_HEADER_SIZE + 1);
+      segment.write(segment.read() ^ 0xFF);
+    } finally {
+      segment.close();
+    }
+
+    RecordingExporter exporter = new RecordingExporter(new CountDownLatch(0), 1);
+    JournalingDataExporter journaling = new JournalingDataExporter(new ExportJournal(folder.getRoot(), 64),
+            Arrays.<DataExporter>asList(exporter), 1, ThreadModel.PLATFORM, 1L);
+
+    assertThat(exporter.latch.await(10, TimeUnit.SECONDS), is(true));
+    assertThat(exporter.exported, equalTo(Arrays.asList(Instant.ofEpochSecond(2))));
+    assertThat(folder.getRoot().list(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(".failed");
+      }
+    }).length, is(1));
+    journaling.close();
+  }
+
+  @Test
+  public void pendingRecordsShouldBeExportedAfterRestart() throws Exception {
+    RecordingExporter blockedExporter = new RecordingExporter(new CountDownLatch(1), 1);
+    JournalingDataExporter journaling = newJournalingExporter(blockedExporter);
+    journaling.exportData(syncData(Instant.ofEpochSecond(1)));
+    journaling.close();
+    assertThat(blockedExporter.exported.size(), is(0));
+
+    RecordingExporter exporter = new RecordingExporter(new CountDownLatch(0), 1);
+    JournalingDataExporter restarted = newJournalingExporter(exporter);
+    assertThat(exporter.latch.await(5, TimeUnit.SECONDS), is(true));
+    assertThat(exporter.exported.get(0), is(Instant.ofEpochSecond(1)));
+    restarted.close();
+  }
+
+  @Test
+  public void exportersShouldKeepTheirOwnOffsets() throws Exception {
+    RecordingExporter exporter = new RecordingExporter(new CountDownLatch(0), 1);
+    JournalingDataExporter journaling = newJournalingExporter(exporter);
+    journaling.exportData(syncData(Instant.ofEpochSecond(1)));
+    assertThat(exporter.latch.await(5, TimeUnit.SECONDS), is(true));
+    journaling.close();
+
+    RecordingExporter sameExporter = new RecordingExporter(new CountDownLatch(0), 1);
+    RecordingExporter newExporter = new OtherRecordingExporter(2);
+    JournalingDataExporter restarted = new JournalingDataExporter(new ExportJournal(folder.getRoot()),
+            Arrays.<DataExporter>asList(sameExporter, newExporter), 60);
+    restarted.exportData(syncData(Instant.ofEpochSecond(2)));
+    assertThat(sameExporter.latch.await(5, TimeUnit.SECONDS), is(true));
+    assertThat(newExporter.latch.await(5, TimeUnit.SECONDS), is(true));
+    restarted.close();
+
+    // The exporter that already saw the first record only gets the new one
+    assertThat(sameExporter.exported, equalTo(Arrays.asList(Instant.ofEpochSecond(2))));
+    assertThat(newExporter.exported, equalTo(Arrays.asList(Instant.ofEpochSecond(1), Instant.ofEpochSecond(2))));
+  }
+
+  @Test
+  public void exportersOfTheSameClassShouldKeepSeparateOffsets() throws Exception {
+    RecordingExporter firstExporter = new RecordingExporter(new CountDownLatch(0), 1);
+    RecordingExporter secondExporter = new RecordingExporter(new CountDownLatch(1), 1);
+    JournalingDataExporter journaling = new JournalingDataExporter(new ExportJournal(folder.getRoot()),
+            Arrays.<DataExporter>asList(firstExporter, secondExporter), 1);
+    journaling.exportData(syncData(Instant.ofEpochSecond(1)));
+    assertThat(firstExporter.latch.await(5, TimeUnit.SECONDS), is(true));
+    journaling.close();
+
+    assertThat(journaling.getExporterNames(), equalTo(Arrays.asList("RecordingExporter-0", "RecordingExporter-1")));
+    assertThat(journaling.getOffset("RecordingExporter-0") > journaling.getOffset("RecordingExporter-1"), is(true));
+  }
+
+  private JournalingDataExporter newJournalingExporter(DataExporter exporter) throws Exception {
+    return new JournalingDataExporter(new ExportJournal(folder.getRoot()), Arrays.asList(exporter), 1);
+  }
+
+  private static SyncData syncData(Instant updateTime) {
+    return new SyncData(Arrays.asList(new GlucoseRead(updateTime, LocalDateTime.of(2013, 10, 1, 8, 0), 100f,
+            GlucoseRead.Unit.MG_PER_DL)), Arrays.<InsulinInjection>asList(), Arrays.<FoodEvent>asList(),
+            Arrays.<ExerciseSession>asList(), new DeviceInfo("SM123", "1", "2"), updateTime);
+  }
+
+  private static class RecordingExporter implements DataExporter {
+    private final CountDownLatch release;
+    private final CountDownLatch latch;
+    private final List<Instant> exported = new CopyOnWriteArrayList<Instant>();
+    private final AtomicInteger failuresLeft = new AtomicInteger();
+
+    private RecordingExporter(CountDownLatch release, int expectedExports) {
+      this.release = release;
+      this.latch = new CountDownLatch(expectedExports);
+    }
+
+    @Override
+    public void exportData(SyncData syncData) {
+      try {
+        this.release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException(e);
+      }
+      if (this.failuresLeft.getAndDecrement() > 0) {
+        throw new IllegalStateException("Simulated export failure");
+      }
+      this.exported.add(syncData.getUpdateTime());
+      this.latch.countDown();
+    }
+  }
+
+  private static class OtherRecordingExporter extends RecordingExporter {
+    private OtherRecordingExporter(int expectedExports) {
+      super(new CountDownLatch(0), expectedExports);
+    }
+  }
+}
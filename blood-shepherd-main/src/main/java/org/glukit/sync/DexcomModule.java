@@ -23,19 +23,35 @@
 
 package org.glukit.sync;
 
+import com.google.common.base.Splitter;
 import com.google.common.base.Throwables;
 import com.google.inject.AbstractModule;
+import com.google.inject.Injector;
 import com.google.inject.Provides;
+import com.google.inject.Singleton;
+import org.apache.commons.lang3.StringUtils;
 import org.glukit.dexcom.sync.*;
 import org.glukit.dexcom.sync.g4.DexcomG4DeviceFilter;
+import org.glukit.export.FanOutDataExporter;
 import org.glukit.export.XmlDataExporter;
+import org.glukit.export.journal.ExportJournal;
+import org.glukit.export.journal.JournalingDataExporter;
 import org.glukit.sync.api.BloodShepherdPreferences;
 import org.glukit.sync.api.BloodShepherdProperties;
 import org.glukit.sync.api.DataExporter;
+import org.glukit.sync.api.ThreadModel;
 
 import javax.usb.UsbException;
 import javax.usb.UsbHostManager;
 import javax.usb.UsbServices;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static java.lang.String.format;
+import static org.glukit.sync.api.BloodShepherdProperties.EXPORTERS;
+import static org.glukit.sync.api.BloodShepherdProperties.EXPORT_JOURNAL_PATH;
 
 /**
  * Guice module with the dependencies configuration.
@@ -43,6 +59,8 @@ import javax.usb.UsbServices;
  * @author alexandre.normand
  */
 public class DexcomModule extends AbstractModule {
+  private static final String DEFAULT_EXPORT_JOURNAL_PATH =
+          new File(System.getProperty("user.home"), ".blood-shepherd/export-journal").getPath();
 
   private final BloodShepherdProperties properties;
 
@@ -57,7 +75,30 @@ public class DexcomModule extends AbstractModule {
     bind(DataOutputFactory.class).to(LittleEndianDataOutputFactory.class);
     bind(DataInputFactory.class).to(LittleEndianDataInputFactory.class);
     bind(AdapterService.class).to(DexcomAdapterService.class);
-    bind(DataExporter.class).to(XmlDataExporter.class);
+  }
+
+  @Provides
+  @Singleton
+  DataExporter provideDataExporter(Injector injector) {
+    String exporterClassNames = properties.getProperty(EXPORTERS, XmlDataExporter.class.getName());
+    List<DataExporter> exporters = newArrayList();
+    for (String exporterClassName : Splitter.on(',').trimResults().omitEmptyStrings().split(exporterClassNames)) {
+      try {
+        exporters.add(injector.getInstance(Class.forName(exporterClassName).asSubclass(DataExporter.class)));
+      } catch (ClassNotFoundException e) {
+        throw new IllegalArgumentException(format("Invalid exporter [%s] in %s", exporterClassName, EXPORTERS), e);
+      }
+    }
+
+    String journalPath = properties.getProperty(EXPORT_JOURNAL_PATH, DEFAULT_EXPORT_JOURNAL_PATH);
+    if (StringUtils.isBlank(journalPath)) {
+      return new FanOutDataExporter(exporters, properties);
+    }
+    try {
+      return new JournalingDataExporter(new ExportJournal(new File(journalPath)), exporters, properties);
+    } catch (IOException e) {
+      throw Throwables.propagate(e);
+    }
   }
 
   @Provides
@@ -76,6 +117,12 @@ public class DexcomModule extends AbstractModule {
     return properties;
   }
 
+  @Provides
+  @Singleton
+  ThreadModel provideThreadModel() {
+    return ThreadModel.fromProperties(properties);
+  }
+
   @Provides
   BloodShepherdPreferences provideBloodShepherdPreferences() {
     return new BloodShepherdPreferences();
@@ -0,0 +1,63 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.inject.Inject;
+import org.glukit.dexcom.sync.responses.Response;
+import org.glukit.dexcom.sync.transport.EventDrivenSerialTransport;
+
+import javax.annotation.Nullable;
+
+/**
+ * Asynchronous counterpart of {@link ResponseReader}. Responses complete as soon as their last byte has been
+ * received by the transport's event thread, leaving the caller free to do something else (or to wait with a
+ * timeout of its choosing) rather than sitting in a read.
+ *
+ * @author alexandre.normand
+ */
+public class AsyncResponseReader {
+  private final ResponseReader responseReader;
+
+  @Inject
+  public AsyncResponseReader(ResponseReader responseReader) {
+    this.responseReader = responseReader;
+  }
+
+  /**
+   * Returns a future of the next response received on the transport. A response failing to decode fails the
+   * future rather than the transport, the following responses can still be read.
+   */
+  public <T extends Response> ListenableFuture<T> read(final Class<T> type, EventDrivenSerialTransport transport) {
+    return Futures.transform(transport.readFrame(), new Function<byte[], T>() {
+      @Override
+      public T apply(@Nullable byte[] frame) {
+        return responseReader.decode(type, frame);
+      }
+    });
+  }
+}
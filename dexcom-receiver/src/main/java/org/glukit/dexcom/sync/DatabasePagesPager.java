@@ -23,29 +23,65 @@
 
 package org.glukit.dexcom.sync;
 
-import com.google.common.primitives.UnsignedBytes;
 import org.glukit.dexcom.sync.model.DatabaseReadRequestSpec;
 
 import java.util.Iterator;
 import java.util.List;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.collect.Lists.newArrayList;
+import static org.glukit.dexcom.sync.model.DatabaseReadRequestSpec.LARGEST_PAGES_PER_COMMAND;
 import static org.glukit.dexcom.sync.model.DatabaseReadRequestSpec.MAX_PAGES_PER_COMMAND;
 
 /**
  * Pager/iterator to go through all pages of a database. This uses the data from a
  * {@link org.glukit.dexcom.sync.responses.PageRangeResponse} and returns an iterator that will
- * go over all {@link DatabaseReadRequestSpec}s required to read all of it.
+ * go over all {@link DatabaseReadRequestSpec}s required to read all of it, oldest pages first unless
+ * {@link #newestFirst(long, long)} is used. Each command reads {@link DatabaseReadRequestSpec#MAX_PAGES_PER_COMMAND}
+ * pages unless the firmware is known to take more.
  *
  * @author alexandre.normand
  */
 public class DatabasePagesPager implements Iterable<DatabaseReadRequestSpec> {
   private long firstPage;
   private long lastPage;
+  private boolean newestFirst;
+  private byte pagesPerCommand;
 
   public DatabasePagesPager(long firstPage, long lastPage) {
+    this(firstPage, lastPage, MAX_PAGES_PER_COMMAND);
+  }
+
+  /**
+   * @param pagesPerCommand the most pages read by a single command.
+   */
+  public DatabasePagesPager(long firstPage, long lastPage, byte pagesPerCommand) {
+    this(firstPage, lastPage, false, pagesPerCommand);
+  }
+
+  private DatabasePagesPager(long firstPage, long lastPage, boolean newestFirst, byte pagesPerCommand) {
+    checkArgument(pagesPerCommand > 0 && pagesPerCommand <= LARGEST_PAGES_PER_COMMAND,
+            "Commands are limited to [%s] pages or less, given invalid value of [%s]", LARGEST_PAGES_PER_COMMAND,
+            pagesPerCommand);
     this.firstPage = firstPage;
     this.lastPage = lastPage;
+    this.newestFirst = newestFirst;
+    this.pagesPerCommand = pagesPerCommand;
+  }
+
+  /**
+   * @return a pager going from the last page down to the first one. Each chunk still reads its pages in order, the
+   * last chunk returned is the partial one if the pages don't divide evenly.
+   */
+  public static DatabasePagesPager newestFirst(long firstPage, long lastPage) {
+    return newestFirst(firstPage, lastPage, MAX_PAGES_PER_COMMAND);
+  }
+
+  /**
+   * @see #newestFirst(long, long)
+   */
+  public static DatabasePagesPager newestFirst(long firstPage, long lastPage, byte pagesPerCommand) {
+    return new DatabasePagesPager(firstPage, lastPage, true, pagesPerCommand);
   }
 
   @Override
@@ -56,9 +92,16 @@ public class DatabasePagesPager implements Iterable<DatabaseReadRequestSpec> {
 
   private List<DatabaseReadRequestSpec> buildListOfChunks() {
     List<DatabaseReadRequestSpec> specs = newArrayList();
-    for (long chunkStart = this.firstPage; chunkStart <= lastPage; chunkStart+= MAX_PAGES_PER_COMMAND) {
+    if (this.newestFirst) {
+      for (long chunkEnd = this.lastPage; chunkEnd >= firstPage; chunkEnd -= this.pagesPerCommand) {
+        long chunkStart = Math.max(firstPage, chunkEnd - this.pagesPerCommand + 1);
+        specs.add(new DatabaseReadRequestSpec(chunkStart, (byte) (chunkEnd - chunkStart + 1)));
+      }
+      return specs;
+    }
+    for (long chunkStart = this.firstPage; chunkStart <= lastPage; chunkStart+= this.pagesPerCommand) {
       specs.add(new DatabaseReadRequestSpec(chunkStart,
-              UnsignedBytes.min((byte) (lastPage - chunkStart + 1), MAX_PAGES_PER_COMMAND)));
+              (byte) Math.min(lastPage - chunkStart + 1, this.pagesPerCommand)));
     }
     return specs;
   }
@@ -0,0 +1,271 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
+import org.glukit.dexcom.sync.model.RecordType;
+import org.glukit.sync.api.BloodShepherdProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.String.format;
+import static org.glukit.dexcom.sync.SyncMetrics.PAGE_CACHE_EVICTIONS;
+import static org.glukit.dexcom.sync.SyncMetrics.PAGE_CACHE_HITS;
+import static org.glukit.dexcom.sync.SyncMetrics.PAGE_CACHE_MISSES;
+import static org.glukit.sync.api.BloodShepherdProperties.PAGE_CACHE_MAX_KILOBYTES;
+import static org.glukit.sync.api.BloodShepherdProperties.getIntProperty;
+
+/**
+ * Records decoded from database pages, kept for the life of the process so that pages read again, like the last
+ * page of each record type at every sync or the newest glucose page at every live tail poll, are only decoded once.
+ * A page is known by its receiver, record type, number and header crc16. The header holds the page's record count
+ * so a page that got more records since is decoded again.
+ * <p/>
+ * The cache is bounded by the size of the pages it holds. New pages go to a small window and, once out of it, only
+ * make it to the main space if they've been asked for more often than the page they would push out. That keeps
+ * the pages read over and over from being flushed by a one time read of the whole receiver's history. How often
+ * pages are asked for is estimated with a count-min sketch whose counts are halved once in a while so that pages
+ * that used to be popular don't stay forever.
+ *
+ * @author alexandre.normand
+ */
+@Singleton
+public class DecodedPageCache {
+  private static Logger LOGGER = LoggerFactory.getLogger(DecodedPageCache.class);
+
+  static final int DEFAULT_MAX_KILOBYTES = 4096;
+  static final int WINDOW_PERCENT = 1;
+
+  private final long maxBytes;
+  private final long windowMaxBytes;
+  private final SyncMetrics syncMetrics;
+  private final FrequencySketch sketch;
+  private final LinkedHashMap<PageKey, CachedPage> window = new LinkedHashMap<PageKey, CachedPage>(16, 0.75f, true);
+  private final LinkedHashMap<PageKey, CachedPage> main = new LinkedHashMap<PageKey, CachedPage>(16, 0.75f, true);
+  private long windowBytes = 0;
+  private long mainBytes = 0;
+
+  @Inject
+  public DecodedPageCache(BloodShepherdProperties properties, SyncMetrics syncMetrics) {
+    this(1024L * getIntProperty(properties, PAGE_CACHE_MAX_KILOBYTES, DEFAULT_MAX_KILOBYTES), syncMetrics);
+  }
+
+  public DecodedPageCache(long maxBytes, SyncMetrics syncMetrics) {
+    checkArgument(maxBytes >= 0, "%s can't be negative", PAGE_CACHE_MAX_KILOBYTES);
+    this.maxBytes = maxBytes;
+    this.windowMaxBytes = maxBytes * WINDOW_PERCENT / 100;
+    this.syncMetrics = syncMetrics;
+    this.sketch = new FrequencySketch(maxBytes);
+  }
+
+  /**
+   * @param weight  the size of the page in bytes.
+   * @param decoder decodes the page's records if they aren't cached.
+   * @return the records of the page.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> List<T> getRecords(PageKey key, int weight, Supplier<List<T>> decoder) {
+    synchronized (this) {
+      this.sketch.increment(key);
+      CachedPage cachedPage = this.window.get(key);
+      if (cachedPage == null) {
+        cachedPage = this.main.get(key);
+      }
+      if (cachedPage != null) {
+        this.syncMetrics.increment(PAGE_CACHE_HITS);
+        return (List<T>) cachedPage.records;
+      }
+    }
+
+    this.syncMetrics.increment(PAGE_CACHE_MISSES);
+    List<T> records = ImmutableList.copyOf(decoder.get());
+    put(key, new CachedPage(records, weight));
+    return records;
+  }
+
+  /**
+   * @return the size of the pages cached, in bytes.
+   */
+  @VisibleForTesting
+  synchronized long getWeightedSize() {
+    return this.windowBytes + this.mainBytes;
+  }
+
+  private synchronized void put(PageKey key, CachedPage page) {
+    // A page has to fit in the main space to be admitted there, no matter how little else is cached
+    if (page.weight > this.maxBytes - this.windowMaxBytes || this.window.containsKey(key)
+            || this.main.containsKey(key)) {
+      return;
+    }
+
+    this.window.put(key, page);
+    this.windowBytes += page.weight;
+    while (this.windowBytes > this.windowMaxBytes) {
+      Iterator<Map.Entry<PageKey, CachedPage>> eldest = this.window.entrySet().iterator();
+      Map.Entry<PageKey, CachedPage> candidate = eldest.next();
+      eldest.remove();
+      this.windowBytes -= candidate.getValue().weight;
+      admit(candidate.getKey(), candidate.getValue());
+    }
+  }
+
+  /**
+   * Moves a page out of the window to the main space if there's room or if it's more popular than the least recently
+   * used pages it would push out.
+   */
+  private void admit(PageKey key, CachedPage page) {
+    long mainMaxBytes = this.maxBytes - this.windowMaxBytes;
+    int candidateFrequency = this.sketch.frequency(key);
+    while (this.mainBytes + page.weight > mainMaxBytes) {
+      Iterator<Map.Entry<PageKey, CachedPage>> eldest = this.main.entrySet().iterator();
+      Map.Entry<PageKey, CachedPage> victim = eldest.next();
+      if (candidateFrequency <= this.sketch.frequency(victim.getKey())) {
+        LOGGER.debug(format("Not caching %s, it's not asked for more than %s", key, victim.getKey()));
+        this.syncMetrics.increment(PAGE_CACHE_EVICTIONS);
+        return;
+      }
+      eldest.remove();
+      this.mainBytes -= victim.getValue().weight;
+      this.syncMetrics.increment(PAGE_CACHE_EVICTIONS);
+    }
+    this.main.put(key, page);
+    this.mainBytes += page.weight;
+  }
+
+  /**
+   * Identifies a version of a database page.
+   */
+  @EqualsAndHashCode
+  @ToString
+  public static class PageKey {
+    private final String serialNumber;
+    private final RecordType recordType;
+    private final long pageNumber;
+    private final int headerCrc;
+
+    public PageKey(String serialNumber, RecordType recordType, long pageNumber, int headerCrc) {
+      this.serialNumber = serialNumber;
+      this.recordType = recordType;
+      this.pageNumber = pageNumber;
+      this.headerCrc = headerCrc;
+    }
+  }
+
+  private static class CachedPage {
+    private final List<?> records;
+    private final int weight;
+
+    private CachedPage(List<?> records, int weight) {
+      this.records = records;
+      this.weight = weight;
+    }
+  }
+
+  /**
+   * Count-min sketch of how often keys are asked for, with 4 bit counts. Counts are halved after
+   * {@code 10 * width} increments.
+   */
+  private static class FrequencySketch {
+    private static final int[] SEEDS = {0x97cb3127, 0xb3a3c5a3, 0x8f8d5ac9, 0x6b9ecb57};
+    private static final int MAX_COUNT = 15;
+    private static final int MIN_WIDTH = 64;
+    private static final int MAX_WIDTH = 1 << 16;
+    /**
+     * Guess of the smallest page size, to size the sketch for as many pages as the cache can hold.
+     */
+    private static final int MIN_PAGE_BYTES = 256;
+
+    private final byte[][] counts;
+    private final int mask;
+    private final int sampleSize;
+    private int additions = 0;
+
+    private FrequencySketch(long maxBytes) {
+      long pages = Math.max(MIN_WIDTH, Math.min(MAX_WIDTH, maxBytes / MIN_PAGE_BYTES));
+      int width = Integer.highestOneBit((int) pages - 1) << 1;
+      this.counts = new byte[SEEDS.length][width];
+      this.mask = width - 1;
+      this.sampleSize = 10 * width;
+    }
+
+    private void increment(Object key) {
+      int hash = key.hashCode();
+      int frequency = frequency(hash);
+      if (frequency >= MAX_COUNT) {
+        return;
+      }
+      // Only the smallest counts go up, that keeps collisions from inflating the estimate
+      for (int i = 0; i < SEEDS.length; i++) {
+        int index = indexOf(hash, i);
+        if (this.counts[i][index] == frequency) {
+          this.counts[i][index]++;
+        }
+      }
+
+      if (++this.additions >= this.sampleSize) {
+        age();
+      }
+    }
+
+    private int frequency(Object key) {
+      return frequency(key.hashCode());
+    }
+
+    private int frequency(int hash) {
+      int frequency = MAX_COUNT;
+      for (int i = 0; i < SEEDS.length; i++) {
+        frequency = Math.min(frequency, this.counts[i][indexOf(hash, i)]);
+      }
+      return frequency;
+    }
+
+    private int indexOf(int hash, int row) {
+      int h = hash * SEEDS[row];
+      h ^= h >>> 16;
+      return h & this.mask;
+    }
+
+    private void age() {
+      for (byte[] row : this.counts) {
+        for (int i = 0; i < row.length; i++) {
+          row[i] = (byte) (row[i] >>> 1);
+        }
+      }
+      this.additions /= 2;
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.glukit.dexcom.sync.model.DeviceMetadata;
+import org.glukit.dexcom.sync.model.ManufacturingParameters;
+import org.glukit.dexcom.sync.model.PageRange;
+import org.glukit.sync.api.BloodShepherdPreferences;
+import org.glukit.sync.api.GlucoseRead;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.Map;
+
+import static java.lang.String.format;
+
+/**
+ * Remembers the {@link DeviceMetadata} of each receiver across restarts, by the serial number of its USB device, so
+ * that it isn't read again at every sync. Devices without a USB serial number can't be told apart and aren't
+ * remembered.
+ *
+ * @author alexandre.normand
+ */
+@Singleton
+public class DeviceRegistry {
+  private static Logger LOGGER = LoggerFactory.getLogger(DeviceRegistry.class);
+
+  private static final String SERIAL_NUMBER = "serial.number";
+  private static final String HARDWARE_PART_NUMBER = "hardware.part.number";
+  private static final String HARDWARE_REVISION = "hardware.revision";
+  private static final String DATE_TIME_CREATED = "date.time.created";
+  private static final String HARDWARE_ID = "hardware.id";
+  private static final String MANUFACTURING_FIRST_PAGE = "manufacturing.first.page";
+  private static final String MANUFACTURING_LAST_PAGE = "manufacturing.last.page";
+  private static final String FIRMWARE_HEADER = "firmware.header";
+  private static final String GLUCOSE_UNIT = "glucose.unit";
+
+  private final BloodShepherdPreferences preferences;
+
+  @Inject
+  public DeviceRegistry(BloodShepherdPreferences preferences) {
+    this.preferences = preferences;
+  }
+
+  /**
+   * @return the metadata saved for the device or {@code null} if there's none or it can't be used.
+   */
+  @Nullable
+  public DeviceMetadata get(UsbDeviceIdentity device) {
+    if (!hasSerialNumber(device)) {
+      return null;
+    }
+
+    Map<String, String> metadata = this.preferences.getDeviceMetadata(device.getSerialNumber());
+    if (metadata.isEmpty()) {
+      return null;
+    }
+    try {
+      ManufacturingParameters manufacturingParameters = new ManufacturingParameters(
+              checkPresent(metadata, SERIAL_NUMBER), metadata.get(HARDWARE_PART_NUMBER),
+              metadata.get(HARDWARE_REVISION), metadata.get(DATE_TIME_CREATED), metadata.get(HARDWARE_ID));
+      PageRange manufacturingPageRange = new PageRange(
+              Long.parseLong(checkPresent(metadata, MANUFACTURING_FIRST_PAGE)),
+              Long.parseLong(checkPresent(metadata, MANUFACTURING_LAST_PAGE)));
+      String glucoseUnit = metadata.get(GLUCOSE_UNIT);
+      return new DeviceMetadata(manufacturingParameters, manufacturingPageRange, checkPresent(metadata,
+              FIRMWARE_HEADER), glucoseUnit == null ? null : GlucoseRead.Unit.valueOf(glucoseUnit));
+    } catch (IllegalArgumentException e) {
+      LOGGER.warn(format("Ignoring invalid metadata saved for device %s: %s", device, metadata), e);
+      return null;
+    }
+  }
+
+  /**
+   * Saves the device's metadata, unless it has no USB serial number or the receiver's serial number is unknown.
+   */
+  public void save(UsbDeviceIdentity device, DeviceMetadata deviceMetadata) {
+    ManufacturingParameters manufacturingParameters = deviceMetadata.getManufacturingParameters();
+    if (!hasSerialNumber(device) || manufacturingParameters == null
+            || manufacturingParameters.getSerialNumber() == null || deviceMetadata.getFirmwareHeader() == null) {
+      return;
+    }
+
+    ImmutableMap.Builder<String, String> metadata = ImmutableMap.builder();
+    metadata.put(SERIAL_NUMBER, manufacturingParameters.getSerialNumber());
+    putIfPresent(metadata, HARDWARE_PART_NUMBER, manufacturingParameters.getHardwarePartNumber());
+    putIfPresent(metadata, HARDWARE_REVISION, manufacturingParameters.getHardwareRevision());
+    putIfPresent(metadata, DATE_TIME_CREATED, manufacturingParameters.getDateTimeCreated());
+    putIfPresent(metadata, HARDWARE_ID, manufacturingParameters.getHardwareId());
+    metadata.put(MANUFACTURING_FIRST_PAGE, String.valueOf(deviceMetadata.getManufacturingPageRange().getFirstPage()));
+    metadata.put(MANUFACTURING_LAST_PAGE, String.valueOf(deviceMetadata.getManufacturingPageRange().getLastPage()));
+    metadata.put(FIRMWARE_HEADER, deviceMetadata.getFirmwareHeader());
+    if (deviceMetadata.getGlucoseUnit() != null) {
+      metadata.put(GLUCOSE_UNIT, deviceMetadata.getGlucoseUnit().name());
+    }
+    this.preferences.saveDeviceMetadata(device.getSerialNumber(), metadata.build());
+  }
+
+  private static boolean hasSerialNumber(UsbDeviceIdentity device) {
+    String serialNumber = device.getSerialNumber();
+    return serialNumber != null && !serialNumber.isEmpty() && !serialNumber.contains("/");
+  }
+
+  private static String checkPresent(Map<String, String> metadata, String key) {
+    String value = metadata.get(key);
+    if (value == null) {
+      throw new IllegalArgumentException(format("Missing [%s]", key));
+    }
+    return value;
+  }
+
+  private static void putIfPresent(ImmutableMap.Builder<String, String> metadata, String key, String value) {
+    if (value != null) {
+      metadata.put(key, value);
+    }
+  }
+}
@@ -27,6 +27,7 @@ import de.ailis.usb4java.libusb.LibUsb;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.usb.UsbException;
 import javax.usb.UsbServices;
 import java.util.Properties;
 
@@ -39,20 +40,28 @@ public class DexcomDaemon {
   private static Logger LOGGER = LoggerFactory.getLogger(DexcomDaemon.class);
   private final UsbServices usbServices;
   private final DexcomWatcher watcher;
+  private final SyncScheduler syncScheduler;
 
   @Inject
-  public DexcomDaemon(UsbServices usbServices, DexcomWatcher watcher) {
+  public DexcomDaemon(UsbServices usbServices, DexcomWatcher watcher, SyncScheduler syncScheduler) {
     this.usbServices = usbServices;
     this.watcher = watcher;
+    this.syncScheduler = syncScheduler;
   }
 
   public void start() {
     this.usbServices.addUsbServicesListener(watcher);
     LibUsb.init(null);
+    try {
+      this.watcher.attachPluggedDevices(this.usbServices.getRootUsbHub());
+    } catch (UsbException e) {
+      LOGGER.warn("Can't list the devices already plugged in, only syncing receivers plugged from now on.", e);
+    }
   }
 
   public void stop() {
     this.usbServices.removeUsbServicesListener(watcher);
+    this.syncScheduler.shutdown();
     LibUsb.exit(null);
   }
 }
@@ -23,38 +23,206 @@
 
 package org.glukit.dexcom.sync;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 import jssc.SerialPortList;
 import org.glukit.dexcom.sync.tasks.IsReceiverOnThisPortRunner;
+import org.glukit.sync.api.ThreadModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newConcurrentMap;
+import static java.lang.String.format;
+
 /**
- * Finds the {@link jssc.SerialPort} for the Dexcom receiver
+ * Finds the {@link jssc.SerialPort} for the Dexcom receiver. On Linux, the port is resolved from sysfs. Elsewhere,
+ * candidate ports are probed concurrently and the first one that answers wins. The port found for a USB device is
+ * remembered and tried first the next time that same device shows up. Ports found for other receivers aren't probed
+ * so that several receivers can be found at the same time.
  * @author alexandre.normand
  */
+@Singleton
 public class DexcomReceiverFinder {
-  public static final Pattern DEVICE_FILTER = Pattern.compile(".*\\.usbmodem.*");
+  private static Logger LOGGER = LoggerFactory.getLogger(DexcomReceiverFinder.class);
+
+  public static final Pattern DEVICE_FILTER = Pattern.compile(".*(\\.usbmodem|ttyACM).*");
+  static final int MAX_CONCURRENT_PROBES = 4;
+  static final int SYSFS_ATTEMPTS = 10;
+  static final long SYSFS_RETRY_DELAY_MILLIS = 200;
+
   private final IsReceiverOnThisPortRunner isReceiverOnThisPortRunner;
+  private final SysfsReceiverPortResolver sysfsReceiverPortResolver;
+  private final ExecutorService probeExecutor;
+  private final ConcurrentMap<UsbDeviceIdentity, String> portsByDevice = newConcurrentMap();
+
+  public DexcomReceiverFinder(IsReceiverOnThisPortRunner isReceiverOnThisPortRunner,
+                              SysfsReceiverPortResolver sysfsReceiverPortResolver) {
+    this(isReceiverOnThisPortRunner, sysfsReceiverPortResolver, ThreadModel.PLATFORM);
+  }
 
   @Inject
-  public DexcomReceiverFinder(IsReceiverOnThisPortRunner isReceiverOnThisPortRunner) {
+  public DexcomReceiverFinder(IsReceiverOnThisPortRunner isReceiverOnThisPortRunner,
+                              SysfsReceiverPortResolver sysfsReceiverPortResolver, ThreadModel threadModel) {
     this.isReceiverOnThisPortRunner = isReceiverOnThisPortRunner;
+    this.sysfsReceiverPortResolver = sysfsReceiverPortResolver;
+    this.probeExecutor = threadModel.newExecutor("receiver-probe-%d", MAX_CONCURRENT_PROBES);
   }
 
   public String findReceiverPort() {
-    String[] portNames = SerialPortList.getPortNames(DEVICE_FILTER);
+    return findReceiverPort(null);
+  }
+
+  /**
+   * Finds the receiver port. When sysfs is available, the port is looked up from the device without any probing.
+   * Otherwise, the port last found for the given USB device is tried first and all candidate ports get probed if
+   * that fails.
+   *
+   * @param device the identity of the USB device, {@code null} to skip the lookup and the cache.
+   */
+  public String findReceiverPort(UsbDeviceIdentity device) {
+    if (device != null) {
+      List<String> sysfsPorts = resolveFromSysfs(device);
+      if (sysfsPorts != null && sysfsPorts.size() == 1) {
+        return sysfsPorts.get(0);
+      } else if (sysfsPorts != null && sysfsPorts.size() > 1) {
+        // Only probe the ttys of identical devices rather than every serial port
+        return cache(device, checkFound(probeConcurrently(withoutPortsOfOtherDevices(device, sysfsPorts))));
+      }
+    }
+
+    String[] portNames = listPorts();
     if (portNames == null || portNames.length == 0) {
       throw new IllegalStateException("Receiver serial port can't be found");
     }
 
-    for (String port : portNames) {
-      if (this.isReceiverOnThisPortRunner.isReceiver(port)) {
-        return port;
+    List<String> candidates = withoutPortsOfOtherDevices(device, Arrays.asList(portNames));
+    String cachedPort = device == null ? null : this.portsByDevice.get(device);
+    if (cachedPort != null && candidates.remove(cachedPort)) {
+      if (this.isReceiverOnThisPortRunner.isReceiver(cachedPort)) {
+        LOGGER.debug(format("Receiver found on cached port %s", cachedPort));
+        return cachedPort;
+      }
+      LOGGER.info(format("Receiver not found on cached port %s anymore, probing all ports", cachedPort));
+      invalidate(device);
+    }
+
+    return cache(device, checkFound(probeConcurrently(candidates)));
+  }
+
+  /**
+   * Forgets the port found for the given USB device.
+   */
+  public void invalidate(UsbDeviceIdentity device) {
+    if (device != null && this.portsByDevice.remove(device) != null) {
+      LOGGER.debug(format("Forgot receiver port of device %s", device));
+    }
+  }
+
+  /**
+   * Looks the device up in sysfs, giving the kernel a moment to create the tty since we're usually called right as
+   * the device gets attached.
+   */
+  private List<String> resolveFromSysfs(UsbDeviceIdentity device) {
+    for (int attempt = 1; attempt <= SYSFS_ATTEMPTS; attempt++) {
+      List<String> ports = this.sysfsReceiverPortResolver.resolvePorts(device);
+      if (ports == null || !ports.isEmpty()) {
+        return ports;
+      }
+      try {
+        Thread.sleep(SYSFS_RETRY_DELAY_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while looking for the receiver port", e);
+      }
+    }
+    LOGGER.info(format("No tty for %s in sysfs, falling back to probing", device));
+    return null;
+  }
+
+  private List<String> withoutPortsOfOtherDevices(UsbDeviceIdentity device, List<String> portNames) {
+    List<String> candidates = newArrayList(portNames);
+    for (Map.Entry<UsbDeviceIdentity, String> devicePort : this.portsByDevice.entrySet()) {
+      if (!devicePort.getKey().equals(device)) {
+        candidates.remove(devicePort.getValue());
+      }
+    }
+    return candidates;
+  }
+
+  private String cache(UsbDeviceIdentity device, String port) {
+    if (device != null) {
+      this.portsByDevice.put(device, port);
+    }
+    return port;
+  }
+
+  private static String checkFound(String port) {
+    if (port == null) {
+      throw new IllegalStateException("Found some matching devices but none of them identified as the dexcom " +
+              "receiver. Maybe another application is holding the port?");
+    }
+    return port;
+  }
+
+  @VisibleForTesting
+  String[] listPorts() {
+    return SerialPortList.getPortNames(DEVICE_FILTER);
+  }
+
+  /**
+   * Probes all ports at once and returns the first one that identifies as the receiver, cancelling the probes
+   * still running.
+   */
+  private String probeConcurrently(List<String> portNames) {
+    CompletionService<String> completionService = new ExecutorCompletionService<String>(this.probeExecutor);
+    List<Future<String>> probes = newArrayList();
+    for (final String portName : portNames) {
+      probes.add(completionService.submit(new Callable<String>() {
+        @Override
+        public String call() throws Exception {
+          return isReceiverOnThisPortRunner.isReceiver(portName) ? portName : null;
+        }
+      }));
+    }
+
+    try {
+      for (int i = 0; i < probes.size(); i++) {
+        String port = getQuietly(completionService.take());
+        if (port != null) {
+          return port;
+        }
+      }
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while looking for the receiver port", e);
+    } finally {
+      for (Future<String> probe : probes) {
+        probe.cancel(true);
       }
     }
+  }
 
-    throw new IllegalStateException("Found some matching devices but none of them identified as the dexcom receiver. " +
-            "Maybe another application is holding the port?");
+  private static String getQuietly(Future<String> probe) throws InterruptedException {
+    try {
+      return probe.get();
+    } catch (ExecutionException e) {
+      LOGGER.info("Probe failed, ignoring that port.", e.getCause());
+      return null;
+    }
   }
 }
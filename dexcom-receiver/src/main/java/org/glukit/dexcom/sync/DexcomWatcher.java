@@ -23,54 +23,50 @@
 
 package org.glukit.dexcom.sync;
 
-import com.google.common.base.Throwables;
 import com.google.inject.Inject;
-import jssc.SerialPort;
-import org.glukit.dexcom.sync.tasks.FetchNewDataRunner;
-import org.glukit.sync.AdapterService;
-import org.glukit.sync.api.BloodShepherdPreferences;
-import org.glukit.sync.api.DataExporter;
-import org.glukit.sync.api.ReceiverSyncData;
-import org.glukit.sync.api.SyncData;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.threeten.bp.Instant;
 
 import javax.usb.UsbDevice;
 import javax.usb.UsbDeviceDescriptor;
+import javax.usb.UsbHub;
 import javax.usb.event.UsbServicesEvent;
 import javax.usb.event.UsbServicesListener;
 
 import static java.lang.String.format;
 
 /**
- * This will listen on USB for device connection/disconnections and start a sync process
- * when it sees the Dexcom receiver plugged in.
+ * This will listen on USB for device connection/disconnections and hand the Dexcom receiver over to the
+ * {@link SyncScheduler} when it's plugged in or unplugged. Nothing is done on the USB event thread itself.
  * @author alexandre.normand
  */
 public class DexcomWatcher implements UsbServicesListener {
   private static Logger LOGGER = LoggerFactory.getLogger(DexcomDaemon.class);
 
   private final DeviceFilter deviceFilter;
-  private final DexcomReceiverFinder receiverFinder;
-  private final FetchNewDataRunner fetchNewDataRunner;
-  private final AdapterService adapterService;
-  private final DataExporter dataExporter;
-  private final BloodShepherdPreferences preferences;
+  private final SyncScheduler syncScheduler;
 
   @Inject
-  public DexcomWatcher(DeviceFilter deviceFilter,
-                       DexcomReceiverFinder receiverFinder,
-                       FetchNewDataRunner fetchNewDataRunner,
-                       AdapterService adapterService,
-                       DataExporter dataExporter,
-                       BloodShepherdPreferences preferences) {
+  public DexcomWatcher(DeviceFilter deviceFilter, SyncScheduler syncScheduler) {
     this.deviceFilter = deviceFilter;
-    this.receiverFinder = receiverFinder;
-    this.fetchNewDataRunner = fetchNewDataRunner;
-    this.adapterService = adapterService;
-    this.dataExporter = dataExporter;
-    this.preferences = preferences;
+    this.syncScheduler = syncScheduler;
+  }
+
+  /**
+   * Hands over every receiver already plugged under that hub, we only get events for the ones plugged after we
+   * started listening.
+   */
+  public void attachPluggedDevices(UsbHub hub) {
+    for (Object attachedDevice : hub.getAttachedUsbDevices()) {
+      UsbDevice usbDevice = (UsbDevice) attachedDevice;
+      if (usbDevice.isUsbHub()) {
+        attachPluggedDevices((UsbHub) usbDevice);
+      } else if (this.deviceFilter.isHighlander(usbDevice.getUsbDeviceDescriptor())) {
+        UsbDeviceIdentity device = UsbDeviceIdentity.of(usbDevice);
+        LOGGER.info(format("Found device [%s] already plugged in", device));
+        this.syncScheduler.deviceAttached(device);
+      }
+    }
   }
 
   @Override
@@ -82,25 +78,10 @@ public class DexcomWatcher implements UsbServicesListener {
         String message = format("Device connected [%s], isConfigured [%b]", usbDevice.getManufacturerString(),
                 usbDevice.isConfigured());
         LOGGER.info(message);
-
-        String receiverPort = this.receiverFinder.findReceiverPort();
-
-        Instant lastSyncTime = this.preferences.getLastSyncTime();
-        LOGGER.info(format("Downloading new data since %s...", lastSyncTime));
-        ReceiverSyncData receiverSyncData = this.fetchNewDataRunner.fetchData(new SerialPort(receiverPort),
-                lastSyncTime);
-
-        @SuppressWarnings("unchecked")
-        SyncData syncData = this.adapterService.convertData(receiverSyncData);
-
-        this.dataExporter.exportData(syncData);
-
-        // Save last sync time
-        this.preferences.saveLastSyncTime(syncData.getUpdateTime());
-        LOGGER.info(format("Exported data up to %s", receiverSyncData.getUpdateTime()));
-      } catch (Throwable e) {
-        throw Throwables.propagate(e);
+      } catch (Exception e) {
+        LOGGER.debug("Can't read the device's manufacturer, ignoring.", e);
       }
+      this.syncScheduler.deviceAttached(UsbDeviceIdentity.of(usbDevice));
     } else {
       String message = format("Device plugged was ignored: vendor id [%d], product id [%d]", deviceDescriptor.idVendor(),
               deviceDescriptor.idProduct());
@@ -110,9 +91,11 @@ public class DexcomWatcher implements UsbServicesListener {
 
   @Override
   public void usbDeviceDetached(UsbServicesEvent usbServicesEvent) {
-    UsbDeviceDescriptor deviceDescriptor = usbServicesEvent.getUsbDevice().getUsbDeviceDescriptor();
+    UsbDevice usbDevice = usbServicesEvent.getUsbDevice();
+    UsbDeviceDescriptor deviceDescriptor = usbDevice.getUsbDeviceDescriptor();
     if (this.deviceFilter.isHighlander(deviceDescriptor)) {
       LOGGER.info("Dexcom disconnected!");
+      this.syncScheduler.deviceDetached(UsbDeviceIdentity.of(usbDevice));
     } else {
       String message = format("Device unplugged was ignore: vendor id [%d], product id [%d]",
               deviceDescriptor.idVendor(), deviceDescriptor.idProduct());
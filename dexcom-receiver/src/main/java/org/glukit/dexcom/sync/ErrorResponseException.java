@@ -0,0 +1,59 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync;
+
+import org.glukit.dexcom.sync.model.ReceiverCommand;
+
+import static java.lang.String.format;
+import static org.glukit.dexcom.sync.model.ReceiverCommand.IncompletePacketReceived;
+import static org.glukit.dexcom.sync.model.ReceiverCommand.Nak;
+import static org.glukit.dexcom.sync.model.ReceiverCommand.ReceiverError;
+
+/**
+ * Thrown when the receiver answers a request with something else than an {@link ReceiverCommand#Ack}.
+ *
+ * @author alexandre.normand
+ */
+public class ErrorResponseException extends IllegalStateException {
+  private final ReceiverCommand responseCommand;
+
+  public ErrorResponseException(ReceiverCommand responseCommand) {
+    super(format("Receiver answered with [%s] instead of an ack", responseCommand));
+    this.responseCommand = responseCommand;
+  }
+
+  public ReceiverCommand getResponseCommand() {
+    return responseCommand;
+  }
+
+  /**
+   * Whether sending the exact same request again has a chance of working. An {@link ReceiverCommand#InvalidParam}
+   * won't get any better by repeating the request, the request itself has to change.
+   */
+  public boolean isTransient() {
+    return this.responseCommand == Nak || this.responseCommand == IncompletePacketReceived ||
+            this.responseCommand == ReceiverError;
+  }
+}
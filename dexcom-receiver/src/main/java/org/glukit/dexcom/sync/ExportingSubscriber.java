@@ -0,0 +1,155 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.SettableFuture;
+import org.glukit.sync.api.DataExporter;
+import org.glukit.sync.api.Subscriber;
+import org.glukit.sync.api.Subscription;
+import org.glukit.sync.api.SyncData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.String.format;
+
+/**
+ * {@link Subscriber} that hands each {@link SyncData} it gets to a {@link DataExporter}. Exports run on their own
+ * thread while the next chunks are read, but no more than {@code maxPendingChunks} chunks are asked for ahead of
+ * the exports so a slow exporter slows down the reads rather than letting records pile up.
+ *
+ * @author alexandre.normand
+ */
+public class ExportingSubscriber implements Subscriber<SyncData> {
+  private static Logger LOGGER = LoggerFactory.getLogger(ExportingSubscriber.class);
+
+  private final DataExporter dataExporter;
+  private final int maxPendingChunks;
+  private final ExecutorService exportExecutor;
+  private final SettableFuture<Void> done = SettableFuture.create();
+  private volatile Subscription subscription;
+
+  public ExportingSubscriber(DataExporter dataExporter, int maxPendingChunks, ThreadFactory threadFactory) {
+    checkArgument(maxPendingChunks > 0, "maxPendingChunks must be positive, was [%s]", maxPendingChunks);
+    this.dataExporter = dataExporter;
+    this.maxPendingChunks = maxPendingChunks;
+    this.exportExecutor = Executors.newSingleThreadExecutor(threadFactory);
+  }
+
+  @Override
+  public void onSubscribe(Subscription subscription) {
+    this.subscription = subscription;
+    subscription.request(this.maxPendingChunks);
+  }
+
+  @Override
+  public void onNext(final SyncData syncData) {
+    try {
+      this.exportExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          export(syncData);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      LOGGER.debug(format("Skipping export of data updated at %s, the sync is being cancelled",
+              syncData.getUpdateTime()));
+    }
+  }
+
+  @Override
+  public void onError(final Throwable throwable) {
+    finish(new Runnable() {
+      @Override
+      public void run() {
+        done.setException(throwable);
+      }
+    });
+  }
+
+  @Override
+  public void onComplete() {
+    finish(new Runnable() {
+      @Override
+      public void run() {
+        done.set(null);
+      }
+    });
+  }
+
+  /**
+   * Waits until everything published was exported. Being interrupted cancels the subscription.
+   *
+   * @throws InterruptedIOException if interrupted while waiting.
+   */
+  public void awaitExported() throws InterruptedIOException {
+    try {
+      this.done.get();
+    } catch (InterruptedException e) {
+      if (this.subscription != null) {
+        this.subscription.cancel();
+      }
+      this.exportExecutor.shutdownNow();
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the export of the sync");
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  private void export(SyncData syncData) {
+    if (this.done.isDone()) {
+      return;
+    }
+    try {
+      this.dataExporter.exportData(syncData);
+    } catch (Throwable e) {
+      LOGGER.error(format("Export of data updated at %s failed, cancelling the sync", syncData.getUpdateTime()), e);
+      this.subscription.cancel();
+      this.done.setException(e);
+      this.exportExecutor.shutdown();
+      return;
+    }
+    this.subscription.request(1);
+  }
+
+  private void finish(Runnable onDone) {
+    try {
+      // After the exports already queued
+      this.exportExecutor.execute(onDone);
+      this.exportExecutor.shutdown();
+    } catch (RejectedExecutionException e) {
+      // An export failed already
+    }
+  }
+}
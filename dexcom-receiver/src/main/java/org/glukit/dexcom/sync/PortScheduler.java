@@ -0,0 +1,172 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync;
+
+import com.google.common.primitives.Longs;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+
+import static com.google.common.base.Preconditions.checkState;
+import static java.lang.String.format;
+
+/**
+ * Hands out turns on the wire of a receiver's port so that the commands of the sync, the live tail and the other
+ * users of a {@link ReceiverSession} never interleave. Only one thread has the turn at a time and waiting threads
+ * get it by {@link Priority}, then in the order they asked for it. Bulk work holds on to its turn only as long as
+ * a chunk of pages and {@link #yieldTurn() yields} between chunks, so an interactive command waits at most for the
+ * chunk being read.
+ * <p/>
+ * A thread that has the turn can take it again, it keeps it until it {@link #end() ended} as many turns as it took.
+ *
+ * @author alexandre.normand
+ */
+public class PortScheduler {
+  public static enum Priority {
+    /**
+     * Short commands someone is waiting on, like reading the latest glucose read.
+     */
+    INTERACTIVE,
+    /**
+     * Reads of history, a chunk of pages at a time.
+     */
+    BULK
+  }
+
+  private final String portName;
+  private final PriorityQueue<Waiter> waiters = new PriorityQueue<Waiter>();
+  private long nextSequence = 0;
+  private Thread owner;
+  private Priority ownerPriority;
+  private int holdCount = 0;
+
+  public PortScheduler(String portName) {
+    this.portName = portName;
+  }
+
+  /**
+   * Waits for the turn on the port.
+   *
+   * @throws CancellationException if interrupted while waiting, the interrupt flag is kept.
+   */
+  public synchronized void begin(Priority priority) {
+    Thread current = Thread.currentThread();
+    if (this.owner == current) {
+      this.holdCount++;
+      return;
+    }
+    awaitTurn(current, priority, 1);
+  }
+
+  /**
+   * Ends a turn taken with {@link #begin}, the next waiting thread gets it once this thread ended all its turns.
+   */
+  public synchronized void end() {
+    checkState(this.owner == Thread.currentThread(), "%s doesn't have the turn on %s", Thread.currentThread(),
+            this.portName);
+    this.holdCount--;
+    if (this.holdCount == 0) {
+      this.owner = null;
+      this.ownerPriority = null;
+      notifyAll();
+    }
+  }
+
+  /**
+   * Lets commands of a higher priority go first, if any are waiting, and takes the turn back after them.
+   *
+   * @throws CancellationException if interrupted while waiting to take the turn back, the turn is then lost.
+   */
+  public synchronized void yieldTurn() {
+    Thread current = Thread.currentThread();
+    checkState(this.owner == current, "%s doesn't have the turn on %s", current, this.portName);
+    if (!isTurnWanted()) {
+      return;
+    }
+
+    Priority priority = this.ownerPriority;
+    int holdCount = this.holdCount;
+    this.owner = null;
+    this.ownerPriority = null;
+    this.holdCount = 0;
+    notifyAll();
+    awaitTurn(current, priority, holdCount);
+  }
+
+  /**
+   * @return {@code true} if commands of a higher priority than the current turn's are waiting, see
+   * {@link #yieldTurn()}.
+   */
+  public synchronized boolean isTurnWanted() {
+    Waiter next = this.waiters.peek();
+    return this.owner != null && next != null && next.priority.compareTo(this.ownerPriority) < 0;
+  }
+
+  /**
+   * @return {@code true} if the current thread has the turn.
+   */
+  public synchronized boolean hasTurn() {
+    return this.owner == Thread.currentThread();
+  }
+
+  synchronized int getWaitingCount() {
+    return this.waiters.size();
+  }
+
+  private void awaitTurn(Thread current, Priority priority, int holdCount) {
+    Waiter waiter = new Waiter(priority, this.nextSequence++);
+    this.waiters.add(waiter);
+    try {
+      while (this.owner != null || this.waiters.peek() != waiter) {
+        wait();
+      }
+    } catch (InterruptedException e) {
+      this.waiters.remove(waiter);
+      notifyAll();
+      Thread.currentThread().interrupt();
+      throw new CancellationException(format("Interrupted while waiting for the turn on %s", this.portName));
+    }
+    this.waiters.poll();
+    this.owner = current;
+    this.ownerPriority = priority;
+    this.holdCount = holdCount;
+  }
+
+  private static class Waiter implements Comparable<Waiter> {
+    private final Priority priority;
+    private final long sequence;
+
+    private Waiter(Priority priority, long sequence) {
+      this.priority = priority;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public int compareTo(Waiter other) {
+      int byPriority = this.priority.compareTo(other.priority);
+      return byPriority != 0 ? byPriority : Longs.compare(this.sequence, other.sequence);
+    }
+  }
+}
@@ -0,0 +1,314 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync;
+
+import com.google.common.base.Ticker;
+import org.glukit.dexcom.sync.model.ManufacturingParameters;
+import org.glukit.dexcom.sync.requests.BaseCommand;
+import org.glukit.dexcom.sync.requests.Ping;
+import org.glukit.dexcom.sync.requests.ReadFirmwareHeader;
+import org.glukit.dexcom.sync.requests.ReadGlucoseUnit;
+import org.glukit.dexcom.sync.responses.GenericResponse;
+import org.glukit.dexcom.sync.responses.Response;
+import org.glukit.dexcom.sync.responses.Utf8PayloadGenericResponse;
+import org.glukit.dexcom.sync.transport.SerialTransport;
+import org.glukit.sync.api.GlucoseRead;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static java.lang.String.format;
+import static org.glukit.dexcom.sync.DecodingUtils.toHexString;
+import static org.glukit.dexcom.sync.model.DatabaseReadRequestSpec.LARGEST_PAGES_PER_COMMAND;
+import static org.glukit.dexcom.sync.model.DatabaseReadRequestSpec.MAX_PAGES_PER_COMMAND;
+
+/**
+ * An open port to a receiver, shared by everything that talks to it while it's plugged in. Facts that don't change
+ * as long as the receiver stays plugged in are read once and kept for the session.
+ * <p/>
+ * Users of the transport {@link #acquire()} it and {@link #release()} it when done, the session is only closed by
+ * {@link ReceiverSessions} when it's been idle for a while or when the receiver is unplugged. Commands only go on the
+ * wire during a {@link #takeTurn turn} so that users sharing the session don't interleave them.
+ *
+ * @author alexandre.normand
+ */
+public class ReceiverSession implements Closeable {
+  private static Logger LOGGER = LoggerFactory.getLogger(ReceiverSession.class);
+
+  private static final byte MG_PER_DL = 1;
+  private static final byte MMOL_PER_L = 2;
+  private static final Pattern FIRMWARE_VERSION = Pattern.compile("FirmwareVersion=['\"]([^'\"]+)['\"]");
+
+  private final SerialTransport transport;
+  private final DataOutputFactory dataOutputFactory;
+  private final ResponseReader responseReader;
+  private final Ticker ticker;
+  private final PortScheduler portScheduler;
+  private UsbDeviceIdentity device;
+  private int leases = 0;
+  private long lastUsedNanos;
+  private boolean closed = false;
+  private String firmwareHeader;
+  private GlucoseRead.Unit glucoseUnit;
+  private ManufacturingParameters manufacturingParameters;
+  private byte pagesPerRead = MAX_PAGES_PER_COMMAND;
+
+  public ReceiverSession(SerialTransport transport, DataOutputFactory dataOutputFactory,
+                         ResponseReader responseReader, Ticker ticker) {
+    this.transport = transport;
+    this.dataOutputFactory = dataOutputFactory;
+    this.responseReader = responseReader;
+    this.ticker = ticker;
+    this.lastUsedNanos = ticker.read();
+    this.portScheduler = new PortScheduler(transport.getPortName());
+  }
+
+  public String getPortName() {
+    return this.transport.getPortName();
+  }
+
+  /**
+   * @return the transport to the receiver, to {@link #release()} once done with it.
+   */
+  public synchronized SerialTransport acquire() {
+    checkState(!this.closed, "Session of %s is closed", getPortName());
+    this.leases++;
+    this.lastUsedNanos = this.ticker.read();
+    return this.transport;
+  }
+
+  public synchronized void release() {
+    checkState(this.leases > 0, "Session of %s released more often than acquired", getPortName());
+    this.leases--;
+    this.lastUsedNanos = this.ticker.read();
+  }
+
+  /**
+   * Acquires the transport and waits for the turn to send commands on it. The turn is kept until
+   * {@link #endTurn()}, bulk work should {@link #yieldTurn()} between chunks.
+   *
+   * @throws java.util.concurrent.CancellationException if interrupted while waiting for the turn.
+   */
+  public SerialTransport takeTurn(PortScheduler.Priority priority) {
+    SerialTransport transport = acquire();
+    try {
+      this.portScheduler.begin(priority);
+    } catch (RuntimeException e) {
+      release();
+      throw e;
+    }
+    return transport;
+  }
+
+  /**
+   * Lets waiting commands of a higher priority go first.
+   *
+   * @throws java.util.concurrent.CancellationException if interrupted while waiting to take the turn back, the turn
+   * is then lost but {@link #endTurn()} should still be called to release the transport.
+   */
+  public void yieldTurn() {
+    this.portScheduler.yieldTurn();
+  }
+
+  /**
+   * @return {@code true} if waiting commands would go first on {@link #yieldTurn()}.
+   */
+  public boolean isTurnWanted() {
+    return this.portScheduler.isTurnWanted();
+  }
+
+  /**
+   * Ends the turn, if it wasn't lost to an interrupted {@link #yieldTurn()}, and releases the transport.
+   */
+  public void endTurn() {
+    try {
+      if (this.portScheduler.hasTurn()) {
+        this.portScheduler.end();
+      }
+    } finally {
+      release();
+    }
+  }
+
+  public synchronized boolean isInUse() {
+    return this.leases > 0;
+  }
+
+  /**
+   * @return {@code true} if nothing holds the transport and it hasn't been used for {@code idleNanos}.
+   */
+  synchronized boolean isIdle(long idleNanos) {
+    return this.leases == 0 && this.ticker.read() - this.lastUsedNanos >= idleNanos;
+  }
+
+  /**
+   * Pings the receiver.
+   */
+  public GenericResponse ping() throws IOException {
+    return send(new Ping(this.dataOutputFactory), GenericResponse.class);
+  }
+
+  public String getFirmwareHeader() throws IOException {
+    synchronized (this) {
+      if (this.firmwareHeader != null) {
+        return this.firmwareHeader;
+      }
+    }
+
+    // Not holding the lock while waiting for the turn, whoever has it might need the session
+    String firmwareHeader = send(new ReadFirmwareHeader(this.dataOutputFactory),
+            Utf8PayloadGenericResponse.class).asString();
+    LOGGER.info(format("Receiver plugged with firmware: %s", firmwareHeader));
+    synchronized (this) {
+      this.firmwareHeader = firmwareHeader;
+    }
+    return firmwareHeader;
+  }
+
+  /**
+   * @return the {@code FirmwareVersion} of the {@link #getFirmwareHeader() firmware header} or {@code null} if it
+   * doesn't have one.
+   */
+  public String getFirmwareVersion() throws IOException {
+    Matcher matcher = FIRMWARE_VERSION.matcher(getFirmwareHeader());
+    return matcher.find() ? matcher.group(1) : null;
+  }
+
+  /**
+   * @return the unit glucose is displayed in on the receiver or {@code null} if it's not set. Glucose reads are
+   * always recorded in mg/dL.
+   */
+  public GlucoseRead.Unit getGlucoseUnit() throws IOException {
+    synchronized (this) {
+      if (this.glucoseUnit != null) {
+        return this.glucoseUnit;
+      }
+    }
+
+    GlucoseRead.Unit glucoseUnit = null;
+    byte[] payload = send(new ReadGlucoseUnit(this.dataOutputFactory), GenericResponse.class).getPayload();
+    if (payload.length > 0 && payload[0] == MG_PER_DL) {
+      glucoseUnit = GlucoseRead.Unit.MG_PER_DL;
+    } else if (payload.length > 0 && payload[0] == MMOL_PER_L) {
+      glucoseUnit = GlucoseRead.Unit.MMOL_PER_L;
+    }
+    synchronized (this) {
+      this.glucoseUnit = glucoseUnit;
+    }
+    return glucoseUnit;
+  }
+
+  /**
+   * @return the manufacturing parameters read during this session or {@code null} if they haven't been read yet.
+   */
+  public synchronized ManufacturingParameters getManufacturingParameters() {
+    return this.manufacturingParameters;
+  }
+
+  public synchronized void cacheManufacturingParameters(ManufacturingParameters manufacturingParameters) {
+    if (manufacturingParameters != null) {
+      this.manufacturingParameters = manufacturingParameters;
+    }
+  }
+
+  /**
+   * Sets what {@link #getFirmwareHeader()} and {@link #getGlucoseUnit()} return, when they're known from an earlier
+   * session with the same receiver, so that they're not read again.
+   */
+  public synchronized void cacheDeviceInfo(String firmwareHeader, GlucoseRead.Unit glucoseUnit) {
+    if (firmwareHeader != null) {
+      this.firmwareHeader = firmwareHeader;
+    }
+    if (glucoseUnit != null) {
+      this.glucoseUnit = glucoseUnit;
+    }
+  }
+
+  /**
+   * @return the most pages to read in a single command from this receiver.
+   */
+  public synchronized byte getPagesPerRead() {
+    return this.pagesPerRead;
+  }
+
+  public synchronized void setPagesPerRead(byte pagesPerRead) {
+    checkArgument(pagesPerRead > 0 && pagesPerRead <= LARGEST_PAGES_PER_COMMAND,
+            "Reads are limited to [%s] pages or less, given invalid value of [%s]", LARGEST_PAGES_PER_COMMAND,
+            pagesPerRead);
+    this.pagesPerRead = pagesPerRead;
+  }
+
+  public synchronized UsbDeviceIdentity getDevice() {
+    return this.device;
+  }
+
+  /**
+   * Ties the session to the USB device it was found to be on, it gets closed when that device is unplugged.
+   *
+   * @return {@code false} if the session is already tied to another device, the port then belongs to another
+   * receiver.
+   */
+  public synchronized boolean claim(UsbDeviceIdentity device) {
+    if (this.device != null && !this.device.equals(device)) {
+      return false;
+    }
+    this.device = device;
+    return true;
+  }
+
+  public synchronized boolean isClosed() {
+    return this.closed;
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      if (this.closed) {
+        return;
+      }
+      this.closed = true;
+    }
+    LOGGER.debug(format("Closing session of %s", getPortName()));
+    this.transport.close();
+  }
+
+  private <T extends Response> T send(BaseCommand command, Class<T> responseClass) throws IOException {
+    SerialTransport transport = takeTurn(PortScheduler.Priority.INTERACTIVE);
+    try {
+      byte[] request = command.asBytes();
+      LOGGER.debug(format("Sending %s: [%s]", command.getCommand(), toHexString(request)));
+      transport.write(request);
+      return this.responseReader.read(responseClass, transport);
+    } finally {
+      endTurn();
+    }
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.glukit.dexcom.sync.transport.SerialTransportFactory;
+import org.glukit.sync.api.BloodShepherdProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.collect.Maps.newHashMap;
+import static java.lang.String.format;
+import static org.glukit.sync.api.BloodShepherdProperties.SESSION_IDLE_TIMEOUT_SECONDS;
+import static org.glukit.sync.api.BloodShepherdProperties.getIntProperty;
+
+/**
+ * Keeps one {@link ReceiverSession} per port so that probing, syncing and tailing a receiver all go through the same
+ * open port. Sessions are closed when their device is unplugged or when they've been idle for
+ * {@link BloodShepherdProperties#SESSION_IDLE_TIMEOUT_SECONDS}.
+ *
+ * @author alexandre.normand
+ */
+@Singleton
+public class ReceiverSessions {
+  private static Logger LOGGER = LoggerFactory.getLogger(ReceiverSessions.class);
+
+  static final int DEFAULT_IDLE_TIMEOUT_SECONDS = 120;
+
+  private final SerialTransportFactory serialTransportFactory;
+  private final DataOutputFactory dataOutputFactory;
+  private final ResponseReader responseReader;
+  private final long idleTimeoutNanos;
+  private final Ticker ticker;
+  private final Map<String, ReceiverSession> sessions = newHashMap();
+
+  @Inject
+  public ReceiverSessions(SerialTransportFactory serialTransportFactory,
+                          DataOutputFactory dataOutputFactory,
+                          ResponseReader responseReader,
+                          BloodShepherdProperties properties) {
+    this(serialTransportFactory, dataOutputFactory, responseReader,
+            getIntProperty(properties, SESSION_IDLE_TIMEOUT_SECONDS, DEFAULT_IDLE_TIMEOUT_SECONDS), Ticker.systemTicker());
+    long checkIntervalSeconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(this.idleTimeoutNanos) / 4);
+    ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("receiver-session-reaper-%d").setDaemon(true).build());
+    reaper.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        closeIdleSessions();
+      }
+    }, checkIntervalSeconds, checkIntervalSeconds, TimeUnit.SECONDS);
+  }
+
+  @VisibleForTesting
+  ReceiverSessions(SerialTransportFactory serialTransportFactory, DataOutputFactory dataOutputFactory,
+                   ResponseReader responseReader, long idleTimeoutSeconds, Ticker ticker) {
+    this.serialTransportFactory = serialTransportFactory;
+    this.dataOutputFactory = dataOutputFactory;
+    this.responseReader = responseReader;
+    this.idleTimeoutNanos = TimeUnit.SECONDS.toNanos(idleTimeoutSeconds);
+    this.ticker = ticker;
+  }
+
+  /**
+   * @return the open session of that port, the port is opened if there's none.
+   */
+  public synchronized ReceiverSession open(String portName) throws IOException {
+    ReceiverSession session = this.sessions.get(portName);
+    if (session == null || session.isClosed()) {
+      session = new ReceiverSession(this.serialTransportFactory.open(portName), this.dataOutputFactory,
+              this.responseReader, this.ticker);
+      this.sessions.put(portName, session);
+      LOGGER.debug(format("Opened session of %s", portName));
+    }
+    return session;
+  }
+
+  /**
+   * Closes the session of that port, if any.
+   */
+  public void close(String portName) {
+    ReceiverSession session;
+    synchronized (this) {
+      session = this.sessions.remove(portName);
+    }
+    closeQuietly(session);
+  }
+
+  /**
+   * Closes the sessions of a device that was unplugged.
+   */
+  public void closeAll(UsbDeviceIdentity device) {
+    for (ReceiverSession session : removeSessions(device, 0)) {
+      closeQuietly(session);
+    }
+  }
+
+  @VisibleForTesting
+  int closeIdleSessions() {
+    int closed = 0;
+    for (ReceiverSession session : removeSessions(null, this.idleTimeoutNanos)) {
+      LOGGER.info(format("Closing session of %s after %d seconds idle", session.getPortName(),
+              TimeUnit.NANOSECONDS.toSeconds(this.idleTimeoutNanos)));
+      closeQuietly(session);
+      closed++;
+    }
+    return closed;
+  }
+
+  /**
+   * Removes the sessions of the device, if not {@code null}, or the sessions that have been idle for
+   * {@code idleNanos}.
+   */
+  private synchronized Iterable<ReceiverSession> removeSessions(UsbDeviceIdentity device, long idleNanos) {
+    Map<String, ReceiverSession> removed = newHashMap();
+    for (Iterator<Map.Entry<String, ReceiverSession>> entries = this.sessions.entrySet().iterator();
+         entries.hasNext(); ) {
+      Map.Entry<String, ReceiverSession> entry = entries.next();
+      ReceiverSession session = entry.getValue();
+      boolean matches = device != null ? device.equals(session.getDevice()) : session.isIdle(idleNanos);
+      if (matches || session.isClosed()) {
+        removed.put(entry.getKey(), session);
+        entries.remove();
+      }
+    }
+    return removed.values();
+  }
+
+  private static void closeQuietly(ReceiverSession session) {
+    if (session == null) {
+      return;
+    }
+    try {
+      session.close();
+    } catch (IOException e) {
+      LOGGER.warn("Error closing port, ignoring.", e);
+    }
+  }
+}
@@ -0,0 +1,324 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.glukit.dexcom.sync;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.glukit.dexcom.sync.model.DeviceMetadata;
+import org.glukit.dexcom.sync.model.DexcomSyncData;
+import org.glukit.dexcom.sync.model.ManufacturingParameters;
+import org.glukit.dexcom.sync.model.PageRange;
+import org.glukit.dexcom.sync.model.RecordType;
+import org.glukit.dexcom.sync.tasks.FetchNewDataRunner;
+import org.glukit.dexcom.sync.tasks.LiveTail;
+import org.glukit.dexcom.sync.tasks.LiveTailRunner;
+import org.glukit.dexcom.sync.tasks.RecordPublisher;
+import org.glukit.dexcom.sync.tasks.SyncChunkListener;
+import org.glukit.dexcom.sync.tasks.SyncPlan;
+import org.glukit.dexcom.sync.transport.SerialTransport;
+import org.glukit.sync.AdaptingPublisher;
+import org.glukit.sync.AdapterService;
+import org.glukit.sync.api.BloodShepherdPreferences;
+import org.glukit.sync.api.BloodShepherdProperties;
+import org.glukit.sync.api.DataExporter;
+import org.glukit.sync.api.SyncData;
+import org.glukit.sync.api.ThreadModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.threeten.bp.Duration;
+import org.threeten.bp.Instant;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.google.common.collect.Maps.newConcurrentMap;
+import static java.lang.String.format;
+import static org.glukit.dexcom.sync.model.DatabaseReadRequestSpec.LARGEST_PAGES_PER_COMMAND;
+import static org.glukit.dexcom.sync.model.RecordType.ManufacturingData;
+import static org.glukit.sync.api.BloodShepherdProperties.BACKFILL_AFTER_HOURS;
+import static org.glukit.sync.api.BloodShepherdProperties.LIVE_TAIL;
+import static org.glukit.sync.api.BloodShepherdProperties.SYNC_DRY_RUN;
+import static org.glukit.sync.api.BloodShepherdProperties.getIntProperty;
+
+/**
+ * Syncs a receiver that was plugged in: finds its port, fetches the new data, exports it and saves where the next
+ * sync should start from. A backfill is streamed from the receiver to the exporter a few chunks at a time. With
+ * {@code LIVE_TAIL}, new glucose reads keep being exported until the receiver is unplugged.
+ * <p/>
+ * Several receivers can be synced at the same time, each on its own port. Where a receiver's sync starts from is
+ * kept under its serial number.
+ *
+ * @author alexandre.normand
+ */
+@Singleton
+public class ReceiverSync {
+  private static Logger LOGGER = LoggerFactory.getLogger(ReceiverSync.class);
+
+  static final int DEFAULT_BACKFILL_AFTER_HOURS = 24;
+  /**
+   * Chunks of a backfill that can be read ahead of their export.
+   */
+  static final int MAX_PENDING_EXPORTS = 2;
+
+  private final DexcomReceiverFinder receiverFinder;
+  private final FetchNewDataRunner fetchNewDataRunner;
+  private final AdapterService adapterService;
+  private final DataExporter dataExporter;
+  private final BloodShepherdPreferences preferences;
+  private final ReceiverSessions receiverSessions;
+  private final DeviceRegistry deviceRegistry;
+  private final boolean dryRun;
+  private final Duration backfillThreshold;
+  private final LiveTailRunner liveTailRunner;
+  private final boolean liveTail;
+  private final ThreadModel threadModel;
+  private final ConcurrentMap<UsbDeviceIdentity, LiveTail> liveTails = newConcurrentMap();
+
+  @Inject
+  public ReceiverSync(DexcomReceiverFinder receiverFinder,
+                      FetchNewDataRunner fetchNewDataRunner,
+                      AdapterService adapterService,
+                      DataExporter dataExporter,
+                      BloodShepherdPreferences preferences,
+                      ReceiverSessions receiverSessions,
+                      DeviceRegistry deviceRegistry,
+                      LiveTailRunner liveTailRunner,
+                      BloodShepherdProperties properties,
+                      ThreadModel threadModel) {
+    this.receiverFinder = receiverFinder;
+    this.fetchNewDataRunner = fetchNewDataRunner;
+    this.adapterService = adapterService;
+    this.dataExporter = dataExporter;
+    this.preferences = preferences;
+    this.receiverSessions = receiverSessions;
+    this.deviceRegistry = deviceRegistry;
+    this.dryRun = Boolean.parseBoolean(properties.getProperty(SYNC_DRY_RUN, "false").trim());
+    this.backfillThreshold = Duration.ofHours(getIntProperty(properties, BACKFILL_AFTER_HOURS,
+            DEFAULT_BACKFILL_AFTER_HOURS));
+    this.liveTailRunner = liveTailRunner;
+    this.liveTail = Boolean.parseBoolean(properties.getProperty(LIVE_TAIL, "false").trim());
+    this.threadModel = threadModel;
+  }
+
+  /**
+   * Syncs the receiver on that USB device.
+   */
+  public void sync(UsbDeviceIdentity device) throws IOException {
+    String receiverPort = this.receiverFinder.findReceiverPort(device);
+    ReceiverSession session = this.receiverSessions.open(receiverPort);
+    if (!session.claim(device)) {
+      this.receiverFinder.invalidate(device);
+      throw new IllegalStateException(format("Port %s found for device %s is already in use by another receiver",
+              receiverPort, device));
+    }
+
+    ManufacturingParameters manufacturingParameters = readManufacturingParameters(device, session);
+    final BloodShepherdPreferences receiverPreferences = preferencesOf(manufacturingParameters);
+    Instant lastSyncTime = receiverPreferences.getLastSyncTime();
+    Map<RecordType, Long> checkpoints = loadPageCheckpoints(receiverPreferences);
+    DexcomSyncData receiverSyncData;
+    LOGGER.info(format("Receiver %s on %s with firmware %s displays glucose in %s",
+            serialNumberOf(manufacturingParameters), receiverPort, session.getFirmwareHeader(),
+            session.getGlucoseUnit()));
+    if (this.dryRun) {
+      SerialTransport transport = session.takeTurn(PortScheduler.Priority.INTERACTIVE);
+      try {
+        SyncPlan plan = this.fetchNewDataRunner.planSync(transport, checkpoints);
+        LOGGER.info(format("Dry run, would sync data since %s with: %s", lastSyncTime, plan));
+      } finally {
+        session.endTurn();
+      }
+      return;
+    }
+
+    configurePagesPerRead(session);
+    if (isBackfill(lastSyncTime)) {
+      LOGGER.info(format("Downloading new data since %s, most recent first...", lastSyncTime));
+      RecordPublisher publisher = this.fetchNewDataRunner.publishData(session, lastSyncTime, checkpoints);
+      ExportingSubscriber exportingSubscriber = new ExportingSubscriber(this.dataExporter, MAX_PENDING_EXPORTS,
+              this.threadModel.newThreadFactory("receiver-export-%d"));
+      @SuppressWarnings("unchecked")
+      AdaptingPublisher<DexcomSyncData> syncDataPublisher = new AdaptingPublisher<DexcomSyncData>(publisher,
+              this.adapterService);
+      syncDataPublisher.subscribe(exportingSubscriber);
+      exportingSubscriber.awaitExported();
+      receiverSyncData = Futures.getUnchecked(publisher.getResult());
+    } else {
+      LOGGER.info(format("Downloading new data since %s...", lastSyncTime));
+      receiverSyncData = this.fetchNewDataRunner.fetchData(session, lastSyncTime, checkpoints);
+      export(receiverSyncData);
+    }
+
+    // Save last sync time, only once everything is exported so that an interrupted backfill starts over
+    saveSyncState(receiverPreferences, receiverSyncData);
+    LOGGER.info(format("Exported data of receiver %s up to %s", serialNumberOf(manufacturingParameters),
+            receiverSyncData.getUpdateTime()));
+
+    if (this.liveTail) {
+      startLiveTail(device, session, receiverPreferences, lastSyncTime, receiverSyncData);
+    }
+  }
+
+  /**
+   * Reads the manufacturing parameters, firmware header and glucose unit of the receiver unless they're known from
+   * an earlier sync of the same device. What's known is only trusted while the receiver's manufacturing data pages
+   * are the same as when it was read, a reset or a different receiver on that device is read again.
+   */
+  private ManufacturingParameters readManufacturingParameters(UsbDeviceIdentity device, ReceiverSession session)
+          throws IOException {
+    if (session.getManufacturingParameters() != null) {
+      return session.getManufacturingParameters();
+    }
+
+    PageRange manufacturingPageRange = this.fetchNewDataRunner.readPageRange(session, ManufacturingData);
+    DeviceMetadata deviceMetadata = this.deviceRegistry.get(device);
+    if (deviceMetadata != null && deviceMetadata.getManufacturingPageRange().equals(manufacturingPageRange)) {
+      LOGGER.info(format("Receiver on device %s already known as %s", device, deviceMetadata));
+      session.cacheManufacturingParameters(deviceMetadata.getManufacturingParameters());
+      session.cacheDeviceInfo(deviceMetadata.getFirmwareHeader(), deviceMetadata.getGlucoseUnit());
+      return deviceMetadata.getManufacturingParameters();
+    }
+
+    ManufacturingParameters manufacturingParameters = this.fetchNewDataRunner.readManufacturingParameters(session);
+    this.deviceRegistry.save(device, new DeviceMetadata(manufacturingParameters, manufacturingPageRange,
+            session.getFirmwareHeader(), session.getGlucoseUnit()));
+    return manufacturingParameters;
+  }
+
+  /**
+   * Reads as many pages per command as the receiver's firmware takes. That's probed the first time a firmware
+   * version is seen and remembered for all receivers with that version.
+   */
+  private void configurePagesPerRead(ReceiverSession session) throws IOException {
+    String firmwareVersion = session.getFirmwareVersion();
+    if (firmwareVersion == null) {
+      LOGGER.warn(format("No firmware version for receiver on %s, reading [%d] pages at a time",
+              session.getPortName(), session.getPagesPerRead()));
+      return;
+    }
+
+    Integer pagesPerRead = this.preferences.getPagesPerRead(firmwareVersion);
+    if (pagesPerRead == null) {
+      Byte probedPagesPerRead = this.fetchNewDataRunner.probePagesPerRead(session);
+      if (probedPagesPerRead == null) {
+        return;
+      }
+      pagesPerRead = (int) probedPagesPerRead;
+      this.preferences.savePagesPerRead(firmwareVersion, pagesPerRead);
+    }
+
+    if (pagesPerRead > 0 && pagesPerRead <= LARGEST_PAGES_PER_COMMAND) {
+      session.setPagesPerRead(pagesPerRead.byteValue());
+    } else {
+      LOGGER.warn(format("Ignoring invalid [%d] pages per read saved for firmware %s", pagesPerRead,
+              firmwareVersion));
+    }
+  }
+
+  /**
+   * @return the preferences of the receiver or the shared ones if its serial number couldn't be read.
+   */
+  private BloodShepherdPreferences preferencesOf(ManufacturingParameters manufacturingParameters) {
+    String serialNumber = serialNumberOf(manufacturingParameters);
+    if (serialNumber == null || serialNumber.trim().isEmpty()) {
+      LOGGER.warn("Receiver has no serial number, its sync state is shared with other receivers like it.");
+      return this.preferences;
+    }
+    return this.preferences.forReceiver(serialNumber.trim());
+  }
+
+  private static String serialNumberOf(ManufacturingParameters manufacturingParameters) {
+    return manufacturingParameters == null ? null : manufacturingParameters.getSerialNumber();
+  }
+
+  /**
+   * @return {@code true} if the last sync is old enough that it's worth exporting the most recent data first.
+   */
+  private boolean isBackfill(Instant lastSyncTime) {
+    return Duration.between(lastSyncTime, Instant.now()).compareTo(this.backfillThreshold) > 0;
+  }
+
+  /**
+   * Keeps the port open and exports new glucose reads as they show up, until the receiver gets unplugged.
+   */
+  private void startLiveTail(UsbDeviceIdentity device, ReceiverSession session,
+                             final BloodShepherdPreferences receiverPreferences, Instant lastSyncTime,
+                             DexcomSyncData receiverSyncData) throws IOException {
+    LiveTail liveTail = this.liveTailRunner.start(session, lastSyncTime, receiverSyncData,
+            new SyncChunkListener() {
+              @Override
+              public void chunkRead(DexcomSyncData chunk) {
+                export(chunk);
+                saveSyncState(receiverPreferences, chunk);
+              }
+            });
+    stopLiveTail(this.liveTails.put(device, liveTail));
+  }
+
+  private static void stopLiveTail(LiveTail liveTail) throws IOException {
+    if (liveTail != null) {
+      liveTail.close();
+    }
+  }
+
+  private static void saveSyncState(BloodShepherdPreferences receiverPreferences, DexcomSyncData receiverSyncData) {
+    receiverPreferences.saveLastSyncTime(receiverSyncData.getUpdateTime());
+    for (Map.Entry<RecordType, Long> lastPage : receiverSyncData.getLastPagesRead().entrySet()) {
+      receiverPreferences.savePageCheckpoint(lastPage.getKey().name(), lastPage.getValue());
+    }
+  }
+
+  private void export(DexcomSyncData receiverSyncData) {
+    @SuppressWarnings("unchecked")
+    SyncData syncData = this.adapterService.convertData(receiverSyncData);
+    this.dataExporter.exportData(syncData);
+  }
+
+  private static Map<RecordType, Long> loadPageCheckpoints(BloodShepherdPreferences receiverPreferences) {
+    Map<RecordType, Long> checkpoints = new EnumMap<RecordType, Long>(RecordType.class);
+    for (RecordType recordType : RecordType.values()) {
+      Long checkpoint = receiverPreferences.getPageCheckpoint(recordType.name());
+      if (checkpoint != null) {
+        checkpoints.put(recordType, checkpoint);
+      }
+    }
+    return checkpoints;
+  }
+
+  /**
+   * Stops everything going on with the receiver on that USB device since it was unplugged.
+   */
+  public void stop(UsbDeviceIdentity device) {
+    try {
+      stopLiveTail(this.liveTails.remove(device));
+    } catch (IOException e) {
+      LOGGER.warn("Error stopping the live tail, ignoring.", e);
+    }
+    this.receiverSessions.closeAll(device);
+    this.receiverFinder.invalidate(device);
+  }
+}
@@ -24,21 +24,26 @@
 package org.glukit.dexcom.sync;
 
 import com.google.common.base.Throwables;
-import com.google.common.primitives.Bytes;
 import com.google.inject.Inject;
 import jssc.SerialPort;
 import org.glukit.dexcom.sync.model.ReceiverCommand;
 import org.glukit.dexcom.sync.responses.Response;
+import org.glukit.dexcom.sync.transport.CorruptFrameException;
+import org.glukit.dexcom.sync.transport.FrameDecoder;
+import org.glukit.dexcom.sync.transport.JsscSerialTransport;
+import org.glukit.dexcom.sync.transport.SerialTransport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
 import java.io.DataInput;
 import java.io.IOException;
+import java.util.Arrays;
 
 import static java.lang.String.format;
 import static org.glukit.dexcom.sync.DecodingUtils.getCrc16;
 import static org.glukit.dexcom.sync.DecodingUtils.toHexString;
+import static org.glukit.dexcom.sync.transport.FrameDecoder.MAX_FRAME_SIZE;
 
 /**
  * Response reader.
@@ -60,27 +65,67 @@ public class ResponseReader {
   }
 
   public <T extends Response> T read(Class<T> type, SerialPort serialPort) {
+    return read(type, new JsscSerialTransport(serialPort));
+  }
+
+  /**
+   * Reads the next response from the transport. Noise before the response is skipped but a response with a bad
+   * crc16 fails with a {@link CorruptFrameException} so that the request can be sent again.
+   */
+  public <T extends Response> T read(Class<T> type, SerialTransport transport) {
+    return decode(type, readFrame(transport));
+  }
+
+  /**
+   * Reads the next whole frame from the transport without decoding it, see {@link #decode}.
+   */
+  public byte[] readFrame(SerialTransport transport) {
     try {
+      FrameDecoder frameDecoder = new FrameDecoder();
+      byte[] frame = null;
+      while (frame == null) {
+        byte[] bytes = transport.read(frameDecoder.bytesNeeded());
+        LOGGER.debug(format("Read from port: %s", toHexString(bytes)));
+        frame = frameDecoder.feed(bytes);
+        if (frameDecoder.getSkippedByteCount() > MAX_FRAME_SIZE) {
+          throw new CorruptFrameException(format("No valid frame found after skipping [%d] bytes",
+                  frameDecoder.getSkippedByteCount()));
+        }
+      }
+      if (frameDecoder.getSkippedByteCount() > 0) {
+        LOGGER.warn(format("Skipped [%d] bytes of noise before the response", frameDecoder.getSkippedByteCount()));
+      }
+
+      return frame;
+    } catch (Exception e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  /**
+   * Decodes a whole frame, header and crc16 included, that was already read from the receiver.
+   */
+  public <T extends Response> T decode(Class<T> type, byte[] frame) {
+    try {
+      if (frame.length < HEADER_SIZE + TRAILER_SIZE) {
+        throw new IllegalStateException(format("Frame of [%d] bytes is too short", frame.length));
+      }
       T response = type.getConstructor(DataInputFactory.class).newInstance(this.dataInputFactory);
-      byte[] header = serialPort.readBytes(HEADER_SIZE);
-      LOGGER.debug(format("Read header from port: %s", toHexString(header)));
-      ResponseHeader responseHeader = readHeader(header);
-
-      int expectedPayloadSize = responseHeader.getPacketSize() - (HEADER_SIZE + TRAILER_SIZE);
-      LOGGER.debug(format("Expected payload of [%d] bytes", expectedPayloadSize));
-
-      byte[] payload = new byte[0];
-      if (expectedPayloadSize > 0) {
-        payload = serialPort.readBytes(expectedPayloadSize);
-        LOGGER.debug(format("Read payload from port: %s", toHexString(payload)));
-        response.fromBytes(payload);
-      } else {
-        LOGGER.debug("No payload expected, skipping to trailer...");
+      ResponseHeader responseHeader = readHeader(Arrays.copyOfRange(frame, 0, HEADER_SIZE));
+      if (responseHeader.getPacketSize() != frame.length) {
+        throw new IllegalStateException(format("Frame of [%d] bytes doesn't match its header size of [%d]",
+                frame.length, responseHeader.getPacketSize()));
+      }
+
+      if (responseHeader.getCommand() != ReceiverCommand.Ack) {
+        validateCrc(frame, Arrays.copyOfRange(frame, frame.length - TRAILER_SIZE, frame.length));
+        throw new ErrorResponseException(responseHeader.getCommand());
       }
 
-      byte[] crc16 = serialPort.readBytes(TRAILER_SIZE);
-      LOGGER.debug(format("Read crc16 from port: %s", toHexString(crc16)));
-      validateCrc(Bytes.concat(header, payload, crc16), crc16);
+      if (frame.length > HEADER_SIZE + TRAILER_SIZE) {
+        response.fromBytes(Arrays.copyOfRange(frame, HEADER_SIZE, frame.length - TRAILER_SIZE));
+      }
+      validateCrc(frame, Arrays.copyOfRange(frame, frame.length - TRAILER_SIZE, frame.length));
 
       return response;
     } catch (Exception e) {
@@ -95,7 +140,7 @@ public class ResponseReader {
     int computedCrc16 = getCrc16(packet, 0, packet.length - TRAILER_SIZE);
 
     if (crc != computedCrc16) {
-      throw new IllegalStateException(format("Invalid crc, expected [%s], received [%s]",
+      throw new CorruptFrameException(format("Invalid crc, expected [%s], received [%s]",
               Integer.toHexString(computedCrc16), Integer.toHexString(crc)));
     }
   }
@@ -0,0 +1,73 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync;
+
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.util.concurrent.AtomicLongMap;
+import com.google.inject.Singleton;
+
+import java.util.Map;
+
+/**
+ * Counters of how requests to the receiver went, shared by all syncs of this process.
+ *
+ * @author alexandre.normand
+ */
+@Singleton
+public class SyncMetrics {
+  public static final String PAGE_READS = "pageReads";
+  public static final String PAGE_READ_FAILURES = "pageReadFailures";
+  public static final String PAGE_READ_SPLITS = "pageReadSplits";
+  public static final String PAGE_PREFETCHES = "pagePrefetches";
+  public static final String PAGE_CACHE_HITS = "pageCacheHits";
+  public static final String PAGE_CACHE_MISSES = "pageCacheMisses";
+  public static final String PAGE_CACHE_EVICTIONS = "pageCacheEvictions";
+  public static final String RETRIES = "retries.";
+
+  private final AtomicLongMap<String> counts = AtomicLongMap.create();
+
+  public void increment(String name) {
+    this.counts.incrementAndGet(name);
+  }
+
+  /**
+   * Counts a request sent again because of the given cause, a response command or a corrupt frame.
+   */
+  public void incrementRetries(Object cause) {
+    increment(RETRIES + cause);
+  }
+
+  public long getCount(String name) {
+    return this.counts.get(name);
+  }
+
+  public long getRetryCount(Object cause) {
+    return getCount(RETRIES + cause);
+  }
+
+  public Map<String, Long> snapshot() {
+    return ImmutableSortedMap.copyOf(this.counts.asMap());
+  }
+}
@@ -0,0 +1,274 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.glukit.sync.api.BloodShepherdProperties;
+import org.glukit.sync.api.ThreadModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.Maps.newHashMap;
+import static java.lang.String.format;
+import static org.glukit.sync.api.BloodShepherdProperties.SYNC_DEBOUNCE_MILLIS;
+import static org.glukit.sync.api.BloodShepherdProperties.SYNC_MIN_INTERVAL_SECONDS;
+import static org.glukit.sync.api.BloodShepherdProperties.SYNC_TIMEOUT_SECONDS;
+import static org.glukit.sync.api.BloodShepherdProperties.getIntProperty;
+
+/**
+ * Runs the syncs of plugged receivers off the USB event thread. Attaches of the same device are coalesced: a sync
+ * only starts once the device stayed attached for {@link BloodShepherdProperties#SYNC_DEBOUNCE_MILLIS} and no
+ * sooner than {@link BloodShepherdProperties#SYNC_MIN_INTERVAL_SECONDS} after the end of its previous sync, so a
+ * flapping cable doesn't get synced over and over. There's at most one sync per device at a time, run in its own
+ * {@link SyncScope}, and a detach or running past {@link BloodShepherdProperties#SYNC_TIMEOUT_SECONDS} cancels
+ * whatever is pending or running for that device.
+ *
+ * @author alexandre.normand
+ */
+@Singleton
+public class SyncScheduler {
+  private static Logger LOGGER = LoggerFactory.getLogger(SyncScheduler.class);
+
+  public static enum State {
+    /**
+     * Attached, waiting for the device to settle before syncing.
+     */
+    PENDING,
+    SYNCING,
+    SYNCED,
+    FAILED,
+    /**
+     * Detached before or while syncing.
+     */
+    CANCELLED
+  }
+
+  static final int DEFAULT_DEBOUNCE_MILLIS = 2000;
+  static final int DEFAULT_MIN_INTERVAL_SECONDS = 60;
+  static final int DEFAULT_SYNC_TIMEOUT_SECONDS = 900;
+  static final int MAX_CONCURRENT_SYNCS = 8;
+
+  private final ReceiverSync receiverSync;
+  private final long debounceNanos;
+  private final long minIntervalNanos;
+  private final long syncTimeoutNanos;
+  private final Ticker ticker;
+  private final ScheduledExecutorService timer;
+  private final ExecutorService syncExecutor;
+  private final Map<UsbDeviceIdentity, DeviceSync> deviceSyncs = newHashMap();
+
+  @Inject
+  public SyncScheduler(ReceiverSync receiverSync, BloodShepherdProperties properties, ThreadModel threadModel) {
+    this(receiverSync, TimeUnit.MILLISECONDS.toNanos(getIntProperty(properties, SYNC_DEBOUNCE_MILLIS,
+            DEFAULT_DEBOUNCE_MILLIS)), TimeUnit.SECONDS.toNanos(getIntProperty(properties,
+            SYNC_MIN_INTERVAL_SECONDS, DEFAULT_MIN_INTERVAL_SECONDS)), TimeUnit.SECONDS.toNanos(getIntProperty(
+            properties, SYNC_TIMEOUT_SECONDS, DEFAULT_SYNC_TIMEOUT_SECONDS)), Ticker.systemTicker(),
+            Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("receiver-sync-timer-%d").setDaemon(true).build()),
+            // One thread per receiver being synced so that receivers plugged at once take about as long as the
+            // slowest of them
+            threadModel.newExecutor("receiver-sync-%d", MAX_CONCURRENT_SYNCS));
+  }
+
+  @VisibleForTesting
+  SyncScheduler(ReceiverSync receiverSync, long debounceNanos, long minIntervalNanos, long syncTimeoutNanos,
+                Ticker ticker, ScheduledExecutorService timer, ExecutorService syncExecutor) {
+    checkArgument(syncTimeoutNanos > 0, "%s must be positive", SYNC_TIMEOUT_SECONDS);
+    this.receiverSync = receiverSync;
+    this.debounceNanos = debounceNanos;
+    this.minIntervalNanos = minIntervalNanos;
+    this.syncTimeoutNanos = syncTimeoutNanos;
+    this.ticker = ticker;
+    this.timer = timer;
+    this.syncExecutor = syncExecutor;
+  }
+
+  /**
+   * Schedules a sync of the device, or pushes back the one already pending. Nothing is scheduled if the device is
+   * being synced already.
+   */
+  public synchronized void deviceAttached(final UsbDeviceIdentity device) {
+    DeviceSync deviceSync = this.deviceSyncs.get(device);
+    if (deviceSync == null) {
+      deviceSync = new DeviceSync();
+      this.deviceSyncs.put(device, deviceSync);
+    }
+    if (deviceSync.state == State.SYNCING) {
+      LOGGER.info(format("Device %s attached again while syncing, ignoring", device));
+      return;
+    }
+    cancel(deviceSync.pending);
+
+    long delayNanos = this.debounceNanos;
+    if (deviceSync.lastSyncEndNanos != null) {
+      long sinceLastSyncNanos = this.ticker.read() - deviceSync.lastSyncEndNanos;
+      delayNanos = Math.max(delayNanos, this.minIntervalNanos - sinceLastSyncNanos);
+    }
+    LOGGER.info(format("Syncing device %s in %d ms", device, TimeUnit.NANOSECONDS.toMillis(delayNanos)));
+    deviceSync.state = State.PENDING;
+    deviceSync.pending = this.timer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        submit(device);
+      }
+    }, delayNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Cancels the sync pending or running for the device and stops whatever else is going on with it.
+   */
+  public void deviceDetached(UsbDeviceIdentity device) {
+    synchronized (this) {
+      DeviceSync deviceSync = this.deviceSyncs.get(device);
+      if (deviceSync != null) {
+        if (deviceSync.state == State.PENDING || deviceSync.state == State.SYNCING) {
+          LOGGER.info(format("Device %s detached, cancelling its sync", device));
+          deviceSync.state = State.CANCELLED;
+        }
+        cancel(deviceSync.pending);
+        if (deviceSync.scope != null) {
+          deviceSync.scope.cancel();
+        }
+      }
+    }
+    // Closing the port also unblocks a sync stuck reading from it
+    this.receiverSync.stop(device);
+  }
+
+  /**
+   * @return the state of the last sync of each device seen so far.
+   */
+  public synchronized Map<UsbDeviceIdentity, State> getStates() {
+    ImmutableMap.Builder<UsbDeviceIdentity, State> states = ImmutableMap.builder();
+    for (Map.Entry<UsbDeviceIdentity, DeviceSync> deviceSync : this.deviceSyncs.entrySet()) {
+      states.put(deviceSync.getKey(), deviceSync.getValue().state);
+    }
+    return states.build();
+  }
+
+  /**
+   * @return the state of the last sync of the device or {@code null} if it hasn't been seen.
+   */
+  public synchronized State getState(UsbDeviceIdentity device) {
+    DeviceSync deviceSync = this.deviceSyncs.get(device);
+    return deviceSync == null ? null : deviceSync.state;
+  }
+
+  /**
+   * Cancels all syncs.
+   */
+  public void shutdown() {
+    this.timer.shutdownNow();
+    this.syncExecutor.shutdownNow();
+  }
+
+  private synchronized void submit(final UsbDeviceIdentity device) {
+    final DeviceSync deviceSync = this.deviceSyncs.get(device);
+    if (deviceSync.state != State.PENDING) {
+      return;
+    }
+    if (deviceSync.scope != null) {
+      // A cancelled sync is still winding down, give it some more time
+      deviceSync.pending = this.timer.schedule(new Runnable() {
+        @Override
+        public void run() {
+          submit(device);
+        }
+      }, this.debounceNanos, TimeUnit.NANOSECONDS);
+      return;
+    }
+    deviceSync.pending = null;
+    deviceSync.state = State.SYNCING;
+    final SyncScope scope = new SyncScope(format("Sync of device %s", device), this.syncExecutor);
+    deviceSync.scope = scope;
+    scope.setDeadline(this.timer, this.syncTimeoutNanos, new Runnable() {
+      @Override
+      public void run() {
+        // Closing the port unblocks reads that don't notice the interrupt
+        receiverSync.stop(device);
+      }
+    });
+    scope.fork(new Runnable() {
+      @Override
+      public void run() {
+        runSync(device, deviceSync, scope);
+      }
+    });
+  }
+
+  private void runSync(UsbDeviceIdentity device, DeviceSync deviceSync, SyncScope scope) {
+    State state;
+    try {
+      this.receiverSync.sync(device);
+      state = State.SYNCED;
+    } catch (Throwable e) {
+      if (scope.isTimedOut()) {
+        LOGGER.error(format("Sync of device %s timed out", device), e);
+        state = State.FAILED;
+      } else if (Thread.currentThread().isInterrupted() || scope.isCancelled()) {
+        LOGGER.info(format("Sync of device %s cancelled", device));
+        state = State.CANCELLED;
+      } else {
+        LOGGER.error(format("Sync of device %s failed", device), e);
+        state = State.FAILED;
+      }
+    }
+
+    scope.close();
+    synchronized (this) {
+      deviceSync.lastSyncEndNanos = this.ticker.read();
+      deviceSync.scope = null;
+      if (deviceSync.state == State.SYNCING) {
+        deviceSync.state = state;
+      }
+    }
+  }
+
+  private static void cancel(Future<?> future) {
+    if (future != null) {
+      future.cancel(true);
+    }
+  }
+
+  private static class DeviceSync {
+    private State state;
+    private Future<?> pending;
+    private SyncScope scope;
+    private Long lastSyncEndNanos;
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.collect.Lists.newArrayList;
+import static java.lang.String.format;
+
+/**
+ * The tasks of one receiver's sync, cancelled together when the receiver is unplugged or when the sync runs past
+ * its deadline. What a task hands off to other executors, like port probes, is cancelled along with it since it
+ * stops as soon as the task is interrupted.
+ *
+ * @author alexandre.normand
+ */
+class SyncScope {
+  private static Logger LOGGER = LoggerFactory.getLogger(SyncScope.class);
+
+  private final String name;
+  private final ExecutorService executor;
+  private final List<Future<?>> tasks = newArrayList();
+  private Future<?> deadline;
+  private boolean cancelled = false;
+  private boolean timedOut = false;
+
+  SyncScope(String name, ExecutorService executor) {
+    this.name = name;
+    this.executor = executor;
+  }
+
+  /**
+   * Runs the task within the scope.
+   */
+  synchronized Future<?> fork(Runnable task) {
+    checkState(!this.cancelled, "Scope of %s is cancelled", this.name);
+    Future<?> future = this.executor.submit(task);
+    this.tasks.add(future);
+    return future;
+  }
+
+  /**
+   * Cancels the scope if it's still open after {@code timeoutNanos}, running {@code onTimeout} once its tasks are
+   * cancelled.
+   */
+  synchronized void setDeadline(ScheduledExecutorService timer, long timeoutNanos, final Runnable onTimeout) {
+    this.deadline = timer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        if (timeOut()) {
+          onTimeout.run();
+        }
+      }
+    }, timeoutNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Interrupts all the tasks of the scope.
+   */
+  synchronized void cancel() {
+    if (this.cancelled) {
+      return;
+    }
+    this.cancelled = true;
+    for (Future<?> task : this.tasks) {
+      task.cancel(true);
+    }
+    close();
+  }
+
+  synchronized boolean isCancelled() {
+    return this.cancelled;
+  }
+
+  /**
+   * @return {@code true} if the scope was cancelled because it ran past its deadline.
+   */
+  synchronized boolean isTimedOut() {
+    return this.timedOut;
+  }
+
+  /**
+   * Drops the deadline, once the tasks of the scope are done.
+   */
+  synchronized void close() {
+    if (this.deadline != null) {
+      this.deadline.cancel(false);
+    }
+  }
+
+  private synchronized boolean timeOut() {
+    if (this.cancelled) {
+      return false;
+    }
+    LOGGER.warn(format("%s ran past its deadline, cancelling it", this.name));
+    this.timedOut = true;
+    cancel();
+    return true;
+  }
+}
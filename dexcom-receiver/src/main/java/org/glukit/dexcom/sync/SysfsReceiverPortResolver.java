@@ -0,0 +1,152 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static java.lang.String.format;
+
+/**
+ * Resolves the tty of a USB CDC device on Linux by walking sysfs rather than talking to every serial port. Each
+ * device under {@code /sys/bus/usb/devices} has its {@code idVendor}, {@code idProduct} and {@code serial} as files
+ * and its interfaces as {@code <device>:<config>.<interface>} sub-directories. The tty node of an ACM interface is
+ * listed under {@code tty/} (or as a {@code tty:<name>} entry on older kernels).
+ * @author alexandre.normand
+ */
+public class SysfsReceiverPortResolver {
+  private static Logger LOGGER = LoggerFactory.getLogger(SysfsReceiverPortResolver.class);
+
+  public static final File DEFAULT_SYSFS_ROOT = new File("/sys");
+  private static final String USB_DEVICES_PATH = "bus/usb/devices";
+  private static final String OLD_TTY_PREFIX = "tty:";
+
+  private final File usbDevicesDirectory;
+  private final File devDirectory;
+
+  @Inject
+  public SysfsReceiverPortResolver() {
+    this(DEFAULT_SYSFS_ROOT, new File("/dev"));
+  }
+
+  public SysfsReceiverPortResolver(File sysfsRoot, File devDirectory) {
+    this.usbDevicesDirectory = new File(sysfsRoot, USB_DEVICES_PATH);
+    this.devDirectory = devDirectory;
+  }
+
+  /**
+   * @return the tty paths of the devices matching the given one, usually a single one; an empty list if no
+   *         matching device has a tty (yet) or {@code null} if sysfs isn't available.
+   */
+  public List<String> resolvePorts(UsbDeviceIdentity device) {
+    File[] entries = this.usbDevicesDirectory.listFiles();
+    if (entries == null) {
+      LOGGER.debug(format("No sysfs USB devices under [%s], can't resolve the port without probing",
+              this.usbDevicesDirectory));
+      return null;
+    }
+    Arrays.sort(entries);
+
+    List<String> ports = newArrayList();
+    for (File deviceDirectory : entries) {
+      // Interfaces are listed next to devices, skip them
+      if (deviceDirectory.getName().contains(":") || !matches(deviceDirectory, device)) {
+        continue;
+      }
+      String tty = findTty(deviceDirectory);
+      if (tty != null) {
+        ports.add(new File(this.devDirectory, tty).getPath());
+      }
+    }
+
+    LOGGER.debug(format("Resolved %s to ports %s from sysfs", device, ports));
+    return ports;
+  }
+
+  private boolean matches(File deviceDirectory, UsbDeviceIdentity device) {
+    String vendorId = readAttribute(deviceDirectory, "idVendor");
+    String productId = readAttribute(deviceDirectory, "idProduct");
+    if (!format("%04x", device.getVendorId() & 0xffff).equalsIgnoreCase(vendorId) ||
+            !format("%04x", device.getProductId() & 0xffff).equalsIgnoreCase(productId)) {
+      return false;
+    }
+
+    String serialNumber = readAttribute(deviceDirectory, "serial");
+    return device.getSerialNumber() == null || serialNumber == null || device.getSerialNumber().equals(serialNumber);
+  }
+
+  private static String findTty(File deviceDirectory) {
+    File[] interfaces = deviceDirectory.listFiles();
+    if (interfaces == null) {
+      return null;
+    }
+    Arrays.sort(interfaces);
+
+    for (File interfaceDirectory : interfaces) {
+      if (!interfaceDirectory.getName().startsWith(deviceDirectory.getName() + ":")) {
+        continue;
+      }
+
+      String[] ttys = new File(interfaceDirectory, "tty").list();
+      if (ttys != null && ttys.length > 0) {
+        Arrays.sort(ttys);
+        return ttys[0];
+      }
+
+      String[] children = interfaceDirectory.list();
+      if (children != null) {
+        Arrays.sort(children);
+        for (String child : children) {
+          if (child.startsWith(OLD_TTY_PREFIX)) {
+            return child.substring(OLD_TTY_PREFIX.length());
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+  private static String readAttribute(File directory, String name) {
+    File attribute = new File(directory, name);
+    if (!attribute.isFile()) {
+      return null;
+    }
+    try {
+      return Files.toString(attribute, Charsets.US_ASCII).trim();
+    } catch (IOException e) {
+      LOGGER.debug(format("Can't read [%s], ignoring.", attribute), e);
+      return null;
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync;
+
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.usb.UsbDevice;
+import javax.usb.UsbDeviceDescriptor;
+
+/**
+ * Identifies a USB device across plug-ins by its vendor id, product id and, when available, serial number.
+ * @author alexandre.normand
+ */
+@EqualsAndHashCode
+@ToString
+public class UsbDeviceIdentity {
+  private static Logger LOGGER = LoggerFactory.getLogger(UsbDeviceIdentity.class);
+
+  private final short vendorId;
+  private final short productId;
+  private final String serialNumber;
+
+  public UsbDeviceIdentity(short vendorId, short productId, String serialNumber) {
+    this.vendorId = vendorId;
+    this.productId = productId;
+    this.serialNumber = serialNumber;
+  }
+
+  public static UsbDeviceIdentity of(UsbDevice usbDevice) {
+    UsbDeviceDescriptor deviceDescriptor = usbDevice.getUsbDeviceDescriptor();
+    String serialNumber;
+    try {
+      serialNumber = usbDevice.getSerialNumberString();
+    } catch (Exception e) {
+      LOGGER.debug("Can't read the device serial number, identifying it by vendor and product only.", e);
+      serialNumber = null;
+    }
+    return new UsbDeviceIdentity(deviceDescriptor.idVendor(), deviceDescriptor.idProduct(), serialNumber);
+  }
+
+  public short getVendorId() {
+    return vendorId;
+  }
+
+  public short getProductId() {
+    return productId;
+  }
+
+  /**
+   * @return the device serial number or {@code null} if it couldn't be read.
+   */
+  public String getSerialNumber() {
+    return serialNumber;
+  }
+}
@@ -35,13 +35,21 @@ import static com.google.common.base.Preconditions.checkArgument;
 @EqualsAndHashCode
 @ToString
 public class DatabaseReadRequestSpec {
+  /**
+   * Pages every firmware reads in a single command.
+   */
   public static final byte MAX_PAGES_PER_COMMAND = 4;
+  /**
+   * Most pages a single command can ask for. Firmwares that take more than {@link #MAX_PAGES_PER_COMMAND} are found
+   * by probing them.
+   */
+  public static final byte LARGEST_PAGES_PER_COMMAND = 16;
   private long startPage;
   private byte numberOfPages;
 
   public DatabaseReadRequestSpec(long startPage, byte numberOfPages) {
-    checkArgument(numberOfPages > 0 && numberOfPages <= MAX_PAGES_PER_COMMAND, "Command is limited to [%s] pages or " +
-                "less, given invalid value of [%s]", MAX_PAGES_PER_COMMAND, numberOfPages);
+    checkArgument(numberOfPages > 0 && numberOfPages <= LARGEST_PAGES_PER_COMMAND, "Command is limited to [%s] pages " +
+                "or less, given invalid value of [%s]", LARGEST_PAGES_PER_COMMAND, numberOfPages);
     this.startPage = startPage;
     this.numberOfPages = numberOfPages;
   }
@@ -0,0 +1,71 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync.model;
+
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
+import org.glukit.sync.api.GlucoseRead;
+
+/**
+ * What's known of a receiver that doesn't change unless it's reset or replaced: its manufacturing parameters,
+ * firmware header and glucose unit, along with the range of manufacturing data pages they were read from.
+ *
+ * @author alexandre.normand
+ */
+@EqualsAndHashCode
+@ToString
+public class DeviceMetadata {
+  private final ManufacturingParameters manufacturingParameters;
+  private final PageRange manufacturingPageRange;
+  private final String firmwareHeader;
+  private final GlucoseRead.Unit glucoseUnit;
+
+  public DeviceMetadata(ManufacturingParameters manufacturingParameters, PageRange manufacturingPageRange,
+                        String firmwareHeader, GlucoseRead.Unit glucoseUnit) {
+    this.manufacturingParameters = manufacturingParameters;
+    this.manufacturingPageRange = manufacturingPageRange;
+    this.firmwareHeader = firmwareHeader;
+    this.glucoseUnit = glucoseUnit;
+  }
+
+  public ManufacturingParameters getManufacturingParameters() {
+    return manufacturingParameters;
+  }
+
+  public PageRange getManufacturingPageRange() {
+    return manufacturingPageRange;
+  }
+
+  public String getFirmwareHeader() {
+    return firmwareHeader;
+  }
+
+  /**
+   * @return the unit glucose is displayed in or {@code null} if it's not set.
+   */
+  public GlucoseRead.Unit getGlucoseUnit() {
+    return glucoseUnit;
+  }
+}
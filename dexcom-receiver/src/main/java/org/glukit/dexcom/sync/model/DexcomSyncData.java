@@ -5,7 +5,9 @@ import lombok.ToString;
 import org.glukit.sync.api.ReceiverSyncData;
 import org.threeten.bp.Instant;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Represents the full set of data from a sync on a {@link org.glukit.dexcom.sync.g4.DexcomG4DeviceFilter}
@@ -19,6 +21,8 @@ public class DexcomSyncData implements ReceiverSyncData {
   private List<UserEventRecord> userEvents;
   private ManufacturingParameters manufacturingParameters;
   private Instant syncTime;
+  private Instant since;
+  private Map<RecordType, Long> lastPagesRead = Collections.emptyMap();
 
   public DexcomSyncData(List<GlucoseReadRecord> glucoseReads,
                         List<UserEventRecord> userEvents,
@@ -39,6 +43,35 @@ public class DexcomSyncData implements ReceiverSyncData {
       this.syncTime = updateTime;
     }
 
+  public DexcomSyncData(List<GlucoseReadRecord> glucoseReads,
+                        List<UserEventRecord> userEvents,
+                        ManufacturingParameters manufacturingParameters,
+                        Map<RecordType, Long> lastPagesRead) {
+    this(glucoseReads, userEvents, manufacturingParameters);
+    this.lastPagesRead = lastPagesRead;
+  }
+
+  public DexcomSyncData(List<GlucoseReadRecord> glucoseReads,
+                        List<UserEventRecord> userEvents,
+                        ManufacturingParameters manufacturingParameters,
+                        Instant updateTime,
+                        Map<RecordType, Long> lastPagesRead) {
+    this(glucoseReads, userEvents, manufacturingParameters, updateTime);
+    this.lastPagesRead = lastPagesRead;
+  }
+
+  /**
+   * @param since the start of the sync this data is a chunk of, see {@link #getSince()}.
+   */
+  public DexcomSyncData(List<GlucoseReadRecord> glucoseReads,
+                        List<UserEventRecord> userEvents,
+                        ManufacturingParameters manufacturingParameters,
+                        Instant updateTime,
+                        Instant since) {
+    this(glucoseReads, userEvents, manufacturingParameters, updateTime);
+    this.since = since;
+  }
+
   public List<GlucoseReadRecord> getGlucoseReads() {
     return glucoseReads;
   }
@@ -51,8 +84,23 @@ public class DexcomSyncData implements ReceiverSyncData {
     return userEvents;
   }
 
+  /**
+   * @return the last page read of each record type, the next sync can start from there.
+   */
+  public Map<RecordType, Long> getLastPagesRead() {
+    return lastPagesRead;
+  }
+
   @Override
   public Instant getUpdateTime() {
     return syncTime;
   }
+
+  /**
+   * @return the start of the backfill this data is a chunk of or {@code null} if it's not a backfill chunk. Chunks of
+   * a backfill come most recent first.
+   */
+  public Instant getSince() {
+    return since;
+  }
 }
@@ -0,0 +1,71 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync.model;
+
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
+
+/**
+ * Range of database pages holding records of a {@link RecordType}, as answered to a
+ * {@link ReceiverCommand#ReadDatabasePageRange}.
+ *
+ * @author alexandre.normand
+ */
+@EqualsAndHashCode
+@ToString
+public class PageRange {
+  /**
+   * What the receiver answers for both pages when there are no records of that type.
+   */
+  public static final long NO_PAGE = 0xFFFFFFFFL;
+
+  private final long firstPage;
+  private final long lastPage;
+
+  public PageRange(long firstPage, long lastPage) {
+    this.firstPage = firstPage;
+    this.lastPage = lastPage;
+  }
+
+  public long getFirstPage() {
+    return firstPage;
+  }
+
+  public long getLastPage() {
+    return lastPage;
+  }
+
+  public boolean isEmpty() {
+    return this.firstPage == NO_PAGE || this.lastPage < this.firstPage;
+  }
+
+  public long getPageCount() {
+    return isEmpty() ? 0 : this.lastPage - this.firstPage + 1;
+  }
+
+  public boolean contains(long page) {
+    return !isEmpty() && page >= this.firstPage && page <= this.lastPage;
+  }
+}
@@ -124,7 +124,7 @@ public class DatabasePagesResponse extends GenericResponse {
     }
   }
 
-  protected List<DatabasePage> getPages() {
+  public List<DatabasePage> getPages() {
     return pages;
   }
 }
@@ -31,22 +31,31 @@ public abstract class GenericRecordDatabasePagesResponse<T> extends DatabasePage
   }
 
   public List<T> getRecords() {
+    List<T> records = newArrayList();
+    for (DatabasePage page : getPages()) {
+      records.addAll(getRecords(page));
+    }
+    return records;
+  }
+
+  /**
+   * @return the records of one of the {@link #getPages() pages}.
+   */
+  public List<T> getRecords(DatabasePage page) {
     List<T> records = newArrayList();
     try {
-      for (DatabasePage page : getPages()) {
-        DatabasePageHeader header = page.getPageHeader();
-        ByteArrayInputStream inputStream = new ByteArrayInputStream(page.getPageData());
-        DataInput input = this.dataInputFactory.create(inputStream);
+      DatabasePageHeader header = page.getPageHeader();
+      ByteArrayInputStream inputStream = new ByteArrayInputStream(page.getPageData());
+      DataInput input = this.dataInputFactory.create(inputStream);
 
-        LOGGER.debug(format("Parsing [%d] records...", header.getNumberOfRecords()));
-        for (int i = 0; i < header.getNumberOfRecords(); i++) {
-          byte[] recordBytes = new byte[getRecordLength()];
-          input.readFully(recordBytes, 0, getRecordLength());
+      LOGGER.debug(format("Parsing [%d] records...", header.getNumberOfRecords()));
+      for (int i = 0; i < header.getNumberOfRecords(); i++) {
+        byte[] recordBytes = new byte[getRecordLength()];
+        input.readFully(recordBytes, 0, getRecordLength());
 
-          T record = parseRecord(recordBytes, header, header.getFirstRecordIndex() + i);
+        T record = parseRecord(recordBytes, header, header.getFirstRecordIndex() + i);
 
-          records.add(record);
-        }
+        records.add(record);
       }
       return records;
     } catch (IOException e) {
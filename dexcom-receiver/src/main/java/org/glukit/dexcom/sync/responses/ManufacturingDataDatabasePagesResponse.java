@@ -23,6 +23,7 @@
 
 package org.glukit.dexcom.sync.responses;
 
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.dataformat.xml.XmlMapper;
 import com.google.common.base.Throwables;
 import com.google.common.primitives.UnsignedInts;
@@ -44,6 +45,12 @@ import static org.glukit.dexcom.sync.DecodingUtils.validateCrc;
  * @author alexandre.normand
  */
 public class ManufacturingDataDatabasePagesResponse extends DatabasePagesResponse {
+  /**
+   * Readers are thread-safe and costly to build, this one is shared by all responses.
+   */
+  private static final ObjectReader MANUFACTURING_PARAMETERS_READER =
+          new XmlMapper().reader(ManufacturingParameters.class);
+
   public ManufacturingDataDatabasePagesResponse(DataInputFactory dataInputFactory) {
     super(dataInputFactory);
   }
@@ -63,9 +70,8 @@ public class ManufacturingDataDatabasePagesResponse extends DatabasePagesRespons
 
         validateCrc(input.readUnsignedShort(), page.getPageData());
 
-        XmlMapper xmlMapper = new XmlMapper();
-        ManufacturingParameters parameterPage = xmlMapper.readValue(new String(xmlBytes, "UTF-8"),
-                ManufacturingParameters.class);
+        ManufacturingParameters parameterPage = MANUFACTURING_PARAMETERS_READER.readValue(
+                new String(xmlBytes, "UTF-8"));
         manufacturingParameters.add(parameterPage);
       }
       return manufacturingParameters;
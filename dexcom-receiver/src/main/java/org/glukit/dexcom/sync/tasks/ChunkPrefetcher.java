@@ -0,0 +1,153 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync.tasks;
+
+import org.glukit.dexcom.sync.ResponseReader;
+import org.glukit.dexcom.sync.SyncMetrics;
+import org.glukit.dexcom.sync.model.ReceiverCommand;
+import org.glukit.dexcom.sync.transport.SerialTransport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static java.lang.String.format;
+import static org.glukit.dexcom.sync.DecodingUtils.toHexString;
+import static org.glukit.dexcom.sync.SyncMetrics.PAGE_PREFETCHES;
+
+/**
+ * Sends the request of the next planned chunk as soon as the response to the current one is in, so the receiver
+ * reads the next pages while the current ones are decoded and handed over instead of the link sitting idle. The
+ * receiver answers one request at a time so at most one request is sent ahead. Its response is kept if another
+ * request needs the wire first, like a retry or a split read, and drained if the sync stops before getting to it.
+ *
+ * @author alexandre.normand
+ */
+class ChunkPrefetcher {
+  private static Logger LOGGER = LoggerFactory.getLogger(ChunkPrefetcher.class);
+
+  // The command id follows the start of frame byte and the frame size
+  private static final int COMMAND_OFFSET = 3;
+
+  private final SerialTransport transport;
+  private final ResponseReader responseReader;
+  private final SyncMetrics syncMetrics;
+  private byte[] nextPacket;
+  private byte[] pendingPacket;
+  private byte[] bufferedPacket;
+  private byte[] bufferedFrame;
+
+  ChunkPrefetcher(SerialTransport transport, ResponseReader responseReader, SyncMetrics syncMetrics) {
+    this.transport = transport;
+    this.responseReader = responseReader;
+    this.syncMetrics = syncMetrics;
+  }
+
+  /**
+   * @param packet the request of the chunk to read after the current one, sent once the current response is in.
+   */
+  void setNext(@Nullable byte[] packet) {
+    this.nextPacket = packet;
+  }
+
+  /**
+   * Sends the request, unless it was sent ahead already, and reads its response frame. The next planned request
+   * goes out right after.
+   */
+  byte[] exchange(byte[] packet) throws IOException {
+    byte[] frame;
+    if (this.bufferedPacket != null && Arrays.equals(this.bufferedPacket, packet)) {
+      frame = this.bufferedFrame;
+      this.bufferedPacket = null;
+      this.bufferedFrame = null;
+    } else if (this.pendingPacket != null && Arrays.equals(this.pendingPacket, packet)) {
+      this.pendingPacket = null;
+      frame = this.responseReader.readFrame(this.transport);
+    } else {
+      drain();
+      this.transport.write(packet);
+      frame = this.responseReader.readFrame(this.transport);
+    }
+
+    // An error means a retry or a split read comes next and interrupted syncs stop at the end of the chunk, no
+    // point keeping the receiver busy with a request that would only be drained
+    if (isAck(frame) && !Thread.currentThread().isInterrupted()) {
+      sendNext();
+    }
+    return frame;
+  }
+
+  /**
+   * Reads the response to the request sent ahead, if any, and keeps it for when its chunk is read. The wire is then
+   * free for another request.
+   */
+  void drain() throws IOException {
+    if (this.pendingPacket == null) {
+      return;
+    }
+    byte[] pendingPacket = this.pendingPacket;
+    this.pendingPacket = null;
+    this.bufferedFrame = this.responseReader.readFrame(this.transport);
+    this.bufferedPacket = pendingPacket;
+  }
+
+  /**
+   * Drops what was read ahead and waits for the response to a request still on the wire, so that it's not taken
+   * for the response to whatever is sent next.
+   */
+  void cancel() {
+    this.nextPacket = null;
+    byte[] pendingPacket = this.pendingPacket;
+    try {
+      drain();
+    } catch (RuntimeException | IOException e) {
+      LOGGER.warn(format("Failed to drain the response to %s sent ahead on %s", toHexString(pendingPacket),
+              this.transport.getPortName()), e);
+    }
+    if (this.bufferedPacket != null) {
+      LOGGER.debug(format("Dropping the response to %s, its chunk wasn't read", toHexString(this.bufferedPacket)));
+    }
+    this.bufferedPacket = null;
+    this.bufferedFrame = null;
+  }
+
+  private static boolean isAck(byte[] frame) {
+    return frame.length > COMMAND_OFFSET && frame[COMMAND_OFFSET] == ReceiverCommand.Ack.getId();
+  }
+
+  private void sendNext() throws IOException {
+    if (this.nextPacket == null || this.pendingPacket != null || this.bufferedPacket != null) {
+      return;
+    }
+    byte[] packet = this.nextPacket;
+    this.nextPacket = null;
+    LOGGER.debug(format("Sending %s ahead", toHexString(packet)));
+    this.transport.write(packet);
+    this.pendingPacket = packet;
+    this.syncMetrics.increment(PAGE_PREFETCHES);
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync.tasks;
+
+import com.google.common.base.Ticker;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.String.format;
+
+/**
+ * The time by which a sync must be done. It's measured with a {@link Ticker} so that changing the clock of the
+ * computer doesn't move it.
+ *
+ * @author alexandre.normand
+ */
+public class Deadline {
+  private final Ticker ticker;
+  private final long deadlineNanos;
+
+  private Deadline(Ticker ticker, long deadlineNanos) {
+    this.ticker = ticker;
+    this.deadlineNanos = deadlineNanos;
+  }
+
+  public static Deadline after(long duration, TimeUnit unit) {
+    return after(duration, unit, Ticker.systemTicker());
+  }
+
+  public static Deadline after(long duration, TimeUnit unit, Ticker ticker) {
+    checkArgument(duration >= 0, "Deadline can't be in the past, was [%s %s]", duration, unit);
+    return new Deadline(ticker, ticker.read() + unit.toNanos(duration));
+  }
+
+  public boolean isExpired() {
+    return getRemaining(TimeUnit.NANOSECONDS) <= 0;
+  }
+
+  /**
+   * @return the time left before the deadline, negative once it's past.
+   */
+  public long getRemaining(TimeUnit unit) {
+    return unit.convert(this.deadlineNanos - this.ticker.read(), TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public String toString() {
+    return format("Deadline[%d ms left]", getRemaining(TimeUnit.MILLISECONDS));
+  }
+}
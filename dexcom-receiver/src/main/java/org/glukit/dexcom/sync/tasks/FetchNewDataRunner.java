@@ -23,34 +23,60 @@
 
 package org.glukit.dexcom.sync.tasks;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Predicate;
+import com.google.common.base.Supplier;
 import com.google.common.base.Throwables;
 import com.google.common.collect.Collections2;
+import com.google.common.collect.ImmutableList;
 import com.google.inject.Inject;
-import jssc.SerialPort;
-import jssc.SerialPortException;
 import org.glukit.dexcom.sync.DataInputFactory;
-import org.glukit.dexcom.sync.DataOutputFactory;
 import org.glukit.dexcom.sync.DatabasePagesPager;
+import org.glukit.dexcom.sync.DataOutputFactory;
+import org.glukit.dexcom.sync.DecodedPageCache;
+import org.glukit.dexcom.sync.ErrorResponseException;
+import org.glukit.dexcom.sync.ReceiverSession;
 import org.glukit.dexcom.sync.ResponseReader;
+import org.glukit.dexcom.sync.SyncMetrics;
 import org.glukit.dexcom.sync.model.*;
 import org.glukit.dexcom.sync.requests.*;
 import org.glukit.dexcom.sync.responses.*;
+import org.glukit.dexcom.sync.transport.CorruptFrameException;
+import org.glukit.dexcom.sync.transport.SerialTransport;
+import org.glukit.sync.api.BloodShepherdProperties;
+import org.glukit.sync.api.ThreadModel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.threeten.bp.Instant;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeoutException;
 
 import static com.google.common.collect.Lists.newArrayList;
 import static java.lang.String.format;
+import static org.glukit.dexcom.sync.SyncMetrics.PAGE_READS;
+import static org.glukit.dexcom.sync.SyncMetrics.PAGE_READ_FAILURES;
+import static org.glukit.dexcom.sync.SyncMetrics.PAGE_READ_SPLITS;
 import static org.glukit.dexcom.sync.DecodingUtils.toHexString;
+import static org.glukit.dexcom.sync.PortScheduler.Priority.BULK;
+import static org.glukit.dexcom.sync.PortScheduler.Priority.INTERACTIVE;
 import static org.glukit.dexcom.sync.g4.DexcomG4Constants.*;
+import static org.glukit.dexcom.sync.model.DatabaseReadRequestSpec.LARGEST_PAGES_PER_COMMAND;
+import static org.glukit.dexcom.sync.model.DatabaseReadRequestSpec.MAX_PAGES_PER_COMMAND;
 import static org.glukit.dexcom.sync.model.RecordType.EGVData;
 import static org.glukit.dexcom.sync.model.RecordType.ManufacturingData;
 import static org.glukit.dexcom.sync.model.RecordType.UserEventData;
+import static org.glukit.dexcom.sync.transport.FrameDecoder.DATABASE_PAGE_SIZE;
 
 /**
  * Fetches the new data since last sync.
@@ -59,59 +85,566 @@ import static org.glukit.dexcom.sync.model.RecordType.UserEventData;
  */
 public class FetchNewDataRunner {
   private static Logger LOGGER = LoggerFactory.getLogger(FetchNewDataRunner.class);
+
+  static final int MAX_REQUEST_ATTEMPTS = 3;
+  static final long INITIAL_RETRY_DELAY_MILLIS = 100;
+  static final int MAX_CONCURRENT_ASYNC_FETCHES = 4;
+  /**
+   * Page counts tried by {@link #probePagesPerRead(ReceiverSession)}, largest first.
+   */
+  static final byte[] PROBED_PAGES_PER_READ = {LARGEST_PAGES_PER_COMMAND, 8};
+
+  private static final SyncPlanner MANUFACTURING_DATA_PLANNER = new SyncPlanner(ImmutableList.of(ManufacturingData));
+
   private final DataOutputFactory dataOutputFactory;
   private final DataInputFactory dataInputFactory;
   private final ResponseReader responseReader;
+  private final SyncMetrics syncMetrics;
+  private final SyncPlanner syncPlanner;
+  private final long initialRetryDelayMillis;
+  private final ExecutorService asyncExecutor;
+  private final DecodedPageCache pageCache;
+
+  public FetchNewDataRunner(DataOutputFactory dataOutputFactory,
+                            DataInputFactory dataInputFactory,
+                            ResponseReader responseReader,
+                            SyncMetrics syncMetrics,
+                            SyncPlanner syncPlanner) {
+    this(dataOutputFactory, dataInputFactory, responseReader, syncMetrics, syncPlanner, ThreadModel.PLATFORM,
+            new DecodedPageCache(new BloodShepherdProperties(), syncMetrics));
+  }
 
   @Inject
   public FetchNewDataRunner(DataOutputFactory dataOutputFactory,
                             DataInputFactory dataInputFactory,
-                            ResponseReader responseReader) {
+                            ResponseReader responseReader,
+                            SyncMetrics syncMetrics,
+                            SyncPlanner syncPlanner,
+                            ThreadModel threadModel,
+                            DecodedPageCache pageCache) {
+    this(dataOutputFactory, dataInputFactory, responseReader, syncMetrics, syncPlanner, INITIAL_RETRY_DELAY_MILLIS,
+            threadModel, pageCache);
+  }
+
+  @VisibleForTesting
+  FetchNewDataRunner(DataOutputFactory dataOutputFactory,
+                     DataInputFactory dataInputFactory,
+                     ResponseReader responseReader,
+                     SyncMetrics syncMetrics,
+                     SyncPlanner syncPlanner,
+                     long initialRetryDelayMillis) {
+    this(dataOutputFactory, dataInputFactory, responseReader, syncMetrics, syncPlanner, initialRetryDelayMillis,
+            ThreadModel.PLATFORM, new DecodedPageCache(new BloodShepherdProperties(), syncMetrics));
+  }
+
+  private FetchNewDataRunner(DataOutputFactory dataOutputFactory,
+                             DataInputFactory dataInputFactory,
+                             ResponseReader responseReader,
+                             SyncMetrics syncMetrics,
+                             SyncPlanner syncPlanner,
+                             long initialRetryDelayMillis,
+                             ThreadModel threadModel,
+                             DecodedPageCache pageCache) {
     this.dataOutputFactory = dataOutputFactory;
     this.dataInputFactory = dataInputFactory;
     this.responseReader = responseReader;
+    this.syncMetrics = syncMetrics;
+    this.syncPlanner = syncPlanner;
+    this.initialRetryDelayMillis = initialRetryDelayMillis;
+    this.asyncExecutor = threadModel.newExecutor("receiver-fetch-%d", MAX_CONCURRENT_ASYNC_FETCHES);
+    this.pageCache = pageCache;
   }
 
 
   /**
    * Fetches the data from the dexcom
    *
-   * @param serialPort the serial port of the dexcom receiver
-   * @param since      unused at the moment, this optimization might come later
+   * @param transport the open transport to the dexcom receiver, the caller is responsible for closing it
+   * @param since      the time of the last sync, only newer records are kept
    * @return the synced data, it's the whole thing of what's still in the receiver memory.
    */
-  public DexcomSyncData fetchData(final SerialPort serialPort, final Instant since) {
+  public DexcomSyncData fetchData(SerialTransport transport, Instant since) {
+    return fetchData(transport, since, Collections.<RecordType, Long>emptyMap());
+  }
+
+  /**
+   * Fetches the data from the dexcom, following the {@link SyncPlan} for the given checkpoints.
+   *
+   * @param transport   the open transport to the dexcom receiver, the caller is responsible for closing it
+   * @param since       the time of the last sync, only newer records are kept
+   * @param checkpoints the last page read of each record type at the last sync, pages before those aren't read
+   * @return the synced data since the checkpoints, along with the last pages read for the next sync to start from.
+   */
+  public DexcomSyncData fetchData(SerialTransport transport, Instant since, Map<RecordType, Long> checkpoints) {
+    return fetchData(transport, since, checkpoints, this.syncPlanner, null, null);
+  }
+
+  /**
+   * Fetches the data from the dexcom over a session. The manufacturing parameters are only read if the session
+   * doesn't know them yet.
+   *
+   * @param session     the session of the dexcom receiver, it's left open
+   * @param since       the time of the last sync, only newer records are kept
+   * @param checkpoints the last page read of each record type at the last sync, pages before those aren't read
+   */
+  public DexcomSyncData fetchData(ReceiverSession session, Instant since, Map<RecordType, Long> checkpoints) {
+    SerialTransport transport = session.takeTurn(BULK);
     try {
-      serialPort.openPort();
-      if (!serialPort.isOpened()) {
-        throw new RuntimeException("Can't open receiver to get the data.");
+      DexcomSyncData syncData = fetchData(transport, since, checkpoints, plannerFor(session),
+              session.getManufacturingParameters(), session);
+      session.cacheManufacturingParameters(syncData.getManufacturingParameters());
+      return syncData;
+    } finally {
+      session.endTurn();
+    }
+  }
+
+  private DexcomSyncData fetchData(SerialTransport transport, Instant since, Map<RecordType, Long> checkpoints,
+                                   SyncPlanner planner, ManufacturingParameters manufacturingData,
+                                   @Nullable ReceiverSession session) {
+    try {
+      return readPlannedChunks(transport, since, checkpoints, planner, manufacturingData, session, null);
+    } catch (Throwable e) {
+      throw Throwables.propagate(e);
+    } finally {
+      LOGGER.info(format("Receiver requests so far: %s", this.syncMetrics.snapshot()));
+    }
+  }
+
+  /**
+   * Fetches the data from the dexcom over a session without blocking the caller. The sync stops before its next
+   * chunk of pages once the returned future is cancelled or the deadline is past, in which case the future fails with
+   * a {@link java.util.concurrent.TimeoutException}. Either way, what was read until then is available from
+   * {@link SyncFuture#getPartialData()}.
+   *
+   * @param session     the session of the dexcom receiver, it's left open
+   * @param since       the time of the last sync, only newer records are kept
+   * @param checkpoints the last page read of each record type at the last sync, pages before those aren't read
+   * @param deadline    the time by which the sync must be done
+   */
+  public SyncFuture fetchDataAsync(final ReceiverSession session, final Instant since,
+                                   final Map<RecordType, Long> checkpoints, Deadline deadline) {
+    final SyncFuture future = new SyncFuture(deadline, since);
+    this.asyncExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (!future.start()) {
+          return;
+        }
+        try {
+          SerialTransport transport = session.takeTurn(BULK);
+          try {
+            DexcomSyncData syncData = readPlannedChunks(transport, since, checkpoints, plannerFor(session),
+                    session.getManufacturingParameters(), session, future);
+            session.cacheManufacturingParameters(syncData.getManufacturingParameters());
+            future.set(syncData);
+          } finally {
+            session.endTurn();
+          }
+        } catch (Throwable e) {
+          future.setException(e);
+        } finally {
+          future.finish();
+          LOGGER.info(format("Receiver requests so far: %s", syncMetrics.snapshot()));
+        }
       }
+    });
+    return future;
+  }
 
-      LOGGER.info(format("Opened port [%s]: %b", serialPort.getPortName(), serialPort.isOpened()));
-      serialPort.setParams(FIRMWARE_BAUD_RATE, DATA_BITS, STOP_BITS, NO_PARITY);
+  /**
+   * @param session  the session to yield the turn to other users between chunks, if the transport is shared
+   * @param progress where to report the chunks read, if anything is waiting on them
+   */
+  private DexcomSyncData readPlannedChunks(SerialTransport transport, Instant since,
+                                           Map<RecordType, Long> checkpoints, SyncPlanner planner,
+                                           ManufacturingParameters manufacturingData,
+                                           @Nullable ReceiverSession session, @Nullable SyncFuture progress)
+          throws IOException, TimeoutException {
+    SyncPlan plan = doPlanSync(transport, checkpoints, planner, false);
+    long sinceRelativeToDexcomEpoch = since.getEpochSecond() - DEXCOM_EPOCH.getEpochSecond();
+
+    List<GlucoseReadRecord> glucoseReads = newArrayList();
+    List<UserEventRecord> userEvents = newArrayList();
+    List<PlannedRead> reads = plan.getReads();
+    ChunkPrefetcher prefetcher = new ChunkPrefetcher(transport, this.responseReader, this.syncMetrics);
+    try {
+      for (int i = 0; i < reads.size(); i++) {
+        PlannedRead read = reads.get(i);
+        checkNotInterrupted();
+        if (progress != null) {
+          progress.checkContinue();
+        }
+        yieldTurn(session, prefetcher);
+        prefetcher.setNext(i + 1 < reads.size() ? readPagesPacket(reads.get(i + 1)) : null);
+        DexcomSyncData chunk = readChunk(transport, read, manufacturingData, prefetcher);
+        List<GlucoseReadRecord> newGlucoseReads =
+                getGlucoseReadsSince(chunk.getGlucoseReads(), sinceRelativeToDexcomEpoch);
+        List<UserEventRecord> newUserEvents = getUserEventRecordsSince(chunk.getUserEvents(),
+                sinceRelativeToDexcomEpoch);
+        glucoseReads.addAll(newGlucoseReads);
+        userEvents.addAll(newUserEvents);
+        manufacturingData = chunk.getManufacturingParameters();
+        if (progress != null) {
+          progress.chunkRead(read, newGlucoseReads, newUserEvents, manufacturingData);
+        }
+      }
+    } finally {
+      prefetcher.cancel();
+    }
 
-      final ManufacturingParameters manufacturingData = getManufacturingData(serialPort);
-      final long sinceRelativeToDexcomEpoch = since.getEpochSecond() - DEXCOM_EPOCH.getEpochSecond();
+    return new DexcomSyncData(glucoseReads, userEvents, manufacturingData, plan.getLastPages());
+  }
 
-      final List<GlucoseReadRecord> glucoseReads = getGlucoseReadsSince(serialPort, sinceRelativeToDexcomEpoch);
-      List<UserEventRecord> userEvents = getUserEventRecordsSince(serialPort, sinceRelativeToDexcomEpoch);
+  /**
+   * Fetches the data from the dexcom, most recent records first. Each chunk of pages read is handed to the listener
+   * as soon as it's decoded so that recent data can be exported while older pages are still being read. The pages
+   * of a record type stop being read once a chunk reaches back to {@code since}.
+   *
+   * @param transport   the open transport to the dexcom receiver, the caller is responsible for closing it
+   * @param since       the time of the last sync, only newer records are kept
+   * @param checkpoints the last page read of each record type at the last sync, pages before those aren't read
+   * @param listener    gets the new records of each chunk, chunks without any new record are not passed on
+   * @return all the synced data, along with the last pages read for the next sync to start from.
+   */
+  public DexcomSyncData backfillData(SerialTransport transport, Instant since, Map<RecordType, Long> checkpoints,
+                                     SyncChunkListener listener) {
+    return backfillData(transport, since, checkpoints, listener, this.syncPlanner, null, null, true);
+  }
+
+  /**
+   * Backfills the data from the dexcom over a session, see
+   * {@link #backfillData(SerialTransport, Instant, Map, SyncChunkListener)}. The manufacturing parameters are only
+   * read if the session doesn't know them yet.
+   */
+  public DexcomSyncData backfillData(ReceiverSession session, Instant since, Map<RecordType, Long> checkpoints,
+                                     SyncChunkListener listener) {
+    SerialTransport transport = session.takeTurn(BULK);
+    try {
+      DexcomSyncData syncData = backfillData(transport, since, checkpoints, listener, plannerFor(session),
+              session.getManufacturingParameters(), session, true);
+      session.cacheManufacturingParameters(syncData.getManufacturingParameters());
+      return syncData;
+    } finally {
+      session.endTurn();
+    }
+  }
+
+  /**
+   * Backfills the data from the dexcom over a session like
+   * {@link #backfillData(ReceiverSession, Instant, Map, SyncChunkListener)} but only once the returned publisher gets
+   * a subscriber and only as fast as it asks for chunks. Records aren't kept once published, except the glucose reads
+   * of the most recent chunk which come back in the {@link RecordPublisher#getResult() result} along with the last
+   * pages read.
+   *
+   * @param session     the session of the dexcom receiver, it's left open
+   * @param since       the time of the last sync, only newer records are published
+   * @param checkpoints the last page read of each record type at the last sync, pages before those aren't read
+   */
+  public RecordPublisher publishData(final ReceiverSession session, final Instant since,
+                                     final Map<RecordType, Long> checkpoints) {
+    return new RecordPublisher(this.asyncExecutor, new RecordPublisher.ChunkSource() {
+      @Override
+      public DexcomSyncData read(SyncChunkListener listener) {
+        SerialTransport transport = session.takeTurn(BULK);
+        try {
+          DexcomSyncData syncData = backfillData(transport, since, checkpoints, listener, plannerFor(session),
+                  session.getManufacturingParameters(), session, false);
+          session.cacheManufacturingParameters(syncData.getManufacturingParameters());
+          return syncData;
+        } finally {
+          session.endTurn();
+        }
+      }
+    });
+  }
+
+  /**
+   * @param session     the session to yield the turn to other users between chunks, if the transport is shared
+   * @param keepRecords {@code false} to only return the glucose reads of the most recent chunk rather than all
+   *                    records read.
+   */
+  private DexcomSyncData backfillData(SerialTransport transport, Instant since, Map<RecordType, Long> checkpoints,
+                                      SyncChunkListener listener, SyncPlanner planner,
+                                      ManufacturingParameters manufacturingData, @Nullable ReceiverSession session,
+                                      boolean keepRecords) {
+    try {
+      SyncPlan plan = doPlanSync(transport, checkpoints, planner, true);
+      long sinceRelativeToDexcomEpoch = since.getEpochSecond() - DEXCOM_EPOCH.getEpochSecond();
+
+      List<GlucoseReadRecord> glucoseReads = newArrayList();
+      List<UserEventRecord> userEvents = newArrayList();
+      Set<RecordType> caughtUp = EnumSet.noneOf(RecordType.class);
+      List<PlannedRead> reads = plan.getReads();
+      ChunkPrefetcher prefetcher = new ChunkPrefetcher(transport, this.responseReader, this.syncMetrics);
+      try {
+        for (int i = 0; i < reads.size(); i++) {
+          PlannedRead read = reads.get(i);
+          checkNotInterrupted();
+          yieldTurn(session, prefetcher);
+          if (caughtUp.contains(read.getRecordType())) {
+            LOGGER.debug(format("Skipping %s of %s, it's older than %s", read.getReadRequestSpec(),
+                    read.getRecordType(), since));
+            continue;
+          }
+
+          // The next read might turn out to be older than since once this chunk is decoded, its response is then
+          // drained and dropped
+          PlannedRead next = nextReadOf(reads, i, caughtUp);
+          prefetcher.setNext(next == null ? null : readPagesPacket(next));
+          DexcomSyncData chunk = readChunk(transport, read, manufacturingData, prefetcher);
+          manufacturingData = chunk.getManufacturingParameters();
+          List<GlucoseReadRecord> newGlucoseReads =
+                  getGlucoseReadsSince(chunk.getGlucoseReads(), sinceRelativeToDexcomEpoch);
+          List<UserEventRecord> newUserEvents = getUserEventRecordsSince(chunk.getUserEvents(),
+                  sinceRelativeToDexcomEpoch);
+          if (newGlucoseReads.size() < chunk.getGlucoseReads().size()
+                  || newUserEvents.size() < chunk.getUserEvents().size()) {
+            caughtUp.add(read.getRecordType());
+          }
+
+          if (!newGlucoseReads.isEmpty() || !newUserEvents.isEmpty()) {
+            if (keepRecords) {
+              glucoseReads.addAll(newGlucoseReads);
+              userEvents.addAll(newUserEvents);
+            } else if (glucoseReads.isEmpty()) {
+              // Enough for a live tail to pick up the cadence of the reads
+              glucoseReads.addAll(newGlucoseReads);
+            }
+            listener.chunkRead(new DexcomSyncData(newGlucoseReads, newUserEvents, manufacturingData, Instant.now(),
+                    since));
+          }
+        }
+      } finally {
+        prefetcher.cancel();
+      }
+
+      return new DexcomSyncData(glucoseReads, userEvents, manufacturingData, plan.getLastPages());
+    } catch (Throwable e) {
+      throw Throwables.propagate(e);
+    } finally {
+      LOGGER.info(format("Receiver requests so far: %s", this.syncMetrics.snapshot()));
+    }
+  }
 
-      return new DexcomSyncData(glucoseReads, userEvents, manufacturingData);
+  /**
+   * Reads the newest glucose pages, from {@code fromPage} to the last one. Reading from the last page seen rather
+   * than just the last page keeps the records written at the end of a page that filled up between two reads.
+   *
+   * @param transport the open transport to the dexcom receiver, the caller is responsible for closing it
+   * @param fromPage  the first page to read, the last page of the receiver is read alone if {@code null} or out of
+   *                  the receiver's page range.
+   * @return the glucose records of those pages, with the last page read, or no record if the receiver has none.
+   */
+  public DexcomSyncData readNewestGlucosePages(SerialTransport transport, @Nullable Long fromPage) {
+    return readNewestGlucosePages(transport, fromPage, null);
+  }
+
+  /**
+   * @param serialNumber the receiver's serial number to look for pages it already decoded, if known.
+   * @see #readNewestGlucosePages(SerialTransport, Long)
+   */
+  public DexcomSyncData readNewestGlucosePages(SerialTransport transport, @Nullable Long fromPage,
+                                               @Nullable String serialNumber) {
+    try {
+      PageRangeResponse pageRangeResponse = readPageRange(transport, EGVData);
+      PageRange pageRange = new PageRange(pageRangeResponse.getFirstPage(), pageRangeResponse.getLastPage());
+      if (pageRange.isEmpty()) {
+        return new DexcomSyncData(Collections.<GlucoseReadRecord>emptyList(),
+                Collections.<UserEventRecord>emptyList(), null);
+      }
+
+      long firstPage = fromPage != null && pageRange.contains(fromPage) ? fromPage : pageRange.getLastPage();
+      List<GlucoseReadRecord> glucoseReads = newArrayList();
+      for (DatabaseReadRequestSpec readRequestSpec : new DatabasePagesPager(firstPage, pageRange.getLastPage())) {
+        for (GlucoseReadsDatabasePagesResponse glucoseReadResponse :
+                readDatabasePages(GlucoseReadsDatabasePagesResponse.class, transport, readRequestSpec, EGVData,
+                        null)) {
+          glucoseReads.addAll(recordsOf(glucoseReadResponse, EGVData, serialNumber));
+        }
+      }
+      Map<RecordType, Long> lastPagesRead = new EnumMap<RecordType, Long>(RecordType.class);
+      lastPagesRead.put(EGVData, pageRange.getLastPage());
+      return new DexcomSyncData(glucoseReads, Collections.<UserEventRecord>emptyList(), null, lastPagesRead);
     } catch (Throwable e) {
-      if (serialPort.isOpened()) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  /**
+   * Reads the pages of a planned read.
+   *
+   * @return the records of those pages, with the manufacturing parameters read or {@code manufacturingData} if
+   * the read wasn't for the manufacturing data.
+   */
+  private DexcomSyncData readChunk(SerialTransport transport, PlannedRead read,
+                                   ManufacturingParameters manufacturingData,
+                                   @Nullable ChunkPrefetcher prefetcher) throws IOException {
+    List<GlucoseReadRecord> glucoseReads = newArrayList();
+    List<UserEventRecord> userEvents = newArrayList();
+    DatabaseReadRequestSpec readRequestSpec = read.getReadRequestSpec();
+    switch (read.getRecordType()) {
+      case EGVData:
+        for (GlucoseReadsDatabasePagesResponse glucoseReadResponse :
+                readDatabasePages(GlucoseReadsDatabasePagesResponse.class, transport, readRequestSpec, EGVData,
+                        prefetcher)) {
+          glucoseReads.addAll(recordsOf(glucoseReadResponse, EGVData, serialNumberOf(manufacturingData)));
+        }
+        break;
+      case UserEventData:
+        for (UserEventsDatabasePagesResponse userEventRecordPage : readDatabasePages(
+                UserEventsDatabasePagesResponse.class, transport, readRequestSpec, UserEventData, prefetcher)) {
+          userEvents.addAll(recordsOf(userEventRecordPage, UserEventData, serialNumberOf(manufacturingData)));
+        }
+        break;
+      case ManufacturingData:
+        for (ManufacturingDataDatabasePagesResponse manufacturingDataDbResponse : readDatabasePages(
+                ManufacturingDataDatabasePagesResponse.class, transport, readRequestSpec, ManufacturingData,
+                prefetcher)) {
+          // We're assuming we'll always have just one or that the most recent is always going to be the one
+          // we want to keep.
+          List<ManufacturingParameters> manufacturingParameters =
+                  manufacturingDataDbResponse.getManufacturingParameters();
+          if (!manufacturingParameters.isEmpty()) {
+            manufacturingData = manufacturingParameters.iterator().next();
+          }
+        }
+        break;
+      default:
+        LOGGER.warn(format("Records of type %s aren't supported, skipping %s", read.getRecordType(),
+                readRequestSpec));
+    }
+    return new DexcomSyncData(glucoseReads, userEvents, manufacturingData);
+  }
+
+  /**
+   * Reads the range of pages of that record type, without reading any page.
+   */
+  public PageRange readPageRange(ReceiverSession session, RecordType recordType) {
+    SerialTransport transport = session.takeTurn(INTERACTIVE);
+    try {
+      PageRangeResponse pageRangeResponse = readPageRange(transport, recordType);
+      return new PageRange(pageRangeResponse.getFirstPage(), pageRangeResponse.getLastPage());
+    } catch (IOException e) {
+      throw Throwables.propagate(e);
+    } finally {
+      session.endTurn();
+    }
+  }
+
+  /**
+   * Reads the manufacturing parameters of the receiver, unless the session already knows them.
+   *
+   * @return the manufacturing parameters or {@code null} if the receiver doesn't have any.
+   */
+  public ManufacturingParameters readManufacturingParameters(ReceiverSession session) {
+    if (session.getManufacturingParameters() != null) {
+      return session.getManufacturingParameters();
+    }
+
+    SerialTransport transport = session.takeTurn(INTERACTIVE);
+    try {
+      ManufacturingParameters manufacturingData = null;
+      SyncPlan plan = doPlanSync(transport, Collections.<RecordType, Long>emptyMap(), MANUFACTURING_DATA_PLANNER,
+              false);
+      for (PlannedRead read : plan.getReads()) {
+        manufacturingData = readChunk(transport, read, manufacturingData, null).getManufacturingParameters();
+      }
+      session.cacheManufacturingParameters(manufacturingData);
+      return manufacturingData;
+    } catch (IOException e) {
+      throw Throwables.propagate(e);
+    } finally {
+      session.endTurn();
+    }
+  }
+
+  /**
+   * Reads the page ranges and plans the sync without reading any page.
+   *
+   * @param transport   the open transport to the dexcom receiver, the caller is responsible for closing it
+   * @param checkpoints the last page read of each record type at the last sync
+   */
+  public SyncPlan planSync(SerialTransport transport, Map<RecordType, Long> checkpoints) {
+    try {
+      return doPlanSync(transport, checkpoints, this.syncPlanner, false);
+    } catch (IOException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  /**
+   * Finds the most pages the receiver's firmware reads in a single command by asking for glucose pages in commands
+   * of {@link #PROBED_PAGES_PER_READ} pages, largest first, until one goes through. A read the receiver rejects,
+   * with {@link ReceiverCommand#InvalidParam} or any other error, or that still fails once retried is taken as too
+   * large for the firmware. The pages read are only used to probe. Nothing is probed unless the
+   * receiver has enough glucose pages for the largest read, a smaller read going through wouldn't tell whether a larger
+   * one would.
+   *
+   * @return the most pages per read found or {@code null} if the receiver doesn't have enough glucose pages to tell.
+   */
+  @Nullable
+  public Byte probePagesPerRead(ReceiverSession session) {
+    SerialTransport transport = session.takeTurn(INTERACTIVE);
+    try {
+      PageRangeResponse pageRangeResponse = readPageRange(transport, EGVData);
+      PageRange pageRange = new PageRange(pageRangeResponse.getFirstPage(), pageRangeResponse.getLastPage());
+      if (PROBED_PAGES_PER_READ[0] > pageRange.getPageCount()) {
+        LOGGER.info(format("Only [%d] glucose pages on %s, not enough to probe larger reads",
+                pageRange.getPageCount(), session.getPortName()));
+        return null;
+      }
+
+      for (byte pagesPerRead : PROBED_PAGES_PER_READ) {
+        byte[] packet = readPagesPacket(EGVData, new DatabaseReadRequestSpec(pageRange.getFirstPage(),
+                pagesPerRead));
         try {
-          LOGGER.debug(format("Closing port %s", serialPort.getPortName()));
-          serialPort.closePort();
-        } catch (SerialPortException se) {
-          LOGGER.warn("Error closing port, ignoring.", se);
+          sendAndRead(GlucoseReadsDatabasePagesResponse.class, transport, packet, null);
+          LOGGER.info(format("Receiver on %s reads [%d] pages per command", session.getPortName(), pagesPerRead));
+          return pagesPerRead;
+        } catch (ErrorResponseException e) {
+          LOGGER.info(format("Receiver on %s answered %s to a read of [%d] pages", session.getPortName(),
+                  e.getResponseCommand(), pagesPerRead));
+        } catch (CorruptFrameException e) {
+          LOGGER.info(format("Receiver on %s kept corrupting a read of [%d] pages", session.getPortName(),
+                  pagesPerRead));
+        } catch (InterruptedIOException e) {
+          throw e;
+        } catch (IOException e) {
+          LOGGER.info(format("Receiver on %s failed a read of [%d] pages: %s", session.getPortName(), pagesPerRead,
+                  e.getMessage()));
         }
       }
+      return MAX_PAGES_PER_COMMAND;
+    } catch (IOException e) {
       throw Throwables.propagate(e);
+    } finally {
+      session.endTurn();
     }
   }
 
-  private List<UserEventRecord> getUserEventRecordsSince(SerialPort serialPort, final long sinceRelativeToDexcomEpoch) throws SerialPortException {
-    return newArrayList(Collections2.filter(getUserEvents(serialPort), new Predicate<UserEventRecord>() {
+  private SyncPlanner plannerFor(ReceiverSession session) {
+    SyncPlanner planner = this.syncPlanner.withPagesPerRead(session.getPagesPerRead());
+    return session.getManufacturingParameters() == null ? planner : planner.without(ManufacturingData);
+  }
+
+  private SyncPlan doPlanSync(SerialTransport transport, Map<RecordType, Long> checkpoints, SyncPlanner planner,
+                              boolean newestFirst) throws IOException {
+    Map<RecordType, PageRange> pageRanges = new EnumMap<RecordType, PageRange>(RecordType.class);
+    for (RecordType recordType : planner.getRecordTypes()) {
+      PageRangeResponse pageRange = readPageRange(transport, recordType);
+      pageRanges.put(recordType, new PageRange(pageRange.getFirstPage(), pageRange.getLastPage()));
+    }
+
+    SyncPlan plan = newestFirst ? planner.planNewestFirst(pageRanges, checkpoints)
+            : planner.plan(pageRanges, checkpoints);
+    LOGGER.info(format("Sync plan: %s", plan));
+    return plan;
+  }
+
+  private static List<UserEventRecord> getUserEventRecordsSince(List<UserEventRecord> userEvents,
+                                                                final long sinceRelativeToDexcomEpoch) {
+    return newArrayList(Collections2.filter(userEvents, new Predicate<UserEventRecord>() {
       @Override
       public boolean apply(@Nullable UserEventRecord input) {
         return input.getInternalSecondsSinceDexcomEpoch() > sinceRelativeToDexcomEpoch;
@@ -120,8 +653,9 @@ public class FetchNewDataRunner {
     }));
   }
 
-  private List<GlucoseReadRecord> getGlucoseReadsSince(SerialPort serialPort, final long sinceRelativeToDexcomEpoch) throws SerialPortException {
-    return newArrayList(Collections2.filter(getGlucoseReads(serialPort),
+  private static List<GlucoseReadRecord> getGlucoseReadsSince(List<GlucoseReadRecord> glucoseReads,
+                                                              final long sinceRelativeToDexcomEpoch) {
+    return newArrayList(Collections2.filter(glucoseReads,
             new Predicate<GlucoseReadRecord>() {
               @Override
               public boolean apply(@Nullable GlucoseReadRecord input) {
@@ -131,119 +665,183 @@ public class FetchNewDataRunner {
             }));
   }
 
-  private ManufacturingParameters getManufacturingData(SerialPort serialPort) throws SerialPortException {
-    ManufacturingParameters manufacturingData = null;
+  /**
+   * Reads the pages of the spec. If the receiver keeps failing or rejects the request, the pages are read again in
+   * two halves, down to a page at a time, so that only the pages that really can't be read fail the sync.
+   */
+  private <T extends DatabasePagesResponse> List<T> readDatabasePages(Class<T> responseClass,
+                                                                      SerialTransport transport,
+                                                                      DatabaseReadRequestSpec readRequestSpec,
+                                                                      RecordType recordType,
+                                                                      @Nullable ChunkPrefetcher prefetcher)
+          throws IOException {
+    byte[] packet = readPagesPacket(recordType, readRequestSpec);
+    LOGGER.info(format("Sending read database pages for %s: %s", recordType.name(), toHexString(packet)));
 
-    DatabasePagesPager manufacturingDataPager = getPagerForRecordType(serialPort, ManufacturingData);
+    try {
+      T response = sendAndRead(responseClass, transport, packet, prefetcher);
+      this.syncMetrics.increment(PAGE_READS);
+      List<T> responses = newArrayList();
+      responses.add(response);
+      return responses;
+    } catch (ErrorResponseException | CorruptFrameException e) {
+      if (readRequestSpec.getNumberOfPages() == 1) {
+        this.syncMetrics.increment(PAGE_READ_FAILURES);
+        throw e;
+      }
 
-    for (DatabaseReadRequestSpec readRequestSpec : manufacturingDataPager) {
-      ManufacturingDataDatabasePagesResponse manufacturingDataDbResponse =
-              readDatabasePage(ManufacturingDataDatabasePagesResponse.class,
-                      serialPort, readRequestSpec, ManufacturingData);
+      byte firstHalf = (byte) (readRequestSpec.getNumberOfPages() / 2);
+      byte secondHalf = (byte) (readRequestSpec.getNumberOfPages() - firstHalf);
+      LOGGER.warn(format("Can't read %s, reading it as %d and %d pages", readRequestSpec, firstHalf, secondHalf));
+      this.syncMetrics.increment(PAGE_READ_SPLITS);
+
+      List<T> responses = newArrayList();
+      responses.addAll(readDatabasePages(responseClass, transport,
+              new DatabaseReadRequestSpec(readRequestSpec.getStartPage(), firstHalf), recordType, prefetcher));
+      responses.addAll(readDatabasePages(responseClass, transport,
+              new DatabaseReadRequestSpec(readRequestSpec.getStartPage() + firstHalf, secondHalf), recordType,
+              prefetcher));
+      return responses;
+    }
+  }
 
-      // We're assuming we'll always have just one or that the most recent is always going to be the one
-      // we want to keep.
-      List<ManufacturingParameters> manufacturingParameters =
-              manufacturingDataDbResponse.getManufacturingParameters();
-      if (!manufacturingParameters.isEmpty()) {
-        manufacturingData = manufacturingParameters.iterator().next();
-      }
+  /**
+   * @return the records of the response's pages, decoded once per receiver and version of each page.
+   */
+  private <T> List<T> recordsOf(final GenericRecordDatabasePagesResponse<T> response, RecordType recordType,
+                                @Nullable String serialNumber) {
+    if (serialNumber == null) {
+      return response.getRecords();
     }
 
-    return manufacturingData;
+    List<T> records = newArrayList();
+    for (final DatabasePage page : response.getPages()) {
+      DatabasePageHeader header = page.getPageHeader();
+      DecodedPageCache.PageKey key = new DecodedPageCache.PageKey(serialNumber, recordType, header.getPageNumber(),
+              header.getCrc());
+      records.addAll(this.pageCache.getRecords(key, DATABASE_PAGE_SIZE, new Supplier<List<T>>() {
+        @Override
+        public List<T> get() {
+          return response.getRecords(page);
+        }
+      }));
+    }
+    return records;
   }
 
-  private DatabasePagesPager getPagerForRecordType(SerialPort serialPort,
-                                                   RecordType recordType) throws SerialPortException {
-    PageRangeResponse pageRange = readManufacturingDataPageRange(serialPort, recordType);
-    return new DatabasePagesPager(pageRange.getFirstPage(), pageRange.getLastPage());
+  @Nullable
+  private static String serialNumberOf(@Nullable ManufacturingParameters manufacturingData) {
+    return manufacturingData == null ? null : manufacturingData.getSerialNumber();
   }
 
-  private <T extends DatabasePagesResponse> T readDatabasePage(Class<T> responseClass,
-                                                               SerialPort serialPort,
-                                                               DatabaseReadRequestSpec readRequestSpec,
-                                                               RecordType recordType)
-          throws SerialPortException {
-    ReadDatabasePagesCommand readDatabasePagesCommand =
-            new ReadDatabasePagesCommand(this.dataOutputFactory, recordType, readRequestSpec.getStartPage(),
-                    readRequestSpec.getNumberOfPages());
-
-    byte[] packet = readDatabasePagesCommand.asBytes();
-    LOGGER.info(format("Sending read database pages for %s: %s", recordType.name(), toHexString(packet)));
-    serialPort.writeBytes(packet);
-
-    return this.responseReader.read(responseClass, serialPort);
+  private byte[] readPagesPacket(PlannedRead read) {
+    return readPagesPacket(read.getRecordType(), read.getReadRequestSpec());
   }
 
-  private PageRangeResponse readManufacturingDataPageRange(SerialPort serialPort,
-                                                           RecordType recordType) throws SerialPortException {
-    ReadDatabasePageRange readDatabasePageRange =
-            new ReadDatabasePageRange(this.dataOutputFactory, recordType);
-    byte[] packet = readDatabasePageRange.asBytes();
-    LOGGER.info(format("Sending read database page range for %s: %s", recordType.name(),
-            toHexString(packet)));
-    serialPort.writeBytes(packet);
-
-    PageRangeResponse pageRangeResponse =
-            this.responseReader.read(PageRangeResponse.class, serialPort);
-    LOGGER.info(format("Page range for %s: [%d] to [%d]", recordType.name(), pageRangeResponse.getFirstPage(),
-            pageRangeResponse.getLastPage()));
-
-    return pageRangeResponse;
+  private byte[] readPagesPacket(RecordType recordType, DatabaseReadRequestSpec readRequestSpec) {
+    return new ReadDatabasePagesCommand(this.dataOutputFactory, recordType, readRequestSpec.getStartPage(),
+            readRequestSpec.getNumberOfPages()).asBytes();
   }
 
-  private List<GlucoseReadRecord> getGlucoseReads(SerialPort serialPort) throws SerialPortException {
-    List<GlucoseReadRecord> fullGlucoseReadRecords = newArrayList();
-
-    DatabasePagesPager manufacturingDataPager = getPagerForRecordType(serialPort, EGVData);
-
-    for (DatabaseReadRequestSpec readRequestSpec : manufacturingDataPager) {
-      GlucoseReadsDatabasePagesResponse glucoseReadResponse =
-              readDatabasePage(GlucoseReadsDatabasePagesResponse.class, serialPort, readRequestSpec, EGVData);
-
-      List<GlucoseReadRecord> glucoseReadRecords = glucoseReadResponse.getRecords();
-      fullGlucoseReadRecords.addAll(glucoseReadRecords);
+  /**
+   * @return the read after {@code index} that's of a record type not caught up yet, or {@code null} if none.
+   */
+  private static PlannedRead nextReadOf(List<PlannedRead> reads, int index, Set<RecordType> caughtUp) {
+    for (int i = index + 1; i < reads.size(); i++) {
+      if (!caughtUp.contains(reads.get(i).getRecordType())) {
+        return reads.get(i);
+      }
     }
-
-    return fullGlucoseReadRecords;
+    return null;
   }
 
-  private List<UserEventRecord> getUserEvents(SerialPort serialPort) throws SerialPortException {
-    List<UserEventRecord> allUserEvents = newArrayList();
+  /**
+   * Yields the turn on the port between chunks if someone else needs it. The request sent ahead, if any, is
+   * answered first so that the other user's commands don't get its response.
+   */
+  private static void yieldTurn(@Nullable ReceiverSession session, ChunkPrefetcher prefetcher) throws IOException {
+    if (session != null && session.isTurnWanted()) {
+      prefetcher.drain();
+      session.yieldTurn();
+    }
+  }
 
-    DatabasePagesPager manufacturingDataPager = getPagerForRecordType(serialPort, UserEventData);
+  /**
+   * Sends the request and reads its response. The same request is sent again, after a growing delay, if the
+   * response got corrupted on the way or if the receiver answered with a transient error. Only that request is
+   * repeated, what was read before is kept.
+   *
+   * @param prefetcher to send the next planned read ahead once the response is in, if any
+   */
+  private <T extends Response> T sendAndRead(Class<T> responseClass, SerialTransport transport, byte[] packet,
+                                             @Nullable ChunkPrefetcher prefetcher) throws IOException {
+    long retryDelayMillis = this.initialRetryDelayMillis;
+    for (int attempt = 1; ; attempt++) {
+      Object cause;
+      try {
+        if (prefetcher != null) {
+          return this.responseReader.decode(responseClass, prefetcher.exchange(packet));
+        }
+        transport.write(packet);
+        return this.responseReader.read(responseClass, transport);
+      } catch (CorruptFrameException e) {
+        if (attempt >= MAX_REQUEST_ATTEMPTS) {
+          throw e;
+        }
+        LOGGER.warn(format("Corrupt response to %s, sending it again in %d ms (attempt %d of %d)",
+                toHexString(packet), retryDelayMillis, attempt + 1, MAX_REQUEST_ATTEMPTS), e);
+        cause = CorruptFrameException.class.getSimpleName();
+      } catch (ErrorResponseException e) {
+        if (!e.isTransient() || attempt >= MAX_REQUEST_ATTEMPTS) {
+          throw e;
+        }
+        LOGGER.warn(format("Receiver answered %s to %s, sending it again in %d ms (attempt %d of %d)",
+                e.getResponseCommand(), toHexString(packet), retryDelayMillis, attempt + 1, MAX_REQUEST_ATTEMPTS));
+        cause = e.getResponseCommand();
+      }
 
-    for (DatabaseReadRequestSpec readRequestSpec : manufacturingDataPager) {
-      UserEventsDatabasePagesResponse userEventRecordPage =
-              readDatabasePage(UserEventsDatabasePagesResponse.class, serialPort, readRequestSpec, UserEventData);
+      this.syncMetrics.incrementRetries(cause);
+      sleep(retryDelayMillis);
+      retryDelayMillis *= 2;
+    }
+  }
 
-      List<UserEventRecord> glucoseReadRecords = userEventRecordPage.getRecords();
-      allUserEvents.addAll(glucoseReadRecords);
+  /**
+   * Stops a sync that was cancelled between two reads, the interrupted flag is left set for the caller to see.
+   */
+  private static void checkNotInterrupted() throws InterruptedIOException {
+    if (Thread.currentThread().isInterrupted()) {
+      throw new InterruptedIOException("Interrupted while syncing");
     }
+  }
 
-    return allUserEvents;
+  private static void sleep(long millis) throws IOException {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting to send a request again", e);
+    }
   }
 
-  private Utf8PayloadGenericResponse readFirmwareHeader(SerialPort serialPort) throws SerialPortException {
-    ReadFirmwareHeader readFirmwareHeader = new ReadFirmwareHeader(this.dataOutputFactory);
-    byte[] packet = readFirmwareHeader.asBytes();
-    LOGGER.info(format("Sending read firmware header: %s", toHexString(packet)));
-    serialPort.writeBytes(packet);
+  private PageRangeResponse readPageRange(SerialTransport transport, RecordType recordType) throws IOException {
+    ReadDatabasePageRange readDatabasePageRange =
+            new ReadDatabasePageRange(this.dataOutputFactory, recordType);
+    byte[] packet = readDatabasePageRange.asBytes();
+    LOGGER.info(format("Sending read database page range for %s: %s", recordType.name(),
+            toHexString(packet)));
+    PageRangeResponse pageRangeResponse = sendAndRead(PageRangeResponse.class, transport, packet, null);
+    LOGGER.info(format("Page range for %s: [%d] to [%d]", recordType.name(), pageRangeResponse.getFirstPage(),
+            pageRangeResponse.getLastPage()));
 
-    Utf8PayloadGenericResponse utf8PayloadGenericResponse =
-            this.responseReader.read(Utf8PayloadGenericResponse.class, serialPort);
-    LOGGER.info(format("Receiver plugged with firmware: %s", utf8PayloadGenericResponse.asString()));
-    return utf8PayloadGenericResponse;
+    return pageRangeResponse;
   }
 
-  private PageRangeResponse readGlucosePageRange(SerialPort serialPort) throws SerialPortException {
+  private PageRangeResponse readGlucosePageRange(SerialTransport transport) throws IOException {
     ReadDatabasePageRange readGlucoseReadDatabasePageRange = new ReadDatabasePageRange(this.dataOutputFactory, EGVData);
     byte[] packet = readGlucoseReadDatabasePageRange.asBytes();
     LOGGER.info(format("Sending read database page range for glucose reads: %s", toHexString(packet)));
-    serialPort.writeBytes(packet);
-
-    PageRangeResponse glucosePageRangeResponse =
-            this.responseReader.read(PageRangeResponse.class, serialPort);
+    PageRangeResponse glucosePageRangeResponse = sendAndRead(PageRangeResponse.class, transport, packet, null);
     LOGGER.info(format("Page range for glucose reads: [%d] to [%d]", glucosePageRangeResponse.getFirstPage(),
             glucosePageRangeResponse.getLastPage()));
 
@@ -24,23 +24,21 @@
 package org.glukit.dexcom.sync.tasks;
 
 import com.google.common.util.concurrent.SimpleTimeLimiter;
+import com.google.common.util.concurrent.TimeLimiter;
 import com.google.inject.Inject;
-import jssc.SerialPort;
-import jssc.SerialPortException;
-import jssc.SerialPortTimeoutException;
-import org.glukit.dexcom.sync.DataInputFactory;
-import org.glukit.dexcom.sync.DataOutputFactory;
-import org.glukit.dexcom.sync.ResponseReader;
-import org.glukit.dexcom.sync.g4.DexcomG4Constants;
-import org.glukit.dexcom.sync.requests.Ping;
+import com.google.inject.Singleton;
+import org.glukit.dexcom.sync.ReceiverSession;
+import org.glukit.dexcom.sync.ReceiverSessions;
 import org.glukit.dexcom.sync.responses.GenericResponse;
+import org.glukit.sync.api.ThreadModel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static java.lang.String.format;
 import static org.glukit.dexcom.sync.DecodingUtils.toHexString;
@@ -50,80 +48,61 @@ import static org.glukit.dexcom.sync.DecodingUtils.toHexString;
  *
  * @author alexandre.normand
  */
+@Singleton
 public class IsReceiverOnThisPortRunner {
   private static Logger LOGGER = LoggerFactory.getLogger(IsReceiverOnThisPortRunner.class);
 
-  private DataOutputFactory dataOutputFactory;
-  private DataInputFactory dataInputFactory;
-  private ResponseReader responseReader;
+  static final long PROBE_TIMEOUT_SECONDS = 5;
+
+  private final ReceiverSessions receiverSessions;
+  private final TimeLimiter timeLimiter;
 
   @Inject
-  public IsReceiverOnThisPortRunner(DataOutputFactory dataOutputFactory,
-                                    DataInputFactory dataInputFactory,
-                                    ResponseReader responseReader) {
-    this.dataOutputFactory = dataOutputFactory;
-    this.dataInputFactory = dataInputFactory;
-    this.responseReader = responseReader;
+  public IsReceiverOnThisPortRunner(ReceiverSessions receiverSessions, ThreadModel threadModel) {
+    this.receiverSessions = receiverSessions;
+    this.timeLimiter = new SimpleTimeLimiter(Executors.newCachedThreadPool(
+            threadModel.newThreadFactory("receiver-probe-io-%d")));
   }
 
-  public boolean isReceiver(String portName) {
-    ExecutorService executor = Executors.newSingleThreadExecutor();
-    final SerialPort serialPort = new SerialPort(portName);
+  /**
+   * Pings the port. The session of the port is left open for the sync to use if it's the receiver and closed
+   * otherwise. Ports in use by another receiver's session are not pinged.
+   */
+  public boolean isReceiver(final String portName) {
+    final AtomicBoolean busy = new AtomicBoolean(false);
+    boolean receiver = false;
     try {
-
-      SimpleTimeLimiter timeout = new SimpleTimeLimiter(executor);
-      Boolean result = timeout.callWithTimeout(new Callable<Boolean>() {
+      receiver = this.timeLimiter.callWithTimeout(new Callable<Boolean>() {
         @Override
         public Boolean call() throws Exception {
-          return isFirmware(serialPort);
+          ReceiverSession session = receiverSessions.open(portName);
+          if (session.isInUse()) {
+            // Already syncing with another receiver, pinging it now would get in the way
+            LOGGER.debug(format("Port %s is busy with another receiver", portName));
+            busy.set(true);
+            return false;
+          }
+          return isFirmware(session);
         }
-      }, 5, TimeUnit.SECONDS, true);
-
-
-      return result;
+      }, PROBE_TIMEOUT_SECONDS, TimeUnit.SECONDS, true);
+      return receiver;
+    } catch (InterruptedException e) {
+      LOGGER.debug(format("Probe of port %s was cancelled", portName));
+      Thread.currentThread().interrupt();
+      return false;
     } catch (Exception e) {
       LOGGER.info("Receiver not running on this port since we had an exception while checking.", e);
       return false;
     } finally {
-      executor.shutdown();
-      if (serialPort.isOpened()) {
-        try {
-          LOGGER.debug(format("Closing port %s", serialPort.getPortName()));
-          serialPort.closePort();
-        } catch (SerialPortException e) {
-          LOGGER.warn("Error closing port, ignoring.", e);
-        }
+      if (!receiver && !busy.get()) {
+        this.receiverSessions.close(portName);
       }
     }
   }
 
-  private boolean isFirmware(SerialPort serialPort) throws SerialPortException, SerialPortTimeoutException {
-    serialPort.openPort();
-
-    if (!serialPort.isOpened()) {
-      LOGGER.info(format("Couldn't open port %s, assuming this is not the receiver", serialPort.getPortName()));
-      return false;
-    }
-
-    printLineStatus(serialPort.getLinesStatus());
-    LOGGER.debug(format("Opened port [%s]: %b", serialPort.getPortName(), serialPort.isOpened()));
-    serialPort.setParams(DexcomG4Constants.FIRMWARE_BAUD_RATE, DexcomG4Constants.DATA_BITS,
-            DexcomG4Constants.STOP_BITS, DexcomG4Constants.NO_PARITY);
-
-    byte[] request = new Ping(this.dataOutputFactory).asBytes();
-    LOGGER.debug(format("Ping with write of [%d] bytes: [%s]", request.length, toHexString(request)));
-
-    boolean status = serialPort.writeBytes(request);
-    LOGGER.info(format("Wrote success: %b", status));
-
-    GenericResponse genericResponse = this.responseReader.read(GenericResponse.class, serialPort);
+  private boolean isFirmware(ReceiverSession session) throws IOException {
+    GenericResponse genericResponse = session.ping();
     LOGGER.info(format("Received successful ACK response [%s]", toHexString(genericResponse.getPayload())));
     return true;
   }
-
-  private void printLineStatus(int[] statuses) {
-    for (int status: statuses) {
-      LOGGER.debug(format("Line status is %d", status));
-    }
-  }
 }
@@ -0,0 +1,273 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync.tasks;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Ordering;
+import org.glukit.dexcom.sync.ReceiverSession;
+import org.glukit.dexcom.sync.model.DexcomSyncData;
+import org.glukit.dexcom.sync.model.GlucoseReadRecord;
+import org.glukit.dexcom.sync.model.ManufacturingParameters;
+import org.glukit.dexcom.sync.model.UserEventRecord;
+import org.glukit.dexcom.sync.transport.SerialTransport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.threeten.bp.Clock;
+import org.threeten.bp.Instant;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static java.lang.String.format;
+import static org.glukit.dexcom.sync.PortScheduler.Priority.INTERACTIVE;
+import static org.glukit.dexcom.sync.g4.DexcomG4Constants.DEXCOM_EPOCH;
+import static org.glukit.dexcom.sync.model.RecordType.EGVData;
+
+/**
+ * Tails the newest glucose page of a receiver that stays plugged in. Each poll reads the page range and the last
+ * page only and hands the new glucose reads over to the listener. Polls are timed to just after the next read is
+ * expected, from the interval between recent reads and how late after their timestamp the previous ones showed up.
+ *
+ * @author alexandre.normand
+ */
+public class LiveTail implements Closeable {
+  private static Logger LOGGER = LoggerFactory.getLogger(LiveTail.class);
+
+  static final long DEFAULT_CADENCE_SECONDS = 300;
+  static final long MIN_CADENCE_SECONDS = 60;
+  /**
+   * Margin after the time a read is expected, the receiver isn't always on time writing it.
+   */
+  static final long GRACE_SECONDS = 5;
+  static final long RETRY_SECONDS = 30;
+  static final int RECENT_READS = 6;
+
+  private final FetchNewDataRunner fetchNewDataRunner;
+  private final ReceiverSession session;
+  private final SerialTransport transport;
+  private final ManufacturingParameters manufacturingParameters;
+  private final SyncChunkListener listener;
+  private final Clock clock;
+  private final Deque<Long> recentReadSeconds = new ArrayDeque<Long>();
+  private final Deque<Long> recentLagSeconds = new ArrayDeque<Long>();
+  private Long lastPage;
+  private long lastReadSeconds;
+  private ScheduledExecutorService scheduler;
+  private ScheduledFuture<?> nextPoll;
+  private boolean closed = false;
+
+  /**
+   * @param since      the time of the last sync, reads up to then are not handed over.
+   * @param syncedData the data of the last sync, its most recent reads give the initial cadence.
+   */
+  LiveTail(FetchNewDataRunner fetchNewDataRunner, ReceiverSession session, Instant since,
+           DexcomSyncData syncedData, SyncChunkListener listener, Clock clock) {
+    this.fetchNewDataRunner = fetchNewDataRunner;
+    this.session = session;
+    this.transport = session.acquire();
+    this.manufacturingParameters = syncedData.getManufacturingParameters();
+    this.listener = listener;
+    this.clock = clock;
+    this.lastPage = syncedData.getLastPagesRead().get(EGVData);
+    this.lastReadSeconds = since.getEpochSecond() - DEXCOM_EPOCH.getEpochSecond();
+    rememberReads(syncedData.getGlucoseReads());
+  }
+
+  /**
+   * Polls right away and keeps polling on the scheduler until closed.
+   */
+  synchronized void start(ScheduledExecutorService scheduler) {
+    this.scheduler = scheduler;
+    schedule(0);
+  }
+
+  /**
+   * Reads the newest page and hands the new reads over.
+   *
+   * @return the delay until the next poll, in milliseconds.
+   */
+  @VisibleForTesting
+  long poll() {
+    DexcomSyncData newestPages;
+    // Ahead of a sync's bulk reads, those only hold the port for a chunk at a time
+    this.session.takeTurn(INTERACTIVE);
+    try {
+      newestPages = this.fetchNewDataRunner.readNewestGlucosePages(this.transport, this.lastPage,
+              this.manufacturingParameters == null ? null : this.manufacturingParameters.getSerialNumber());
+    } finally {
+      this.session.endTurn();
+    }
+    Long lastPageRead = newestPages.getLastPagesRead().get(EGVData);
+    if (lastPageRead != null) {
+      this.lastPage = lastPageRead;
+    }
+
+    List<GlucoseReadRecord> newReads = newArrayList();
+    for (GlucoseReadRecord glucoseRead : newestPages.getGlucoseReads()) {
+      if (glucoseRead.getInternalSecondsSinceDexcomEpoch() > this.lastReadSeconds) {
+        newReads.add(glucoseRead);
+      }
+    }
+
+    Instant now = this.clock.instant();
+    if (!newReads.isEmpty()) {
+      rememberReads(newReads);
+      long lagSeconds = now.getEpochSecond() - toInstant(this.lastReadSeconds).getEpochSecond();
+      addRecent(this.recentLagSeconds, lagSeconds);
+      LOGGER.info(format("%d new glucose read(s), the last one showed up %d seconds after its timestamp",
+              newReads.size(), lagSeconds));
+      this.listener.chunkRead(new DexcomSyncData(newReads, Collections.<UserEventRecord>emptyList(),
+              this.manufacturingParameters, newestPages.getLastPagesRead()));
+    }
+
+    return TimeUnit.SECONDS.toMillis(secondsUntilNextPoll(now));
+  }
+
+  /**
+   * @return the median interval between the recent reads, the receiver normally reads every 5 minutes.
+   */
+  @VisibleForTesting
+  long getCadenceSeconds() {
+    if (this.recentReadSeconds.size() < 2) {
+      return DEFAULT_CADENCE_SECONDS;
+    }
+    List<Long> intervals = newArrayList();
+    Long previous = null;
+    for (Long readSeconds : this.recentReadSeconds) {
+      if (previous != null) {
+        intervals.add(readSeconds - previous);
+      }
+      previous = readSeconds;
+    }
+    List<Long> sortedIntervals = Ordering.natural().sortedCopy(intervals);
+    return Math.max(MIN_CADENCE_SECONDS, sortedIntervals.get(sortedIntervals.size() / 2));
+  }
+
+  /**
+   * @return the time the next read should show up at, that's its timestamp plus the smallest recent delay between
+   * the timestamp of a read and the time it was seen. That delay also takes the offset of the receiver's clock.
+   */
+  @VisibleForTesting
+  Instant getNextReadExpectedAt() {
+    long lagSeconds = this.recentLagSeconds.isEmpty() ? 0 : Ordering.natural().min(this.recentLagSeconds);
+    return toInstant(this.lastReadSeconds).plusSeconds(getCadenceSeconds() + lagSeconds);
+  }
+
+  private long secondsUntilNextPoll(Instant now) {
+    long cadenceSeconds = getCadenceSeconds();
+    long secondsUntilExpected = getNextReadExpectedAt().getEpochSecond() + GRACE_SECONDS - now.getEpochSecond();
+    if (secondsUntilExpected > 0) {
+      return secondsUntilExpected;
+    } else if (-secondsUntilExpected < cadenceSeconds) {
+      // Late, check again shortly rather than wait for a whole cycle
+      return RETRY_SECONDS;
+    }
+    // Missed reads, the sensor is probably off or warming up
+    return cadenceSeconds;
+  }
+
+  private void rememberReads(List<GlucoseReadRecord> glucoseReads) {
+    // Reads of a backfill come newest chunk first
+    List<Long> readSeconds = newArrayList();
+    for (GlucoseReadRecord glucoseRead : glucoseReads) {
+      readSeconds.add(glucoseRead.getInternalSecondsSinceDexcomEpoch());
+    }
+    for (Long seconds : Ordering.natural().sortedCopy(readSeconds)) {
+      if (this.recentReadSeconds.isEmpty() || seconds > this.recentReadSeconds.getLast()) {
+        addRecent(this.recentReadSeconds, seconds);
+      }
+      this.lastReadSeconds = Math.max(this.lastReadSeconds, seconds);
+    }
+  }
+
+  private static void addRecent(Deque<Long> recent, long value) {
+    recent.addLast(value);
+    if (recent.size() > RECENT_READS) {
+      recent.removeFirst();
+    }
+  }
+
+  private static Instant toInstant(long secondsSinceDexcomEpoch) {
+    return DEXCOM_EPOCH.plusSeconds(secondsSinceDexcomEpoch);
+  }
+
+  private synchronized void schedule(long delayMillis) {
+    if (this.closed) {
+      return;
+    }
+    this.nextPoll = this.scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          long delayMillis = poll();
+          LOGGER.debug(format("Next poll of %s in %d ms", transport.getPortName(), delayMillis));
+          schedule(delayMillis);
+        } catch (Throwable e) {
+          LOGGER.warn(format("Stopping the live tail of %s", transport.getPortName()), e);
+          // The port is likely gone or in a bad state, don't leave it to the next user of the session
+          closeQuietly(session);
+          closeQuietly(LiveTail.this);
+        }
+      }
+    }, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public synchronized boolean isClosed() {
+    return this.closed;
+  }
+
+  /**
+   * Stops polling and releases the session.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      if (this.closed) {
+        return;
+      }
+      this.closed = true;
+      if (this.nextPoll != null) {
+        this.nextPoll.cancel(false);
+      }
+    }
+    this.session.release();
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      LOGGER.warn("Error closing port, ignoring.", e);
+    }
+  }
+}
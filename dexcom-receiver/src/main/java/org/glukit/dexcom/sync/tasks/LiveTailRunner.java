@@ -0,0 +1,77 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync.tasks;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.glukit.dexcom.sync.ReceiverSession;
+import org.glukit.dexcom.sync.model.DexcomSyncData;
+import org.glukit.sync.api.ThreadModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.threeten.bp.Clock;
+import org.threeten.bp.Instant;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static java.lang.String.format;
+
+/**
+ * Starts {@link LiveTail}s on receivers that stay plugged in after their sync.
+ *
+ * @author alexandre.normand
+ */
+@Singleton
+public class LiveTailRunner {
+  private static Logger LOGGER = LoggerFactory.getLogger(LiveTailRunner.class);
+
+  private final FetchNewDataRunner fetchNewDataRunner;
+  private final ScheduledExecutorService scheduler;
+
+  @Inject
+  public LiveTailRunner(FetchNewDataRunner fetchNewDataRunner, ThreadModel threadModel) {
+    this.fetchNewDataRunner = fetchNewDataRunner;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(
+            threadModel.newThreadFactory("receiver-live-tail-%d"));
+  }
+
+  /**
+   * Starts tailing the receiver. The session is held until the live tail is closed.
+   *
+   * @param session    the session of the dexcom receiver
+   * @param since      the time of the last sync, reads up to then are not handed over.
+   * @param syncedData the data of the last sync.
+   * @param listener   gets the new glucose reads as they show up.
+   */
+  public LiveTail start(ReceiverSession session, Instant since, DexcomSyncData syncedData,
+                        SyncChunkListener listener) {
+    LOGGER.info(format("Tailing new glucose reads of %s", session.getPortName()));
+    LiveTail liveTail = new LiveTail(this.fetchNewDataRunner, session, since, syncedData, listener,
+            Clock.systemUTC());
+    liveTail.start(this.scheduler);
+    return liveTail;
+  }
+}
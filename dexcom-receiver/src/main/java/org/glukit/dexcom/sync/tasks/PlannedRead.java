@@ -0,0 +1,68 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync.tasks;
+
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
+import org.glukit.dexcom.sync.model.DatabaseReadRequestSpec;
+import org.glukit.dexcom.sync.model.RecordType;
+
+/**
+ * A single read of database pages in a {@link SyncPlan}, with its estimated cost.
+ *
+ * @author alexandre.normand
+ */
+@EqualsAndHashCode
+@ToString
+public class PlannedRead {
+  private final RecordType recordType;
+  private final DatabaseReadRequestSpec readRequestSpec;
+  private final long estimatedBytes;
+  private final long estimatedMillis;
+
+  public PlannedRead(RecordType recordType, DatabaseReadRequestSpec readRequestSpec, long estimatedBytes,
+                     long estimatedMillis) {
+    this.recordType = recordType;
+    this.readRequestSpec = readRequestSpec;
+    this.estimatedBytes = estimatedBytes;
+    this.estimatedMillis = estimatedMillis;
+  }
+
+  public RecordType getRecordType() {
+    return recordType;
+  }
+
+  public DatabaseReadRequestSpec getReadRequestSpec() {
+    return readRequestSpec;
+  }
+
+  public long getEstimatedBytes() {
+    return estimatedBytes;
+  }
+
+  public long getEstimatedMillis() {
+    return estimatedMillis;
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync.tasks;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.glukit.dexcom.sync.model.DexcomSyncData;
+import org.glukit.sync.api.Publisher;
+import org.glukit.sync.api.Subscriber;
+import org.glukit.sync.api.Subscription;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Publishes the records of a sync one chunk of pages at a time, as started with
+ * {@link FetchNewDataRunner#publishData}. The next chunk is only read once the subscriber asked for one more so a
+ * slow subscriber holds back the page reads instead of records piling up in memory. There can only be one
+ * subscriber and the reads start when it subscribes.
+ *
+ * @author alexandre.normand
+ */
+public class RecordPublisher implements Publisher<DexcomSyncData> {
+  /**
+   * Reads the records and hands each chunk to the listener.
+   */
+  interface ChunkSource {
+    /**
+     * @return the result of the sync, with the last pages read.
+     */
+    DexcomSyncData read(SyncChunkListener listener);
+  }
+
+  private final Executor executor;
+  private final ChunkSource chunkSource;
+  private final SettableFuture<DexcomSyncData> result = SettableFuture.create();
+  private boolean subscribed = false;
+  private boolean cancelled = false;
+  private long demand = 0;
+  private Thread reader;
+
+  RecordPublisher(Executor executor, ChunkSource chunkSource) {
+    this.executor = executor;
+    this.chunkSource = chunkSource;
+  }
+
+  @Override
+  public void subscribe(final Subscriber<? super DexcomSyncData> subscriber) {
+    synchronized (this) {
+      checkState(!this.subscribed, "Records of a sync can only be published to one subscriber");
+      this.subscribed = true;
+    }
+
+    subscriber.onSubscribe(new Subscription() {
+      @Override
+      public void request(long count) {
+        RecordPublisher.this.request(count);
+      }
+
+      @Override
+      public void cancel() {
+        RecordPublisher.this.cancel();
+      }
+    });
+    this.executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        publish(subscriber);
+      }
+    });
+  }
+
+  /**
+   * @return the result of the sync once all chunks were published, with the last pages read but not the records
+   * already published.
+   */
+  public ListenableFuture<DexcomSyncData> getResult() {
+    return this.result;
+  }
+
+  private void publish(final Subscriber<? super DexcomSyncData> subscriber) {
+    if (!startReading()) {
+      this.result.cancel(false);
+      return;
+    }
+    try {
+      DexcomSyncData syncData = this.chunkSource.read(new SyncChunkListener() {
+        @Override
+        public void chunkRead(DexcomSyncData chunk) {
+          awaitDemand();
+          subscriber.onNext(chunk);
+        }
+      });
+      this.result.set(syncData);
+      if (!isCancelled()) {
+        subscriber.onComplete();
+      }
+    } catch (Throwable e) {
+      this.result.setException(e);
+      if (!isCancelled()) {
+        subscriber.onError(e);
+      }
+    } finally {
+      stopReading();
+    }
+  }
+
+  private synchronized void request(long count) {
+    checkArgument(count > 0, "Requested chunk count must be positive, was [%s]", count);
+    // Saturate rather than overflow, Long.MAX_VALUE means no limit
+    this.demand = this.demand + count < 0 ? Long.MAX_VALUE : this.demand + count;
+    notifyAll();
+  }
+
+  private synchronized void cancel() {
+    this.cancelled = true;
+    notifyAll();
+    if (this.reader != null) {
+      // Also stops a page read in progress
+      this.reader.interrupt();
+    }
+  }
+
+  private synchronized boolean isCancelled() {
+    return this.cancelled;
+  }
+
+  /**
+   * Waits until the subscriber asked for another chunk.
+   */
+  private synchronized void awaitDemand() {
+    while (this.demand == 0 && !this.cancelled) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new CancellationException("Interrupted while waiting for the subscriber");
+      }
+    }
+    if (this.cancelled) {
+      throw new CancellationException("Subscriber cancelled the sync");
+    }
+    if (this.demand != Long.MAX_VALUE) {
+      this.demand--;
+    }
+  }
+
+  private synchronized boolean startReading() {
+    this.reader = Thread.currentThread();
+    return !this.cancelled;
+  }
+
+  private synchronized void stopReading() {
+    this.reader = null;
+    // Don't leave an interrupt meant for this sync to the next task of the thread
+    Thread.interrupted();
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync.tasks;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.AbstractFuture;
+import org.glukit.dexcom.sync.model.DatabaseReadRequestSpec;
+import org.glukit.dexcom.sync.model.DexcomSyncData;
+import org.glukit.dexcom.sync.model.GlucoseReadRecord;
+import org.glukit.dexcom.sync.model.ManufacturingParameters;
+import org.glukit.dexcom.sync.model.RecordType;
+import org.glukit.dexcom.sync.model.UserEventRecord;
+import org.threeten.bp.Instant;
+
+import java.io.InterruptedIOException;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static java.lang.String.format;
+
+/**
+ * The pending result of a sync started with
+ * {@link FetchNewDataRunner#fetchDataAsync(org.glukit.dexcom.sync.ReceiverSession, org.threeten.bp.Instant, Map,
+ * Deadline)}. Cancelling it or running past its {@link Deadline} stops the sync before its next chunk of pages and
+ * the records read until then stay available from {@link #getPartialData()}.
+ *
+ * @author alexandre.normand
+ */
+public class SyncFuture extends AbstractFuture<DexcomSyncData> {
+  private final Deadline deadline;
+  private final Instant since;
+  private final List<GlucoseReadRecord> glucoseReads = newArrayList();
+  private final List<UserEventRecord> userEvents = newArrayList();
+  private final Map<RecordType, Long> lastPagesRead = new EnumMap<RecordType, Long>(RecordType.class);
+  private ManufacturingParameters manufacturingParameters;
+  private Thread runner;
+
+  SyncFuture(Deadline deadline, Instant since) {
+    this.deadline = deadline;
+    this.since = since;
+  }
+
+  public Deadline getDeadline() {
+    return this.deadline;
+  }
+
+  /**
+   * @return the new records read so far, along with the last page read of each record type so that the page
+   * checkpoints of a sync that didn't complete can still be saved. Record types are read one after the other so some
+   * might not have been read at all: the update time is the time the sync started from and the last sync time must
+   * not be moved past it.
+   */
+  public synchronized DexcomSyncData getPartialData() {
+    return new DexcomSyncData(ImmutableList.copyOf(this.glucoseReads), ImmutableList.copyOf(this.userEvents),
+            this.manufacturingParameters, this.since, new EnumMap<RecordType, Long>(this.lastPagesRead));
+  }
+
+  /**
+   * Ties the future to the thread running the sync so that cancelling it interrupts that thread.
+   *
+   * @return {@code false} if the future was cancelled before the sync started.
+   */
+  synchronized boolean start() {
+    this.runner = Thread.currentThread();
+    return !isDone();
+  }
+
+  synchronized void finish() {
+    this.runner = null;
+    // Don't leave an interrupt meant for this sync to the next task of the thread
+    Thread.interrupted();
+  }
+
+  /**
+   * Throws if the sync shouldn't read its next chunk.
+   */
+  synchronized void checkContinue() throws InterruptedIOException, TimeoutException {
+    if (isCancelled()) {
+      throw new InterruptedIOException("Sync was cancelled");
+    }
+    if (this.deadline.isExpired()) {
+      throw new TimeoutException(format("Sync ran past its deadline with %d glucose reads and %d user events read",
+              this.glucoseReads.size(), this.userEvents.size()));
+    }
+  }
+
+  synchronized void chunkRead(PlannedRead read, List<GlucoseReadRecord> newGlucoseReads,
+                              List<UserEventRecord> newUserEvents, ManufacturingParameters manufacturingParameters) {
+    this.glucoseReads.addAll(newGlucoseReads);
+    this.userEvents.addAll(newUserEvents);
+    this.manufacturingParameters = manufacturingParameters;
+    DatabaseReadRequestSpec readRequestSpec = read.getReadRequestSpec();
+    this.lastPagesRead.put(read.getRecordType(),
+            readRequestSpec.getStartPage() + readRequestSpec.getNumberOfPages() - 1);
+  }
+
+  @Override
+  protected boolean set(DexcomSyncData value) {
+    return super.set(value);
+  }
+
+  @Override
+  protected boolean setException(Throwable throwable) {
+    return super.setException(throwable);
+  }
+
+  @Override
+  protected synchronized void interruptTask() {
+    if (this.runner != null) {
+      this.runner.interrupt();
+    }
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync.tasks;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.glukit.dexcom.sync.model.DatabaseReadRequestSpec;
+import org.glukit.dexcom.sync.model.PageRange;
+import org.glukit.dexcom.sync.model.RecordType;
+
+import java.util.List;
+import java.util.Map;
+
+import static java.lang.String.format;
+
+/**
+ * Ordered list of the page reads a sync will do, as computed by the {@link SyncPlanner}. Nothing is read from
+ * the receiver until the plan is executed so it can be logged or inspected on its own for a dry run.
+ *
+ * @author alexandre.normand
+ */
+public class SyncPlan {
+  private final List<PlannedRead> reads;
+  private final Map<RecordType, PageRange> pageRanges;
+  private final long skippedPageCount;
+
+  public SyncPlan(List<PlannedRead> reads, Map<RecordType, PageRange> pageRanges, long skippedPageCount) {
+    this.reads = ImmutableList.copyOf(reads);
+    this.pageRanges = ImmutableMap.copyOf(pageRanges);
+    this.skippedPageCount = skippedPageCount;
+  }
+
+  /**
+   * @return the reads in the order they should be executed.
+   */
+  public List<PlannedRead> getReads() {
+    return reads;
+  }
+
+  public Map<RecordType, PageRange> getPageRanges() {
+    return pageRanges;
+  }
+
+  /**
+   * @return the number of pages left out because they were fully read by a previous sync.
+   */
+  public long getSkippedPageCount() {
+    return skippedPageCount;
+  }
+
+  public long getPageCount() {
+    long pageCount = 0;
+    for (PlannedRead read : this.reads) {
+      pageCount += read.getReadRequestSpec().getNumberOfPages();
+    }
+    return pageCount;
+  }
+
+  public long getEstimatedBytes() {
+    long estimatedBytes = 0;
+    for (PlannedRead read : this.reads) {
+      estimatedBytes += read.getEstimatedBytes();
+    }
+    return estimatedBytes;
+  }
+
+  public long getEstimatedMillis() {
+    long estimatedMillis = 0;
+    for (PlannedRead read : this.reads) {
+      estimatedMillis += read.getEstimatedMillis();
+    }
+    return estimatedMillis;
+  }
+
+  /**
+   * @return the last page of each record type once the plan has run. That's where the next sync can start from.
+   */
+  public Map<RecordType, Long> getLastPages() {
+    ImmutableMap.Builder<RecordType, Long> lastPages = ImmutableMap.builder();
+    for (Map.Entry<RecordType, PageRange> pageRange : this.pageRanges.entrySet()) {
+      if (!pageRange.getValue().isEmpty()) {
+        lastPages.put(pageRange.getKey(), pageRange.getValue().getLastPage());
+      }
+    }
+    return lastPages.build();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder plan = new StringBuilder(format("%d reads of %d pages, ~%d bytes in ~%d ms, %d pages skipped",
+            this.reads.size(), getPageCount(), getEstimatedBytes(), getEstimatedMillis(), this.skippedPageCount));
+    for (PlannedRead read : this.reads) {
+      DatabaseReadRequestSpec spec = read.getReadRequestSpec();
+      plan.append(format("%n  %s pages %d to %d (~%d bytes, ~%d ms)", read.getRecordType(), spec.getStartPage(),
+              spec.getStartPage() + spec.getNumberOfPages() - 1, read.getEstimatedBytes(), read.getEstimatedMillis()));
+    }
+    return plan.toString();
+  }
+}
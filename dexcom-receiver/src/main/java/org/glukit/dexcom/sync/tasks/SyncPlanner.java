@@ -0,0 +1,194 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync.tasks;
+
+import com.google.common.collect.ImmutableList;
+import org.glukit.dexcom.sync.DatabasePagesPager;
+import org.glukit.dexcom.sync.model.DatabaseReadRequestSpec;
+import org.glukit.dexcom.sync.model.PageRange;
+import org.glukit.dexcom.sync.model.RecordType;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newLinkedHashMap;
+import static org.glukit.dexcom.sync.g4.DexcomG4Constants.FIRMWARE_BAUD_RATE;
+import static org.glukit.dexcom.sync.model.DatabaseReadRequestSpec.LARGEST_PAGES_PER_COMMAND;
+import static org.glukit.dexcom.sync.model.DatabaseReadRequestSpec.MAX_PAGES_PER_COMMAND;
+import static org.glukit.dexcom.sync.model.RecordType.EGVData;
+import static org.glukit.dexcom.sync.model.RecordType.ManufacturingData;
+import static org.glukit.dexcom.sync.model.RecordType.UserEventData;
+import static org.glukit.dexcom.sync.transport.FrameDecoder.DATABASE_PAGE_SIZE;
+import static org.glukit.dexcom.sync.transport.FrameDecoder.HEADER_SIZE;
+import static org.glukit.dexcom.sync.transport.FrameDecoder.TRAILER_SIZE;
+
+/**
+ * Plans the page reads of a sync from the page ranges of the receiver and the last page read of each record type
+ * at the previous sync. Pages before that checkpoint are left out since records are only ever appended. The last
+ * page read is read again because it may have been filled up since.
+ *
+ * @author alexandre.normand
+ */
+public class SyncPlanner {
+  /**
+   * Record types synced, in the order they're read. Glucose reads go first since they're what's most likely to be
+   * looked at right after a sync. Only the manufacturing data's last page is read, that's all we keep.
+   */
+  public static final List<RecordType> DEFAULT_RECORD_TYPES = ImmutableList.of(EGVData, UserEventData,
+          ManufacturingData);
+
+  static final long COMMAND_LATENCY_MILLIS = 20;
+  static final long BYTES_PER_SECOND = FIRMWARE_BAUD_RATE / 10;
+  /**
+   * Record type, page number and page count.
+   */
+  private static final int READ_PAGES_REQUEST_SIZE = HEADER_SIZE + 6 + TRAILER_SIZE;
+
+  private final List<RecordType> recordTypes;
+  private final byte pagesPerRead;
+
+  public SyncPlanner() {
+    this(DEFAULT_RECORD_TYPES);
+  }
+
+  public SyncPlanner(List<RecordType> recordTypes) {
+    this(recordTypes, MAX_PAGES_PER_COMMAND);
+  }
+
+  private SyncPlanner(List<RecordType> recordTypes, byte pagesPerRead) {
+    this.recordTypes = ImmutableList.copyOf(recordTypes);
+    this.pagesPerRead = pagesPerRead;
+  }
+
+  public List<RecordType> getRecordTypes() {
+    return recordTypes;
+  }
+
+  public byte getPagesPerRead() {
+    return pagesPerRead;
+  }
+
+  /**
+   * @return a planner for the same record types except that one, e.g. when it's already known.
+   */
+  public SyncPlanner without(RecordType recordType) {
+    List<RecordType> remaining = newArrayList(this.recordTypes);
+    remaining.remove(recordType);
+    return new SyncPlanner(remaining, this.pagesPerRead);
+  }
+
+  /**
+   * @return a planner for the same record types that reads up to that many pages per command, e.g. when the
+   * receiver's firmware is known to take more than {@link DatabaseReadRequestSpec#MAX_PAGES_PER_COMMAND}.
+   */
+  public SyncPlanner withPagesPerRead(byte pagesPerRead) {
+    checkArgument(pagesPerRead > 0 && pagesPerRead <= LARGEST_PAGES_PER_COMMAND,
+            "Reads are limited to [%s] pages or less, given invalid value of [%s]", LARGEST_PAGES_PER_COMMAND,
+            pagesPerRead);
+    return new SyncPlanner(this.recordTypes, pagesPerRead);
+  }
+
+  /**
+   * @param pageRanges  the page ranges of the receiver for each of {@link #getRecordTypes()}.
+   * @param checkpoints the last page read of each record type by the previous sync, if any.
+   */
+  public SyncPlan plan(Map<RecordType, PageRange> pageRanges, Map<RecordType, Long> checkpoints) {
+    return plan(pageRanges, checkpoints, false);
+  }
+
+  /**
+   * Plans a backfill where the most recent records are read first. The manufacturing data goes first since every
+   * chunk needs it to be exported, then the other record types take turns going from their last page down to their
+   * first one so that the recent records of every type come early.
+   *
+   * @param pageRanges  the page ranges of the receiver for each of {@link #getRecordTypes()}.
+   * @param checkpoints the last page read of each record type by the previous sync, if any.
+   */
+  public SyncPlan planNewestFirst(Map<RecordType, PageRange> pageRanges, Map<RecordType, Long> checkpoints) {
+    return plan(pageRanges, checkpoints, true);
+  }
+
+  private SyncPlan plan(Map<RecordType, PageRange> pageRanges, Map<RecordType, Long> checkpoints,
+                        boolean newestFirst) {
+    List<PlannedRead> reads = newArrayList();
+    List<Iterator<PlannedRead>> readsByType = newArrayList();
+    Map<RecordType, PageRange> plannedRanges = newLinkedHashMap();
+    long skippedPageCount = 0;
+
+    for (RecordType recordType : this.recordTypes) {
+      PageRange pageRange = pageRanges.get(recordType);
+      if (pageRange == null || pageRange.isEmpty()) {
+        continue;
+      }
+      plannedRanges.put(recordType, pageRange);
+
+      long firstPage = firstPageToRead(recordType, pageRange, checkpoints.get(recordType));
+      skippedPageCount += firstPage - pageRange.getFirstPage();
+      if (!newestFirst || recordType == ManufacturingData) {
+        // The manufacturing data is read the same way either way, from its last page, and comes first in a backfill
+        for (DatabaseReadRequestSpec spec : new DatabasePagesPager(firstPage, pageRange.getLastPage(),
+                this.pagesPerRead)) {
+          reads.add(estimate(recordType, spec));
+        }
+      } else {
+        List<PlannedRead> typeReads = newArrayList();
+        for (DatabaseReadRequestSpec spec : DatabasePagesPager.newestFirst(firstPage,
+                pageRange.getLastPage(), this.pagesPerRead)) {
+          typeReads.add(estimate(recordType, spec));
+        }
+        readsByType.add(typeReads.iterator());
+      }
+    }
+
+    while (!readsByType.isEmpty()) {
+      for (Iterator<Iterator<PlannedRead>> types = readsByType.iterator(); types.hasNext(); ) {
+        Iterator<PlannedRead> typeReads = types.next();
+        if (typeReads.hasNext()) {
+          reads.add(typeReads.next());
+        } else {
+          types.remove();
+        }
+      }
+    }
+
+    return new SyncPlan(reads, plannedRanges, skippedPageCount);
+  }
+
+  private static long firstPageToRead(RecordType recordType, PageRange pageRange, Long checkpoint) {
+    if (recordType == ManufacturingData) {
+      return pageRange.getLastPage();
+    }
+    // A checkpoint out of the range means the receiver was reset or replaced, read it all
+    return checkpoint != null && pageRange.contains(checkpoint) ? checkpoint : pageRange.getFirstPage();
+  }
+
+  private static PlannedRead estimate(RecordType recordType, DatabaseReadRequestSpec spec) {
+    long bytes = READ_PAGES_REQUEST_SIZE + HEADER_SIZE + spec.getNumberOfPages() * DATABASE_PAGE_SIZE + TRAILER_SIZE;
+    return new PlannedRead(recordType, spec, bytes, COMMAND_LATENCY_MILLIS + bytes * 1000 / BYTES_PER_SECOND);
+  }
+}
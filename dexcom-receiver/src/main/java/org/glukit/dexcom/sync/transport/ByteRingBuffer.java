@@ -0,0 +1,87 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync.transport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Fixed-capacity circular byte buffer. Not thread-safe, callers synchronize.
+ *
+ * @author alexandre.normand
+ */
+final class ByteRingBuffer {
+  private final byte[] bytes;
+  private int head = 0;
+  private int size = 0;
+
+  ByteRingBuffer(int capacity) {
+    checkArgument(capacity > 0, "capacity must be positive");
+    this.bytes = new byte[capacity];
+  }
+
+  int available() {
+    return this.size;
+  }
+
+  int remainingCapacity() {
+    return this.bytes.length - this.size;
+  }
+
+  void write(byte[] source) {
+    checkArgument(source.length <= remainingCapacity(), "[%s] bytes don't fit in the remaining [%s]",
+            source.length, remainingCapacity());
+    int tail = (this.head + this.size) % this.bytes.length;
+    int firstChunk = Math.min(source.length, this.bytes.length - tail);
+    System.arraycopy(source, 0, this.bytes, tail, firstChunk);
+    System.arraycopy(source, firstChunk, this.bytes, 0, source.length - firstChunk);
+    this.size += source.length;
+  }
+
+  /**
+   * Returns the byte at {@code index} from the start of the buffered bytes, without consuming it.
+   */
+  byte peek(int index) {
+    checkArgument(index >= 0 && index < this.size, "index [%s] is outside of the [%s] buffered bytes", index,
+            this.size);
+    return this.bytes[(this.head + index) % this.bytes.length];
+  }
+
+  byte[] take(int byteCount) {
+    checkArgument(byteCount >= 0 && byteCount <= this.size, "Can't take [%s] of the [%s] buffered bytes", byteCount,
+            this.size);
+    byte[] taken = new byte[byteCount];
+    int firstChunk = Math.min(byteCount, this.bytes.length - this.head);
+    System.arraycopy(this.bytes, this.head, taken, 0, firstChunk);
+    System.arraycopy(this.bytes, 0, taken, firstChunk, byteCount - firstChunk);
+    this.head = (this.head + byteCount) % this.bytes.length;
+    this.size -= byteCount;
+    return taken;
+  }
+
+  void clear() {
+    this.head = 0;
+    this.size = 0;
+  }
+}
@@ -0,0 +1,309 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync.transport;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import jssc.SerialPort;
+import jssc.SerialPortEvent;
+import jssc.SerialPortEventListener;
+import jssc.SerialPortException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newLinkedHashMap;
+import static java.lang.String.format;
+import static org.glukit.dexcom.sync.g4.DexcomG4Constants.DATA_BITS;
+import static org.glukit.dexcom.sync.g4.DexcomG4Constants.FIRMWARE_BAUD_RATE;
+import static org.glukit.dexcom.sync.g4.DexcomG4Constants.NO_PARITY;
+import static org.glukit.dexcom.sync.g4.DexcomG4Constants.STOP_BITS;
+
+/**
+ * jssc {@link SerialTransport} that never blocks in a native read. Incoming bytes are pushed to us by jssc's event
+ * thread on {@link SerialPort#MASK_RXCHAR} events and accumulate in a ring buffer. Whole frames are handed out as
+ * futures with {@link #readFrame()}, decoded by a {@link FrameDecoder} that skips over line noise, and
+ * {@link #read(int)} waits on the buffer for callers that still want to block.
+ *
+ * @author alexandre.normand
+ */
+public class EventDrivenSerialTransport implements SerialTransport, SerialPortEventListener {
+  private static Logger LOGGER = LoggerFactory.getLogger(EventDrivenSerialTransport.class);
+
+  static final int BUFFER_CAPACITY = 128 * 1024;
+  static final long READ_TIMEOUT_MILLIS = 5000;
+  private static final ScheduledExecutorService READ_TIMER = Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setNameFormat("serial-read-timer-%d").setDaemon(true).build());
+
+  private final SerialPort serialPort;
+  private final ByteRingBuffer buffer;
+  private final long readTimeoutMillis;
+  private final FrameDecoder frameDecoder = new FrameDecoder();
+  private final Deque<SettableFuture<byte[]>> pendingFrames = new ArrayDeque<SettableFuture<byte[]>>();
+  private boolean closed = false;
+
+  /**
+   * Wraps a port that's already open and configured. The transport only sees bytes once it's registered as the
+   * port's event listener, which {@link #open(String)} takes care of.
+   */
+  public EventDrivenSerialTransport(SerialPort serialPort) {
+    this(serialPort, BUFFER_CAPACITY, READ_TIMEOUT_MILLIS);
+  }
+
+  @VisibleForTesting
+  EventDrivenSerialTransport(SerialPort serialPort, int bufferCapacity, long readTimeoutMillis) {
+    this.serialPort = serialPort;
+    this.buffer = new ByteRingBuffer(bufferCapacity);
+    this.readTimeoutMillis = readTimeoutMillis;
+  }
+
+  public static EventDrivenSerialTransport open(String portName) throws IOException {
+    SerialPort serialPort = JsscSerialTransport.open(portName).getSerialPort();
+    EventDrivenSerialTransport transport = new EventDrivenSerialTransport(serialPort);
+    try {
+      serialPort.addEventListener(transport, SerialPort.MASK_RXCHAR);
+      return transport;
+    } catch (SerialPortException e) {
+      transport.close();
+      throw new IOException(format("Can't listen to events of port %s", portName), e);
+    }
+  }
+
+  @Override
+  public String getPortName() {
+    return this.serialPort.getPortName();
+  }
+
+  @Override
+  public void write(byte[] bytes) throws IOException {
+    try {
+      if (!this.serialPort.writeBytes(bytes)) {
+        throw new IOException(format("Write of %d bytes to %s failed", bytes.length, getPortName()));
+      }
+    } catch (SerialPortException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Returns a future of the next whole frame, header and crc16 included. Frames are handed out in the order they
+   * were received and a frame with a bad crc16 fails its future with a {@link CorruptFrameException}. Bytes that
+   * arrived before this call are kept so a response that beats us to it isn't lost. A frame that isn't whole within
+   * the read timeout fails its future with an {@link IOException}, along with the frames requested after it.
+   */
+  public ListenableFuture<byte[]> readFrame() {
+    SettableFuture<byte[]> frame = SettableFuture.create();
+    Map<SettableFuture<byte[]>, Object> completions;
+    synchronized (this) {
+      if (this.closed) {
+        return Futures.immediateFailedFuture(new IOException(format("Port %s is closed", getPortName())));
+      }
+      this.pendingFrames.add(frame);
+      completions = completeFrames();
+    }
+    complete(completions);
+    if (!frame.isDone()) {
+      scheduleTimeout(frame);
+    }
+    return frame;
+  }
+
+  /**
+   * Waits for {@code byteCount} bytes to be buffered, up to the read timeout. This can't be mixed with frames still
+   * pending from {@link #readFrame()}.
+   */
+  @Override
+  public synchronized byte[] read(int byteCount) throws IOException {
+    checkState(this.pendingFrames.isEmpty(), "Can't read bytes while frames are pending");
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.readTimeoutMillis);
+    while (this.buffer.available() < byteCount && !this.closed) {
+      long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      if (remainingMillis <= 0) {
+        throw new IOException(format("Timed out waiting for %d bytes from %s, got %d", byteCount, getPortName(),
+                this.buffer.available()));
+      }
+      try {
+        wait(remainingMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(format("Interrupted while reading from %s", getPortName()), e);
+      }
+    }
+    if (this.closed) {
+      throw new IOException(format("Port %s is closed", getPortName()));
+    }
+    return this.buffer.take(byteCount);
+  }
+
+  @Override
+  public void serialEvent(SerialPortEvent event) {
+    if (event.isRXCHAR() && event.getEventValue() > 0) {
+      try {
+        // The bytes are already there, this doesn't wait
+        onBytesReceived(this.serialPort.readBytes(event.getEventValue()));
+      } catch (SerialPortException e) {
+        LOGGER.warn(format("Error reading from %s", getPortName()), e);
+        failPending(new IOException(e));
+      }
+    }
+  }
+
+  @VisibleForTesting
+  void onBytesReceived(byte[] bytes) {
+    Map<SettableFuture<byte[]>, Object> completions;
+    synchronized (this) {
+      if (bytes.length > this.buffer.remainingCapacity()) {
+        LOGGER.warn(format("Receive buffer of %s overflowed, dropping %d buffered bytes", getPortName(),
+                this.buffer.available()));
+        this.buffer.clear();
+        completions = drainPending(new IOException(format("Receive buffer of %s overflowed", getPortName())));
+      } else {
+        this.buffer.write(bytes);
+        completions = completeFrames();
+      }
+      notifyAll();
+    }
+    complete(completions);
+  }
+
+  @Override
+  public void close() {
+    Map<SettableFuture<byte[]>, Object> completions;
+    synchronized (this) {
+      if (this.closed) {
+        return;
+      }
+      this.closed = true;
+      completions = drainPending(new IOException(format("Port %s was closed", getPortName())));
+      notifyAll();
+    }
+    complete(completions);
+
+    try {
+      if (this.serialPort.isOpened()) {
+        this.serialPort.removeEventListener();
+      }
+    } catch (SerialPortException e) {
+      LOGGER.debug("Error removing event listener, ignoring.", e);
+    }
+    new JsscSerialTransport(this.serialPort).close();
+  }
+
+  private void scheduleTimeout(final SettableFuture<byte[]> frame) {
+    final ScheduledFuture<?> timeout = READ_TIMER.schedule(new Runnable() {
+      @Override
+      public void run() {
+        timeOut(frame);
+      }
+    }, this.readTimeoutMillis, TimeUnit.MILLISECONDS);
+    frame.addListener(new Runnable() {
+      @Override
+      public void run() {
+        timeout.cancel(false);
+      }
+    }, MoreExecutors.sameThreadExecutor());
+  }
+
+  private void timeOut(SettableFuture<byte[]> frame) {
+    Map<SettableFuture<byte[]>, Object> completions;
+    synchronized (this) {
+      if (!this.pendingFrames.contains(frame)) {
+        return;
+      }
+      // Frames are handed out in order, the ones requested after this one can't come before it
+      completions = drainPending(new IOException(format("Timed out waiting for a frame from %s after %d ms",
+              getPortName(), this.readTimeoutMillis)));
+    }
+    complete(completions);
+  }
+
+  private void failPending(IOException cause) {
+    Map<SettableFuture<byte[]>, Object> completions;
+    synchronized (this) {
+      completions = drainPending(cause);
+    }
+    complete(completions);
+  }
+
+  /**
+   * Matches buffered frames with pending futures. Futures are completed by the caller once the lock is released
+   * so that their listeners don't run while we hold it.
+   */
+  private Map<SettableFuture<byte[]>, Object> completeFrames() {
+    Map<SettableFuture<byte[]>, Object> completions = newLinkedHashMap();
+    while (!this.pendingFrames.isEmpty() && this.buffer.available() > 0) {
+      long skipped = this.frameDecoder.getSkippedByteCount();
+      try {
+        byte[] frame = this.frameDecoder.feed(
+                this.buffer.take(Math.min(this.buffer.available(), this.frameDecoder.bytesNeeded())));
+        if (frame != null) {
+          completions.put(this.pendingFrames.poll(), frame);
+        }
+      } catch (CorruptFrameException e) {
+        completions.put(this.pendingFrames.poll(), e);
+      }
+      if (this.frameDecoder.getSkippedByteCount() > skipped) {
+        LOGGER.debug(format("Skipped %d bytes of noise from %s", this.frameDecoder.getSkippedByteCount() - skipped,
+                getPortName()));
+      }
+    }
+    return completions;
+  }
+
+  private Map<SettableFuture<byte[]>, Object> drainPending(IOException cause) {
+    Map<SettableFuture<byte[]>, Object> completions = newLinkedHashMap();
+    List<SettableFuture<byte[]>> pending = newArrayList(this.pendingFrames);
+    this.pendingFrames.clear();
+    for (SettableFuture<byte[]> frame : pending) {
+      completions.put(frame, cause);
+    }
+    return completions;
+  }
+
+  private static void complete(Map<SettableFuture<byte[]>, Object> completions) {
+    for (Map.Entry<SettableFuture<byte[]>, Object> completion : completions.entrySet()) {
+      if (completion.getValue() instanceof Throwable) {
+        completion.getKey().setException((Throwable) completion.getValue());
+      } else {
+        completion.getKey().set((byte[]) completion.getValue());
+      }
+    }
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync.transport;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.io.ByteStreams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.lang.String.format;
+import static org.glukit.dexcom.sync.g4.DexcomG4Constants.FIRMWARE_BAUD_RATE;
+
+/**
+ * {@link SerialTransport} for Linux ttys that reads and writes the device node through a {@link FileChannel}. The
+ * tty is put in raw mode with {@code stty} first. Reads go into a reusable direct buffer as large as the kernel will
+ * fill, so a whole response usually arrives with a single system call and gets framed from memory.
+ *
+ * @author alexandre.normand
+ */
+public class FileChannelSerialTransport implements SerialTransport {
+  private static Logger LOGGER = LoggerFactory.getLogger(FileChannelSerialTransport.class);
+
+  static final int BUFFER_SIZE = 64 * 1024;
+  /**
+   * How long a read waits for the first byte, in tenths of a second as {@code stty} expects it.
+   */
+  static final int READ_TIMEOUT_DECISECONDS = 50;
+
+  private final String portName;
+  private final ReadableByteChannel input;
+  private final WritableByteChannel output;
+  private final Closeable resource;
+  private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+  private long readCallCount = 0;
+
+  FileChannelSerialTransport(String portName, ReadableByteChannel input, WritableByteChannel output,
+                             Closeable resource) {
+    this.portName = portName;
+    this.input = input;
+    this.output = output;
+    this.resource = resource;
+    // Start with an empty buffer in read mode
+    this.readBuffer.flip();
+  }
+
+  public static FileChannelSerialTransport open(String portName) throws IOException {
+    configureRawMode(portName);
+    RandomAccessFile file = new RandomAccessFile(portName, "rw");
+    FileChannel channel = file.getChannel();
+    LOGGER.info(format("Opened port [%s] as a file channel", portName));
+    return new FileChannelSerialTransport(portName, channel, channel, file);
+  }
+
+  /**
+   * Disables all line processing (echo, canonical mode, flow control, character translation) and makes reads return
+   * after {@link #READ_TIMEOUT_DECISECONDS} without data rather than block forever.
+   */
+  static void configureRawMode(String portName) throws IOException {
+    List<String> command = Arrays.asList("stty", "-F", portName, Integer.toString(FIRMWARE_BAUD_RATE), "raw",
+            "-echo", "-echoe", "-echok", "-echonl", "-ixon", "-ixoff", "-crtscts", "cs8", "-cstopb", "-parenb",
+            "clocal", "min", "0", "time", Integer.toString(READ_TIMEOUT_DECISECONDS));
+    Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+    try {
+      String output = new String(ByteStreams.toByteArray(process.getInputStream()), Charsets.UTF_8).trim();
+      int exitCode = process.waitFor();
+      if (exitCode != 0) {
+        throw new IOException(format("[%s] failed with exit code %d: %s", Joiner.on(' ').join(command), exitCode,
+                output));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      process.destroy();
+      throw new IOException(format("Interrupted while configuring %s", portName), e);
+    }
+  }
+
+  @Override
+  public String getPortName() {
+    return this.portName;
+  }
+
+  @Override
+  public void write(byte[] bytes) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    while (buffer.hasRemaining()) {
+      this.output.write(buffer);
+    }
+  }
+
+  @Override
+  public byte[] read(int byteCount) throws IOException {
+    byte[] bytes = new byte[byteCount];
+    int offset = 0;
+    while (offset < byteCount) {
+      if (!this.readBuffer.hasRemaining()) {
+        fill();
+      }
+      int chunkSize = Math.min(this.readBuffer.remaining(), byteCount - offset);
+      this.readBuffer.get(bytes, offset, chunkSize);
+      offset += chunkSize;
+    }
+    return bytes;
+  }
+
+  /**
+   * @return the number of reads issued to the channel so far.
+   */
+  public long getReadCallCount() {
+    return readCallCount;
+  }
+
+  @Override
+  public void close() throws IOException {
+    LOGGER.debug(format("Closing port %s", this.portName));
+    this.resource.close();
+  }
+
+  private void fill() throws IOException {
+    this.readBuffer.clear();
+    int bytesRead = this.input.read(this.readBuffer);
+    this.readCallCount++;
+    this.readBuffer.flip();
+
+    if (bytesRead < 0) {
+      throw new EOFException(format("Port %s was closed", this.portName));
+    } else if (bytesRead == 0) {
+      throw new IOException(format("Timed out after %d ms waiting for data from %s",
+              READ_TIMEOUT_DECISECONDS * 100, this.portName));
+    }
+  }
+}
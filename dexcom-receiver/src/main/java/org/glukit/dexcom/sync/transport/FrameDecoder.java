@@ -0,0 +1,163 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync.transport;
+
+import com.google.common.collect.Sets;
+import org.glukit.dexcom.sync.model.ReceiverCommand;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.String.format;
+import static org.glukit.dexcom.sync.DecodingUtils.getCrc16;
+import static org.glukit.dexcom.sync.model.DatabaseReadRequestSpec.LARGEST_PAGES_PER_COMMAND;
+import static org.glukit.dexcom.sync.model.ReceiverCommand.Ack;
+import static org.glukit.dexcom.sync.model.ReceiverCommand.IncompletePacketReceived;
+import static org.glukit.dexcom.sync.model.ReceiverCommand.InvalidCommand;
+import static org.glukit.dexcom.sync.model.ReceiverCommand.InvalidMode;
+import static org.glukit.dexcom.sync.model.ReceiverCommand.InvalidParam;
+import static org.glukit.dexcom.sync.model.ReceiverCommand.Nak;
+import static org.glukit.dexcom.sync.model.ReceiverCommand.ReceiverError;
+
+/**
+ * Incremental decoder of receiver frames: {@code SOF, size (2 bytes), command, payload, crc16 (2 bytes)}. Bytes are
+ * fed as they arrive, never more than {@link #bytesNeeded()} at a time so that nothing past the end of a frame gets
+ * consumed. A header that can't be right (wrong start of frame, impossible size or a command that's not a response
+ * code) is skipped one byte at a time until the next plausible start of frame. A whole frame with a bad crc16 is
+ * reported with a {@link CorruptFrameException} and the decoder starts fresh on the next byte.
+ *
+ * @author alexandre.normand
+ */
+public class FrameDecoder {
+  public static final byte SOF = 0x01;
+  public static final int HEADER_SIZE = 4;
+  public static final int TRAILER_SIZE = 2;
+  public static final int DATABASE_PAGE_SIZE = 528;
+  public static final int MAX_FRAME_SIZE = HEADER_SIZE + LARGEST_PAGES_PER_COMMAND * DATABASE_PAGE_SIZE
+          + TRAILER_SIZE;
+
+  private static final Set<ReceiverCommand> RESPONSE_COMMANDS = Sets.immutableEnumSet(Ack, Nak, InvalidCommand,
+          InvalidParam, IncompletePacketReceived, ReceiverError, InvalidMode);
+
+  private static enum State {
+    HEADER, PAYLOAD, TRAILER
+  }
+
+  private State state;
+  private byte[] frame;
+  private int position;
+  private long skippedByteCount = 0;
+
+  public FrameDecoder() {
+    reset();
+  }
+
+  /**
+   * How many bytes the decoder needs to move to its next state, always at least one.
+   */
+  public int bytesNeeded() {
+    switch (this.state) {
+      case HEADER:
+        return HEADER_SIZE - this.position;
+      case PAYLOAD:
+        return this.frame.length - TRAILER_SIZE - this.position;
+      default:
+        return this.frame.length - this.position;
+    }
+  }
+
+  /**
+   * Feeds the next bytes received.
+   *
+   * @return the whole frame, header and crc16 included, if these bytes completed one. {@code null} otherwise.
+   * @throws CorruptFrameException if these bytes completed a frame with a crc16 that doesn't match.
+   */
+  public byte[] feed(byte[] bytes) {
+    checkArgument(bytes.length <= bytesNeeded(), "Fed [%s] bytes but only [%s] are needed", bytes.length,
+            bytesNeeded());
+    System.arraycopy(bytes, 0, this.frame, this.position, bytes.length);
+    this.position += bytes.length;
+    if (bytesNeeded() > 0) {
+      return null;
+    }
+
+    switch (this.state) {
+      case HEADER:
+        int frameSize = (this.frame[1] & 0xff) | ((this.frame[2] & 0xff) << 8);
+        if (!isPlausibleHeader(frameSize)) {
+          resync();
+        } else {
+          this.frame = Arrays.copyOf(this.frame, frameSize);
+          this.state = frameSize > HEADER_SIZE + TRAILER_SIZE ? State.PAYLOAD : State.TRAILER;
+        }
+        return null;
+      case PAYLOAD:
+        this.state = State.TRAILER;
+        return null;
+      default:
+        byte[] complete = this.frame;
+        reset();
+        int receivedCrc = (complete[complete.length - 2] & 0xff) | ((complete[complete.length - 1] & 0xff) << 8);
+        int computedCrc = getCrc16(complete, 0, complete.length - TRAILER_SIZE);
+        if (receivedCrc != computedCrc) {
+          throw new CorruptFrameException(format("Invalid crc for frame of [%d] bytes, expected [%s], received [%s]",
+                  complete.length, Integer.toHexString(computedCrc), Integer.toHexString(receivedCrc)));
+        }
+        return complete;
+    }
+  }
+
+  /**
+   * The number of bytes dropped while looking for a valid header.
+   */
+  public long getSkippedByteCount() {
+    return this.skippedByteCount;
+  }
+
+  private boolean isPlausibleHeader(int frameSize) {
+    return this.frame[0] == SOF && frameSize >= HEADER_SIZE + TRAILER_SIZE && frameSize <= MAX_FRAME_SIZE &&
+            RESPONSE_COMMANDS.contains(ReceiverCommand.fromId(this.frame[3]));
+  }
+
+  /**
+   * Drops the first byte of the header and keeps what follows from the next start of frame, if there's one.
+   */
+  private void resync() {
+    int nextStart = 1;
+    while (nextStart < HEADER_SIZE && this.frame[nextStart] != SOF) {
+      nextStart++;
+    }
+    System.arraycopy(this.frame, nextStart, this.frame, 0, HEADER_SIZE - nextStart);
+    this.position = HEADER_SIZE - nextStart;
+    this.skippedByteCount += nextStart;
+  }
+
+  private void reset() {
+    this.state = State.HEADER;
+    this.frame = new byte[HEADER_SIZE];
+    this.position = 0;
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync.transport;
+
+import jssc.SerialPort;
+import jssc.SerialPortException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+import static java.lang.String.format;
+import static org.glukit.dexcom.sync.g4.DexcomG4Constants.DATA_BITS;
+import static org.glukit.dexcom.sync.g4.DexcomG4Constants.FIRMWARE_BAUD_RATE;
+import static org.glukit.dexcom.sync.g4.DexcomG4Constants.NO_PARITY;
+import static org.glukit.dexcom.sync.g4.DexcomG4Constants.STOP_BITS;
+
+/**
+ * {@link SerialTransport} backed by a jssc {@link SerialPort}. Works everywhere jssc has a native library for.
+ *
+ * @author alexandre.normand
+ */
+public class JsscSerialTransport implements SerialTransport {
+  private static Logger LOGGER = LoggerFactory.getLogger(JsscSerialTransport.class);
+
+  private final SerialPort serialPort;
+
+  /**
+   * Wraps a port that's already open and configured.
+   */
+  public JsscSerialTransport(SerialPort serialPort) {
+    this.serialPort = serialPort;
+  }
+
+  public static JsscSerialTransport open(String portName) throws IOException {
+    SerialPort serialPort = new SerialPort(portName);
+    try {
+      serialPort.openPort();
+      if (!serialPort.isOpened()) {
+        throw new IOException(format("Can't open port %s", portName));
+      }
+      LOGGER.info(format("Opened port [%s]: %b", serialPort.getPortName(), serialPort.isOpened()));
+      serialPort.setParams(FIRMWARE_BAUD_RATE, DATA_BITS, STOP_BITS, NO_PARITY);
+      return new JsscSerialTransport(serialPort);
+    } catch (SerialPortException e) {
+      closeQuietly(serialPort);
+      throw new IOException(format("Can't open port %s", portName), e);
+    }
+  }
+
+  public SerialPort getSerialPort() {
+    return serialPort;
+  }
+
+  @Override
+  public String getPortName() {
+    return this.serialPort.getPortName();
+  }
+
+  @Override
+  public void write(byte[] bytes) throws IOException {
+    try {
+      if (!this.serialPort.writeBytes(bytes)) {
+        throw new IOException(format("Write of %d bytes to %s failed", bytes.length, getPortName()));
+      }
+    } catch (SerialPortException e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Override
+  public byte[] read(int byteCount) throws IOException {
+    try {
+      return this.serialPort.readBytes(byteCount);
+    } catch (SerialPortException e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Override
+  public void close() {
+    closeQuietly(this.serialPort);
+  }
+
+  private static void closeQuietly(SerialPort serialPort) {
+    if (serialPort.isOpened()) {
+      try {
+        LOGGER.debug(format("Closing port %s", serialPort.getPortName()));
+        serialPort.closePort();
+      } catch (SerialPortException e) {
+        LOGGER.warn("Error closing port, ignoring.", e);
+      }
+    }
+  }
+}
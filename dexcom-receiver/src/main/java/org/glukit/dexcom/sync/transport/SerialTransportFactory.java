@@ -0,0 +1,83 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync.transport;
+
+import com.google.inject.Inject;
+import org.glukit.sync.api.BloodShepherdProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import static java.lang.String.format;
+import static org.glukit.sync.api.BloodShepherdProperties.SERIAL_TRANSPORT;
+
+/**
+ * Opens the {@link SerialTransport} selected by the {@link BloodShepherdProperties#SERIAL_TRANSPORT} property:
+ * {@code jssc}, {@code channel} or {@code auto} (the default) to use a file channel for Linux ttys and jssc elsewhere.
+ * The jssc transport is the {@link EventDrivenSerialTransport}.
+ *
+ * @author alexandre.normand
+ */
+public class SerialTransportFactory {
+  private static Logger LOGGER = LoggerFactory.getLogger(SerialTransportFactory.class);
+
+  public static enum Mode {
+    JSSC, CHANNEL, AUTO
+  }
+
+  private final Mode mode;
+  private final boolean linux;
+
+  @Inject
+  public SerialTransportFactory(BloodShepherdProperties properties) {
+    this(Mode.valueOf(properties.getProperty(SERIAL_TRANSPORT, Mode.AUTO.name()).trim().toUpperCase(Locale.US)),
+            System.getProperty("os.name", "").toLowerCase(Locale.US).startsWith("linux"));
+  }
+
+  SerialTransportFactory(Mode mode, boolean linux) {
+    this.mode = mode;
+    this.linux = linux;
+  }
+
+  public SerialTransport open(String portName) throws IOException {
+    switch (this.mode) {
+      case JSSC:
+        return EventDrivenSerialTransport.open(portName);
+      case CHANNEL:
+        return FileChannelSerialTransport.open(portName);
+      default:
+        if (this.linux && portName.startsWith("/dev/tty")) {
+          try {
+            return FileChannelSerialTransport.open(portName);
+          } catch (IOException e) {
+            LOGGER.warn(format("Can't open %s as a file channel, falling back to jssc", portName), e);
+          }
+        }
+        return EventDrivenSerialTransport.open(portName);
+    }
+  }
+}
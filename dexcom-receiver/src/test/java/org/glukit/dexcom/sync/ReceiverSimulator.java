@@ -0,0 +1,350 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+import com.google.common.io.LittleEndianDataOutputStream;
+import com.google.common.primitives.Bytes;
+import org.glukit.dexcom.sync.model.DatabaseReadRequestSpec;
+import org.glukit.dexcom.sync.model.ReceiverCommand;
+import org.glukit.dexcom.sync.model.RecordType;
+import org.glukit.dexcom.sync.transport.SerialTransport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.glukit.dexcom.sync.DecodingUtils.getCrc16;
+import static org.glukit.dexcom.sync.model.ReceiverCommand.Ack;
+import static org.glukit.dexcom.sync.model.ReceiverCommand.InvalidParam;
+import static org.glukit.dexcom.sync.model.RecordType.EGVData;
+import static org.glukit.dexcom.sync.model.RecordType.ManufacturingData;
+import static org.glukit.dexcom.sync.model.RecordType.UserEventData;
+
+/**
+ * In-memory receiver that answers requests written to it like the real thing would, with glucose reads and user
+ * events generated on demand. Faults can be scripted to see how the sync copes with a receiver having a bad day.
+ *
+ * @author alexandre.normand
+ */
+public class ReceiverSimulator implements SerialTransport {
+  public static final long FIRST_RECORD_SECONDS = 100000000L;
+  public static final long SECONDS_BETWEEN_RECORDS = 300L;
+  public static final String SERIAL_NUMBER = "sm30140752";
+  public static final String FIRMWARE_HEADER = "<FirmwareHeader SchemaVersion='1' ApiVersion='2.2.0.0' " +
+          "ProductId='G4Receiver' ProductName='Dexcom G4 Receiver' SoftwareNumber='SW10050' FirmwareVersion='2.0.1.104' " +
+          "PortVersion='4.6.4.45' RFVersion='1.0.0.27' DexBootVersion='3' />";
+
+  private static final int PAGE_DATA_SIZE = 500;
+  private static final int GLUCOSE_RECORD_LENGTH = 13;
+  private static final int USER_EVENT_RECORD_LENGTH = 20;
+
+  private final Map<RecordType, List<byte[]>> pages = new EnumMap<RecordType, List<byte[]>>(RecordType.class);
+  private final Deque<Byte> output = new ArrayDeque<Byte>();
+  private final Map<RecordType, Deque<ReceiverCommand>> pageReadFaults =
+          new EnumMap<RecordType, Deque<ReceiverCommand>>(RecordType.class);
+  private final List<DatabaseReadRequestSpec> pageReads = newArrayList();
+  private final Multiset<ReceiverCommand> commands = HashMultiset.create();
+  private int maxPagesPerRead = DatabaseReadRequestSpec.MAX_PAGES_PER_COMMAND;
+  private final List<byte[]> glucoseRecords = newArrayList();
+  private final List<RecordType> pageRangeReads = newArrayList();
+  private int glucoseRecordsPerPage = 38;
+  private int glucoseRecordCount = 0;
+  private boolean closed = false;
+  private int userEventRecordCount = 0;
+
+  public ReceiverSimulator() {
+    this.pages.put(ManufacturingData, newArrayList(manufacturingPage(SERIAL_NUMBER)));
+    appendGlucoseReads(0);
+    this.pages.put(UserEventData, newArrayList(recordPage(UserEventData, 0, 0, new byte[0][])));
+    for (RecordType recordType : RecordType.values()) {
+      this.pageReadFaults.put(recordType, new ArrayDeque<ReceiverCommand>());
+    }
+  }
+
+  /**
+   * Replaces the serial number in the manufacturing parameters, to simulate several receivers.
+   */
+  public ReceiverSimulator withSerialNumber(String serialNumber) {
+    this.pages.put(ManufacturingData, newArrayList(manufacturingPage(serialNumber)));
+    return this;
+  }
+
+  /**
+   * Replaces the glucose pages with {@code pageCount} pages of {@code recordsPerPage} reads, five minutes apart.
+   */
+  public ReceiverSimulator withGlucosePages(int pageCount, int recordsPerPage) {
+    this.glucoseRecords.clear();
+    this.glucoseRecordsPerPage = recordsPerPage;
+    return appendGlucoseReads(pageCount * recordsPerPage);
+  }
+
+  /**
+   * Adds {@code count} reads after the last one, five minutes apart, like a receiver left plugged in would.
+   */
+  public synchronized ReceiverSimulator appendGlucoseReads(int count) {
+    for (int i = 0; i < count; i++) {
+      long seconds = getGlucoseReadSeconds(this.glucoseRecordCount);
+      this.glucoseRecords.add(record(ByteBuffer.allocate(GLUCOSE_RECORD_LENGTH).order(ByteOrder.LITTLE_ENDIAN)
+              .putInt((int) seconds).putInt((int) seconds).putShort((short) (80 + this.glucoseRecordCount % 100))
+              .put((byte) 0x04)));
+      this.glucoseRecordCount++;
+    }
+
+    List<byte[]> glucosePages = newArrayList();
+    for (int page = 0; page == 0 || page * this.glucoseRecordsPerPage < this.glucoseRecords.size(); page++) {
+      int firstRecordIndex = page * this.glucoseRecordsPerPage;
+      List<byte[]> records = this.glucoseRecords.subList(firstRecordIndex,
+              Math.min(firstRecordIndex + this.glucoseRecordsPerPage, this.glucoseRecords.size()));
+      glucosePages.add(recordPage(EGVData, page, firstRecordIndex, records.toArray(new byte[records.size()][])));
+    }
+    this.pages.put(EGVData, glucosePages);
+    return this;
+  }
+
+  /**
+   * @return the seconds since the dexcom epoch of the glucose read at that index.
+   */
+  public static long getGlucoseReadSeconds(int index) {
+    return FIRST_RECORD_SECONDS + index * SECONDS_BETWEEN_RECORDS;
+  }
+
+  /**
+   * Replaces the user event pages with {@code pageCount} pages of {@code recordsPerPage} carbs events.
+   */
+  public ReceiverSimulator withUserEventPages(int pageCount, int recordsPerPage) {
+    List<byte[]> userEventPages = newArrayList();
+    for (int page = 0; page < pageCount; page++) {
+      byte[][] records = new byte[recordsPerPage][];
+      for (int i = 0; i < recordsPerPage; i++) {
+        long seconds = FIRST_RECORD_SECONDS + this.userEventRecordCount * SECONDS_BETWEEN_RECORDS;
+        records[i] = record(ByteBuffer.allocate(USER_EVENT_RECORD_LENGTH).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt((int) seconds).putInt((int) seconds).put((byte) 1).put((byte) 0).putInt((int) seconds)
+                .putInt(30));
+        this.userEventRecordCount++;
+      }
+      userEventPages.add(recordPage(UserEventData, page, page * recordsPerPage, records));
+    }
+    this.pages.put(UserEventData, userEventPages);
+    return this;
+  }
+
+  /**
+   * Answers the next page reads of that record type with these responses instead of the pages.
+   * {@link ReceiverCommand#Ack} stands for an ack whose crc16 got corrupted on the way.
+   */
+  public ReceiverSimulator failPageReads(RecordType recordType, ReceiverCommand... responses) {
+    this.pageReadFaults.get(recordType).addAll(Arrays.asList(responses));
+    return this;
+  }
+
+  /**
+   * Rejects page reads of more than {@code maxPagesPerRead} pages with {@link ReceiverCommand#InvalidParam}.
+   */
+  public ReceiverSimulator withMaxPagesPerRead(int maxPagesPerRead) {
+    this.maxPagesPerRead = maxPagesPerRead;
+    return this;
+  }
+
+  public List<DatabaseReadRequestSpec> getPageReads() {
+    return pageReads;
+  }
+
+  /**
+   * @return the commands received so far.
+   */
+  public synchronized Multiset<ReceiverCommand> getCommands() {
+    return commands;
+  }
+
+  public synchronized boolean isClosed() {
+    return closed;
+  }
+
+  public List<RecordType> getPageRangeReads() {
+    return pageRangeReads;
+  }
+
+  public int getGlucoseRecordCount() {
+    return glucoseRecordCount;
+  }
+
+  public int getUserEventRecordCount() {
+    return userEventRecordCount;
+  }
+
+  @Override
+  public String getPortName() {
+    return "simulator";
+  }
+
+  @Override
+  public synchronized void write(byte[] request) throws IOException {
+    ByteBuffer input = ByteBuffer.wrap(request).order(ByteOrder.LITTLE_ENDIAN);
+    input.position(3);
+    ReceiverCommand command = ReceiverCommand.fromId(input.get());
+    this.commands.add(command);
+    switch (command) {
+      case ReadDatabasePageRange:
+        RecordType rangeRecordType = RecordType.fromId(input.get());
+        this.pageRangeReads.add(rangeRecordType);
+        List<byte[]> rangePages = this.pages.get(rangeRecordType);
+        respond(Ack, ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putInt(0).putInt(rangePages.size() - 1)
+                .array());
+        break;
+      case ReadDatabasePages:
+        RecordType recordType = RecordType.fromId(input.get());
+        int startPage = input.getInt();
+        byte numberOfPages = input.get();
+        this.pageReads.add(new DatabaseReadRequestSpec(startPage, numberOfPages));
+        readPages(recordType, startPage, numberOfPages);
+        break;
+      case Ping:
+        respond(Ack, new byte[0]);
+        break;
+      case ReadFirmwareHeader:
+        respond(Ack, FIRMWARE_HEADER.getBytes(Charsets.UTF_8));
+        break;
+      case ReadGlucoseUnit:
+        respond(Ack, new byte[] {1});
+        break;
+      default:
+        respond(ReceiverCommand.InvalidCommand, new byte[0]);
+    }
+  }
+
+  @Override
+  public synchronized byte[] read(int byteCount) throws IOException {
+    if (this.output.size() < byteCount) {
+      throw new IOException(String.format("Timed out waiting for %d bytes, got %d", byteCount, this.output.size()));
+    }
+    byte[] bytes = new byte[byteCount];
+    for (int i = 0; i < byteCount; i++) {
+      bytes[i] = this.output.poll();
+    }
+    return bytes;
+  }
+
+  @Override
+  public synchronized void close() {
+    this.closed = true;
+  }
+
+  private void readPages(RecordType recordType, int startPage, byte numberOfPages) {
+    ReceiverCommand fault = this.pageReadFaults.get(recordType).poll();
+    if (fault != null && fault != Ack) {
+      respond(fault, new byte[0]);
+    } else if (numberOfPages > this.maxPagesPerRead) {
+      respond(InvalidParam, new byte[0]);
+    } else {
+      List<byte[]> typePages = this.pages.get(recordType);
+      byte[] payload = new byte[0];
+      for (int page = startPage; page < startPage + numberOfPages && page < typePages.size(); page++) {
+        payload = Bytes.concat(payload, typePages.get(page));
+      }
+      byte[] frame = frame(Ack, payload);
+      if (fault == Ack) {
+        frame[frame.length - 1] ^= 0x01;
+      }
+      enqueue(frame);
+    }
+  }
+
+  private void respond(ReceiverCommand command, byte[] payload) {
+    enqueue(frame(command, payload));
+  }
+
+  private void enqueue(byte[] frame) {
+    for (byte b : frame) {
+      this.output.add(b);
+    }
+  }
+
+  private static byte[] frame(ReceiverCommand command, byte[] payload) {
+    int size = 4 + payload.length + 2;
+    ByteBuffer frame = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    frame.put((byte) 0x01).putShort((short) size).put(command.getId()).put(payload);
+    frame.putShort((short) getCrc16(frame.array(), 0, size - 2));
+    return frame.array();
+  }
+
+  private static byte[] record(ByteBuffer recordWithoutCrc) {
+    byte[] record = recordWithoutCrc.array();
+    int crc = getCrc16(record, 0, record.length - 2);
+    record[record.length - 2] = (byte) crc;
+    record[record.length - 1] = (byte) (crc >> 8);
+    return record;
+  }
+
+  private static byte[] recordPage(RecordType recordType, int pageNumber, int firstRecordIndex, byte[][] records) {
+    ByteBuffer data = ByteBuffer.allocate(PAGE_DATA_SIZE);
+    for (byte[] record : records) {
+      data.put(record);
+    }
+    return page(recordType, pageNumber, firstRecordIndex, records.length, data.array());
+  }
+
+  private static byte[] manufacturingPage(String serialNumber) {
+    String xml = "<ManufacturingParameters SerialNumber=\"" + serialNumber + "\" HardwarePartNumber=\"MD1060-MT20649\" " +
+            "HardwareRevision=\"14\" DateTimeCreated=\"2013-01-03 13:54:05.536 -08:00\" " +
+            "HardwareId=\"{75B7C886-FE10-420F-B511-2D3F9B9BEE7E}\" />";
+    byte[] data = record(ByteBuffer.allocate(PAGE_DATA_SIZE).order(ByteOrder.LITTLE_ENDIAN).putInt(0).putInt(0)
+            .put(Strings.padEnd(xml, PAGE_DATA_SIZE - 10, ' ').getBytes(Charsets.UTF_8)));
+    return page(ManufacturingData, 0, 0, 1, data);
+  }
+
+  private static byte[] page(RecordType recordType, int pageNumber, int firstRecordIndex, int recordCount,
+                             byte[] data) {
+    try {
+      ByteArrayOutputStream header = new ByteArrayOutputStream();
+      DataOutput output = new LittleEndianDataOutputStream(header);
+      output.writeInt(firstRecordIndex);
+      output.writeInt(recordCount);
+      output.writeByte(recordType.getId());
+      output.writeByte(1);
+      output.writeInt(pageNumber);
+      output.writeInt(0);
+      output.writeInt(0);
+      output.writeInt(0);
+      byte[] headerBytes = header.toByteArray();
+      output.writeShort(getCrc16(Bytes.concat(headerBytes, new byte[2]), 0, headerBytes.length));
+      return Bytes.concat(header.toByteArray(), data);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
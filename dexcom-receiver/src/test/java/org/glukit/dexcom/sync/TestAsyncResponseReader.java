@@ -0,0 +1,93 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import jssc.SerialPort;
+import jssc.SerialPortEvent;
+import org.glukit.dexcom.sync.responses.GenericResponse;
+import org.glukit.dexcom.sync.responses.PageRangeResponse;
+import org.glukit.dexcom.sync.transport.EventDrivenSerialTransport;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.glukit.dexcom.sync.DecodingUtils.fromHexString;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test of {@link AsyncResponseReader}.
+ *
+ * @author alexandre.normand
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class TestAsyncResponseReader {
+  @Mock
+  SerialPort serialPort;
+
+  @Test
+  public void responseShouldBeDecodedOnceReceived() throws Exception {
+    EventDrivenSerialTransport transport = new EventDrivenSerialTransport(serialPort);
+    AsyncResponseReader reader = new AsyncResponseReader(new ResponseReader(new LittleEndianDataInputFactory()));
+
+    ListenableFuture<PageRangeResponse> response = reader.read(PageRangeResponse.class, transport);
+    assertThat(response.isDone(), is(false));
+    receive(transport, "01 0E 00 01 01 00 00 00 02 00 00 00 97 11");
+
+    assertThat(response.get(0, TimeUnit.SECONDS).getFirstPage(), is(1L));
+    assertThat(response.get(0, TimeUnit.SECONDS).getLastPage(), is(2L));
+  }
+
+  @Test
+  public void badCrcShouldFailOnlyThatResponse() throws Exception {
+    EventDrivenSerialTransport transport = new EventDrivenSerialTransport(serialPort);
+    AsyncResponseReader reader = new AsyncResponseReader(new ResponseReader(new LittleEndianDataInputFactory()));
+
+    ListenableFuture<PageRangeResponse> corrupted = reader.read(PageRangeResponse.class, transport);
+    ListenableFuture<GenericResponse> next = reader.read(GenericResponse.class, transport);
+    receive(transport, "01 0E 00 01 01 00 00 00 02 00 00 00 97 12 01 06 00 01 35 D4");
+
+    try {
+      corrupted.get(0, TimeUnit.SECONDS);
+      throw new AssertionError("Response should have failed");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause(), instanceOf(IllegalStateException.class));
+    }
+    assertThat(next.get(0, TimeUnit.SECONDS).getPayload().length, is(0));
+  }
+
+  private void receive(EventDrivenSerialTransport transport, String hex) throws Exception {
+    byte[] bytes = fromHexString(hex);
+    when(serialPort.readBytes(bytes.length)).thenReturn(bytes);
+    transport.serialEvent(new SerialPortEvent("/dev/ttyACM0", SerialPortEvent.RXCHAR, bytes.length));
+  }
+}
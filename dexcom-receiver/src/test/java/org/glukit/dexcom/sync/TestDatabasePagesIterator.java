@@ -69,4 +69,32 @@ public class TestDatabasePagesIterator {
     assertThat(iterator.hasNext(), is(true));
     assertThat(iterator.next(), equalTo(new DatabaseReadRequestSpec(144, (byte) 1)));
   }
+
+  @Test
+  public void newestFirstShouldStartWithTheLastFullChunk() throws Exception {
+    Iterator<DatabaseReadRequestSpec> iterator = DatabasePagesPager.newestFirst(140, 149).iterator();
+
+    assertThat(iterator.next(), equalTo(new DatabaseReadRequestSpec(146, MAX_PAGES_PER_COMMAND)));
+    assertThat(iterator.next(), equalTo(new DatabaseReadRequestSpec(142, MAX_PAGES_PER_COMMAND)));
+    assertThat(iterator.next(), equalTo(new DatabaseReadRequestSpec(140, (byte) 2)));
+    assertThat(iterator.hasNext(), is(false));
+  }
+
+  @Test
+  public void newestFirstFromPageZeroShouldNotGoNegative() throws Exception {
+    Iterator<DatabaseReadRequestSpec> iterator = DatabasePagesPager.newestFirst(0, 2).iterator();
+
+    assertThat(iterator.next(), equalTo(new DatabaseReadRequestSpec(0, (byte) 3)));
+    assertThat(iterator.hasNext(), is(false));
+  }
+
+  @Test
+  public void largerPagesPerCommandShouldMakeFewerChunks() throws Exception {
+    Iterator<DatabaseReadRequestSpec> iterator = new DatabasePagesPager(140, 157, (byte) 8).iterator();
+
+    assertThat(iterator.next(), equalTo(new DatabaseReadRequestSpec(140, (byte) 8)));
+    assertThat(iterator.next(), equalTo(new DatabaseReadRequestSpec(148, (byte) 8)));
+    assertThat(iterator.next(), equalTo(new DatabaseReadRequestSpec(156, (byte) 2)));
+    assertThat(iterator.hasNext(), is(false));
+  }
 }
@@ -0,0 +1,123 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.glukit.dexcom.sync.SyncMetrics.PAGE_CACHE_EVICTIONS;
+import static org.glukit.dexcom.sync.SyncMetrics.PAGE_CACHE_HITS;
+import static org.glukit.dexcom.sync.SyncMetrics.PAGE_CACHE_MISSES;
+import static org.glukit.dexcom.sync.model.RecordType.EGVData;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Unit test of {@link DecodedPageCache}.
+ *
+ * @author alexandre.normand
+ */
+public class TestDecodedPageCache {
+  private static final int PAGE_WEIGHT = 100;
+
+  private SyncMetrics syncMetrics;
+  private DecodedPageCache cache;
+  private AtomicInteger decodeCount;
+
+  @Before
+  public void setUp() throws Exception {
+    syncMetrics = new SyncMetrics();
+    // Room for 10 pages
+    cache = new DecodedPageCache(10 * PAGE_WEIGHT, syncMetrics);
+    decodeCount = new AtomicInteger();
+  }
+
+  @Test
+  public void pageShouldOnlyBeDecodedOnce() throws Exception {
+    assertThat(get(1), is((List<Long>) ImmutableList.of(1L)));
+    assertThat(get(1), is((List<Long>) ImmutableList.of(1L)));
+
+    assertThat(decodeCount.get(), is(1));
+    assertThat(syncMetrics.getCount(PAGE_CACHE_HITS), is(1L));
+    assertThat(syncMetrics.getCount(PAGE_CACHE_MISSES), is(1L));
+  }
+
+  @Test
+  public void newVersionOfAPageShouldBeDecodedAgain() throws Exception {
+    cache.getRecords(new DecodedPageCache.PageKey("SM11111111", EGVData, 1, 0x1234), PAGE_WEIGHT, decoder(1));
+    cache.getRecords(new DecodedPageCache.PageKey("SM11111111", EGVData, 1, 0x4321), PAGE_WEIGHT, decoder(1));
+    cache.getRecords(new DecodedPageCache.PageKey("SM22222222", EGVData, 1, 0x1234), PAGE_WEIGHT, decoder(1));
+
+    assertThat(decodeCount.get(), is(3));
+  }
+
+  @Test
+  public void pagesAskedForOftenShouldOutliveAScanOfOtherPages() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      get(1);
+    }
+    for (long page = 100; page < 200; page++) {
+      get(page);
+    }
+    decodeCount.set(0);
+    get(1);
+
+    assertThat(decodeCount.get(), is(0));
+    assertThat(cache.getWeightedSize() <= 10 * PAGE_WEIGHT, is(true));
+    assertThat(syncMetrics.getCount(PAGE_CACHE_EVICTIONS) > 0, is(true));
+  }
+
+  @Test
+  public void pageTooLargeForTheMainSpaceShouldNotBeCached() throws Exception {
+    // The window takes 1% of the cache so a page of the full cache size doesn't fit in the main space
+    cache = new DecodedPageCache(PAGE_WEIGHT, syncMetrics);
+
+    assertThat(get(1), is((List<Long>) ImmutableList.of(1L)));
+    assertThat(get(1), is((List<Long>) ImmutableList.of(1L)));
+
+    assertThat(decodeCount.get(), is(2));
+    assertThat(cache.getWeightedSize(), is(0L));
+  }
+
+  private List<Long> get(long pageNumber) {
+    return cache.getRecords(new DecodedPageCache.PageKey("SM11111111", EGVData, pageNumber, 0), PAGE_WEIGHT,
+            decoder(pageNumber));
+  }
+
+  private Supplier<List<Long>> decoder(final long pageNumber) {
+    return new Supplier<List<Long>>() {
+      @Override
+      public List<Long> get() {
+        decodeCount.incrementAndGet();
+        return ImmutableList.of(pageNumber);
+      }
+    };
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync;
+
+import org.glukit.dexcom.sync.tasks.IsReceiverOnThisPortRunner;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test of {@link DexcomReceiverFinder}.
+ *
+ * @author alexandre.normand
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class TestDexcomReceiverFinder {
+  private static final UsbDeviceIdentity DEVICE = new UsbDeviceIdentity((short) 0x22a3, (short) 0x47, "SM123");
+
+  @Rule
+  public TemporaryFolder sysfsRoot = new TemporaryFolder();
+
+  @Mock
+  private IsReceiverOnThisPortRunner isReceiverOnThisPortRunner;
+
+  @Test
+  public void firstSuccessfulProbeShouldWinAndCancelTheOthers() throws Exception {
+    final CountDownLatch cancelled = new CountDownLatch(1);
+    when(isReceiverOnThisPortRunner.isReceiver("/dev/slow")).thenAnswer(new Answer<Boolean>() {
+      @Override
+      public Boolean answer(InvocationOnMock invocation) throws Throwable {
+        try {
+          Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+          cancelled.countDown();
+        }
+        return false;
+      }
+    });
+    when(isReceiverOnThisPortRunner.isReceiver("/dev/receiver")).thenReturn(true);
+
+    long start = System.nanoTime();
+    String port = finder("/dev/slow", "/dev/receiver").findReceiverPort(DEVICE);
+
+    assertThat(port, is("/dev/receiver"));
+    assertThat(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 5, is(true));
+    assertThat(cancelled.await(5, TimeUnit.SECONDS), is(true));
+  }
+
+  @Test
+  public void cachedPortShouldBeTriedFirst() throws Exception {
+    when(isReceiverOnThisPortRunner.isReceiver("/dev/receiver")).thenAnswer(slowSuccess());
+    DexcomReceiverFinder finder = finder("/dev/other", "/dev/receiver");
+
+    finder.findReceiverPort(DEVICE);
+    assertThat(finder.findReceiverPort(DEVICE), is("/dev/receiver"));
+
+    verify(isReceiverOnThisPortRunner, times(1)).isReceiver("/dev/other");
+    verify(isReceiverOnThisPortRunner, times(2)).isReceiver("/dev/receiver");
+  }
+
+  @Test
+  public void invalidatedPortShouldTriggerFullProbe() throws Exception {
+    when(isReceiverOnThisPortRunner.isReceiver("/dev/receiver")).thenAnswer(slowSuccess());
+    DexcomReceiverFinder finder = finder("/dev/other", "/dev/receiver");
+
+    finder.findReceiverPort(DEVICE);
+    finder.invalidate(DEVICE);
+    finder.findReceiverPort(DEVICE);
+
+    verify(isReceiverOnThisPortRunner, times(2)).isReceiver("/dev/other");
+  }
+
+  @Test
+  public void staleCachedPortShouldFallBackToProbing() throws Exception {
+    when(isReceiverOnThisPortRunner.isReceiver("/dev/receiver")).thenAnswer(slowSuccess()).thenReturn(false);
+    when(isReceiverOnThisPortRunner.isReceiver("/dev/other")).thenReturn(false, true);
+    DexcomReceiverFinder finder = finder("/dev/other", "/dev/receiver");
+
+    assertThat(finder.findReceiverPort(DEVICE), is("/dev/receiver"));
+    assertThat(finder.findReceiverPort(DEVICE), is("/dev/other"));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void noReceiverShouldFail() throws Exception {
+    finder("/dev/other").findReceiverPort(DEVICE);
+  }
+
+  @Test
+  public void nullDeviceShouldNotBeCached() throws Exception {
+    when(isReceiverOnThisPortRunner.isReceiver("/dev/receiver")).thenReturn(true);
+    DexcomReceiverFinder finder = finder("/dev/receiver");
+
+    finder.findReceiverPort();
+    finder.findReceiverPort(DEVICE);
+
+    verify(isReceiverOnThisPortRunner, times(2)).isReceiver("/dev/receiver");
+    verify(isReceiverOnThisPortRunner, never()).isReceiver("/dev/other");
+  }
+
+  @Test
+  public void portResolvedFromSysfsShouldNotBeProbed() throws Exception {
+    File interfaceDirectory = sysfsRoot.newFolder("bus", "usb", "devices", "1-1", "1-1:1.0", "tty", "ttyACM3");
+    File deviceDirectory = interfaceDirectory.getParentFile().getParentFile().getParentFile();
+    Files.write("22a3\n", new File(deviceDirectory, "idVendor"), Charsets.US_ASCII);
+    Files.write("0047\n", new File(deviceDirectory, "idProduct"), Charsets.US_ASCII);
+
+    assertThat(finder("/dev/ttyACM0").findReceiverPort(DEVICE), is("/dev/ttyACM3"));
+    verify(isReceiverOnThisPortRunner, never()).isReceiver(anyString());
+  }
+
+  /**
+   * Answers after a short delay so that the other probes always get to run before getting cancelled.
+   */
+  private static Answer<Boolean> slowSuccess() {
+    return new Answer<Boolean>() {
+      @Override
+      public Boolean answer(InvocationOnMock invocation) throws Throwable {
+        Thread.sleep(100);
+        return true;
+      }
+    };
+  }
+
+  private DexcomReceiverFinder finder(final String... ports) {
+    SysfsReceiverPortResolver resolver = new SysfsReceiverPortResolver(sysfsRoot.getRoot(), new File("/dev"));
+    return new DexcomReceiverFinder(isReceiverOnThisPortRunner, resolver) {
+      @Override
+      String[] listPorts() {
+        return ports;
+      }
+    };
+  }
+}
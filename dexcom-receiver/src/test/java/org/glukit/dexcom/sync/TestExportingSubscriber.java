@@ -0,0 +1,114 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.glukit.sync.api.DataExporter;
+import org.glukit.sync.api.ExerciseSession;
+import org.glukit.sync.api.FoodEvent;
+import org.glukit.sync.api.GlucoseRead;
+import org.glukit.sync.api.InsulinInjection;
+import org.glukit.sync.api.Subscription;
+import org.glukit.sync.api.SyncData;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.threeten.bp.Instant;
+
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Unit test of {@link ExportingSubscriber}.
+ *
+ * @author alexandre.normand
+ */
+public class TestExportingSubscriber {
+  private DataExporter dataExporter;
+  private Subscription subscription;
+  private ExportingSubscriber exportingSubscriber;
+
+  @Before
+  public void setUp() throws Exception {
+    dataExporter = mock(DataExporter.class);
+    subscription = mock(Subscription.class);
+    exportingSubscriber = new ExportingSubscriber(dataExporter, 2,
+            new ThreadFactoryBuilder().setNameFormat("test-export-%d").build());
+  }
+
+  @Test
+  public void eachExportShouldRequestOneMoreChunk() throws Exception {
+    SyncData first = syncData(1);
+    SyncData second = syncData(2);
+
+    exportingSubscriber.onSubscribe(subscription);
+    exportingSubscriber.onNext(first);
+    exportingSubscriber.onNext(second);
+    exportingSubscriber.onComplete();
+    exportingSubscriber.awaitExported();
+
+    verify(dataExporter).exportData(first);
+    verify(dataExporter).exportData(second);
+    InOrder requests = inOrder(subscription);
+    requests.verify(subscription).request(2);
+    requests.verify(subscription, times(2)).request(1);
+    verify(subscription, never()).cancel();
+  }
+
+  @Test
+  public void failedExportShouldCancelTheSubscription() throws Exception {
+    SyncData first = syncData(1);
+    doThrow(new IllegalStateException("Disk full")).when(dataExporter).exportData(first);
+
+    exportingSubscriber.onSubscribe(subscription);
+    exportingSubscriber.onNext(first);
+    verify(subscription, timeout(5000)).cancel();
+    exportingSubscriber.onNext(syncData(2));
+
+    try {
+      exportingSubscriber.awaitExported();
+      fail("The export failed, waiting for it should fail too");
+    } catch (IllegalStateException e) {
+      assertThat(e.getMessage(), is("Disk full"));
+    }
+    verify(dataExporter, never()).exportData(syncData(2));
+  }
+
+  private static SyncData syncData(long updateSeconds) {
+    return new SyncData(Collections.<GlucoseRead>emptyList(), Collections.<InsulinInjection>emptyList(),
+            Collections.<FoodEvent>emptyList(), Collections.<ExerciseSession>emptyList(), null,
+            Instant.ofEpochSecond(updateSeconds));
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.glukit.dexcom.sync.PortScheduler.Priority.BULK;
+import static org.glukit.dexcom.sync.PortScheduler.Priority.INTERACTIVE;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Unit test of {@link PortScheduler}.
+ *
+ * @author alexandre.normand
+ */
+public class TestPortScheduler {
+  private final PortScheduler portScheduler = new PortScheduler("/dev/test");
+  private final List<String> turns = Collections.synchronizedList(Lists.<String>newArrayList());
+
+  @Test
+  public void interactiveCommandsShouldGoBeforeBulkReadsWaitingLonger() throws Exception {
+    portScheduler.begin(BULK);
+    Thread bulk = takeTurn("bulk", BULK);
+    awaitWaiting(1);
+    Thread interactive = takeTurn("interactive", INTERACTIVE);
+    awaitWaiting(2);
+
+    portScheduler.end();
+    bulk.join(5000);
+    interactive.join(5000);
+
+    assertThat(turns, is((List<String>) ImmutableList.of("interactive", "bulk")));
+  }
+
+  @Test
+  public void yieldShouldLetInteractiveCommandsThroughAndKeepTheTurn() throws Exception {
+    portScheduler.begin(BULK);
+    portScheduler.begin(BULK);
+    portScheduler.yieldTurn();
+    assertThat(portScheduler.hasTurn(), is(true));
+
+    Thread interactive = takeTurn("interactive", INTERACTIVE);
+    awaitWaiting(1);
+    portScheduler.yieldTurn();
+    interactive.join(5000);
+
+    assertThat(turns, is((List<String>) ImmutableList.of("interactive")));
+    assertThat(portScheduler.hasTurn(), is(true));
+    portScheduler.end();
+    assertThat(portScheduler.hasTurn(), is(true));
+    portScheduler.end();
+    assertThat(portScheduler.hasTurn(), is(false));
+  }
+
+  @Test
+  public void bulkReadsShouldNotYieldToEachOther() throws Exception {
+    portScheduler.begin(BULK);
+    Thread bulk = takeTurn("bulk", BULK);
+    awaitWaiting(1);
+
+    portScheduler.yieldTurn();
+    assertThat(turns.isEmpty(), is(true));
+
+    portScheduler.end();
+    bulk.join(5000);
+    assertThat(turns, is((List<String>) ImmutableList.of("bulk")));
+  }
+
+  private Thread takeTurn(final String name, final PortScheduler.Priority priority) {
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        portScheduler.begin(priority);
+        try {
+          turns.add(name);
+        } finally {
+          portScheduler.end();
+        }
+      }
+    }, name);
+    thread.start();
+    return thread;
+  }
+
+  private void awaitWaiting(int count) throws InterruptedException {
+    long timeoutMillis = 5000;
+    while (portScheduler.getWaitingCount() < count && timeoutMillis > 0) {
+      Thread.sleep(10);
+      timeoutMillis -= 10;
+    }
+    assertThat(portScheduler.getWaitingCount(), is(count));
+  }
+}
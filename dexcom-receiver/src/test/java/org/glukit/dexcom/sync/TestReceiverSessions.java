@@ -0,0 +1,203 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync;
+
+import com.google.common.base.Ticker;
+import org.glukit.dexcom.sync.transport.SerialTransportFactory;
+import org.glukit.sync.api.GlucoseRead;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.glukit.dexcom.sync.model.ReceiverCommand.ReadFirmwareHeader;
+import static org.glukit.dexcom.sync.model.ReceiverCommand.ReadGlucoseUnit;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test of {@link ReceiverSessions} and {@link ReceiverSession}.
+ *
+ * @author alexandre.normand
+ */
+public class TestReceiverSessions {
+  private static final String PORT = "/dev/ttyACM0";
+  private static final long IDLE_TIMEOUT_SECONDS = 60;
+
+  private final FakeTicker ticker = new FakeTicker();
+  private ReceiverSimulator receiver;
+  private SerialTransportFactory serialTransportFactory;
+  private ReceiverSessions receiverSessions;
+
+  @Before
+  public void setUp() throws Exception {
+    receiver = new ReceiverSimulator();
+    serialTransportFactory = mock(SerialTransportFactory.class);
+    when(serialTransportFactory.open(PORT)).thenReturn(receiver, new ReceiverSimulator());
+    receiverSessions = new ReceiverSessions(serialTransportFactory, new LittleEndianDataOutputFactory(),
+            new ResponseReader(new LittleEndianDataInputFactory()), IDLE_TIMEOUT_SECONDS, ticker);
+  }
+
+  @Test
+  public void portShouldBeOpenedOnceForAllUsers() throws Exception {
+    ReceiverSession probeSession = receiverSessions.open(PORT);
+    probeSession.ping();
+    ReceiverSession syncSession = receiverSessions.open(PORT);
+
+    assertThat(syncSession, sameInstance(probeSession));
+    verify(serialTransportFactory, times(1)).open(PORT);
+  }
+
+  @Test
+  public void receiverFactsShouldOnlyBeReadOnce() throws Exception {
+    ReceiverSession session = receiverSessions.open(PORT);
+
+    assertThat(session.getFirmwareHeader(), is(ReceiverSimulator.FIRMWARE_HEADER));
+    assertThat(session.getFirmwareHeader(), is(ReceiverSimulator.FIRMWARE_HEADER));
+    assertThat(session.getGlucoseUnit(), is(GlucoseRead.Unit.MG_PER_DL));
+    assertThat(session.getGlucoseUnit(), is(GlucoseRead.Unit.MG_PER_DL));
+
+    assertThat(receiver.getCommands().count(ReadFirmwareHeader), is(1));
+    assertThat(receiver.getCommands().count(ReadGlucoseUnit), is(1));
+  }
+
+  @Test
+  public void idleSessionShouldBeClosed() throws Exception {
+    ReceiverSession session = receiverSessions.open(PORT);
+    session.ping();
+
+    ticker.advance(IDLE_TIMEOUT_SECONDS - 1);
+    assertThat(receiverSessions.closeIdleSessions(), is(0));
+    ticker.advance(1);
+    assertThat(receiverSessions.closeIdleSessions(), is(1));
+
+    assertThat(receiver.isClosed(), is(true));
+    assertThat(receiverSessions.open(PORT), not(sameInstance(session)));
+  }
+
+  @Test
+  public void sessionInUseShouldNotBeClosedWhenIdle() throws Exception {
+    ReceiverSession session = receiverSessions.open(PORT);
+    session.acquire();
+
+    ticker.advance(IDLE_TIMEOUT_SECONDS * 10);
+
+    assertThat(receiverSessions.closeIdleSessions(), is(0));
+    assertThat(receiver.isClosed(), is(false));
+    session.release();
+  }
+
+  @Test
+  public void unpluggedDeviceShouldHaveItsSessionsClosed() throws Exception {
+    UsbDeviceIdentity device = new UsbDeviceIdentity((short) 0x22a3, (short) 0x0047, "1-1");
+    receiverSessions.open(PORT).claim(device);
+
+    receiverSessions.closeAll(new UsbDeviceIdentity((short) 0x22a3, (short) 0x0047, "1-2"));
+    assertThat(receiver.isClosed(), is(false));
+    receiverSessions.closeAll(device);
+    assertThat(receiver.isClosed(), is(true));
+  }
+
+  @Test
+  public void turnLostWhileYieldingShouldStillBeEnded() throws Exception {
+    final ReceiverSession session = receiverSessions.open(PORT);
+    final CountDownLatch bulkHasTurn = new CountDownLatch(1);
+    final CountDownLatch interactiveHasTurn = new CountDownLatch(1);
+    final CountDownLatch bulkDone = new CountDownLatch(1);
+    final AtomicReference<Throwable> bulkFailure = new AtomicReference<Throwable>();
+    Thread bulk = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        session.takeTurn(PortScheduler.Priority.BULK);
+        try {
+          bulkHasTurn.countDown();
+          while (!session.isTurnWanted()) {
+            Thread.yield();
+          }
+          session.yieldTurn();
+        } catch (RuntimeException e) {
+          bulkFailure.set(e);
+        } finally {
+          try {
+            session.endTurn();
+          } catch (RuntimeException e) {
+            bulkFailure.set(e);
+          }
+        }
+      }
+    }, "bulk");
+    bulk.start();
+    bulkHasTurn.await(5, TimeUnit.SECONDS);
+
+    Thread interactive = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        session.takeTurn(PortScheduler.Priority.INTERACTIVE);
+        try {
+          interactiveHasTurn.countDown();
+          bulkDone.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } finally {
+          session.endTurn();
+        }
+      }
+    }, "interactive");
+    interactive.start();
+    interactiveHasTurn.await(5, TimeUnit.SECONDS);
+
+    // The bulk read yielded its turn and now waits to take it back
+    bulk.interrupt();
+    bulk.join(5000);
+    bulkDone.countDown();
+    interactive.join(5000);
+
+    assertThat(bulkFailure.get(), instanceOf(CancellationException.class));
+    assertThat(session.isInUse(), is(false));
+  }
+
+  private static class FakeTicker extends Ticker {
+    private long nanos = 0;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    void advance(long seconds) {
+      nanos += TimeUnit.SECONDS.toNanos(seconds);
+    }
+  }
+}
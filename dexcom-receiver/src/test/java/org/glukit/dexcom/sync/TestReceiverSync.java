@@ -0,0 +1,178 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync;
+
+import com.google.common.base.Ticker;
+import org.glukit.dexcom.sync.model.ReceiverCommand;
+import org.glukit.dexcom.sync.model.RecordType;
+import org.glukit.dexcom.sync.tasks.FetchNewDataRunner;
+import org.glukit.dexcom.sync.tasks.LiveTailRunner;
+import org.glukit.dexcom.sync.tasks.SyncPlanner;
+import org.glukit.sync.AdapterService;
+import org.glukit.sync.api.BloodShepherdPreferences;
+import org.glukit.sync.api.BloodShepherdProperties;
+import org.glukit.sync.api.DataExporter;
+import org.glukit.sync.api.ThreadModel;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.threeten.bp.Instant;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test of {@link ReceiverSync}.
+ *
+ * @author alexandre.normand
+ */
+public class TestReceiverSync {
+  private static final UsbDeviceIdentity FIRST_DEVICE = new UsbDeviceIdentity((short) 0x22a3, (short) 0x0047, "1-1");
+  private static final UsbDeviceIdentity SECOND_DEVICE = new UsbDeviceIdentity((short) 0x22a3, (short) 0x0047, "1-2");
+
+  private DexcomReceiverFinder receiverFinder;
+  private ReceiverSessions receiverSessions;
+  private BloodShepherdPreferences preferences;
+  private BloodShepherdPreferences firstReceiverPreferences;
+  private BloodShepherdPreferences secondReceiverPreferences;
+  private ReceiverSync receiverSync;
+
+  @Before
+  public void setUp() throws Exception {
+    receiverFinder = mock(DexcomReceiverFinder.class);
+    receiverSessions = mock(ReceiverSessions.class);
+    preferences = mock(BloodShepherdPreferences.class);
+    firstReceiverPreferences = receiverPreferences("SM11111111");
+    secondReceiverPreferences = receiverPreferences("SM22222222");
+
+    when(receiverFinder.findReceiverPort(FIRST_DEVICE)).thenReturn("ttyACM0");
+    when(receiverFinder.findReceiverPort(SECOND_DEVICE)).thenReturn("ttyACM1");
+    when(receiverSessions.open("ttyACM0")).thenReturn(session(new ReceiverSimulator()
+            .withSerialNumber("SM11111111").withGlucosePages(3, 38)));
+    when(receiverSessions.open("ttyACM1")).thenReturn(session(new ReceiverSimulator()
+            .withSerialNumber("SM22222222").withGlucosePages(1, 10)));
+
+    ResponseReader responseReader = new ResponseReader(new LittleEndianDataInputFactory());
+    FetchNewDataRunner fetchNewDataRunner = new FetchNewDataRunner(new LittleEndianDataOutputFactory(),
+            new LittleEndianDataInputFactory(), responseReader, new SyncMetrics(), new SyncPlanner());
+    receiverSync = new ReceiverSync(receiverFinder, fetchNewDataRunner, mock(AdapterService.class),
+            mock(DataExporter.class), preferences, receiverSessions, new DeviceRegistry(preferences),
+            mock(LiveTailRunner.class),
+            new BloodShepherdProperties(), ThreadModel.PLATFORM);
+  }
+
+  @Test
+  public void receiversSyncedTogetherShouldEachKeepTheirOwnSyncState() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<?> firstSync = executor.submit(syncOf(FIRST_DEVICE));
+      Future<?> secondSync = executor.submit(syncOf(SECOND_DEVICE));
+      firstSync.get();
+      secondSync.get();
+    } finally {
+      executor.shutdownNow();
+    }
+
+    verify(firstReceiverPreferences).savePageCheckpoint("EGVData", 2L);
+    verify(secondReceiverPreferences).savePageCheckpoint("EGVData", 0L);
+    verify(firstReceiverPreferences).saveLastSyncTime(any(Instant.class));
+    verify(secondReceiverPreferences).saveLastSyncTime(any(Instant.class));
+    verify(preferences, never()).saveLastSyncTime(any(Instant.class));
+    verify(preferences, never()).savePageCheckpoint(anyString(), anyLong());
+  }
+
+  @Test
+  public void portOfAnotherReceiverShouldNotBeSynced() throws Exception {
+    receiverSync.sync(FIRST_DEVICE);
+    when(receiverFinder.findReceiverPort(SECOND_DEVICE)).thenReturn("ttyACM0");
+
+    try {
+      receiverSync.sync(SECOND_DEVICE);
+      fail("The second receiver shouldn't be synced on the port of the first one");
+    } catch (IllegalStateException e) {
+      assertThat(e.getMessage().contains("ttyACM0"), is(true));
+    }
+    verify(receiverFinder).invalidate(SECOND_DEVICE);
+    verify(secondReceiverPreferences, never()).saveLastSyncTime(any(Instant.class));
+  }
+
+  @Test
+  public void knownReceiverShouldNotHaveItsMetadataReadAgain() throws Exception {
+    ReceiverSimulator firstSession = new ReceiverSimulator().withSerialNumber("SM11111111").withGlucosePages(3, 38);
+    ReceiverSimulator secondSession = new ReceiverSimulator().withSerialNumber("SM11111111").withGlucosePages(3, 38);
+    when(receiverSessions.open("ttyACM0")).thenReturn(session(firstSession), session(secondSession));
+
+    receiverSync.sync(FIRST_DEVICE);
+    @SuppressWarnings("unchecked")
+    ArgumentCaptor<Map<String, String>> metadata = (ArgumentCaptor) ArgumentCaptor.forClass(Map.class);
+    verify(preferences).saveDeviceMetadata(eq("1-1"), metadata.capture());
+    when(preferences.getDeviceMetadata("1-1")).thenReturn(metadata.getValue());
+    receiverSync.sync(FIRST_DEVICE);
+
+    assertThat(secondSession.getCommands().count(ReceiverCommand.ReadFirmwareHeader), is(0));
+    assertThat(secondSession.getCommands().count(ReceiverCommand.ReadGlucoseUnit), is(0));
+    assertThat(secondSession.getPageRangeReads().contains(RecordType.ManufacturingData), is(true));
+    assertThat(secondSession.getPageReads().size(), is(firstSession.getPageReads().size() - 1));
+    verify(firstReceiverPreferences, times(2)).saveLastSyncTime(any(Instant.class));
+  }
+
+  private BloodShepherdPreferences receiverPreferences(String serialNumber) {
+    BloodShepherdPreferences receiverPreferences = mock(BloodShepherdPreferences.class);
+    when(receiverPreferences.getLastSyncTime()).thenReturn(Instant.EPOCH);
+    when(preferences.forReceiver(serialNumber)).thenReturn(receiverPreferences);
+    return receiverPreferences;
+  }
+
+  private Callable<Void> syncOf(final UsbDeviceIdentity device) {
+    return new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        receiverSync.sync(device);
+        return null;
+      }
+    };
+  }
+
+  private static ReceiverSession session(ReceiverSimulator receiver) {
+    return new ReceiverSession(receiver, new LittleEndianDataOutputFactory(),
+            new ResponseReader(new LittleEndianDataInputFactory()), Ticker.systemTicker());
+  }
+}
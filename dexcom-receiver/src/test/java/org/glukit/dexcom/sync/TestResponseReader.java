@@ -25,6 +25,7 @@ package org.glukit.dexcom.sync;
 
 import jssc.SerialPort;
 import org.glukit.dexcom.sync.responses.*;
+import org.glukit.dexcom.sync.transport.CorruptFrameException;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
@@ -76,6 +77,28 @@ public class TestResponseReader {
     assertThat(pageRangeResponse.getLastPage(), is(2L));
   }
 
+  @Test
+  public void noiseBeforeResponseShouldBeSkipped() throws Exception {
+    when(serialPort.readBytes(HEADER_SIZE)).thenReturn(fromHexString("FF 01 0E 00"));
+    when(serialPort.readBytes(1)).thenReturn(fromHexString("01"));
+    when(serialPort.readBytes(14 - HEADER_SIZE - TRAILER_SIZE)).thenReturn(fromHexString("01 00 00 00 02 00 00 00"));
+    when(serialPort.readBytes(TRAILER_SIZE)).thenReturn(fromHexString("97 11"));
+
+    ResponseReader responseReader = new ResponseReader(new LittleEndianDataInputFactory());
+    PageRangeResponse pageRangeResponse = responseReader.read(PageRangeResponse.class, this.serialPort);
+
+    assertThat(pageRangeResponse.getLastPage(), is(2L));
+  }
+
+  @Test(expected = CorruptFrameException.class)
+  public void badCrcShouldFailWithCorruptFrame() throws Exception {
+    when(serialPort.readBytes(HEADER_SIZE)).thenReturn(fromHexString("01 0E 00 01"));
+    when(serialPort.readBytes(14 - HEADER_SIZE - TRAILER_SIZE)).thenReturn(fromHexString("01 00 00 00 02 00 00 00"));
+    when(serialPort.readBytes(TRAILER_SIZE)).thenReturn(fromHexString("97 12"));
+
+    new ResponseReader(new LittleEndianDataInputFactory()).read(PageRangeResponse.class, this.serialPort);
+  }
+
   @Test
   public void readDatabasePagesShouldSucceed() throws Exception {
     when(serialPort.readBytes(HEADER_SIZE)).thenReturn(fromHexString("01 16 02 01"));
@@ -0,0 +1,188 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync;
+
+import com.google.common.base.Ticker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.glukit.dexcom.sync.SyncScheduler.State;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Unit test of {@link SyncScheduler}.
+ *
+ * @author alexandre.normand
+ */
+public class TestSyncScheduler {
+  private static final UsbDeviceIdentity DEVICE = new UsbDeviceIdentity((short) 0x22a3, (short) 0x0047, "1-1");
+  private static final long DEBOUNCE_MILLIS = 100;
+  private static final long MIN_INTERVAL_MILLIS = 600;
+  private static final long SYNC_TIMEOUT_MILLIS = 1000;
+
+  private ReceiverSync receiverSync;
+  private ScheduledExecutorService timer;
+  private ExecutorService syncExecutor;
+  private SyncScheduler syncScheduler;
+
+  @Before
+  public void setUp() throws Exception {
+    receiverSync = mock(ReceiverSync.class);
+    timer = Executors.newSingleThreadScheduledExecutor();
+    syncExecutor = Executors.newFixedThreadPool(2);
+    syncScheduler = new SyncScheduler(receiverSync, TimeUnit.MILLISECONDS.toNanos(DEBOUNCE_MILLIS),
+            TimeUnit.MILLISECONDS.toNanos(MIN_INTERVAL_MILLIS), TimeUnit.MILLISECONDS.toNanos(SYNC_TIMEOUT_MILLIS),
+            Ticker.systemTicker(), timer, syncExecutor);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    syncScheduler.shutdown();
+  }
+
+  @Test
+  public void flappingAttachesShouldOnlySyncOnce() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      syncScheduler.deviceAttached(DEVICE);
+      Thread.sleep(DEBOUNCE_MILLIS / 4);
+    }
+
+    verify(receiverSync, timeout(1000)).sync(DEVICE);
+    awaitState(State.SYNCED);
+    Thread.sleep(DEBOUNCE_MILLIS * 2);
+    verify(receiverSync, times(1)).sync(DEVICE);
+  }
+
+  @Test
+  public void detachShouldCancelThePendingSync() throws Exception {
+    syncScheduler.deviceAttached(DEVICE);
+    syncScheduler.deviceDetached(DEVICE);
+
+    Thread.sleep(DEBOUNCE_MILLIS * 3);
+    verify(receiverSync, never()).sync(DEVICE);
+    verify(receiverSync).stop(DEVICE);
+    assertThat(syncScheduler.getState(DEVICE), is(State.CANCELLED));
+  }
+
+  @Test
+  public void detachShouldInterruptTheRunningSync() throws Exception {
+    final CountDownLatch syncStarted = new CountDownLatch(1);
+    final CountDownLatch syncInterrupted = new CountDownLatch(1);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        syncStarted.countDown();
+        try {
+          Thread.sleep(10000);
+        } catch (InterruptedException e) {
+          syncInterrupted.countDown();
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted", e);
+        }
+        return null;
+      }
+    }).when(receiverSync).sync(DEVICE);
+
+    syncScheduler.deviceAttached(DEVICE);
+    assertThat(syncStarted.await(1, TimeUnit.SECONDS), is(true));
+    assertThat(syncScheduler.getState(DEVICE), is(State.SYNCING));
+    syncScheduler.deviceDetached(DEVICE);
+
+    assertThat(syncInterrupted.await(1, TimeUnit.SECONDS), is(true));
+    awaitState(State.CANCELLED);
+  }
+
+  @Test
+  public void syncRunningPastItsTimeoutShouldBeCancelledAndFail() throws Exception {
+    final CountDownLatch syncInterrupted = new CountDownLatch(1);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        try {
+          Thread.sleep(10000);
+        } catch (InterruptedException e) {
+          syncInterrupted.countDown();
+          throw new IOException("Interrupted", e);
+        }
+        return null;
+      }
+    }).when(receiverSync).sync(DEVICE);
+
+    syncScheduler.deviceAttached(DEVICE);
+
+    assertThat(syncInterrupted.await(SYNC_TIMEOUT_MILLIS * 3, TimeUnit.MILLISECONDS), is(true));
+    awaitState(State.FAILED);
+    verify(receiverSync, timeout(1000)).stop(DEVICE);
+  }
+
+  @Test
+  public void attachRightAfterASyncShouldWaitForTheMinimumInterval() throws Exception {
+    syncScheduler.deviceAttached(DEVICE);
+    verify(receiverSync, timeout(1000)).sync(DEVICE);
+    awaitState(State.SYNCED);
+
+    syncScheduler.deviceAttached(DEVICE);
+    Thread.sleep(DEBOUNCE_MILLIS * 2);
+    verify(receiverSync, times(1)).sync(DEVICE);
+    assertThat(syncScheduler.getState(DEVICE), is(State.PENDING));
+
+    verify(receiverSync, timeout(2000).times(2)).sync(DEVICE);
+  }
+
+  @Test
+  public void failedSyncShouldNotGetToTheUsbThread() throws Exception {
+    doThrow(new IllegalStateException("Receiver serial port can't be found")).when(receiverSync).sync(DEVICE);
+
+    syncScheduler.deviceAttached(DEVICE);
+
+    awaitState(State.FAILED);
+  }
+
+  private void awaitState(State state) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 2000;
+    while (syncScheduler.getState(DEVICE) != state && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(syncScheduler.getState(DEVICE), is(state));
+  }
+}
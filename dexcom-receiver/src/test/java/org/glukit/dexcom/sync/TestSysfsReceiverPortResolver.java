@@ -0,0 +1,120 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.IsNull.nullValue;
+
+/**
+ * Unit test of {@link SysfsReceiverPortResolver} against a fake sysfs tree.
+ *
+ * @author alexandre.normand
+ */
+public class TestSysfsReceiverPortResolver {
+  private static final UsbDeviceIdentity RECEIVER = new UsbDeviceIdentity((short) 8867, (short) 71, "SM123");
+
+  @Rule
+  public TemporaryFolder sysfsRoot = new TemporaryFolder();
+
+  private SysfsReceiverPortResolver resolver;
+
+  @Before
+  public void setup() throws Exception {
+    this.resolver = new SysfsReceiverPortResolver(sysfsRoot.getRoot(), new File("/dev"));
+  }
+
+  @Test
+  public void receiverTtyShouldBeResolved() throws Exception {
+    addDevice("1-1", "22a3", "0047", "SM123", "tty/ttyACM1");
+    addDevice("2-1", "2341", "0043", "ARDUINO", "tty/ttyACM0");
+
+    assertThat(resolver.resolvePorts(RECEIVER), equalTo(Arrays.asList("/dev/ttyACM1")));
+  }
+
+  @Test
+  public void olderKernelLayoutShouldBeSupported() throws Exception {
+    addDevice("1-1.4", "22a3", "0047", "SM123", "tty:ttyACM2");
+
+    assertThat(resolver.resolvePorts(RECEIVER), equalTo(Arrays.asList("/dev/ttyACM2")));
+  }
+
+  @Test
+  public void serialNumberShouldTellIdenticalDevicesApart() throws Exception {
+    addDevice("1-1", "22a3", "0047", "SM999", "tty/ttyACM0");
+    addDevice("1-2", "22a3", "0047", "SM123", "tty/ttyACM1");
+
+    assertThat(resolver.resolvePorts(RECEIVER), equalTo(Arrays.asList("/dev/ttyACM1")));
+  }
+
+  @Test
+  public void devicesShouldAllMatchWithoutSerialNumber() throws Exception {
+    addDevice("1-1", "22a3", "0047", "SM999", "tty/ttyACM0");
+    addDevice("1-2", "22a3", "0047", "SM123", "tty/ttyACM1");
+
+    List<String> ports = resolver.resolvePorts(new UsbDeviceIdentity((short) 8867, (short) 71, null));
+    assertThat(ports, equalTo(Arrays.asList("/dev/ttyACM0", "/dev/ttyACM1")));
+  }
+
+  @Test
+  public void deviceWithoutTtyShouldResolveToNothing() throws Exception {
+    addDevice("1-1", "22a3", "0047", "SM123", "driver");
+
+    assertThat(resolver.resolvePorts(RECEIVER), equalTo(Collections.<String>emptyList()));
+  }
+
+  @Test
+  public void missingSysfsShouldResolveToNull() throws Exception {
+    SysfsReceiverPortResolver noSysfs = new SysfsReceiverPortResolver(new File(sysfsRoot.getRoot(), "missing"),
+            new File("/dev"));
+
+    assertThat(noSysfs.resolvePorts(RECEIVER), is(nullValue()));
+  }
+
+  private void addDevice(String name, String vendorId, String productId, String serial, String ttyPath)
+          throws Exception {
+    File devices = new File(sysfsRoot.getRoot(), "bus/usb/devices");
+    File device = new File(devices, name);
+    new File(device, name + ":1.0/" + ttyPath).mkdirs();
+    // sysfs also lists the interfaces next to the devices
+    new File(devices, name + ":1.0").mkdirs();
+    Files.write(vendorId + "\n", new File(device, "idVendor"), Charsets.US_ASCII);
+    Files.write(productId + "\n", new File(device, "idProduct"), Charsets.US_ASCII);
+    Files.write(serial + "\n", new File(device, "serial"), Charsets.US_ASCII);
+  }
+}
@@ -0,0 +1,438 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync.tasks;
+
+import org.glukit.dexcom.sync.LittleEndianDataInputFactory;
+import org.glukit.dexcom.sync.LittleEndianDataOutputFactory;
+import org.glukit.dexcom.sync.ReceiverSession;
+import org.glukit.dexcom.sync.ReceiverSimulator;
+import org.glukit.dexcom.sync.ResponseReader;
+import org.glukit.dexcom.sync.SyncMetrics;
+import org.glukit.dexcom.sync.model.DatabaseReadRequestSpec;
+import org.glukit.dexcom.sync.model.DexcomSyncData;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.glukit.dexcom.sync.model.RecordType;
+import org.glukit.sync.api.Subscriber;
+import org.glukit.sync.api.Subscription;
+import org.junit.Before;
+import org.junit.Test;
+import org.threeten.bp.Instant;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.glukit.dexcom.sync.SyncMetrics.PAGE_CACHE_HITS;
+import static org.glukit.dexcom.sync.SyncMetrics.PAGE_CACHE_MISSES;
+import static org.glukit.dexcom.sync.SyncMetrics.PAGE_PREFETCHES;
+import static org.glukit.dexcom.sync.SyncMetrics.PAGE_READ_FAILURES;
+import static org.glukit.dexcom.sync.SyncMetrics.PAGE_READ_SPLITS;
+import static org.glukit.dexcom.sync.g4.DexcomG4Constants.DEXCOM_EPOCH;
+import static org.glukit.dexcom.sync.model.DatabaseReadRequestSpec.MAX_PAGES_PER_COMMAND;
+import static org.glukit.dexcom.sync.model.ReceiverCommand.Ack;
+import static org.glukit.dexcom.sync.model.ReceiverCommand.IncompletePacketReceived;
+import static org.glukit.dexcom.sync.model.ReceiverCommand.Nak;
+import static org.glukit.dexcom.sync.model.ReceiverCommand.ReceiverError;
+import static org.glukit.dexcom.sync.model.RecordType.EGVData;
+import static org.glukit.dexcom.sync.model.RecordType.ManufacturingData;
+import static org.glukit.dexcom.sync.model.RecordType.UserEventData;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit test of {@link FetchNewDataRunner} against a {@link ReceiverSimulator}.
+ *
+ * @author alexandre.normand
+ */
+public class TestFetchNewDataRunner {
+  private static final Map<RecordType, Long> NO_CHECKPOINTS = Collections.emptyMap();
+
+  private SyncMetrics syncMetrics;
+  private FetchNewDataRunner fetchNewDataRunner;
+  private ReceiverSimulator receiver;
+
+  @Before
+  public void setUp() throws Exception {
+    syncMetrics = new SyncMetrics();
+    fetchNewDataRunner = new FetchNewDataRunner(new LittleEndianDataOutputFactory(),
+            new LittleEndianDataInputFactory(), new ResponseReader(new LittleEndianDataInputFactory()), syncMetrics,
+            new SyncPlanner(), 1);
+    receiver = new ReceiverSimulator().withGlucosePages(6, 38).withUserEventPages(2, 25);
+  }
+
+  @Test
+  public void cleanSyncShouldReadEverything() throws Exception {
+    DexcomSyncData syncData = fetchNewDataRunner.fetchData(receiver, DEXCOM_EPOCH);
+
+    assertThat(syncData.getGlucoseReads().size(), is(receiver.getGlucoseRecordCount()));
+    assertThat(syncData.getUserEvents().size(), is(receiver.getUserEventRecordCount()));
+    assertThat(syncData.getManufacturingParameters().getSerialNumber(), is(ReceiverSimulator.SERIAL_NUMBER));
+  }
+
+  @Test
+  public void checkpointsShouldSkipPagesReadByThePreviousSync() throws Exception {
+    DexcomSyncData firstSync = fetchNewDataRunner.fetchData(receiver, DEXCOM_EPOCH);
+    assertThat(firstSync.getLastPagesRead().get(EGVData), is(5L));
+    receiver.getPageReads().clear();
+
+    DexcomSyncData secondSync = fetchNewDataRunner.fetchData(receiver, DEXCOM_EPOCH, firstSync.getLastPagesRead());
+
+    assertThat(receiver.getPageReads(), is((List<DatabaseReadRequestSpec>) ImmutableList.of(
+            new DatabaseReadRequestSpec(5, (byte) 1), new DatabaseReadRequestSpec(1, (byte) 1),
+            new DatabaseReadRequestSpec(0, (byte) 1))));
+    assertThat(secondSync.getGlucoseReads().size(), is(38));
+    assertThat(secondSync.getManufacturingParameters().getSerialNumber(), is(ReceiverSimulator.SERIAL_NUMBER));
+  }
+
+  @Test
+  public void backfillShouldHandOverTheMostRecentChunksFirst() throws Exception {
+    final List<DexcomSyncData> chunks = newArrayList();
+    DexcomSyncData syncData = fetchNewDataRunner.backfillData(receiver, DEXCOM_EPOCH, NO_CHECKPOINTS,
+            new SyncChunkListener() {
+              @Override
+              public void chunkRead(DexcomSyncData chunk) {
+                chunks.add(chunk);
+              }
+            });
+
+    assertThat(receiver.getPageReads(), is((List<DatabaseReadRequestSpec>) ImmutableList.of(
+            new DatabaseReadRequestSpec(0, (byte) 1), new DatabaseReadRequestSpec(2, (byte) 4),
+            new DatabaseReadRequestSpec(0, (byte) 2), new DatabaseReadRequestSpec(0, (byte) 2))));
+    assertThat(chunks.size(), is(3));
+    assertThat(chunks.get(0).getGlucoseReads().size(), is(4 * 38));
+    assertThat(chunks.get(0).getManufacturingParameters().getSerialNumber(), is(ReceiverSimulator.SERIAL_NUMBER));
+    assertThat(chunks.get(1).getUserEvents().size(), is(receiver.getUserEventRecordCount()));
+    assertThat(chunks.get(2).getGlucoseReads().size(), is(2 * 38));
+    assertThat(chunks.get(2).getSince(), is(DEXCOM_EPOCH));
+    assertThat(syncData.getGlucoseReads().size(), is(receiver.getGlucoseRecordCount()));
+    assertThat(syncData.getLastPagesRead().get(EGVData), is(5L));
+  }
+
+  @Test
+  public void nextChunkShouldBeRequestedBeforeTheCurrentOneIsHandedOver() throws Exception {
+    final List<Integer> pageReadsAtHandOver = newArrayList();
+    DexcomSyncData syncData = fetchNewDataRunner.backfillData(receiver, DEXCOM_EPOCH, NO_CHECKPOINTS,
+            new SyncChunkListener() {
+              @Override
+              public void chunkRead(DexcomSyncData chunk) {
+                pageReadsAtHandOver.add(receiver.getPageReads().size());
+              }
+            });
+
+    // Each chunk is handed over once the request of the next one is on the wire
+    assertThat(pageReadsAtHandOver, is((List<Integer>) ImmutableList.of(3, 4, 4)));
+    assertThat(syncMetrics.getCount(PAGE_PREFETCHES), is(3L));
+    assertThat(syncData.getGlucoseReads().size(), is(receiver.getGlucoseRecordCount()));
+    assertThat(syncData.getUserEvents().size(), is(receiver.getUserEventRecordCount()));
+  }
+
+  @Test
+  public void backfillShouldStopReadingPagesOlderThanTheLastSync() throws Exception {
+    final List<DexcomSyncData> chunks = newArrayList();
+    Instant since = DEXCOM_EPOCH.plusSeconds(ReceiverSimulator.FIRST_RECORD_SECONDS
+            + 200 * ReceiverSimulator.SECONDS_BETWEEN_RECORDS);
+    DexcomSyncData syncData = fetchNewDataRunner.backfillData(receiver, since, NO_CHECKPOINTS,
+            new SyncChunkListener() {
+              @Override
+              public void chunkRead(DexcomSyncData chunk) {
+                chunks.add(chunk);
+              }
+            });
+
+    assertThat(receiver.getPageReads(), is((List<DatabaseReadRequestSpec>) ImmutableList.of(
+            new DatabaseReadRequestSpec(0, (byte) 1), new DatabaseReadRequestSpec(2, (byte) 4),
+            new DatabaseReadRequestSpec(0, (byte) 2))));
+    assertThat(chunks.size(), is(1));
+    assertThat(chunks.get(0).getGlucoseReads().size(), is(receiver.getGlucoseRecordCount() - 201));
+    assertThat(syncData.getUserEvents().isEmpty(), is(true));
+  }
+
+  @Test
+  public void sessionShouldOnlyReadTheManufacturingDataOnce() throws Exception {
+    ReceiverSession session = new ReceiverSession(receiver, new LittleEndianDataOutputFactory(),
+            new ResponseReader(new LittleEndianDataInputFactory()), Ticker.systemTicker());
+
+    fetchNewDataRunner.fetchData(session, DEXCOM_EPOCH, NO_CHECKPOINTS);
+    assertThat(receiver.getPageRangeReads(), hasItem(ManufacturingData));
+    receiver.getPageRangeReads().clear();
+    DexcomSyncData syncData = fetchNewDataRunner.fetchData(session, DEXCOM_EPOCH, NO_CHECKPOINTS);
+
+    assertThat(receiver.getPageRangeReads(), is((List<RecordType>) ImmutableList.of(EGVData, UserEventData)));
+    assertThat(syncData.getManufacturingParameters().getSerialNumber(), is(ReceiverSimulator.SERIAL_NUMBER));
+    assertThat(session.isInUse(), is(false));
+  }
+
+  @Test
+  public void pagesReadAgainShouldOnlyBeDecodedOnce() throws Exception {
+    ReceiverSession session = newSession(receiver);
+    fetchNewDataRunner.readManufacturingParameters(session);
+
+    fetchNewDataRunner.fetchData(session, DEXCOM_EPOCH, NO_CHECKPOINTS);
+    DexcomSyncData syncData = fetchNewDataRunner.fetchData(session, DEXCOM_EPOCH, NO_CHECKPOINTS);
+
+    assertThat(syncData.getGlucoseReads().size(), is(receiver.getGlucoseRecordCount()));
+    assertThat(syncData.getUserEvents().size(), is(receiver.getUserEventRecordCount()));
+    assertThat(syncMetrics.getCount(PAGE_CACHE_MISSES), is(8L));
+    assertThat(syncMetrics.getCount(PAGE_CACHE_HITS), is(8L));
+  }
+
+  @Test
+  public void transientErrorsShouldResendTheSameRequest() throws Exception {
+    receiver.failPageReads(EGVData, Nak, Ack).failPageReads(UserEventData, IncompletePacketReceived);
+
+    DexcomSyncData syncData = fetchNewDataRunner.fetchData(receiver, DEXCOM_EPOCH);
+
+    assertThat(syncData.getGlucoseReads().size(), is(receiver.getGlucoseRecordCount()));
+    assertThat(syncData.getUserEvents().size(), is(receiver.getUserEventRecordCount()));
+    assertThat(syncMetrics.getRetryCount(Nak), is(1L));
+    assertThat(syncMetrics.getRetryCount("CorruptFrameException"), is(1L));
+    assertThat(syncMetrics.getRetryCount(IncompletePacketReceived), is(1L));
+    assertThat(syncMetrics.getCount(PAGE_READ_SPLITS), is(0L));
+  }
+
+  @Test
+  public void rejectedPageCountShouldFallBackToSmallerReads() throws Exception {
+    receiver.withMaxPagesPerRead(2);
+
+    DexcomSyncData syncData = fetchNewDataRunner.fetchData(receiver, DEXCOM_EPOCH);
+
+    assertThat(syncData.getGlucoseReads().size(), is(receiver.getGlucoseRecordCount()));
+    assertThat(receiver.getPageReads(), hasItem(new DatabaseReadRequestSpec(0, (byte) 2)));
+    assertThat(receiver.getPageReads(), hasItem(new DatabaseReadRequestSpec(2, (byte) 2)));
+    assertThat(syncMetrics.getCount(PAGE_READ_SPLITS), is(1L));
+  }
+
+  @Test
+  public void persistentErrorsShouldFallBackToSmallerReads() throws Exception {
+    // The first 4-page glucose read fails every attempt, its halves go through
+    receiver.failPageReads(EGVData, ReceiverError, ReceiverError, ReceiverError);
+
+    DexcomSyncData syncData = fetchNewDataRunner.fetchData(receiver, DEXCOM_EPOCH);
+
+    assertThat(syncData.getGlucoseReads().size(), is(receiver.getGlucoseRecordCount()));
+    assertThat(syncMetrics.getRetryCount(ReceiverError), is(2L));
+    assertThat(syncMetrics.getCount(PAGE_READ_SPLITS), is(1L));
+  }
+
+  @Test
+  public void probeShouldFindTheLargestPageCountTheFirmwareReads() throws Exception {
+    ReceiverSimulator largeReceiver = new ReceiverSimulator().withGlucosePages(20, 38).withMaxPagesPerRead(8);
+    ReceiverSession session = newSession(largeReceiver);
+
+    Byte pagesPerRead = fetchNewDataRunner.probePagesPerRead(session);
+    assertThat(pagesPerRead, is((byte) 8));
+    session.setPagesPerRead(pagesPerRead);
+    largeReceiver.getPageReads().clear();
+    DexcomSyncData syncData = fetchNewDataRunner.fetchData(session, DEXCOM_EPOCH, NO_CHECKPOINTS);
+
+    assertThat(syncData.getGlucoseReads().size(), is(largeReceiver.getGlucoseRecordCount()));
+    assertThat(largeReceiver.getPageReads(), hasItem(new DatabaseReadRequestSpec(8, (byte) 8)));
+    assertThat(largeReceiver.getPageReads(), hasItem(new DatabaseReadRequestSpec(16, (byte) 4)));
+    assertThat(syncMetrics.getCount(PAGE_READ_SPLITS), is(0L));
+  }
+
+  @Test
+  public void probeShouldNotTellWithoutEnoughPages() throws Exception {
+    assertThat(fetchNewDataRunner.probePagesPerRead(newSession(receiver)), is((Byte) null));
+    assertThat(receiver.getPageReads().isEmpty(), is(true));
+  }
+
+  @Test
+  public void probeShouldTakeAnyErrorAsTooLargeARead() throws Exception {
+    ReceiverSimulator largeReceiver = new ReceiverSimulator().withGlucosePages(20, 38).withMaxPagesPerRead(8)
+            .failPageReads(EGVData, Nak, Nak, Nak);
+
+    assertThat(fetchNewDataRunner.probePagesPerRead(newSession(largeReceiver)), is((byte) 8));
+    assertThat(largeReceiver.getPageReads().get(3), is(new DatabaseReadRequestSpec(0, (byte) 8)));
+  }
+
+  @Test
+  public void probeShouldFallBackToTheDefaultWhenEveryReadFails() throws Exception {
+    ReceiverSimulator largeReceiver = new ReceiverSimulator().withGlucosePages(20, 38)
+            .withMaxPagesPerRead(8).failPageReads(EGVData, Nak, Nak, Nak, ReceiverError, ReceiverError, ReceiverError);
+
+    assertThat(fetchNewDataRunner.probePagesPerRead(newSession(largeReceiver)), is(MAX_PAGES_PER_COMMAND));
+  }
+
+  @Test
+  public void probeShouldNotTellWithoutEnoughPagesForTheLargestRead() throws Exception {
+    ReceiverSimulator mediumReceiver = new ReceiverSimulator().withGlucosePages(10, 38);
+
+    assertThat(fetchNewDataRunner.probePagesPerRead(newSession(mediumReceiver)), is((Byte) null));
+    assertThat(mediumReceiver.getPageReads().isEmpty(), is(true));
+  }
+
+  @Test
+  public void unreadablePageShouldFailTheSync() throws Exception {
+    receiver.failPageReads(ManufacturingData, Nak, Nak, Nak);
+
+    try {
+      fetchNewDataRunner.fetchData(receiver, DEXCOM_EPOCH);
+      fail("The manufacturing page can't be read, the sync should fail");
+    } catch (RuntimeException e) {
+      assertThat(syncMetrics.getCount(PAGE_READ_FAILURES), is(1L));
+    }
+  }
+
+  @Test
+  public void asyncSyncShouldReadEverything() throws Exception {
+    SyncFuture future = fetchNewDataRunner.fetchDataAsync(newSession(receiver), DEXCOM_EPOCH, NO_CHECKPOINTS,
+            Deadline.after(1, TimeUnit.MINUTES));
+
+    DexcomSyncData syncData = future.get(10, TimeUnit.SECONDS);
+    assertThat(syncData.getGlucoseReads().size(), is(receiver.getGlucoseRecordCount()));
+    assertThat(syncData.getUserEvents().size(), is(receiver.getUserEventRecordCount()));
+    assertThat(syncData.getLastPagesRead().get(EGVData), is(5L));
+    assertThat(future.getPartialData().getGlucoseReads().size(), is(receiver.getGlucoseRecordCount()));
+  }
+
+  @Test
+  public void cancelledAsyncSyncShouldStopReadingPages() throws Exception {
+    final CountDownLatch firstPageRead = new CountDownLatch(1);
+    final CountDownLatch cancelled = new CountDownLatch(1);
+    ReceiverSimulator slowReceiver = new ReceiverSimulator() {
+      @Override
+      public synchronized void write(byte[] request) throws IOException {
+        super.write(request);
+        if (getPageReads().size() == 1 && firstPageRead.getCount() > 0) {
+          firstPageRead.countDown();
+          Uninterruptibles.awaitUninterruptibly(cancelled);
+        }
+      }
+    }.withGlucosePages(6, 38);
+    ReceiverSession session = newSession(slowReceiver);
+
+    SyncFuture future = fetchNewDataRunner.fetchDataAsync(session, DEXCOM_EPOCH, NO_CHECKPOINTS,
+            Deadline.after(1, TimeUnit.MINUTES));
+    assertThat(firstPageRead.await(10, TimeUnit.SECONDS), is(true));
+    future.cancel(true);
+    cancelled.countDown();
+
+    awaitReleased(session);
+    assertThat(future.isCancelled(), is(true));
+    assertThat(slowReceiver.getPageReads().size(), is(1));
+    assertThat(future.getPartialData().getGlucoseReads().size(), is(4 * 38));
+  }
+
+  @Test
+  public void asyncSyncPastItsDeadlineShouldKeepWhatWasRead() throws Exception {
+    // Each page read takes 400 ms so the deadline passes after the second glucose read and the user event read
+    // sent ahead of it
+    Ticker ticker = new Ticker() {
+      @Override
+      public long read() {
+        return TimeUnit.MILLISECONDS.toNanos(400 * receiver.getPageReads().size());
+      }
+    };
+
+    SyncFuture future = fetchNewDataRunner.fetchDataAsync(newSession(receiver), DEXCOM_EPOCH, NO_CHECKPOINTS,
+            Deadline.after(1000, TimeUnit.MILLISECONDS, ticker));
+
+    try {
+      future.get(10, TimeUnit.SECONDS);
+      fail("The sync ran past its deadline, it should fail");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause() instanceof TimeoutException, is(true));
+    }
+    DexcomSyncData partialData = future.getPartialData();
+    assertThat(partialData.getGlucoseReads().size(), is(receiver.getGlucoseRecordCount()));
+    assertThat(partialData.getUserEvents().isEmpty(), is(true));
+    assertThat(partialData.getLastPagesRead().get(EGVData), is(5L));
+    assertThat(partialData.getLastPagesRead().containsKey(UserEventData), is(false));
+    assertThat(partialData.getUpdateTime(), is(DEXCOM_EPOCH));
+  }
+
+  @Test
+  public void publisherShouldOnlyReadAheadOfTheRequestedChunks() throws Exception {
+    final List<DexcomSyncData> chunks = newArrayList();
+    final CountDownLatch completed = new CountDownLatch(1);
+    final Subscription[] subscription = new Subscription[1];
+    RecordPublisher publisher = fetchNewDataRunner.publishData(newSession(receiver), DEXCOM_EPOCH, NO_CHECKPOINTS);
+
+    publisher.subscribe(new Subscriber<DexcomSyncData>() {
+      @Override
+      public void onSubscribe(Subscription s) {
+        subscription[0] = s;
+        s.request(1);
+      }
+
+      @Override
+      public synchronized void onNext(DexcomSyncData chunk) {
+        chunks.add(chunk);
+      }
+
+      @Override
+      public void onError(Throwable throwable) {
+      }
+
+      @Override
+      public void onComplete() {
+        completed.countDown();
+      }
+    });
+
+    // The reads stop after the chunk that comes after the one requested, with the request of the next one sent ahead
+    long timeoutMillis = 10000;
+    while (receiver.getPageReads().size() < 4 && timeoutMillis > 0) {
+      Thread.sleep(10);
+      timeoutMillis -= 10;
+    }
+    Thread.sleep(100);
+    assertThat(receiver.getPageReads().size(), is(4));
+    assertThat(completed.getCount(), is(1L));
+
+    subscription[0].request(Long.MAX_VALUE);
+    assertThat(completed.await(10, TimeUnit.SECONDS), is(true));
+    assertThat(chunks.size(), is(3));
+    DexcomSyncData syncData = publisher.getResult().get();
+    assertThat(syncData.getLastPagesRead().get(EGVData), is(5L));
+    assertThat(syncData.getGlucoseReads().size(), is(4 * 38));
+    assertThat(syncData.getUserEvents().isEmpty(), is(true));
+  }
+
+  private static ReceiverSession newSession(ReceiverSimulator receiver) {
+    return new ReceiverSession(receiver, new LittleEndianDataOutputFactory(),
+            new ResponseReader(new LittleEndianDataInputFactory()), Ticker.systemTicker());
+  }
+
+  private static void awaitReleased(ReceiverSession session) throws InterruptedException {
+    long timeoutMillis = 10000;
+    while (session.isInUse() && timeoutMillis > 0) {
+      Thread.sleep(10);
+      timeoutMillis -= 10;
+    }
+    assertThat(session.isInUse(), is(false));
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync.tasks;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import org.glukit.dexcom.sync.LittleEndianDataInputFactory;
+import org.glukit.dexcom.sync.LittleEndianDataOutputFactory;
+import org.glukit.dexcom.sync.ReceiverSession;
+import org.glukit.dexcom.sync.ReceiverSimulator;
+import org.glukit.dexcom.sync.ResponseReader;
+import org.glukit.dexcom.sync.SyncMetrics;
+import org.glukit.dexcom.sync.model.DatabaseReadRequestSpec;
+import org.glukit.dexcom.sync.model.DexcomSyncData;
+import org.junit.Before;
+import org.junit.Test;
+import org.threeten.bp.Clock;
+import org.threeten.bp.Instant;
+import org.threeten.bp.ZoneId;
+import org.threeten.bp.ZoneOffset;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.glukit.dexcom.sync.ReceiverSimulator.getGlucoseReadSeconds;
+import static org.glukit.dexcom.sync.g4.DexcomG4Constants.DEXCOM_EPOCH;
+import static org.glukit.dexcom.sync.model.RecordType.EGVData;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Unit test of {@link LiveTail} against a {@link ReceiverSimulator}.
+ *
+ * @author alexandre.normand
+ */
+public class TestLiveTail {
+  private static final int RECORDS_PER_PAGE = 38;
+
+  private final List<DexcomSyncData> chunks = newArrayList();
+  private final CountDownLatch chunkRead = new CountDownLatch(1);
+  private final SyncChunkListener listener = new SyncChunkListener() {
+    @Override
+    public synchronized void chunkRead(DexcomSyncData chunk) {
+      chunks.add(chunk);
+      chunkRead.countDown();
+    }
+  };
+  private ReceiverSimulator receiver;
+  private MutableClock clock;
+  private LiveTail liveTail;
+
+  @Before
+  public void setUp() throws Exception {
+    FetchNewDataRunner fetchNewDataRunner = new FetchNewDataRunner(new LittleEndianDataOutputFactory(),
+            new LittleEndianDataInputFactory(), new ResponseReader(new LittleEndianDataInputFactory()),
+            new SyncMetrics(), new SyncPlanner(), 1);
+    receiver = new ReceiverSimulator().withGlucosePages(2, RECORDS_PER_PAGE);
+    DexcomSyncData syncedData = fetchNewDataRunner.fetchData(receiver, DEXCOM_EPOCH);
+    receiver.getPageReads().clear();
+    receiver.getPageRangeReads().clear();
+
+    clock = new MutableClock(readTime(2 * RECORDS_PER_PAGE - 1).plusSeconds(60));
+    liveTail = new LiveTail(fetchNewDataRunner, new ReceiverSession(receiver, new LittleEndianDataOutputFactory(),
+            new ResponseReader(new LittleEndianDataInputFactory()), Ticker.systemTicker()), DEXCOM_EPOCH, syncedData,
+            listener, clock);
+  }
+
+  @Test
+  public void pollShouldOnlyReadTheRangeAndTheLastPage() throws Exception {
+    long delayMillis = liveTail.poll();
+
+    assertThat(chunks.isEmpty(), is(true));
+    assertThat(receiver.getPageRangeReads(), equalTo((List) ImmutableList.of(EGVData)));
+    assertThat(receiver.getPageReads(), equalTo((List) ImmutableList.of(new DatabaseReadRequestSpec(1, (byte) 1))));
+    // Next read is due 300 seconds after the last one, we're 60 seconds in
+    assertThat(delayMillis, is(TimeUnit.SECONDS.toMillis(300 - 60 + LiveTail.GRACE_SECONDS)));
+  }
+
+  @Test
+  public void newReadShouldBeHandedOverWithTheNextPollAlignedOnIt() throws Exception {
+    receiver.appendGlucoseReads(1);
+    clock.instant = readTime(2 * RECORDS_PER_PAGE).plusSeconds(20);
+
+    long delayMillis = liveTail.poll();
+
+    assertThat(chunks.size(), is(1));
+    assertThat(chunks.get(0).getGlucoseReads().size(), is(1));
+    assertThat(chunks.get(0).getGlucoseReads().get(0).getInternalSecondsSinceDexcomEpoch(),
+            is(getGlucoseReadSeconds(2 * RECORDS_PER_PAGE)));
+    assertThat(chunks.get(0).getManufacturingParameters().getSerialNumber(), is(ReceiverSimulator.SERIAL_NUMBER));
+    assertThat(chunks.get(0).getLastPagesRead().get(EGVData), is(2L));
+    // The read went on a new page, the end of the previous page is read again in case it got more reads
+    assertThat(receiver.getPageReads(), equalTo((List) ImmutableList.of(new DatabaseReadRequestSpec(1, (byte) 2))));
+    // It showed up 20 seconds after its timestamp, the next one should as well
+    assertThat(delayMillis, is(TimeUnit.SECONDS.toMillis(300 + LiveTail.GRACE_SECONDS)));
+    assertThat(liveTail.getNextReadExpectedAt(), equalTo(readTime(2 * RECORDS_PER_PAGE + 1).plusSeconds(20)));
+  }
+
+  @Test
+  public void lateReadShouldBeCheckedAgainShortly() throws Exception {
+    clock.instant = readTime(2 * RECORDS_PER_PAGE).plusSeconds(LiveTail.GRACE_SECONDS + 1);
+
+    assertThat(liveTail.poll(), is(TimeUnit.SECONDS.toMillis(LiveTail.RETRY_SECONDS)));
+    assertThat(chunks.isEmpty(), is(true));
+  }
+
+  @Test
+  public void missedReadsShouldFallBackToTheCadence() throws Exception {
+    clock.instant = readTime(2 * RECORDS_PER_PAGE + 3);
+
+    assertThat(liveTail.poll(), is(TimeUnit.SECONDS.toMillis(ReceiverSimulator.SECONDS_BETWEEN_RECORDS)));
+    assertThat(liveTail.getCadenceSeconds(), is(ReceiverSimulator.SECONDS_BETWEEN_RECORDS));
+  }
+
+  @Test
+  public void startedTailShouldPollUntilClosed() throws Exception {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    try {
+      receiver.appendGlucoseReads(2);
+      liveTail.start(scheduler);
+
+      assertThat(chunkRead.await(5, TimeUnit.SECONDS), is(true));
+      assertThat(chunks.get(0).getGlucoseReads().size(), is(2));
+      liveTail.close();
+      assertThat(liveTail.isClosed(), is(true));
+    } finally {
+      scheduler.shutdownNow();
+    }
+  }
+
+  private static Instant readTime(int index) {
+    return DEXCOM_EPOCH.plusSeconds(getGlucoseReadSeconds(index));
+  }
+
+  private static class MutableClock extends Clock {
+    private Instant instant;
+
+    private MutableClock(Instant instant) {
+      this.instant = instant;
+    }
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      return this;
+    }
+
+    @Override
+    public Instant instant() {
+      return instant;
+    }
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync.tasks;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.glukit.dexcom.sync.model.DatabaseReadRequestSpec;
+import org.glukit.dexcom.sync.model.PageRange;
+import org.glukit.dexcom.sync.model.RecordType;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.glukit.dexcom.sync.model.RecordType.EGVData;
+import static org.glukit.dexcom.sync.model.RecordType.ManufacturingData;
+import static org.glukit.dexcom.sync.model.RecordType.UserEventData;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Unit test of {@link SyncPlanner}.
+ *
+ * @author alexandre.normand
+ */
+public class TestSyncPlanner {
+  private static final Map<RecordType, Long> NO_CHECKPOINTS = Collections.emptyMap();
+  private static final Map<RecordType, PageRange> PAGE_RANGES = ImmutableMap.of(
+          ManufacturingData, new PageRange(0, 2),
+          EGVData, new PageRange(10, 19),
+          UserEventData, new PageRange(3, 4));
+
+  @Test
+  public void glucoseReadsShouldBePlannedFirst() throws Exception {
+    SyncPlan plan = new SyncPlanner().plan(PAGE_RANGES, NO_CHECKPOINTS);
+
+    assertThat(specsOf(plan), equalTo((List<String>) ImmutableList.of(
+            "EGVData 10+4", "EGVData 14+4", "EGVData 18+2", "UserEventData 3+2", "ManufacturingData 2+1")));
+    assertThat(plan.getSkippedPageCount(), is(2L));
+  }
+
+  @Test
+  public void checkpointsShouldSkipPagesAlreadyRead() throws Exception {
+    SyncPlan plan = new SyncPlanner().plan(PAGE_RANGES, ImmutableMap.of(EGVData, 17L, UserEventData, 4L));
+
+    assertThat(specsOf(plan), equalTo((List<String>) ImmutableList.of(
+            "EGVData 17+3", "UserEventData 4+1", "ManufacturingData 2+1")));
+    assertThat(plan.getSkippedPageCount(), is(7L + 1L + 2L));
+    assertThat(plan.getLastPages(), equalTo((Map<RecordType, Long>) ImmutableMap.of(EGVData, 19L,
+            UserEventData, 4L, ManufacturingData, 2L)));
+  }
+
+  @Test
+  public void checkpointOutOfRangeShouldBeIgnored() throws Exception {
+    SyncPlan plan = new SyncPlanner(ImmutableList.of(EGVData)).plan(PAGE_RANGES, ImmutableMap.of(EGVData, 42L));
+
+    assertThat(specsOf(plan), equalTo((List<String>) ImmutableList.of("EGVData 10+4", "EGVData 14+4",
+            "EGVData 18+2")));
+  }
+
+  @Test
+  public void newestFirstShouldReadManufacturingDataThenAlternateTypes() throws Exception {
+    SyncPlan plan = new SyncPlanner().planNewestFirst(PAGE_RANGES, ImmutableMap.of(EGVData, 12L));
+
+    assertThat(specsOf(plan), equalTo((List<String>) ImmutableList.of(
+            "ManufacturingData 2+1", "EGVData 16+4", "UserEventData 3+2", "EGVData 12+4")));
+    assertThat(plan.getSkippedPageCount(), is(2L + 2L));
+  }
+
+  @Test
+  public void newestFirstShouldReadTheSameManufacturingPagesAsForward() throws Exception {
+    SyncPlanner planner = new SyncPlanner(ImmutableList.of(ManufacturingData));
+
+    assertThat(specsOf(planner.planNewestFirst(PAGE_RANGES, NO_CHECKPOINTS)),
+            equalTo(specsOf(planner.plan(PAGE_RANGES, NO_CHECKPOINTS))));
+    assertThat(specsOf(planner.planNewestFirst(PAGE_RANGES, NO_CHECKPOINTS)),
+            equalTo((List<String>) ImmutableList.of("ManufacturingData 2+1")));
+  }
+
+  @Test
+  public void emptyRangesShouldNotBeRead() throws Exception {
+    SyncPlan plan = new SyncPlanner().plan(ImmutableMap.of(EGVData, new PageRange(PageRange.NO_PAGE,
+            PageRange.NO_PAGE)), NO_CHECKPOINTS);
+
+    assertThat(plan.getReads().isEmpty(), is(true));
+    assertThat(plan.getLastPages().isEmpty(), is(true));
+  }
+
+  @Test
+  public void costShouldAddUpAcrossReads() throws Exception {
+    SyncPlan plan = new SyncPlanner().plan(PAGE_RANGES, NO_CHECKPOINTS);
+
+    long expectedBytes = 0;
+    for (PlannedRead read : plan.getReads()) {
+      // Request, response header and trailer plus the pages
+      assertThat(read.getEstimatedBytes(), is(12L + 6L + read.getReadRequestSpec().getNumberOfPages() * 528L));
+      expectedBytes += read.getEstimatedBytes();
+    }
+    assertThat(plan.getEstimatedBytes(), is(expectedBytes));
+    assertThat(plan.getPageCount(), is(13L));
+  }
+
+  private static List<String> specsOf(SyncPlan plan) {
+    ImmutableList.Builder<String> specs = ImmutableList.builder();
+    for (PlannedRead read : plan.getReads()) {
+      DatabaseReadRequestSpec spec = read.getReadRequestSpec();
+      specs.add(read.getRecordType() + " " + spec.getStartPage() + "+" + spec.getNumberOfPages());
+    }
+    return specs.build();
+  }
+}
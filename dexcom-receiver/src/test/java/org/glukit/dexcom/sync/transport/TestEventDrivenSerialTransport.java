@@ -0,0 +1,218 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync.transport;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import jssc.SerialPort;
+import jssc.SerialPortEvent;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.glukit.dexcom.sync.DecodingUtils.fromHexString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test of {@link EventDrivenSerialTransport}.
+ *
+ * @author alexandre.normand
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class TestEventDrivenSerialTransport {
+  private static final byte[] PAGE_RANGE_FRAME = fromHexString("01 0E 00 01 01 00 00 00 02 00 00 00 97 11");
+  private static final byte[] ACK_FRAME = fromHexString("01 06 00 01 35 D4");
+
+  @Mock
+  SerialPort serialPort;
+
+  private EventDrivenSerialTransport transport;
+
+  @Before
+  public void setUp() throws Exception {
+    when(serialPort.getPortName()).thenReturn("/dev/ttyACM0");
+    transport = new EventDrivenSerialTransport(serialPort, 32, 200);
+  }
+
+  @Test
+  public void frameReceivedInPiecesShouldCompleteOnceWhole() throws Exception {
+    ListenableFuture<byte[]> frame = transport.readFrame();
+
+    transport.onBytesReceived(Arrays.copyOfRange(PAGE_RANGE_FRAME, 0, 3));
+    transport.onBytesReceived(Arrays.copyOfRange(PAGE_RANGE_FRAME, 3, 10));
+    assertThat(frame.isDone(), is(false));
+    transport.onBytesReceived(Arrays.copyOfRange(PAGE_RANGE_FRAME, 10, PAGE_RANGE_FRAME.length));
+
+    assertThat(frame.get(0, TimeUnit.SECONDS), equalTo(PAGE_RANGE_FRAME));
+  }
+
+  @Test
+  public void framesShouldBeHandedOutInOrder() throws Exception {
+    ListenableFuture<byte[]> first = transport.readFrame();
+    ListenableFuture<byte[]> second = transport.readFrame();
+
+    transport.onBytesReceived(concat(ACK_FRAME, PAGE_RANGE_FRAME));
+
+    assertThat(first.get(0, TimeUnit.SECONDS), equalTo(ACK_FRAME));
+    assertThat(second.get(0, TimeUnit.SECONDS), equalTo(PAGE_RANGE_FRAME));
+  }
+
+  @Test
+  public void bytesReceivedBeforeTheReadShouldBeKept() throws Exception {
+    transport.onBytesReceived(ACK_FRAME);
+
+    assertThat(transport.readFrame().get(0, TimeUnit.SECONDS), equalTo(ACK_FRAME));
+  }
+
+  @Test
+  public void framesShouldWrapAroundTheBuffer() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      ListenableFuture<byte[]> frame = transport.readFrame();
+      transport.onBytesReceived(PAGE_RANGE_FRAME);
+      assertThat(frame.get(0, TimeUnit.SECONDS), equalTo(PAGE_RANGE_FRAME));
+    }
+  }
+
+  @Test
+  public void noiseBeforeTheFrameShouldBeSkipped() throws Exception {
+    ListenableFuture<byte[]> frame = transport.readFrame();
+    transport.onBytesReceived(fromHexString("FF 0E 00 FF 7F"));
+    assertThat(frame.isDone(), is(false));
+
+    transport.onBytesReceived(ACK_FRAME);
+    assertThat(frame.get(0, TimeUnit.SECONDS), equalTo(ACK_FRAME));
+  }
+
+  @Test
+  public void badCrcShouldFailOnlyThatFrame() throws Exception {
+    ListenableFuture<byte[]> corrupted = transport.readFrame();
+    ListenableFuture<byte[]> next = transport.readFrame();
+    transport.onBytesReceived(concat(fromHexString("01 06 00 01 35 D5"), ACK_FRAME));
+
+    assertThat(causeOf(corrupted), instanceOf(CorruptFrameException.class));
+    assertThat(next.get(0, TimeUnit.SECONDS), equalTo(ACK_FRAME));
+  }
+
+  @Test
+  public void overflowShouldFailPendingReads() throws Exception {
+    ListenableFuture<byte[]> frame = transport.readFrame();
+    transport.onBytesReceived(new byte[40]);
+
+    assertThat(causeOf(frame), instanceOf(IOException.class));
+  }
+
+  @Test
+  public void closeShouldFailPendingReads() throws Exception {
+    ListenableFuture<byte[]> frame = transport.readFrame();
+    transport.close();
+
+    assertThat(causeOf(frame), instanceOf(IOException.class));
+    assertThat(causeOf(transport.readFrame()), instanceOf(IOException.class));
+  }
+
+  @Test
+  public void blockingReadShouldBeServedFromTheBuffer() throws Exception {
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(20);
+        } catch (InterruptedException e) {
+          return;
+        }
+        transport.onBytesReceived(PAGE_RANGE_FRAME);
+      }
+    }).start();
+
+    assertThat(transport.read(4), equalTo(Arrays.copyOfRange(PAGE_RANGE_FRAME, 0, 4)));
+    assertThat(transport.read(10), equalTo(Arrays.copyOfRange(PAGE_RANGE_FRAME, 4, 14)));
+  }
+
+  @Test(expected = IOException.class)
+  public void blockingReadShouldTimeOut() throws Exception {
+    transport.onBytesReceived(fromHexString("01 0E"));
+    transport.read(4);
+  }
+
+  @Test
+  public void frameShouldTimeOutLikeABlockingRead() throws Exception {
+    ListenableFuture<byte[]> frame = transport.readFrame();
+    ListenableFuture<byte[]> next = transport.readFrame();
+    transport.onBytesReceived(fromHexString("01 0E"));
+
+    assertThat(causeOf(frame, 5), instanceOf(IOException.class));
+    assertThat(causeOf(next, 5), instanceOf(IOException.class));
+  }
+
+  @Test
+  public void frameReceivedInTimeShouldNotTimeOut() throws Exception {
+    ListenableFuture<byte[]> frame = transport.readFrame();
+    transport.onBytesReceived(ACK_FRAME);
+    Thread.sleep(400);
+
+    assertThat(frame.get(0, TimeUnit.SECONDS), equalTo(ACK_FRAME));
+  }
+
+  @Test
+  public void rxcharEventShouldReadTheAvailableBytes() throws Exception {
+    when(serialPort.readBytes(ACK_FRAME.length)).thenReturn(ACK_FRAME);
+    ListenableFuture<byte[]> frame = transport.readFrame();
+
+    transport.serialEvent(new SerialPortEvent("/dev/ttyACM0", SerialPortEvent.RXCHAR, ACK_FRAME.length));
+
+    verify(serialPort).readBytes(ACK_FRAME.length);
+    assertThat(frame.get(0, TimeUnit.SECONDS), equalTo(ACK_FRAME));
+  }
+
+  private static Throwable causeOf(ListenableFuture<byte[]> frame) throws Exception {
+    return causeOf(frame, 0);
+  }
+
+  private static Throwable causeOf(ListenableFuture<byte[]> frame, long timeoutSeconds) throws Exception {
+    try {
+      frame.get(timeoutSeconds, TimeUnit.SECONDS);
+      throw new AssertionError("Frame should have failed");
+    } catch (ExecutionException e) {
+      return e.getCause();
+    }
+  }
+
+  private static byte[] concat(byte[] first, byte[] second) {
+    byte[] bytes = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, bytes, first.length, second.length);
+    return bytes;
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync.transport;
+
+import org.glukit.dexcom.sync.LittleEndianDataInputFactory;
+import org.glukit.dexcom.sync.ResponseReader;
+import org.glukit.dexcom.sync.responses.PageRangeResponse;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.util.concurrent.TimeUnit;
+
+import static org.glukit.dexcom.sync.DecodingUtils.fromHexString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Unit test of {@link FileChannelSerialTransport}.
+ *
+ * @author alexandre.normand
+ */
+public class TestFileChannelSerialTransport {
+  private static final byte[] PAGE_RANGE_FRAME = fromHexString("01 0E 00 01 01 00 00 00 02 00 00 00 97 11");
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void wholeFrameShouldBeReadWithASingleChannelRead() throws Exception {
+    Pipe pipe = Pipe.open();
+    FileChannelSerialTransport transport = new FileChannelSerialTransport("pipe", pipe.source(), pipe.sink(),
+            pipe.source());
+    pipe.sink().write(ByteBuffer.wrap(PAGE_RANGE_FRAME));
+
+    PageRangeResponse response = new ResponseReader(new LittleEndianDataInputFactory())
+            .read(PageRangeResponse.class, transport);
+
+    assertThat(response.getFirstPage(), is(1L));
+    assertThat(response.getLastPage(), is(2L));
+    assertThat(transport.getReadCallCount(), is(1L));
+  }
+
+  @Test
+  public void frameArrivingInPiecesShouldBeReassembled() throws Exception {
+    final Pipe pipe = Pipe.open();
+    FileChannelSerialTransport transport = new FileChannelSerialTransport("pipe", pipe.source(), pipe.sink(),
+            pipe.source());
+    Thread writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          for (byte b : PAGE_RANGE_FRAME) {
+            pipe.sink().write(ByteBuffer.wrap(new byte[]{b}));
+            Thread.sleep(5);
+          }
+        } catch (Exception e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    });
+    writer.start();
+
+    PageRangeResponse response = new ResponseReader(new LittleEndianDataInputFactory())
+            .read(PageRangeResponse.class, transport);
+    writer.join();
+
+    assertThat(response.getLastPage(), is(2L));
+  }
+
+  @Test
+  public void writesShouldReachTheChannel() throws Exception {
+    Pipe pipe = Pipe.open();
+    FileChannelSerialTransport transport = new FileChannelSerialTransport("pipe", pipe.source(), pipe.sink(),
+            pipe.sink());
+    transport.write(PAGE_RANGE_FRAME);
+    transport.close();
+
+    ByteBuffer received = ByteBuffer.allocate(PAGE_RANGE_FRAME.length);
+    while (received.hasRemaining() && pipe.source().read(received) >= 0) {
+    }
+    assertThat(received.array(), equalTo(PAGE_RANGE_FRAME));
+  }
+
+  @Test(expected = EOFException.class)
+  public void closedChannelShouldFailReads() throws Exception {
+    Pipe pipe = Pipe.open();
+    FileChannelSerialTransport transport = new FileChannelSerialTransport("pipe", pipe.source(), pipe.sink(),
+            pipe.source());
+    pipe.sink().write(ByteBuffer.wrap(new byte[]{1, 2}));
+    pipe.sink().close();
+
+    transport.read(4);
+  }
+
+  /**
+   * Runs against a real pseudo-terminal pair when socat is installed.
+   */
+  @Test
+  public void frameShouldBeReadFromPseudoTerminal() throws Exception {
+    File receiverSide = new File(folder.getRoot(), "receiver");
+    File hostSide = new File(folder.getRoot(), "host");
+    Process socat;
+    try {
+      socat = new ProcessBuilder("socat", "pty,raw,echo=0,link=" + hostSide, "pty,raw,echo=0,link=" + receiverSide)
+              .start();
+    } catch (Exception e) {
+      Assume.assumeNoException(e);
+      return;
+    }
+
+    try {
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+      while (!(hostSide.exists() && receiverSide.exists()) && System.nanoTime() < deadline) {
+        Thread.sleep(50);
+      }
+      Assume.assumeTrue(hostSide.exists() && receiverSide.exists());
+
+      FileChannelSerialTransport transport = FileChannelSerialTransport.open(hostSide.getPath());
+      RandomAccessFile receiver = new RandomAccessFile(receiverSide, "rw");
+      try {
+        byte[] ping = fromHexString("01 06 00 0A 5E 65");
+        transport.write(ping);
+        byte[] received = new byte[ping.length];
+        receiver.readFully(received);
+        assertThat(received, equalTo(ping));
+
+        receiver.write(PAGE_RANGE_FRAME);
+        PageRangeResponse response = new ResponseReader(new LittleEndianDataInputFactory())
+                .read(PageRangeResponse.class, transport);
+        assertThat(response.getLastPage(), is(2L));
+      } finally {
+        receiver.close();
+        transport.close();
+      }
+    } finally {
+      socat.destroy();
+    }
+  }
+}
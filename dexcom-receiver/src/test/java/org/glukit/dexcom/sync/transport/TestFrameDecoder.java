@@ -0,0 +1,131 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2013 Alexandre Normand
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.glukit.dexcom.sync.transport;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.glukit.dexcom.sync.DecodingUtils.fromHexString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit test of {@link FrameDecoder}.
+ *
+ * @author alexandre.normand
+ */
+public class TestFrameDecoder {
+  private static final byte[] PAGE_RANGE_FRAME = fromHexString("01 0E 00 01 01 00 00 00 02 00 00 00 97 11");
+  private static final byte[] ACK_FRAME = fromHexString("01 06 00 01 35 D4");
+
+  @Test
+  public void frameShouldBeDecodedInThreeSteps() throws Exception {
+    FrameDecoder decoder = new FrameDecoder();
+
+    assertThat(decoder.bytesNeeded(), is(4));
+    assertThat(decoder.feed(Arrays.copyOfRange(PAGE_RANGE_FRAME, 0, 4)), nullValue());
+    assertThat(decoder.bytesNeeded(), is(8));
+    assertThat(decoder.feed(Arrays.copyOfRange(PAGE_RANGE_FRAME, 4, 12)), nullValue());
+    assertThat(decoder.bytesNeeded(), is(2));
+    assertThat(decoder.feed(Arrays.copyOfRange(PAGE_RANGE_FRAME, 12, 14)), equalTo(PAGE_RANGE_FRAME));
+    assertThat(decoder.bytesNeeded(), is(4));
+  }
+
+  @Test
+  public void frameWithoutPayloadShouldGoStraightToTrailer() throws Exception {
+    FrameDecoder decoder = new FrameDecoder();
+
+    decoder.feed(Arrays.copyOfRange(ACK_FRAME, 0, 4));
+    assertThat(decoder.bytesNeeded(), is(2));
+    assertThat(decoder.feed(Arrays.copyOfRange(ACK_FRAME, 4, 6)), equalTo(ACK_FRAME));
+  }
+
+  @Test
+  public void frameFedByteByByteShouldBeDecoded() throws Exception {
+    assertThat(feedByteByByte(new FrameDecoder(), PAGE_RANGE_FRAME), equalTo(PAGE_RANGE_FRAME));
+  }
+
+  @Test
+  public void noiseShouldBeSkippedUntilTheNextStartOfFrame() throws Exception {
+    FrameDecoder decoder = new FrameDecoder();
+
+    // Garbage, a stray SOF with an impossible size, a SOF followed by an unknown command and then the real frame
+    byte[] noisy = fromHexString("FF 00 01 FF FF 01 01 0E 00 7F");
+    assertThat(feedByteByByte(decoder, concat(noisy, PAGE_RANGE_FRAME)), equalTo(PAGE_RANGE_FRAME));
+    assertThat(decoder.getSkippedByteCount(), is((long) noisy.length));
+  }
+
+  @Test
+  public void startOfFrameInsideABadHeaderShouldBeKept() throws Exception {
+    FrameDecoder decoder = new FrameDecoder();
+
+    decoder.feed(fromHexString("FF FF 01 0E"));
+    assertThat(decoder.getSkippedByteCount(), is(2L));
+    assertThat(decoder.bytesNeeded(), is(2));
+    decoder.feed(fromHexString("00 01"));
+    decoder.feed(Arrays.copyOfRange(PAGE_RANGE_FRAME, 4, 12));
+    assertThat(decoder.feed(Arrays.copyOfRange(PAGE_RANGE_FRAME, 12, 14)), equalTo(PAGE_RANGE_FRAME));
+  }
+
+  @Test
+  public void badCrcShouldThrowAndResetTheDecoder() throws Exception {
+    FrameDecoder decoder = new FrameDecoder();
+    byte[] corrupted = Arrays.copyOf(PAGE_RANGE_FRAME, PAGE_RANGE_FRAME.length);
+    corrupted[6] ^= 0x10;
+
+    try {
+      feedByteByByte(decoder, corrupted);
+      fail("A corrupted frame should have been reported");
+    } catch (CorruptFrameException e) {
+      // expected
+    }
+
+    assertThat(decoder.bytesNeeded(), is(4));
+    assertThat(feedByteByByte(decoder, ACK_FRAME), equalTo(ACK_FRAME));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void feedingMoreThanNeededShouldFail() throws Exception {
+    new FrameDecoder().feed(PAGE_RANGE_FRAME);
+  }
+
+  private static byte[] feedByteByByte(FrameDecoder decoder, byte[] bytes) {
+    byte[] frame = null;
+    for (byte b : bytes) {
+      frame = decoder.feed(new byte[]{b});
+    }
+    return frame;
+  }
+
+  private static byte[] concat(byte[] first, byte[] second) {
+    byte[] bytes = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, bytes, first.length, second.length);
+    return bytes;
+  }
+}